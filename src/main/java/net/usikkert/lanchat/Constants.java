@@ -90,12 +90,60 @@ public interface Constants {
      */
     int NETWORK_FILE_TRANSFER_PORT = 40756;
 
+    /** The max number of threads used for handling file transfer requests and transfers. */
+    int NETWORK_FILE_TRANSFER_THREADS = 8;
+
+    /** The max number of file transfer requests waiting for a free thread. */
+    int NETWORK_FILE_TRANSFER_QUEUE_SIZE = 64;
+
+    /** The default max number of connections used to send one file, when the receiver supports segmented transfers. */
+    int NETWORK_FILE_TRANSFER_STREAMS = 4;
+
+    /** The default max number of file transfers copying files at the same time. The rest are queued. */
+    int NETWORK_FILE_TRANSFER_MAX_ACTIVE = 4;
+
+    /** The default max number of file transfers with each user copying files at the same time. */
+    int NETWORK_FILE_TRANSFER_MAX_ACTIVE_PER_USER = 2;
+
     /**
      * The size of the udp packets sent from normal and
      * private chats.
      */
     int NETWORK_PACKET_SIZE = 512;
 
+    /**
+     * The default number of milliseconds to wait for more multicast
+     * messages to pack into the same packet.
+     */
+    int NETWORK_PACKING_LINGER_TIME = 5;
+
+    /**
+     * The max number of received messages waiting to be handled,
+     * for each of the receivers.
+     */
+    int NETWORK_RECEIVE_QUEUE_SIZE = 1024;
+
+    /** The default number of chat messages per second to accept from each user. */
+    int NETWORK_FLOOD_CHAT_RATE = 5;
+
+    /** The default number of presence messages per second to accept from each user. */
+    int NETWORK_FLOOD_PRESENCE_RATE = 10;
+
+    /** The default number of control messages per second to accept from each user. */
+    int NETWORK_FLOOD_CONTROL_RATE = 10;
+
+    /**
+     * Milliseconds added to the max random delay before answering requests
+     * sent to everyone, like <code>EXPOSE</code>, for each user in the chat.
+     */
+    int NETWORK_RESPONSE_DELAY_PER_USER = 2;
+
+    /** The max random delay in milliseconds before answering requests sent to everyone. */
+    int NETWORK_MAX_RESPONSE_DELAY = 1000;
+
+    /** Bytes per second to use for the idle messages from all the users in the chat together. */
+    int NETWORK_IDLE_BANDWIDTH = 512;
+
     /**
      * The multicast address used for sending and receiving
      * packets for the main chat.
@@ -125,6 +173,12 @@ public interface Constants {
      */
     int MESSAGE_MAX_BYTES = 450;
 
+    /**
+     * Max number of bytes allowed in a chat message when all
+     * the receivers support fragmented messages.
+     */
+    int MESSAGE_MAX_FRAGMENTED_BYTES = 8000;
+
     /**
      * The folder where the application can save files.
      */
@@ -166,4 +220,14 @@ public interface Constants {
      * Property to access setting for <code>log location</code>.
      */
     String SETTINGS_LOG_LOCATION = "settings.logLocation";
+
+    /**
+     * Property to access setting for <code>nio receiver</code>.
+     */
+    String SETTINGS_NIO_RECEIVER = "settings.nioReceiver";
+
+    /**
+     * Property to access setting for <code>stream file transfer</code>.
+     */
+    String SETTINGS_STREAM_FILE_TRANSFER = "settings.streamFileTransfer";
 }
@@ -98,6 +98,9 @@ public final class LanChat {
         // so client property doesn't end up being null.
         System.setProperty(Constants.SETTINGS_ALWAYS_LOG, Boolean.toString(argumentParser.hasArgument(Argument.ALWAYS_LOG)));
         System.setProperty(Constants.SETTINGS_NO_PRIVATE_CHAT, Boolean.toString(argumentParser.hasArgument(Argument.NO_PRIVATE_CHAT)));
+        System.setProperty(Constants.SETTINGS_NIO_RECEIVER, Boolean.toString(argumentParser.hasArgument(Argument.NIO_RECEIVER)));
+        System.setProperty(Constants.SETTINGS_STREAM_FILE_TRANSFER,
+                Boolean.toString(argumentParser.hasArgument(Argument.STREAM_FILE_TRANSFER)));
 
         if (argumentParser.hasArgument(Argument.LOG_LOCATION)) {
             System.setProperty(Constants.SETTINGS_LOG_LOCATION, argumentParser.getArgument(Argument.LOG_LOCATION).getValue());
@@ -42,6 +42,8 @@ public enum Argument {
     NO_PRIVATE_CHAT(null, "--no-private-chat", "Disables private chat", false),
     ALWAYS_LOG(null, "--always-log", "Enables logging, without option to disable", false),
     LOG_LOCATION(null, "--log-location", "Location to store log files", true),
+    NIO_RECEIVER(null, "--nio-receiver", "Uses non-blocking channels on a single network thread", false),
+    STREAM_FILE_TRANSFER(null, "--stream-file-transfer", "Copies file transfers through streams instead of channels", false),
     UNKNOWN(null, null, null, false);
 
     private final String shortArgumentName;
@@ -38,6 +38,7 @@ public class CommandAutoCompleteList implements AutoCompleteList {
         "/cancel",
         "/clear",
         "/help",
+        "/limit",
         "/msg",
         "/nick",
         "/quit",
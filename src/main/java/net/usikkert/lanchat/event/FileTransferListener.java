@@ -36,6 +36,12 @@ public interface FileTransferListener {
      */
     void statusWaiting();
 
+    /**
+     * Called when the file transfer is waiting in the queue for other file transfers to finish,
+     * and when its position in the queue changes.
+     */
+    void statusQueued();
+
     /**
      * Called when the file transfer process is started, but before
      * connection has been established.
@@ -61,6 +61,30 @@ public class ControllerInformation implements ControllerInformationMBean {
         controller.logOff(true);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getIdleInterval() {
+        return controller.getIdleThread().getInterval();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getIdleTimeout() {
+        return controller.getIdleThread().getTimeout();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getReceivedIdleMessageRate() {
+        return controller.getIdleThread().getReceivedIdleMessageRate();
+    }
+
     /**
      * {@inheritDoc}
      */
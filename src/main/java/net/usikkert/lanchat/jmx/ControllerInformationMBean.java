@@ -38,4 +38,25 @@ public interface ControllerInformationMBean extends JMXBean {
      * Logs the client off the network.
      */
     void logOff();
+
+    /**
+     * Gets the average number of milliseconds between each idle message sent.
+     *
+     * @return The idle interval.
+     */
+    int getIdleInterval();
+
+    /**
+     * Gets the number of milliseconds to wait for an idle message before a user times out.
+     *
+     * @return The idle timeout.
+     */
+    int getIdleTimeout();
+
+    /**
+     * Gets the number of idle messages received per second from the other users.
+     *
+     * @return The received idle messages per second.
+     */
+    double getReceivedIdleMessageRate();
 }
@@ -0,0 +1,98 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.jmx;
+
+import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * This is a JMX MBean for the file transfer settings.
+ *
+ * @author Shouvik Goswami
+ */
+public class FileTransferInformation implements FileTransferInformationMBean {
+
+    /** The settings. */
+    private final Settings settings;
+
+    /**
+     * Constructor.
+     *
+     * @param settings The settings.
+     */
+    public FileTransferInformation(final Settings settings) {
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.settings = settings;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBandwidthLimit() {
+        return settings.getBandwidthLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBandwidthLimit(final int bandwidthLimit) {
+        if (bandwidthLimit < 0) {
+            throw new IllegalArgumentException("Bandwidth limit can not be negative");
+        }
+
+        settings.setBandwidthLimit(bandwidthLimit);
+        settings.saveSettings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getTransferBandwidthLimit() {
+        return settings.getTransferBandwidthLimit();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setTransferBandwidthLimit(final int transferBandwidthLimit) {
+        if (transferBandwidthLimit < 0) {
+            throw new IllegalArgumentException("Bandwidth limit can not be negative");
+        }
+
+        settings.setTransferBandwidthLimit(transferBandwidthLimit);
+        settings.saveSettings();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBeanName() {
+        return "FileTransfer";
+    }
+}
@@ -0,0 +1,61 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.jmx;
+
+/**
+ * This is a JMX MBean interface for the file transfer settings.
+ *
+ * @author Shouvik Goswami
+ */
+public interface FileTransferInformationMBean extends JMXBean {
+
+    /**
+     * Gets the max kilobytes per second for all the file transfers together.
+     *
+     * @return The limit in kilobytes per second, or 0 if there is no limit.
+     */
+    int getBandwidthLimit();
+
+    /**
+     * Sets the max kilobytes per second for all the file transfers together.
+     * Takes effect at once, also for the ongoing file transfers.
+     *
+     * @param bandwidthLimit The limit in kilobytes per second. 0 disables the limit.
+     */
+    void setBandwidthLimit(int bandwidthLimit);
+
+    /**
+     * Gets the max kilobytes per second for each file transfer.
+     *
+     * @return The limit in kilobytes per second, or 0 if there is no limit.
+     */
+    int getTransferBandwidthLimit();
+
+    /**
+     * Sets the max kilobytes per second for each file transfer.
+     * Takes effect at once, also for the ongoing file transfers.
+     *
+     * @param transferBandwidthLimit The limit in kilobytes per second. 0 disables the limit.
+     */
+    void setTransferBandwidthLimit(int transferBandwidthLimit);
+}
@@ -28,6 +28,7 @@ import java.util.List;
 import net.usikkert.lanchat.misc.Controller;
 import net.usikkert.lanchat.misc.Settings;
 import net.usikkert.lanchat.net.ConnectionWorker;
+import net.usikkert.lanchat.net.NetworkService;
 import net.usikkert.lanchat.util.Validate;
 
 /**
@@ -39,6 +40,8 @@ import net.usikkert.lanchat.util.Validate;
  *   <li>{@link NetworkInformation}</li>
  *   <li>{@link ControllerInformation}</li>
  *   <li>{@link GeneralInformation}</li>
+ *   <li>{@link NetworkStatistics}</li>
+ *   <li>{@link FileTransferInformation}</li>
  * </ul>
  *
  * @author Shouvik Goswami
@@ -53,17 +56,21 @@ public class JMXBeanLoader {
      * @param controller The controller.
      * @param connectionWorker The connection worker.
      * @param settings The settings.
+     * @param networkService The network service.
      */
     public JMXBeanLoader(final Controller controller, final ConnectionWorker connectionWorker,
-                         final Settings settings) {
+                         final Settings settings, final NetworkService networkService) {
         Validate.notNull(controller, "Controller can not be null");
         Validate.notNull(connectionWorker, "ConnectionWorker can not be null");
         Validate.notNull(settings, "Settings can not be null");
+        Validate.notNull(networkService, "NetworkService can not be null");
 
         jmxBeans = Arrays.asList(
                 new NetworkInformation(connectionWorker, settings),
                 new ControllerInformation(controller),
-                new GeneralInformation(settings));
+                new GeneralInformation(settings),
+                new NetworkStatistics(networkService),
+                new FileTransferInformation(settings));
     }
 
     public List<JMXBean> getJMXBeans() {
@@ -0,0 +1,173 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.jmx;
+
+import net.usikkert.lanchat.net.MessageDispatcher;
+import net.usikkert.lanchat.net.NetworkService;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * This is a JMX MBean for the statistics of the network protocol.
+ *
+ * @author Shouvik Goswami
+ */
+public class NetworkStatistics implements NetworkStatisticsMBean {
+
+    /** The network service to get the statistics from. */
+    private final NetworkService networkService;
+
+    /**
+     * Constructor.
+     *
+     * @param networkService The network service to get the statistics from.
+     */
+    public NetworkStatistics(final NetworkService networkService) {
+        Validate.notNull(networkService, "Network service can not be null");
+
+        this.networkService = networkService;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getIncompleteMessages() {
+        return networkService.getMessageReassembler().getIncompleteMessages();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedIncompleteMessages() {
+        return networkService.getMessageReassembler().getDroppedMessages();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMissingMessages() {
+        return networkService.getReliableMulticast().getGaps();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNacksSent() {
+        return networkService.getReliableMulticast().getNacksSent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNacksReceived() {
+        return networkService.getReliableMulticast().getNacksReceived();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRetransmittedMessages() {
+        return networkService.getReliableMulticast().getRetransmits();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDuplicateMessages() {
+        return networkService.getReliableMulticast().getDuplicates();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getReceiveQueueSize() {
+        final MessageDispatcher udpDispatcher = networkService.getUDPDispatcher();
+        final int udpQueueSize = udpDispatcher != null ? udpDispatcher.getQueueSize() : 0;
+
+        return networkService.getMessageDispatcher().getQueueSize() + udpQueueSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMaxReceiveQueueSize() {
+        final MessageDispatcher udpDispatcher = networkService.getUDPDispatcher();
+        final int udpMaxQueueSize = udpDispatcher != null ? udpDispatcher.getMaxQueueSize() : 0;
+
+        return Math.max(networkService.getMessageDispatcher().getMaxQueueSize(), udpMaxQueueSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedLowPriorityMessages() {
+        final MessageDispatcher udpDispatcher = networkService.getUDPDispatcher();
+        final long udpDropped = udpDispatcher != null ? udpDispatcher.getDroppedLowPriorityMessages() : 0;
+
+        return networkService.getMessageDispatcher().getDroppedLowPriorityMessages() + udpDropped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDroppedReceivedMessages() {
+        final MessageDispatcher udpDispatcher = networkService.getUDPDispatcher();
+        final long udpDropped = udpDispatcher != null ? udpDispatcher.getDroppedMessages() : 0;
+
+        return networkService.getMessageDispatcher().getDroppedMessages() + udpDropped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFloodDroppedMessages() {
+        return networkService.getFloodProtection().getDroppedMessages();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] showFloodDroppedMessagesPerUser() {
+        return networkService.getFloodProtection().showDroppedMessagesPerSender();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getBeanName() {
+        return "NetworkStatistics";
+    }
+}
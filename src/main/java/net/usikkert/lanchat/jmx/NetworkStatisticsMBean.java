@@ -0,0 +1,123 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.jmx;
+
+/**
+ * This is the JMX MBean interface for the statistics of the network protocol.
+ *
+ * @author Shouvik Goswami
+ */
+public interface NetworkStatisticsMBean extends JMXBean {
+
+    /**
+     * Gets the number of fragmented messages waiting for more fragments.
+     *
+     * @return The number of incomplete messages.
+     */
+    int getIncompleteMessages();
+
+    /**
+     * Gets the number of fragmented messages dropped before all the fragments arrived.
+     *
+     * @return The number of dropped messages.
+     */
+    long getDroppedIncompleteMessages();
+
+    /**
+     * Gets the number of missing chat messages detected from the sequence numbers.
+     *
+     * @return The number of missing messages.
+     */
+    long getMissingMessages();
+
+    /**
+     * Gets the number of NACKs sent to ask for missing chat messages.
+     *
+     * @return The number of NACKs sent.
+     */
+    long getNacksSent();
+
+    /**
+     * Gets the number of NACKs received for chat messages from this client.
+     *
+     * @return The number of NACKs received.
+     */
+    long getNacksReceived();
+
+    /**
+     * Gets the number of chat messages sent again.
+     *
+     * @return The number of messages sent again.
+     */
+    long getRetransmittedMessages();
+
+    /**
+     * Gets the number of duplicate chat messages dropped.
+     *
+     * @return The number of duplicates.
+     */
+    long getDuplicateMessages();
+
+    /**
+     * Gets the number of received messages waiting to be handled.
+     *
+     * @return The number of queued messages.
+     */
+    int getReceiveQueueSize();
+
+    /**
+     * Gets the highest number of received messages waiting to be handled at the same time.
+     *
+     * @return The max number of queued messages.
+     */
+    int getMaxReceiveQueueSize();
+
+    /**
+     * Gets the number of received <code>IDLE</code> and <code>WRITING</code> messages
+     * dropped because the receive queue was full.
+     *
+     * @return The number of dropped low priority messages.
+     */
+    long getDroppedLowPriorityMessages();
+
+    /**
+     * Gets the number of other received messages dropped because the receive queue was full.
+     *
+     * @return The number of dropped messages.
+     */
+    long getDroppedReceivedMessages();
+
+    /**
+     * Gets the number of received messages dropped because the user sent too many messages.
+     *
+     * @return The number of messages dropped by the flood protection.
+     */
+    long getFloodDroppedMessages();
+
+    /**
+     * Shows the number of messages dropped by the flood protection for each user.
+     *
+     * @return A line with the user code, IP address and dropped messages of each class, for each user.
+     */
+    String[] showFloodDroppedMessagesPerUser();
+}
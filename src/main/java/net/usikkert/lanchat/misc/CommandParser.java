@@ -23,15 +23,20 @@
 package net.usikkert.lanchat.misc;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
 
 import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.net.FileBatch;
 import net.usikkert.lanchat.net.FileReceiver;
 import net.usikkert.lanchat.net.FileSender;
 import net.usikkert.lanchat.net.FileTransfer;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.net.TransferList;
+import net.usikkert.lanchat.net.TransferScheduler;
 import net.usikkert.lanchat.ui.UserInterface;
 import net.usikkert.lanchat.util.Tools;
 import net.usikkert.lanchat.util.Validate;
@@ -49,6 +54,7 @@ public class CommandParser {
     private final MessageController msgController;
     private final User me;
     private final TransferList tList;
+    private final TransferScheduler transferScheduler;
     private final Settings settings;
 
     /**
@@ -70,6 +76,7 @@ public class CommandParser {
         msgController = ui.getMessageController();
         me = settings.getMe();
         tList = controller.getTransferList();
+        transferScheduler = controller.getTransferScheduler();
     }
 
     /**
@@ -216,9 +223,18 @@ public class CommandParser {
                     info += "\nHost name: " + user.getHostName();
                 }
 
-                info += "\nClient: " + user.getClient() +
-                        "\nOperating System: " + user.getOperatingSystem() +
-                        "\nOnline: " + Tools.howLongFromNow(user.getLogonTime());
+                // Clients with lazy client information only send it when asked
+                if (!user.isClientKnown() && user.supportsFeature(ProtocolFeature.LAZY_CLIENT)) {
+                    controller.sendGetClientMessage(user);
+                    info += "\nClient: asking " + user.getNick() + ", try again in a moment";
+                }
+
+                else {
+                    info += "\nClient: " + user.getClient() +
+                            "\nOperating System: " + user.getOperatingSystem();
+                }
+
+                info += "\nOnline: " + Tools.howLongFromNow(user.getLogonTime());
 
                 if (user.isAway()) {
                     info += "\nAway message: " + user.getAwayMsg();
@@ -231,7 +247,7 @@ public class CommandParser {
 
     /**
      * Command: <em>/send &lt;nick&gt; &lt;file&gt;</em>.
-     * Send a file to a user.
+     * Send a file or a folder to a user.
      *
      * @param args First argument is the user to send to, and the second is
      * the file to send to the user.
@@ -262,9 +278,9 @@ public class CommandParser {
                     file = file.trim();
                     final File sendFile = new File(file);
 
-                    if (sendFile.exists() && sendFile.isFile()) {
+                    if (sendFile.exists()) {
                         try {
-                            sendFile(user, sendFile);
+                            sendFiles(user, Arrays.asList(sendFile));
                         }
 
                         catch (final CommandException e) {
@@ -333,7 +349,11 @@ public class CommandParser {
 
         final File file = fileReceiver.getFile();
 
-        if (file.exists()) {
+        if (file.equals(fileReceiver.getPartialFile())) {
+            msgController.showSystemMessage("/receive - file '" + file.getName() + "' is partially received - resuming");
+        }
+
+        else if (file.exists()) {
             final File newFile = Tools.getFileWithIncrementedName(file);
             msgController.showSystemMessage("/receive - file '" + file.getName() + "' already exists - renaming to '" + newFile.getName() + "'");
             fileReceiver.setFile(newFile);
@@ -446,6 +466,128 @@ public class CommandParser {
         cancelFileTransfer(fileTransfer);
     }
 
+    /**
+     * Command: <em>/limit &lt;optional KB/s&gt;</em>, <em>/limit each &lt;KB/s&gt;</em>
+     * or <em>/limit &lt;nick&gt; &lt;id&gt; &lt;KB/s&gt;</em>.
+     * Shows or changes the bandwidth limit for all the file transfers together,
+     * for each file transfer, or for an ongoing file transfer with a user. 0 removes the limit.
+     *
+     * @param args No arguments to show the limits, the limit for all the file transfers,
+     * <em>each</em> and the limit for each file transfer, or the other user in the file transfer,
+     * the id of the file transfer and the limit for it.
+     */
+    private void cmdLimit(final String args) {
+        final String[] argsArray = args.split("\\s");
+
+        if (argsArray.length <= 1) {
+            msgController.showSystemMessage("Bandwidth limit: " + limitToString(settings.getBandwidthLimit()) +
+                    " for all file transfers, " + limitToString(settings.getTransferBandwidthLimit()) +
+                    " for each file transfer");
+            return;
+        }
+
+        if (argsArray.length == 3 && argsArray[1].equals("each")) {
+            final Integer limit = parseLimit(argsArray[2]);
+
+            if (limit != null) {
+                settings.setTransferBandwidthLimit(limit);
+                settings.saveSettings();
+                msgController.showSystemMessage("Bandwidth limit for each file transfer: " + limitToString(limit));
+            }
+
+            return;
+        }
+
+        if (argsArray.length == 2) {
+            final Integer limit = parseLimit(argsArray[1]);
+
+            if (limit != null) {
+                settings.setBandwidthLimit(limit);
+                settings.saveSettings();
+                msgController.showSystemMessage("Bandwidth limit for all file transfers: " + limitToString(limit));
+            }
+
+            return;
+        }
+
+        if (argsArray.length != 4) {
+            msgController.showSystemMessage("/limit - wrong number of arguments: <KB/s>, each <KB/s> or <nick> <id> <KB/s>");
+            return;
+        }
+
+        final String nick = argsArray[1];
+        final User user = controller.getUser(nick);
+
+        if (user == null) {
+            msgController.showSystemMessage("/limit - no such user '" + nick + "'");
+            return;
+        }
+
+        if (user == me) {
+            msgController.showSystemMessage("/limit - no point in doing that!");
+            return;
+        }
+
+        final Integer id = parseFileTransferId(argsArray[2]);
+
+        if (id == null) {
+            msgController.showSystemMessage("/limit - invalid file id argument: '" + argsArray[2] + "'");
+            return;
+        }
+
+        final FileTransfer fileTransfer = tList.getFileTransfer(user, id);
+
+        if (fileTransfer == null) {
+            msgController.showSystemMessage("/limit - no file transfer with id " + id + " going on with " + nick);
+            return;
+        }
+
+        final Integer limit = parseLimit(argsArray[3]);
+
+        if (limit != null) {
+            fileTransfer.getBandwidthLimiter().setRate(limit * 1024L);
+            msgController.showSystemMessage("Bandwidth limit for '" + fileTransfer.getFile().getName() + "' (#" + id +
+                    ") with " + nick + ": " + limitToString(limit));
+        }
+    }
+
+    /**
+     * Parses a bandwidth limit in kilobytes per second, and shows a message if it's not valid.
+     *
+     * @param argument The limit to parse.
+     * @return The limit, or <code>null</code> if it's not a valid limit.
+     */
+    private Integer parseLimit(final String argument) {
+        try {
+            final int limit = Integer.parseInt(argument);
+
+            if (limit >= 0) {
+                return limit;
+            }
+        }
+
+        catch (final NumberFormatException e) {
+            // Shows the message below
+        }
+
+        msgController.showSystemMessage("/limit - invalid limit argument: '" + argument + "'");
+        return null;
+    }
+
+    /**
+     * Gets a bandwidth limit in kilobytes per second as a string.
+     *
+     * @param limit The limit, or 0 if there is no limit.
+     * @return The limit as a string.
+     */
+    private String limitToString(final int limit) {
+        if (limit == 0) {
+            return "unlimited";
+        }
+
+        return limit + " KB/s";
+    }
+
     private Integer parseFileTransferId(final String argument) {
         try {
             return Integer.parseInt(argument);
@@ -625,8 +767,14 @@ public class CommandParser {
         transferInfo.append("#" + fileTransfer.getId() + " ");
         transferInfo.append(fileTransfer.getFile().getName());
         transferInfo.append(" [" + Tools.byteToString(fileTransfer.getFileSize()) + "]");
-        transferInfo.append(" (" + fileTransfer.getPercent() + "%, ");
-        transferInfo.append(Tools.byteToString(fileTransfer.getSpeed()) + "/s)");
+
+        if (fileTransfer.getQueuePosition() > 0) {
+            transferInfo.append(" (queued, number " + fileTransfer.getQueuePosition() + " in line)");
+        } else {
+            transferInfo.append(" (" + fileTransfer.getPercent() + "%, ");
+            transferInfo.append(Tools.byteToString(fileTransfer.getSpeed()) + "/s)");
+        }
+
         transferInfo.append(" " + direction + " ");
         transferInfo.append(fileTransfer.getUser().getNick());
     }
@@ -691,13 +839,141 @@ public class CommandParser {
      * @throws CommandException If there was a problem sending the file.
      */
     public void sendFile(final User user, final File file) throws CommandException {
-        controller.sendFile(user, file);
+        // Added first, so the file sender is ready if the user answers right away
         final FileSender fileSend = tList.addFileSender(user, file);
-        ui.showTransfer(fileSend);
 
         final String size = Tools.byteToString(file.length());
-        msgController.showSystemMessage("Trying to send the file " +
-                file.getName() + " (#" + fileSend.getId() + ") [" + size + "] to " + user.getNick());
+        offerFile(user, file, null, fileSend, "the file " + file.getName() + " (#" + fileSend.getId() + ") [" + size + "]");
+    }
+
+    /**
+     * Sends files and folders to a user. A single file is sent the usual way. Anything else is sent
+     * as one batch, if the user supports it. Otherwise each file is sent by itself, since
+     * folders can not be sent to the user at all.
+     *
+     * @param user The user to send to.
+     * @param files The files and folders to send to the user.
+     * @throws CommandException If there was a problem sending the files.
+     */
+    public void sendFiles(final User user, final List<File> files) throws CommandException {
+        Validate.notNull(files, "Files can not be null");
+
+        if (files.isEmpty()) {
+            throw new CommandException("No files to send to " + user.getNick());
+        }
+
+        if (files.size() == 1 && files.get(0).isFile()) {
+            sendFile(user, files.get(0));
+            return;
+        }
+
+        if (!user.supportsFeature(ProtocolFeature.BATCH)) {
+            for (final File file : files) {
+                if (!file.isFile()) {
+                    throw new CommandException("You can not send folders to " + user.getNick());
+                }
+            }
+
+            for (final File file : files) {
+                sendFile(user, file);
+            }
+
+            return;
+        }
+
+        final FileBatch batch;
+
+        try {
+            batch = FileBatch.create(files);
+        }
+
+        catch (final IOException e) {
+            throw new CommandException("Could not send the files to " + user.getNick() + ": " + e.getMessage());
+        }
+
+        // Added first, so the file sender is ready if the user answers right away
+        final FileSender fileSend = tList.addBatchSender(user, batch);
+
+        final String size = Tools.byteToString(batch.getTotalSize());
+        offerFile(user, batch.getRoot(), batch, fileSend, "the folder " + batch.getName() + " with " + batch.getFileCount() + " files (#" +
+                fileSend.getId() + ") [" + size + "]");
+    }
+
+    /**
+     * Offers the file or batch to the user, if the transfer scheduler lets the file sender offer it.
+     * Otherwise the file sender is queued, and the file is offered when it's the file sender's turn.
+     * The offer is withdrawn if the user does not answer before it expires.
+     *
+     * @param user The user to offer the file to.
+     * @param file The file to offer.
+     * @param batch The batch to offer, or <code>null</code> if offering a single file.
+     * @param fileSend The file sender of the file.
+     * @param description Describes the file in the messages to the application user.
+     * @throws CommandException If there was a problem offering the file right away.
+     */
+    private void offerFile(final User user, final File file, final FileBatch batch, final FileSender fileSend,
+                           final String description) throws CommandException {
+        final Runnable queuedOffer = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendOffer(user, file, batch, fileSend);
+                    msgController.showSystemMessage("Trying to send " + description + " to " + user.getNick());
+                }
+
+                catch (final CommandException e) {
+                    msgController.showSystemMessage(e.getMessage());
+                }
+            }
+        };
+
+        final Runnable expiredOffer = new Runnable() {
+            @Override
+            public void run() {
+                msgController.showSystemMessage(user.getNick() + " did not answer the offer of " + description +
+                        " in time");
+                fileSend.cancel();
+                tList.removeFileSender(fileSend);
+                controller.sendFileAbort(user, fileSend.getFileHash(), fileSend.getFile().getName());
+            }
+        };
+
+        if (!transferScheduler.offer(fileSend, queuedOffer, expiredOffer)) {
+            ui.showTransfer(fileSend);
+            msgController.showSystemMessage("Queued sending of " + description + " to " + user.getNick() +
+                    ", number " + fileSend.getQueuePosition() + " in line");
+            return;
+        }
+
+        sendOffer(user, file, batch, fileSend);
+        ui.showTransfer(fileSend);
+        msgController.showSystemMessage("Trying to send " + description + " to " + user.getNick());
+    }
+
+    /**
+     * Sends the message offering the file or batch to the user.
+     * The file sender is removed if the message could not be sent.
+     *
+     * @param user The user to offer the file to.
+     * @param file The file to offer.
+     * @param batch The batch to offer, or <code>null</code> if offering a single file.
+     * @param fileSend The file sender of the file.
+     * @throws CommandException If there was a problem sending the message.
+     */
+    private void sendOffer(final User user, final File file, final FileBatch batch, final FileSender fileSend)
+            throws CommandException {
+        try {
+            if (batch != null) {
+                controller.sendFileBatch(user, batch, fileSend.getFileHash());
+            } else {
+                controller.sendFile(user, file, fileSend.getFileHash());
+            }
+        }
+
+        catch (final CommandException e) {
+            tList.removeFileSender(fileSend);
+            throw e;
+        }
     }
 
     /**
@@ -709,6 +985,11 @@ public class CommandParser {
     public void cancelFileTransfer(final FileTransfer fileTransfer) {
         fileTransfer.cancel();
 
+        // The sender is waiting for an answer, which a queued file receiver has not given yet
+        if (fileTransfer instanceof FileReceiver) {
+            transferScheduler.cancel(fileTransfer);
+        }
+
         if (fileTransfer instanceof FileSender) {
             final FileSender fs = (FileSender) fileTransfer;
 
@@ -720,7 +1001,7 @@ public class CommandParser {
                 msgController.showSystemMessage("You cancelled sending of " +
                         file.getName() + " to " + user.getNick());
                 tList.removeFileSender(fs);
-                controller.sendFileAbort(user, file.hashCode(), file.getName());
+                controller.sendFileAbort(user, fs.getFileHash(), file.getName());
             }
         }
     }
@@ -736,12 +1017,15 @@ public class CommandParser {
                 "/cancel <nick> <id> - cancel an ongoing file transfer with a user\n" +
                 "/clear - clear all the text from the chat\n" +
                 "/help - show this help message\n" +
+                "/limit <optional KB/s> - prints or changes the bandwidth limit for all file transfers, 0 for none\n" +
+                "/limit each <KB/s> - changes the bandwidth limit for each file transfer\n" +
+                "/limit <nick> <id> <KB/s> - changes the bandwidth limit for an ongoing file transfer with a user\n" +
                 "/msg <nick> <msg> - send a private message to a user\n" +
                 "/nick <new nick> - changes your nick name\n" +
                 "/quit - quit from the chat\n" +
                 "/receive <nick> <id> - accept a file transfer request from a user\n" +
                 "/reject <nick> <id> - reject a file transfer request from a user\n" +
-                "/send <nick> <file> - send a file to a user\n" +
+                "/send <nick> <file> - send a file or folder to a user\n" +
                 "/topic <optional new topic> - prints the current topic, or changes the topic\n" +
                 "/transfers - shows a list of all file transfers and their status\n" +
                 "/users - show the user list\n" +
@@ -790,6 +1074,8 @@ public class CommandParser {
                 cmdReject(args);
             } else if (command.equals("cancel")) {
                 cmdCancel(args);
+            } else if (command.equals("limit")) {
+                cmdLimit(args);
             } else if (command.equals("msg")) {
                 cmdMsg(args);
             } else if (command.equals("nick")) {
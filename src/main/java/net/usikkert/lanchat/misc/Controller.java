@@ -24,8 +24,16 @@ package net.usikkert.lanchat.misc;
 
 import java.io.File;
 import java.util.List;
+import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,18 +42,25 @@ import net.usikkert.lanchat.autocomplete.AutoCompleter;
 import net.usikkert.lanchat.autocomplete.CommandAutoCompleteList;
 import net.usikkert.lanchat.autocomplete.UserAutoCompleteList;
 import net.usikkert.lanchat.event.NetworkConnectionListener;
+import net.usikkert.lanchat.event.SettingsListener;
 import net.usikkert.lanchat.jmx.JMXBeanLoader;
+import net.usikkert.lanchat.misc.ResponseScheduler.Response;
 import net.usikkert.lanchat.net.DefaultMessageResponder;
 import net.usikkert.lanchat.net.DefaultPrivateMessageResponder;
+import net.usikkert.lanchat.net.FileBatch;
 import net.usikkert.lanchat.net.FileReceiver;
 import net.usikkert.lanchat.net.FileSender;
 import net.usikkert.lanchat.net.MessageParser;
 import net.usikkert.lanchat.net.MessageResponder;
 import net.usikkert.lanchat.net.Messages;
 import net.usikkert.lanchat.net.NetworkService;
+import net.usikkert.lanchat.net.PartialTransfers;
 import net.usikkert.lanchat.net.PrivateMessageParser;
 import net.usikkert.lanchat.net.PrivateMessageResponder;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.net.TransferList;
+import net.usikkert.lanchat.net.TransferProgressPublisher;
+import net.usikkert.lanchat.net.TransferScheduler;
 import net.usikkert.lanchat.ui.UserInterface;
 import net.usikkert.lanchat.util.Tools;
 import net.usikkert.lanchat.util.Validate;
@@ -72,6 +87,8 @@ public class Controller implements NetworkConnectionListener {
     private final Messages messages;
     private final IdleThread idleThread;
     private final TransferList tList;
+    private final TransferScheduler transferScheduler;
+    private final TransferProgressPublisher progressPublisher;
     private final WaitingList wList;
     private final User me;
     private final UserInterface ui;
@@ -79,6 +96,12 @@ public class Controller implements NetworkConnectionListener {
     private final Settings settings;
     private final DayTimer dayTimer;
     private final Thread shutdownHook;
+    private final ExecutorService fileTransferExecutor;
+    private final ResponseScheduler responseScheduler;
+    private final Random responseDelayRandom;
+
+    /** If an <code>EXPOSE</code> came from a user who needs the full <code>CLIENT</code> in the response. */
+    private final AtomicBoolean clientResponseRequested;
 
     /**
      * Constructor. Initializes the controller, but does not log on to
@@ -107,11 +130,21 @@ public class Controller implements NetworkConnectionListener {
         me = settings.getMe();
         userListController = new UserListController(settings);
         chatState = new ChatState();
-        tList = new TransferList();
+        networkService = new NetworkService(settings);
+        networkService.setPeerFeatures(userListController);
+        tList = new TransferList(networkService.getNetworkReactor(), settings.isStreamFileTransfer(),
+                new PartialTransfers(new File(Constants.APP_FOLDER + "partialtransfers.ini")));
+        updateBandwidthLimits();
         wList = new WaitingList();
+        fileTransferExecutor = createFileTransferExecutor();
+        transferScheduler = new TransferScheduler(tList, fileTransferExecutor);
+        updateTransferLimits();
+        progressPublisher = new TransferProgressPublisher(tList);
+        responseScheduler = new ResponseScheduler();
+        responseDelayRandom = new Random();
+        clientResponseRequested = new AtomicBoolean();
         idleThread = new IdleThread(this, ui, settings);
         dayTimer = new DayTimer(ui);
-        networkService = new NetworkService(settings);
         final MessageResponder msgResponder = new DefaultMessageResponder(this, ui, settings);
         final PrivateMessageResponder privmsgResponder = new DefaultPrivateMessageResponder(this, ui, settings);
         final MessageParser msgParser = new MessageParser(msgResponder, settings);
@@ -122,8 +155,23 @@ public class Controller implements NetworkConnectionListener {
         networkService.registerNetworkConnectionListener(this);
         msgController = ui.getMessageController();
 
+        settings.addSettingsListener(new SettingsListener() {
+            @Override
+            public void settingChanged(final String setting) {
+                if (setting.equals("bandwidthLimit") || setting.equals("transferBandwidthLimit")) {
+                    updateBandwidthLimits();
+                }
+
+                else if (setting.equals("maxFileTransfers") || setting.equals("maxFileTransfersPerUser")
+                        || setting.equals("maxFileSends") || setting.equals("maxFileReceives")) {
+                    updateTransferLimits();
+                }
+            }
+        });
+
         dayTimer.startTimer();
         idleThread.start();
+        progressPublisher.start();
 
         msgController.showSystemMessage("Welcome to " + Constants.APP_NAME + " v" + Constants.APP_VERSION + "!");
         final String date = Tools.dateToString(null, "EEEE, d MMMM yyyy");
@@ -443,6 +491,50 @@ public class Controller implements NetworkConnectionListener {
         idleThread.stopThread();
         dayTimer.stopTimer();
         msgController.shutdown();
+        fileTransferExecutor.shutdown();
+        progressPublisher.stop();
+        tList.stopTransferServer();
+        responseScheduler.stop();
+    }
+
+    /**
+     * Sets the bandwidth limits of the file transfers from the settings, in kilobytes per second.
+     */
+    private void updateBandwidthLimits() {
+        tList.setBandwidthLimit(Math.max(0, settings.getBandwidthLimit()) * 1024L);
+        tList.setTransferBandwidthLimit(Math.max(0, settings.getTransferBandwidthLimit()) * 1024L);
+    }
+
+    /**
+     * Sets how many file transfers can copy files at the same time, from the settings.
+     */
+    private void updateTransferLimits() {
+        transferScheduler.setLimits(settings.getMaxFileTransfers(), settings.getMaxFileTransfersPerUser(),
+                settings.getMaxFileSends(), settings.getMaxFileReceives());
+    }
+
+    /**
+     * Creates the executor shared by the file transfer requests and transfers.
+     * The number of threads and waiting tasks is limited, and idle threads are stopped.
+     *
+     * @return The new executor.
+     */
+    private ExecutorService createFileTransferExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Constants.NETWORK_FILE_TRANSFER_THREADS, Constants.NETWORK_FILE_TRANSFER_THREADS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(Constants.NETWORK_FILE_TRANSFER_QUEUE_SIZE),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(runnable, "FileTransferWorker-" + threadNumber.incrementAndGet());
+                    }
+                });
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
     }
 
     /**
@@ -454,10 +546,41 @@ public class Controller implements NetworkConnectionListener {
     }
 
     /**
-     * Sends a message over the network to identify this client.
+     * Sends a message over the network to identify this client, as a response to <code>EXPOSE</code>.
+     *
+     * <p>The response is sent after a random delay, and requests arriving in the mean time
+     * get the same response. The identification is followed by the full client information
+     * if any of the users asking needs it, or only the private chat port and features if not.</p>
+     *
+     * @param fullClientInfo If the user asking needs the full client information.
+     */
+    public void sendExposingResponse(final boolean fullClientInfo) {
+        if (fullClientInfo) {
+            clientResponseRequested.set(true);
+        }
+
+        responseScheduler.schedule(Response.EXPOSING, new Runnable() {
+            @Override
+            public void run() {
+                messages.sendExposingMessage();
+
+                if (clientResponseRequested.getAndSet(false)) {
+                    messages.sendClient();
+                } else {
+                    messages.sendFeatures();
+                }
+            }
+        }, getResponseDelay());
+    }
+
+    /**
+     * Updates the idle time of a user, and restarts the timeout.
+     *
+     * @param user The user who sent an idle message.
      */
-    public void sendExposingMessage() {
-        messages.sendExposingMessage();
+    public void userIdle(final User user) {
+        user.setLastIdle(System.currentTimeMillis());
+        idleThread.userIdle(user.getCode());
     }
 
     /**
@@ -493,18 +616,100 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException("You can not send a chat message while away");
         } else if (msg.trim().length() == 0) {
             throw new CommandException("You can not send an empty chat message");
-        } else if (Tools.getBytes(msg) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException("You can not send a chat message with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
+        } else if (Tools.getBytes(msg) > getMaxChatMessageBytes()) {
+            throw new CommandException("You can not send a chat message with more than " + getMaxChatMessageBytes() + " bytes");
         } else {
             messages.sendChatMessage(msg);
         }
     }
 
     /**
-     * Sends a message over the network with the current topic.
+     * Checks if all the other users support the protocol feature.
+     *
+     * @param feature The feature to check.
+     * @return If every other user supports the feature. <code>false</code> if there are no other users.
+     */
+    public boolean isSupportedByAllPeers(final ProtocolFeature feature) {
+        return networkService.isSupportedByAllPeers(feature);
+    }
+
+    /**
+     * Gets the thread sending idle messages and checking for timed out users.
+     *
+     * @return The idle thread.
+     */
+    public IdleThread getIdleThread() {
+        return idleThread;
+    }
+
+    /**
+     * Gets the max size of a chat message. Large messages are only
+     * allowed when all the other users support fragmented messages.
+     *
+     * @return The max number of bytes in a chat message.
+     */
+    private int getMaxChatMessageBytes() {
+        if (networkService.isSupportedByAllPeers(ProtocolFeature.FRAGMENTS)) {
+            return Constants.MESSAGE_MAX_FRAGMENTED_BYTES;
+        }
+
+        return Constants.MESSAGE_MAX_BYTES;
+    }
+
+    /**
+     * Gets the max size of a private chat message to the user. Large messages
+     * are only allowed when the user supports fragmented messages.
+     *
+     * @param user The user to send the private message to.
+     * @return The max number of bytes in a private chat message.
+     */
+    private int getMaxPrivateMessageBytes(final User user) {
+        if (user.supportsFeature(ProtocolFeature.FRAGMENTS)) {
+            return Constants.MESSAGE_MAX_FRAGMENTED_BYTES;
+        }
+
+        return Constants.MESSAGE_MAX_BYTES;
+    }
+
+    /**
+     * Sends a message over the network with the current topic, as a response to <code>GETTOPIC</code>.
+     *
+     * <p>The response is sent after a random delay, and requests arriving in the mean time
+     * get the same response. See {@link #cancelTopicResponse()}.</p>
+     */
+    public void sendTopicResponse() {
+        responseScheduler.schedule(Response.TOPIC, new Runnable() {
+            @Override
+            public void run() {
+                messages.sendTopicRequestedMessage(getTopic());
+            }
+        }, getResponseDelay());
+    }
+
+    /**
+     * Cancels the response with the current topic, if it's waiting to be sent.
+     * Used when another client has already sent the same topic.
+     */
+    public void cancelTopicResponse() {
+        responseScheduler.cancel(Response.TOPIC);
+    }
+
+    /**
+     * Gets a random delay for answering requests sent to everyone. The max delay grows
+     * with the number of users, so the responses are spread out the same way
+     * regardless of how many users there are.
+     *
+     * @return Milliseconds to wait before sending the response.
      */
-    public void sendTopicRequestedMessage() {
-        messages.sendTopicRequestedMessage(getTopic());
+    private long getResponseDelay() {
+        final int maxDelay = Math.min(Constants.NETWORK_MAX_RESPONSE_DELAY,
+                (getUserList().size() - 1) * Constants.NETWORK_RESPONSE_DELAY_PER_USER);
+
+        if (maxDelay <= 0) {
+            return 0;
+        }
+
+        return responseDelayRandom.nextInt(maxDelay + 1);
     }
 
     /**
@@ -569,22 +774,80 @@ public class Controller implements NetworkConnectionListener {
         messages.sendFileAccept(user, port, fileHash, fileName);
     }
 
+    /**
+     * Sends a message over the network to notify the file sender that you
+     * accepted the file transfer, and want to continue from the end of the partially received file.
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param offset The number of bytes already received.
+     * @param checksum The checksum of the last bytes before the offset.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileResume(final User user, final int port, final int fileHash, final String fileName,
+                               final long offset, final long checksum) throws CommandException {
+        messages.sendFileResume(user, port, fileHash, fileName, offset, checksum);
+    }
+
     /**
      * Sends a message over the network to notify another user that the
      * application user wants to send a file.
      *
      * @param user The user asked to receive a file.
      * @param file The file to send.
+     * @param fileHash The hash that identifies the file transfer.
      * @throws CommandException If the specified user is the application user,
      *                          or there is no connection to the network,
      *                          or the application user is away,
      *                          or the specified user is away,
      *                          or the file name is too long.
      */
-    public void sendFile(final User user, final File file) throws CommandException {
+    public void sendFile(final User user, final File file, final int fileHash) throws CommandException {
         Validate.notNull(user, "User can not be null");
         Validate.notNull(file, "File can not be null");
 
+        checkCanSendFile(user, file.getName());
+        messages.sendFile(user, file, fileHash);
+    }
+
+    /**
+     * Sends a message over the network to notify another user that the
+     * application user wants to send a batch of files and directories.
+     *
+     * @param user The user asked to receive the files.
+     * @param batch The files to send.
+     * @param fileHash The hash that identifies the file transfer.
+     * @throws CommandException If the file can not be sent for the same reasons as in
+     *                          {@link #sendFile(User, File, int)}, or the user does not support batches.
+     */
+    public void sendFileBatch(final User user, final FileBatch batch, final int fileHash) throws CommandException {
+        Validate.notNull(user, "User can not be null");
+        Validate.notNull(batch, "Batch can not be null");
+
+        checkCanSendFile(user, batch.getName());
+
+        if (!user.supportsFeature(ProtocolFeature.BATCH)) {
+            throw new CommandException("You can not send folders or many files at once to " + user.getNick());
+        }
+
+        messages.sendFileBatch(user, batch, fileHash);
+    }
+
+    /**
+     * Checks if the application user can send a file to the user.
+     *
+     * @param user The user asked to receive a file.
+     * @param fileName The name of the file.
+     * @throws CommandException If the specified user is the application user,
+     *                          or there is no connection to the network,
+     *                          or the application user is away,
+     *                          or the specified user is away,
+     *                          or the file name is too long.
+     */
+    private void checkCanSendFile(final User user, final String fileName) throws CommandException {
         if (user.isMe()) {
             throw new CommandException("You can not send a file to yourself");
         } else if (!isConnected()) {
@@ -593,10 +856,8 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException("You can not send a file while away");
         } else if (user.isAway()) {
             throw new CommandException("You can not send a file to a user that is away");
-        } else if (Tools.getBytes(file.getName()) > Constants.MESSAGE_MAX_BYTES) {
+        } else if (Tools.getBytes(fileName) > Constants.MESSAGE_MAX_BYTES) {
             throw new CommandException("You can not send a file with a name with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
-        } else {
-            messages.sendFile(user, file);
         }
     }
 
@@ -609,6 +870,25 @@ public class Controller implements NetworkConnectionListener {
         return tList;
     }
 
+    /**
+     * Gets the scheduler that decides when the file transfers in the transfer list can start.
+     *
+     * @return The transfer scheduler.
+     */
+    public TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * Gets the executor shared by the file transfer requests and transfers.
+     * Tasks are rejected when all the threads are busy and the queue is full.
+     *
+     * @return The file transfer executor.
+     */
+    public ExecutorService getFileTransferExecutor() {
+        return fileTransferExecutor;
+    }
+
     /**
      * Gets the list of unidentified users.
      *
@@ -636,6 +916,15 @@ public class Controller implements NetworkConnectionListener {
         messages.sendClient();
     }
 
+    /**
+     * Sends a message over the network asking the user for more information about the user's client.
+     *
+     * @param user The user to ask.
+     */
+    public void sendGetClientMessage(final User user) {
+        messages.sendGetClientMessage(user);
+    }
+
     /**
      * Sends a private chat message over the network, to the specified user.
      *
@@ -655,8 +944,8 @@ public class Controller implements NetworkConnectionListener {
             throw new CommandException("You can not send a private chat message while away");
         } else if (privmsg.trim().length() == 0) {
             throw new CommandException("You can not send an empty private chat message");
-        } else if (Tools.getBytes(privmsg) > Constants.MESSAGE_MAX_BYTES) {
-            throw new CommandException("You can not send a private chat message with more than " + Constants.MESSAGE_MAX_BYTES + " bytes");
+        } else if (Tools.getBytes(privmsg) > getMaxPrivateMessageBytes(user)) {
+            throw new CommandException("You can not send a private chat message with more than " + getMaxPrivateMessageBytes(user) + " bytes");
         } else if (user.getPrivateChatPort() == 0) {
             throw new CommandException("You can not send a private chat message to a user with no available port number");
         } else if (user.isAway()) {
@@ -819,7 +1108,7 @@ public class Controller implements NetworkConnectionListener {
      * @return A JMX bean loader.
      */
     public JMXBeanLoader createJMXBeanLoader() {
-        return new JMXBeanLoader(this, networkService.getConnectionWorker(), settings);
+        return new JMXBeanLoader(this, networkService.getConnectionWorker(), settings, networkService);
     }
 
     public void registerNetworkConnectionListener(final NetworkConnectionListener listener) {
@@ -0,0 +1,103 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import java.util.Random;
+
+/**
+ * Calculates how often to send idle messages, and how long to wait for them before users time out.
+ *
+ * <p>Every client sends idle messages, so the traffic grows with the number of users.
+ * To keep the traffic from all the idle messages in the chat below a target bandwidth, the
+ * interval grows with the number of users, like the report interval in RTCP. Small chats keep
+ * the minimum interval. The timeout is a fixed number of intervals, and the intervals are
+ * randomized to avoid every client sending at the same time.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class IdleInterval {
+
+    /** The shortest interval between idle messages, in milliseconds. */
+    public static final int MIN_INTERVAL = 15000;
+
+    /** The longest interval between idle messages, in milliseconds. */
+    public static final int MAX_INTERVAL = 300000;
+
+    /** The number of intervals without idle messages before a user times out. */
+    public static final int TIMEOUT_INTERVALS = 8;
+
+    /** Estimated bytes used on the network by an idle message, including the UDP and IP headers. */
+    public static final int IDLE_MESSAGE_SIZE = 64;
+
+    /** Bytes per second to use for the idle messages from all the users together. */
+    private final int bandwidth;
+
+    /** For the random part of the intervals. */
+    private final Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param bandwidth Bytes per second to use for the idle messages from all the users together.
+     */
+    public IdleInterval(final int bandwidth) {
+        if (bandwidth < 1) {
+            throw new IllegalArgumentException("Bandwidth must be at least 1");
+        }
+
+        this.bandwidth = bandwidth;
+        random = new Random();
+    }
+
+    /**
+     * Calculates the average interval between idle messages from each user.
+     *
+     * @param users The number of users in the chat, including the application user.
+     * @return The interval in milliseconds.
+     */
+    public int calculateInterval(final int users) {
+        final long interval = 1000L * users * IDLE_MESSAGE_SIZE / bandwidth;
+
+        return (int) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    /**
+     * Calculates how long to wait for an idle message before a user times out.
+     *
+     * @param interval The average interval between idle messages, in milliseconds.
+     * @return The timeout in milliseconds.
+     */
+    public int calculateTimeout(final int interval) {
+        return interval * TIMEOUT_INTERVALS;
+    }
+
+    /**
+     * Picks a random interval between half and one and a half of the average interval.
+     *
+     * @param interval The average interval between idle messages, in milliseconds.
+     * @return The randomized interval in milliseconds.
+     */
+    public int randomize(final int interval) {
+        return interval / 2 + random.nextInt(interval + 1);
+    }
+}
@@ -22,44 +22,72 @@
 
 package net.usikkert.lanchat.misc;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.UserListListener;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.ui.UserInterface;
 import net.usikkert.lanchat.util.Validate;
 
 /**
  * This thread is responsible for sending a special "idle"
- * message every IDLE_TIME milliseconds to inform other clients
+ * message at regular intervals to inform other clients
  * that this client is still online. It will also check if
  * other clients have stopped sending these messages,
  * and if that is the case, remove them and show a message
  * in the user interface.
  *
+ * <p>The timeouts are kept in a {@link TimeoutWheel}, so an idle message only
+ * reschedules the timeout of that user, and checking for timeouts only
+ * touches the users that timed out.</p>
+ *
+ * <p>When all the other clients support {@link ProtocolFeature#ADAPTIVE_IDLE}, the interval
+ * between the idle messages and the timeout grows with the number of users.
+ * See {@link IdleInterval}.</p>
+ *
  * @author Shouvik Goswami
  */
-public class IdleThread extends Thread {
+public class IdleThread extends Thread implements UserListListener {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(IdleThread.class.getName());
 
-    /**
-     * Number of milliseconds to wait before the next
-     * idle message will be sent.
-     */
-    private static final int IDLE_TIME = 15000;
+    /** Max number of milliseconds between each check for timed out users. */
+    private static final int CHECK_TIME = IdleInterval.MIN_INTERVAL;
+
+    /** The precision of the timeouts, in milliseconds. */
+    private static final int TIMEOUT_TICK = 1000;
+
+    private final Controller controller;
+    private final UserList userList;
+    private final User me;
+    private final MessageController msgController;
+
+    /** When each of the other users times out, by their unique code. */
+    private final TimeoutWheel timeouts;
+
+    /** Calculates the interval between the idle messages. */
+    private final IdleInterval idleInterval;
+
+    /** The number of idle messages received from the other users. */
+    private final AtomicLong receivedIdleMessages;
+
+    /** The average number of milliseconds between each idle message sent. */
+    private volatile int interval;
 
     /**
      * If an idle message has not been received from another
      * client in this number of milliseconds, then it's not
      * on the network anymore and must be removed.
      */
-    private static final int TIMEOUT = 120000;
+    private volatile int timeout;
 
-    private final Controller controller;
-    private final UserList userList;
-    private final User me;
-    private final MessageController msgController;
+    /** Idle messages received per second, since the last check. */
+    private volatile double receivedIdleMessageRate;
 
     /** The thread runs while this is true. */
     private boolean run;
@@ -81,6 +109,12 @@ public class IdleThread extends Thread {
         userList = controller.getUserList();
         me = settings.getMe();
         msgController = ui.getMessageController();
+        timeouts = new TimeoutWheel(TimeUnit.MILLISECONDS.toNanos(TIMEOUT_TICK), System.nanoTime());
+        idleInterval = new IdleInterval(Constants.NETWORK_IDLE_BANDWIDTH);
+        receivedIdleMessages = new AtomicLong();
+        interval = IdleInterval.MIN_INTERVAL;
+        timeout = idleInterval.calculateTimeout(interval);
+        userList.addUserListListener(this);
 
         run = true;
         setName("IdleThread");
@@ -98,26 +132,50 @@ public class IdleThread extends Thread {
         // In case of any error messages during startup
         me.setLastIdle(System.currentTimeMillis());
 
+        long nextIdleTime = System.nanoTime();
+        long lastCheckTime = nextIdleTime;
+        long lastReceivedIdleMessages = 0;
+
         while (run) {
-            controller.sendIdleMessage();
-            boolean timeout = false;
+            final long now = System.nanoTime();
+            updateInterval();
 
-            for (int i = 0; i < userList.size(); i++) {
-                final User temp = userList.get(i);
+            if (now - nextIdleTime >= 0) {
+                controller.sendIdleMessage();
+                nextIdleTime = now + TimeUnit.MILLISECONDS.toNanos(idleInterval.randomize(interval));
+            }
+
+            // The interval got shorter, like when an older client logged on
+            else if (nextIdleTime - now > TimeUnit.MILLISECONDS.toNanos(interval + interval / 2)) {
+                nextIdleTime = now + TimeUnit.MILLISECONDS.toNanos(idleInterval.randomize(interval));
+            }
+
+            final long received = receivedIdleMessages.get();
+
+            if (now > lastCheckTime) {
+                receivedIdleMessageRate = (received - lastReceivedIdleMessages) * (double) TimeUnit.SECONDS.toNanos(1) / (now - lastCheckTime);
+            }
+
+            lastCheckTime = now;
+            lastReceivedIdleMessages = received;
+            boolean timedOut = false;
+
+            for (final int userCode : timeouts.advance(now)) {
+                final User user = controller.getUser(userCode);
 
-                if (temp.getCode() != me.getCode() && temp.getLastIdle() < System.currentTimeMillis() - TIMEOUT) {
-                    userTimedOut(temp);
-                    timeout = true;
-                    i--;
+                if (user != null) {
+                    userTimedOut(user);
+                    timedOut = true;
                 }
             }
 
-            if (timeout) {
+            if (timedOut) {
                 controller.updateAfterTimeout();
             }
 
             try {
-                sleep(IDLE_TIME);
+                final long untilNextIdle = TimeUnit.NANOSECONDS.toMillis(nextIdleTime - System.nanoTime());
+                sleep(Math.max(1, Math.min(CHECK_TIME, untilNextIdle)));
             }
 
             // Sleep interrupted - probably from stopThread()
@@ -141,6 +199,95 @@ public class IdleThread extends Thread {
         msgController.showSystemMessage(timeOutMessage);
     }
 
+    /**
+     * Calculates the interval and timeout from the number of users.
+     * The minimum interval is used unless all the other clients support adaptive intervals,
+     * since older clients time out users after a fixed time.
+     */
+    private void updateInterval() {
+        if (controller.isSupportedByAllPeers(ProtocolFeature.ADAPTIVE_IDLE)) {
+            interval = idleInterval.calculateInterval(userList.size());
+        } else {
+            interval = IdleInterval.MIN_INTERVAL;
+        }
+
+        timeout = idleInterval.calculateTimeout(interval);
+    }
+
+    /**
+     * Restarts the timeout of a user who sent an idle message.
+     *
+     * @param userCode The unique code of the user.
+     */
+    public void userIdle(final int userCode) {
+        receivedIdleMessages.incrementAndGet();
+        resetTimeout(userCode);
+    }
+
+    private void resetTimeout(final int userCode) {
+        if (userCode != me.getCode()) {
+            timeouts.schedule(userCode, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout));
+        }
+    }
+
+    /**
+     * Gets the average number of milliseconds between each idle message sent.
+     *
+     * @return The idle interval.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Gets the number of milliseconds to wait for an idle message before a user times out.
+     *
+     * @return The timeout.
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Gets the number of idle messages received per second from the other users,
+     * measured since the last check for timeouts.
+     *
+     * @return The received idle messages per second.
+     */
+    public double getReceivedIdleMessageRate() {
+        return receivedIdleMessageRate;
+    }
+
+    /**
+     * Starts the timeout of the new user.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userAdded(final int pos, final User user) {
+        resetTimeout(user.getCode());
+    }
+
+    /**
+     * Not implemented.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userChanged(final int pos, final User user) {
+
+    }
+
+    /**
+     * Stops the timeout of the removed user.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void userRemoved(final int pos, final User user) {
+        timeouts.cancel(user.getCode());
+    }
+
     /**
      * Shuts down the thread in a controlled manner.
      */
@@ -0,0 +1,208 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends responses to requests from the other clients after a delay,
+ * and only once for several requests arriving before the response is sent.
+ *
+ * <p>Requests like <code>EXPOSE</code> and <code>GETTOPIC</code> are answered by every client
+ * on the network. When all the clients answer at the same time, and again for each new user
+ * joining, the network gets flooded. By waiting a random delay first, requests arriving in the mean
+ * time are answered by the same response, and a response can be cancelled if another client sends
+ * the same response first.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class ResponseScheduler {
+
+    /** The responses that can be scheduled. Only one of each can be waiting at the same time. */
+    public enum Response {
+
+        /** Identifies this client, as a response to <code>EXPOSE</code>. */
+        EXPOSING,
+
+        /** The current topic, as a response to <code>GETTOPIC</code>. */
+        TOPIC
+    }
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ResponseScheduler.class.getName());
+
+    /** The responses waiting to be sent. */
+    private final Map<Response, TimerTask> pendingResponses;
+
+    /** The timer for sending the responses, created when first needed. */
+    private Timer timer;
+
+    /** The number of requests answered by a response that was already waiting. */
+    private long coalescedResponses;
+
+    /** The number of responses cancelled before they were sent. */
+    private long cancelledResponses;
+
+    /**
+     * Constructor.
+     */
+    public ResponseScheduler() {
+        pendingResponses = new EnumMap<Response, TimerTask>(Response.class);
+    }
+
+    /**
+     * Schedules a response to be sent after the delay, unless the same response is already waiting.
+     * A delay of 0 sends the response right away, in the calling thread.
+     *
+     * @param response The response to schedule.
+     * @param sender Sends the response.
+     * @param delay Milliseconds to wait before sending the response.
+     * @return If the response was scheduled, and was not already waiting.
+     */
+    public boolean schedule(final Response response, final Runnable sender, final long delay) {
+        synchronized (this) {
+            if (pendingResponses.containsKey(response)) {
+                coalescedResponses++;
+                return false;
+            }
+
+            if (delay > 0) {
+                final TimerTask task = new ResponseTask(response, sender);
+                pendingResponses.put(response, task);
+                getTimer().schedule(task, delay);
+
+                return true;
+            }
+        }
+
+        sender.run();
+
+        return true;
+    }
+
+    /**
+     * Cancels the response if it's waiting to be sent.
+     *
+     * @param response The response to cancel.
+     * @return If the response was waiting, and is now cancelled.
+     */
+    public synchronized boolean cancel(final Response response) {
+        final TimerTask task = pendingResponses.remove(response);
+
+        if (task == null) {
+            return false;
+        }
+
+        task.cancel();
+        cancelledResponses++;
+
+        return true;
+    }
+
+    /**
+     * Checks if the response is waiting to be sent.
+     *
+     * @param response The response to check.
+     * @return If the response is waiting.
+     */
+    public synchronized boolean isPending(final Response response) {
+        return pendingResponses.containsKey(response);
+    }
+
+    /**
+     * Gets the number of requests answered by a response that was already waiting.
+     *
+     * @return The number of coalesced responses.
+     */
+    public synchronized long getCoalescedResponses() {
+        return coalescedResponses;
+    }
+
+    /**
+     * Gets the number of responses cancelled before they were sent.
+     *
+     * @return The number of cancelled responses.
+     */
+    public synchronized long getCancelledResponses() {
+        return cancelledResponses;
+    }
+
+    /**
+     * Stops the timer. Responses waiting to be sent are dropped.
+     */
+    public synchronized void stop() {
+        pendingResponses.clear();
+
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    private Timer getTimer() {
+        if (timer == null) {
+            timer = new Timer("ResponseTimer", true);
+        }
+
+        return timer;
+    }
+
+    /**
+     * Sends a response when the delay is over, unless it has been cancelled.
+     */
+    private class ResponseTask extends TimerTask {
+
+        private final Response response;
+        private final Runnable sender;
+
+        ResponseTask(final Response response, final Runnable sender) {
+            this.response = response;
+            this.sender = sender;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ResponseScheduler.this) {
+                if (pendingResponses.get(response) != this) {
+                    return;
+                }
+
+                pendingResponses.remove(response);
+            }
+
+            // An exception would stop the timer, and all later responses
+            try {
+                sender.run();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+}
@@ -29,13 +29,16 @@ import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.usikkert.lanchat.Constants;
 import net.usikkert.lanchat.event.SettingsListener;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.util.Tools;
 
 /**
@@ -107,6 +110,45 @@ public class Settings {
     /** Name of the network interface to use, or <code>null</code> to choose automatically. */
     private String networkInterface;
 
+    /** Milliseconds to wait for more multicast messages to pack into the same packet. 0 disables packing. */
+    private int packingLingerTime;
+
+    /** Chat messages per second to accept from each user. 0 disables the limit. */
+    private int floodChatRate;
+
+    /** Presence messages per second to accept from each user. 0 disables the limit. */
+    private int floodPresenceRate;
+
+    /** Control messages per second to accept from each user. 0 disables the limit. */
+    private int floodControlRate;
+
+    /** If chat messages should be sent with sequence numbers, so missing messages can be sent again. */
+    private boolean reliableMulticast;
+
+    /** Max number of connections used to send one file. */
+    private int fileTransferStreams;
+
+    /** If file transfers should be compressed, when that makes them faster. */
+    private boolean compressFileTransfer;
+
+    /** Max kilobytes per second for all the file transfers together. 0 disables the limit. */
+    private int bandwidthLimit;
+
+    /** Max kilobytes per second for each file transfer. 0 disables the limit. */
+    private int transferBandwidthLimit;
+
+    /** Max file transfers at the same time. The rest are queued. 0 disables the limit. */
+    private int maxFileTransfers;
+
+    /** Max file transfers with each user at the same time. 0 disables the limit. */
+    private int maxFileTransfersPerUser;
+
+    /** Max files sent at the same time. 0 disables the limit. */
+    private int maxFileSends;
+
+    /** Max files received at the same time. 0 disables the limit. */
+    private int maxFileReceives;
+
     // Settings from startup arguments
 
     /** If private chat is disabled. */
@@ -118,6 +160,12 @@ public class Settings {
     /** The location to store logs. */
     private String logLocation;
 
+    /** If non-blocking channels on a single network thread should be used. */
+    private boolean nioReceiver;
+
+    /** If file transfers should be copied through streams instead of channels. */
+    private boolean streamFileTransfer;
+
     /**
      * Private constructor.
      *
@@ -133,6 +181,7 @@ public class Settings {
         me.setOperatingSystem(System.getProperty("os.name"));
         me.setClient(Constants.APP_NAME + " v" + Constants.APP_VERSION +
                 " " + System.getProperty(Constants.PROPERTY_CLIENT_UI));
+        me.setFeatures(EnumSet.allOf(ProtocolFeature.class));
 
         listeners = new ArrayList<SettingsListener>();
         errorHandler = ErrorHandler.getErrorHandler();
@@ -142,9 +191,36 @@ public class Settings {
         sound = true;
         smileys = true;
         lookAndFeel = "";
+        packingLingerTime = Constants.NETWORK_PACKING_LINGER_TIME;
+        floodChatRate = Constants.NETWORK_FLOOD_CHAT_RATE;
+        floodPresenceRate = Constants.NETWORK_FLOOD_PRESENCE_RATE;
+        floodControlRate = Constants.NETWORK_FLOOD_CONTROL_RATE;
+        reliableMulticast = true;
+        fileTransferStreams = Constants.NETWORK_FILE_TRANSFER_STREAMS;
+        maxFileTransfers = Constants.NETWORK_FILE_TRANSFER_MAX_ACTIVE;
+        maxFileTransfersPerUser = Constants.NETWORK_FILE_TRANSFER_MAX_ACTIVE_PER_USER;
 
         loadArgumentSettings();
         loadSettings();
+
+        if (!reliableMulticast || streamFileTransfer || !compressFileTransfer) {
+            final Set<ProtocolFeature> features = EnumSet.copyOf(me.getFeatures());
+
+            if (!reliableMulticast) {
+                features.remove(ProtocolFeature.RELIABLE);
+            }
+
+            if (!compressFileTransfer) {
+                features.remove(ProtocolFeature.DEFLATE);
+            }
+
+            // Segmented transfers need channels
+            if (streamFileTransfer) {
+                features.remove(ProtocolFeature.SEGMENTS);
+            }
+
+            me.setFeatures(features);
+        }
     }
 
     /**
@@ -178,6 +254,8 @@ public class Settings {
         noPrivateChat = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NO_PRIVATE_CHAT));
         alwaysLog = Boolean.valueOf(System.getProperty(Constants.SETTINGS_ALWAYS_LOG));
         logLocation = System.getProperty(Constants.SETTINGS_LOG_LOCATION);
+        nioReceiver = Boolean.valueOf(System.getProperty(Constants.SETTINGS_NIO_RECEIVER));
+        streamFileTransfer = Boolean.valueOf(System.getProperty(Constants.SETTINGS_STREAM_FILE_TRANSFER));
     }
 
     /**
@@ -219,6 +297,32 @@ public class Settings {
             buffWriter.newLine();
             buffWriter.write("networkInterface=" + networkInterface);
             buffWriter.newLine();
+            buffWriter.write("packingLingerTime=" + packingLingerTime);
+            buffWriter.newLine();
+            buffWriter.write("floodChatRate=" + floodChatRate);
+            buffWriter.newLine();
+            buffWriter.write("floodPresenceRate=" + floodPresenceRate);
+            buffWriter.newLine();
+            buffWriter.write("floodControlRate=" + floodControlRate);
+            buffWriter.newLine();
+            buffWriter.write("reliableMulticast=" + reliableMulticast);
+            buffWriter.newLine();
+            buffWriter.write("fileTransferStreams=" + fileTransferStreams);
+            buffWriter.newLine();
+            buffWriter.write("compressFileTransfer=" + compressFileTransfer);
+            buffWriter.newLine();
+            buffWriter.write("bandwidthLimit=" + bandwidthLimit);
+            buffWriter.newLine();
+            buffWriter.write("transferBandwidthLimit=" + transferBandwidthLimit);
+            buffWriter.newLine();
+            buffWriter.write("maxFileTransfers=" + maxFileTransfers);
+            buffWriter.newLine();
+            buffWriter.write("maxFileTransfersPerUser=" + maxFileTransfersPerUser);
+            buffWriter.newLine();
+            buffWriter.write("maxFileSends=" + maxFileSends);
+            buffWriter.newLine();
+            buffWriter.write("maxFileReceives=" + maxFileReceives);
+            buffWriter.newLine();
         }
 
         catch (final IOException e) {
@@ -318,6 +422,126 @@ public class Settings {
             if (fileContents.getProperty("smileys") != null) {
                 smileys = Boolean.valueOf(fileContents.getProperty("smileys"));
             }
+
+            if (fileContents.getProperty("packingLingerTime") != null) {
+                try {
+                    packingLingerTime = Integer.parseInt(fileContents.getProperty("packingLingerTime"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for packingLingerTime..");
+                }
+            }
+
+            if (fileContents.getProperty("floodChatRate") != null) {
+                try {
+                    floodChatRate = Integer.parseInt(fileContents.getProperty("floodChatRate"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for floodChatRate..");
+                }
+            }
+
+            if (fileContents.getProperty("floodPresenceRate") != null) {
+                try {
+                    floodPresenceRate = Integer.parseInt(fileContents.getProperty("floodPresenceRate"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for floodPresenceRate..");
+                }
+            }
+
+            if (fileContents.getProperty("floodControlRate") != null) {
+                try {
+                    floodControlRate = Integer.parseInt(fileContents.getProperty("floodControlRate"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for floodControlRate..");
+                }
+            }
+
+            // Defaults to true
+            if (fileContents.getProperty("reliableMulticast") != null) {
+                reliableMulticast = Boolean.valueOf(fileContents.getProperty("reliableMulticast"));
+            }
+
+            if (fileContents.getProperty("fileTransferStreams") != null) {
+                try {
+                    fileTransferStreams = Integer.parseInt(fileContents.getProperty("fileTransferStreams"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for fileTransferStreams..");
+                }
+            }
+
+            // Defaults to false
+            if (fileContents.getProperty("compressFileTransfer") != null) {
+                compressFileTransfer = Boolean.valueOf(fileContents.getProperty("compressFileTransfer"));
+            }
+
+            if (fileContents.getProperty("bandwidthLimit") != null) {
+                try {
+                    bandwidthLimit = Integer.parseInt(fileContents.getProperty("bandwidthLimit"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for bandwidthLimit..");
+                }
+            }
+
+            if (fileContents.getProperty("transferBandwidthLimit") != null) {
+                try {
+                    transferBandwidthLimit = Integer.parseInt(fileContents.getProperty("transferBandwidthLimit"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for transferBandwidthLimit..");
+                }
+            }
+
+            if (fileContents.getProperty("maxFileTransfers") != null) {
+                try {
+                    maxFileTransfers = Integer.parseInt(fileContents.getProperty("maxFileTransfers"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for maxFileTransfers..");
+                }
+            }
+
+            if (fileContents.getProperty("maxFileTransfersPerUser") != null) {
+                try {
+                    maxFileTransfersPerUser = Integer.parseInt(fileContents.getProperty("maxFileTransfersPerUser"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for maxFileTransfersPerUser..");
+                }
+            }
+
+            if (fileContents.getProperty("maxFileSends") != null) {
+                try {
+                    maxFileSends = Integer.parseInt(fileContents.getProperty("maxFileSends"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for maxFileSends..");
+                }
+            }
+
+            if (fileContents.getProperty("maxFileReceives") != null) {
+                try {
+                    maxFileReceives = Integer.parseInt(fileContents.getProperty("maxFileReceives"));
+                }
+
+                catch (final NumberFormatException e) {
+                    LOG.log(Level.WARNING, "Could not read setting for maxFileReceives..");
+                }
+            }
         }
 
         catch (final FileNotFoundException e) {
@@ -584,6 +808,46 @@ public class Settings {
         this.logLocation = logLocation;
     }
 
+    /**
+     * If non-blocking channels on a single network thread should be used for receiving
+     * messages and file transfer connections, instead of blocking sockets.
+     *
+     * @return If non-blocking channels should be used.
+     */
+    public boolean isNioReceiver() {
+        return nioReceiver;
+    }
+
+    /**
+     * Sets if non-blocking channels on a single network thread should be used for receiving
+     * messages and file transfer connections, instead of blocking sockets.
+     *
+     * @param nioReceiver If non-blocking channels should be used.
+     */
+    public void setNioReceiver(final boolean nioReceiver) {
+        this.nioReceiver = nioReceiver;
+    }
+
+    /**
+     * If file transfers should be copied through streams and a small buffer, like in older versions,
+     * instead of letting the file channels copy directly between the file and the socket.
+     *
+     * @return If streams should be used for file transfers.
+     */
+    public boolean isStreamFileTransfer() {
+        return streamFileTransfer;
+    }
+
+    /**
+     * Sets if file transfers should be copied through streams and a small buffer, like in older versions,
+     * instead of letting the file channels copy directly between the file and the socket.
+     *
+     * @param streamFileTransfer If streams should be used for file transfers.
+     */
+    public void setStreamFileTransfer(final boolean streamFileTransfer) {
+        this.streamFileTransfer = streamFileTransfer;
+    }
+
     /**
      * If balloon notifications are enabled.
      *
@@ -621,4 +885,276 @@ public class Settings {
     public void setNetworkInterface(final String networkInterface) {
         this.networkInterface = networkInterface;
     }
+
+    /**
+     * Gets the number of milliseconds to wait for more multicast messages
+     * to pack into the same packet.
+     *
+     * @return The linger time in milliseconds. 0 means packing is disabled.
+     */
+    public int getPackingLingerTime() {
+        return packingLingerTime;
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for more multicast messages
+     * to pack into the same packet.
+     *
+     * @param packingLingerTime The linger time in milliseconds. 0 disables packing.
+     */
+    public void setPackingLingerTime(final int packingLingerTime) {
+        this.packingLingerTime = packingLingerTime;
+    }
+
+    /**
+     * Gets the number of chat messages per second to accept from each user.
+     *
+     * @return Messages per second. 0 means there is no limit.
+     */
+    public int getFloodChatRate() {
+        return floodChatRate;
+    }
+
+    /**
+     * Sets the number of chat messages per second to accept from each user.
+     *
+     * <p>Changes to this setting are used after a restart.</p>
+     *
+     * @param floodChatRate Messages per second. 0 disables the limit.
+     */
+    public void setFloodChatRate(final int floodChatRate) {
+        this.floodChatRate = floodChatRate;
+    }
+
+    /**
+     * Gets the number of presence messages per second to accept from each user.
+     *
+     * @return Messages per second. 0 means there is no limit.
+     */
+    public int getFloodPresenceRate() {
+        return floodPresenceRate;
+    }
+
+    /**
+     * Sets the number of presence messages per second to accept from each user.
+     *
+     * <p>Changes to this setting are used after a restart.</p>
+     *
+     * @param floodPresenceRate Messages per second. 0 disables the limit.
+     */
+    public void setFloodPresenceRate(final int floodPresenceRate) {
+        this.floodPresenceRate = floodPresenceRate;
+    }
+
+    /**
+     * Gets the number of control messages per second to accept from each user.
+     *
+     * @return Messages per second. 0 means there is no limit.
+     */
+    public int getFloodControlRate() {
+        return floodControlRate;
+    }
+
+    /**
+     * Sets the number of control messages per second to accept from each user.
+     *
+     * <p>Changes to this setting are used after a restart.</p>
+     *
+     * @param floodControlRate Messages per second. 0 disables the limit.
+     */
+    public void setFloodControlRate(final int floodControlRate) {
+        this.floodControlRate = floodControlRate;
+    }
+
+    /**
+     * Checks if chat messages should be sent with sequence numbers,
+     * so other clients can ask for missing messages.
+     *
+     * <p>Changes to this setting are used after a restart.</p>
+     *
+     * @return If reliable multicast is enabled.
+     */
+    public boolean isReliableMulticast() {
+        return reliableMulticast;
+    }
+
+    /**
+     * Sets if chat messages should be sent with sequence numbers,
+     * so other clients can ask for missing messages.
+     *
+     * @param reliableMulticast If reliable multicast should be enabled.
+     */
+    public void setReliableMulticast(final boolean reliableMulticast) {
+        this.reliableMulticast = reliableMulticast;
+    }
+
+    /**
+     * Gets the max number of connections used to send one file, to users that support segmented transfers.
+     *
+     * @return Max number of connections.
+     */
+    public int getFileTransferStreams() {
+        return fileTransferStreams;
+    }
+
+    /**
+     * Sets the max number of connections used to send one file, to users that support segmented transfers.
+     *
+     * @param fileTransferStreams Max number of connections. 1 sends each file over a single connection.
+     */
+    public void setFileTransferStreams(final int fileTransferStreams) {
+        this.fileTransferStreams = fileTransferStreams;
+    }
+
+    /**
+     * If file transfers should be compressed, to users that have enabled it too. Each block of a file
+     * is only compressed when it makes the transfer faster, which is mostly on slow networks.
+     *
+     * @return If file transfers should be compressed.
+     */
+    public boolean isCompressFileTransfer() {
+        return compressFileTransfer;
+    }
+
+    /**
+     * Sets if file transfers should be compressed, to users that have enabled it too.
+     * Takes effect after a restart, when the supported features are advertised again.
+     *
+     * @param compressFileTransfer If file transfers should be compressed.
+     */
+    public void setCompressFileTransfer(final boolean compressFileTransfer) {
+        this.compressFileTransfer = compressFileTransfer;
+    }
+
+    /**
+     * Gets the max kilobytes per second for all the file transfers together.
+     *
+     * @return The limit in kilobytes per second, or 0 if there is no limit.
+     */
+    public int getBandwidthLimit() {
+        return bandwidthLimit;
+    }
+
+    /**
+     * Sets the max kilobytes per second for all the file transfers together.
+     * Listeners are notified of the change, so ongoing transfers use the new limit.
+     *
+     * @param bandwidthLimit The limit in kilobytes per second. 0 disables the limit.
+     */
+    public void setBandwidthLimit(final int bandwidthLimit) {
+        if (this.bandwidthLimit != bandwidthLimit) {
+            this.bandwidthLimit = bandwidthLimit;
+            fireSettingChanged("bandwidthLimit");
+        }
+    }
+
+    /**
+     * Gets the max kilobytes per second for each file transfer.
+     *
+     * @return The limit in kilobytes per second, or 0 if there is no limit.
+     */
+    public int getTransferBandwidthLimit() {
+        return transferBandwidthLimit;
+    }
+
+    /**
+     * Sets the max kilobytes per second for each file transfer.
+     * Listeners are notified of the change, so ongoing transfers use the new limit.
+     *
+     * @param transferBandwidthLimit The limit in kilobytes per second. 0 disables the limit.
+     */
+    public void setTransferBandwidthLimit(final int transferBandwidthLimit) {
+        if (this.transferBandwidthLimit != transferBandwidthLimit) {
+            this.transferBandwidthLimit = transferBandwidthLimit;
+            fireSettingChanged("transferBandwidthLimit");
+        }
+    }
+
+    /**
+     * Gets the max number of file transfers copying files at the same time. The rest are queued.
+     *
+     * @return The limit, or 0 if there is no limit.
+     */
+    public int getMaxFileTransfers() {
+        return maxFileTransfers;
+    }
+
+    /**
+     * Sets the max number of file transfers copying files at the same time. The rest are queued.
+     * Listeners are notified of the change.
+     *
+     * @param maxFileTransfers The limit. 0 disables the limit.
+     */
+    public void setMaxFileTransfers(final int maxFileTransfers) {
+        if (this.maxFileTransfers != maxFileTransfers) {
+            this.maxFileTransfers = maxFileTransfers;
+            fireSettingChanged("maxFileTransfers");
+        }
+    }
+
+    /**
+     * Gets the max number of file transfers with each user copying files at the same time. The rest are queued.
+     *
+     * @return The limit, or 0 if there is no limit.
+     */
+    public int getMaxFileTransfersPerUser() {
+        return maxFileTransfersPerUser;
+    }
+
+    /**
+     * Sets the max number of file transfers with each user copying files at the same time. The rest are queued.
+     * Listeners are notified of the change.
+     *
+     * @param maxFileTransfersPerUser The limit. 0 disables the limit.
+     */
+    public void setMaxFileTransfersPerUser(final int maxFileTransfersPerUser) {
+        if (this.maxFileTransfersPerUser != maxFileTransfersPerUser) {
+            this.maxFileTransfersPerUser = maxFileTransfersPerUser;
+            fireSettingChanged("maxFileTransfersPerUser");
+        }
+    }
+
+    /**
+     * Gets the max number of files sent at the same time. The rest are queued.
+     *
+     * @return The limit, or 0 if there is no limit.
+     */
+    public int getMaxFileSends() {
+        return maxFileSends;
+    }
+
+    /**
+     * Sets the max number of files sent at the same time. The rest are queued.
+     * Listeners are notified of the change.
+     *
+     * @param maxFileSends The limit. 0 disables the limit.
+     */
+    public void setMaxFileSends(final int maxFileSends) {
+        if (this.maxFileSends != maxFileSends) {
+            this.maxFileSends = maxFileSends;
+            fireSettingChanged("maxFileSends");
+        }
+    }
+
+    /**
+     * Gets the max number of files received at the same time. The rest are queued.
+     *
+     * @return The limit, or 0 if there is no limit.
+     */
+    public int getMaxFileReceives() {
+        return maxFileReceives;
+    }
+
+    /**
+     * Sets the max number of files received at the same time. The rest are queued.
+     * Listeners are notified of the change.
+     *
+     * @param maxFileReceives The limit. 0 disables the limit.
+     */
+    public void setMaxFileReceives(final int maxFileReceives) {
+        if (this.maxFileReceives != maxFileReceives) {
+            this.maxFileReceives = maxFileReceives;
+            fireSettingChanged("maxFileReceives");
+        }
+    }
 }
@@ -0,0 +1,287 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel for timeouts, keyed by a unique code.
+ *
+ * <p>Scheduling, rescheduling and cancelling a timeout takes constant time, and advancing the
+ * wheel only touches the timeouts in the slots passed, instead of every timeout. The first
+ * level has one slot for each tick, and the second level one slot for each turn of the first level.
+ * Timeouts in the second level are moved down to the first level when their turn comes. Timeouts
+ * further away than the second level can hold are put in the last slot, and moved again later.</p>
+ *
+ * <p>The time is given by the caller, and should come from {@link System#nanoTime()},
+ * so changes to the wall clock don't affect the timeouts.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class TimeoutWheel {
+
+    /** The number of bits used for the slot index in each level. */
+    private static final int SLOT_BITS = 6;
+
+    /** The number of slots in each level. */
+    private static final int SLOTS = 1 << SLOT_BITS;
+
+    /** For finding the slot index in a level. */
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /** The length of a tick, in nanoseconds. */
+    private final long tickTime;
+
+    /** The time of tick 0. */
+    private final long startTime;
+
+    /** The slots of the first level, with one tick each. */
+    private final Timeout[] ticks;
+
+    /** The slots of the second level, with one turn of the first level each. */
+    private final Timeout[] turns;
+
+    /** The scheduled timeouts, by their key. */
+    private final Map<Integer, Timeout> timeouts;
+
+    /** The last tick handled. */
+    private long currentTick;
+
+    /**
+     * Constructor.
+     *
+     * @param tickTime The length of a tick in nanoseconds. Timeouts expire at the end of the tick they are in.
+     * @param startTime The current time, from {@link System#nanoTime()}.
+     */
+    public TimeoutWheel(final long tickTime, final long startTime) {
+        if (tickTime <= 0) {
+            throw new IllegalArgumentException("Tick time must be positive: " + tickTime);
+        }
+
+        this.tickTime = tickTime;
+        this.startTime = startTime;
+
+        ticks = new Timeout[SLOTS];
+        turns = new Timeout[SLOTS];
+        timeouts = new HashMap<Integer, Timeout>();
+    }
+
+    /**
+     * Schedules a timeout for the key, replacing any timeout already scheduled.
+     *
+     * @param key The unique code to schedule for.
+     * @param deadline The time to expire, from {@link System#nanoTime()}.
+     */
+    public synchronized void schedule(final int key, final long deadline) {
+        Timeout timeout = timeouts.get(key);
+
+        if (timeout == null) {
+            timeout = new Timeout(key);
+            timeouts.put(key, timeout);
+        }
+
+        else {
+            unlink(timeout);
+        }
+
+        // Rounded up, so a timeout never expires early
+        final long deadlineTime = deadline - startTime;
+        timeout.deadlineTick = deadlineTime <= 0 ? 0 : (deadlineTime + tickTime - 1) / tickTime;
+        place(timeout, currentTick + 1);
+    }
+
+    /**
+     * Cancels the timeout for the key.
+     *
+     * @param key The unique code to cancel for.
+     * @return If there was a timeout scheduled.
+     */
+    public synchronized boolean cancel(final int key) {
+        final Timeout timeout = timeouts.remove(key);
+
+        if (timeout == null) {
+            return false;
+        }
+
+        unlink(timeout);
+
+        return true;
+    }
+
+    /**
+     * Checks if there is a timeout scheduled for the key.
+     *
+     * @param key The unique code to check.
+     * @return If there is a timeout scheduled.
+     */
+    public synchronized boolean isScheduled(final int key) {
+        return timeouts.containsKey(key);
+    }
+
+    /**
+     * Gets the number of scheduled timeouts.
+     *
+     * @return The number of timeouts.
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * Advances the wheel to the time, and removes the timeouts that expired on the way.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     * @return The keys of the expired timeouts, in the order they expired.
+     */
+    public synchronized List<Integer> advance(final long now) {
+        final long nowTick = (now - startTime) / tickTime;
+
+        if (nowTick <= currentTick) {
+            return Collections.emptyList();
+        }
+
+        final List<Integer> expired = new ArrayList<Integer>();
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            if ((currentTick & SLOT_MASK) == 0) {
+                cascade((int) ((currentTick >>> SLOT_BITS) & SLOT_MASK));
+            }
+
+            final int slot = (int) (currentTick & SLOT_MASK);
+            Timeout timeout = ticks[slot];
+            ticks[slot] = null;
+
+            while (timeout != null) {
+                final Timeout next = timeout.next;
+                timeout.prev = null;
+                timeout.next = null;
+
+                if (timeout.deadlineTick <= currentTick) {
+                    timeouts.remove(timeout.key);
+                    expired.add(timeout.key);
+                } else {
+                    place(timeout, currentTick + 1);
+                }
+
+                timeout = next;
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * Moves the timeouts in a slot of the second level down to the first level.
+     *
+     * @param slot The slot in the second level.
+     */
+    private void cascade(final int slot) {
+        Timeout timeout = turns[slot];
+        turns[slot] = null;
+
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            timeout.prev = null;
+            timeout.next = null;
+
+            // The current tick is handled right after this, so it's not too late for it
+            place(timeout, currentTick);
+            timeout = next;
+        }
+    }
+
+    /**
+     * Puts the timeout in the slot matching the deadline.
+     *
+     * @param timeout The timeout to place.
+     * @param earliestTick The first tick the timeout can be placed in.
+     */
+    private void place(final Timeout timeout, final long earliestTick) {
+        final long deadlineTick = Math.max(timeout.deadlineTick, earliestTick);
+        final long turnsAway = (deadlineTick >>> SLOT_BITS) - (currentTick >>> SLOT_BITS);
+
+        if (deadlineTick - currentTick < SLOTS) {
+            link(timeout, ticks, (int) (deadlineTick & SLOT_MASK));
+        }
+
+        else if (turnsAway < SLOTS) {
+            link(timeout, turns, (int) ((deadlineTick >>> SLOT_BITS) & SLOT_MASK));
+        }
+
+        // Too far away, try again when the wheel has turned more
+        else {
+            link(timeout, turns, (int) (((currentTick >>> SLOT_BITS) + SLOTS - 1) & SLOT_MASK));
+        }
+    }
+
+    private void link(final Timeout timeout, final Timeout[] level, final int slot) {
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.next = level[slot];
+
+        if (level[slot] != null) {
+            level[slot].prev = timeout;
+        }
+
+        level[slot] = timeout;
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (timeout.level != null && timeout.level[timeout.slot] == timeout) {
+            timeout.level[timeout.slot] = timeout.next;
+        }
+
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = null;
+    }
+
+    /**
+     * A scheduled timeout, linked with the other timeouts in the same slot.
+     */
+    private static final class Timeout {
+
+        private final int key;
+        private long deadlineTick;
+        private Timeout[] level;
+        private int slot;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(final int key) {
+            this.key = key;
+        }
+    }
+}
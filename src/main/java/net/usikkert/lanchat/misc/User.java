@@ -22,7 +22,13 @@
 
 package net.usikkert.lanchat.misc;
 
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.ui.PrivateChatWindow;
+import net.usikkert.lanchat.util.Validate;
 
 /**
  * This class represents a user in the chat.
@@ -55,6 +61,9 @@ public class User implements Comparable<User> {
     /** The port to use when connecting to this user's private chat. */
     private int privateChatPort;
 
+    /** The optional protocol features this user's client supports. */
+    private volatile Set<ProtocolFeature> features;
+
     /** The time when the last idle message came from this user. */
     private long lastIdle;
 
@@ -107,6 +116,7 @@ public class User implements Comparable<User> {
         hostName = null;
         newMsg = false;
         privateChatPort = 0;
+        features = Collections.emptySet();
         privchat = null;
         online = true;
         newPrivMsg = false;
@@ -316,6 +326,16 @@ public class User implements Comparable<User> {
         this.client = client;
     }
 
+    /**
+     * Checks if the information about the user's client has been received.
+     * Clients supporting {@link ProtocolFeature#LAZY_CLIENT} only send it when asked.
+     *
+     * @return If the client is known.
+     */
+    public boolean isClientKnown() {
+        return !"<unknown>".equals(client);
+    }
+
     /**
      * Gets the private chat window connected to this user.
      *
@@ -370,6 +390,40 @@ public class User implements Comparable<User> {
         this.privateChatPort = privateChatPort;
     }
 
+    /**
+     * Gets the optional protocol features this user's client supports.
+     *
+     * @return The supported features. The set can not be modified.
+     */
+    public Set<ProtocolFeature> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Sets the optional protocol features this user's client supports.
+     *
+     * @param features The supported features.
+     */
+    public void setFeatures(final Set<ProtocolFeature> features) {
+        Validate.notNull(features, "Features can not be null");
+
+        if (features.isEmpty()) {
+            this.features = Collections.emptySet();
+        } else {
+            this.features = Collections.unmodifiableSet(EnumSet.copyOf(features));
+        }
+    }
+
+    /**
+     * Checks if this user's client supports the protocol feature.
+     *
+     * @param feature The feature to check.
+     * @return If the feature is supported.
+     */
+    public boolean supportsFeature(final ProtocolFeature feature) {
+        return features.contains(feature);
+    }
+
     /**
      * Checks if this user is logged on to the chat.
      *
@@ -22,6 +22,8 @@
 
 package net.usikkert.lanchat.misc;
 
+import net.usikkert.lanchat.net.PeerFeatures;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.util.Validate;
 
 /**
@@ -32,7 +34,7 @@ import net.usikkert.lanchat.util.Validate;
  *
  * @author Shouvik Goswami
  */
-public class UserListController {
+public class UserListController implements PeerFeatures {
 
     /** The user list. */
     private final UserList userList;
@@ -231,6 +233,32 @@ public class UserListController {
         return false;
     }
 
+    /**
+     * Checks the features advertised by every user except <code>me</code>.
+     * Returns <code>false</code> if there are no other users.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isSupportedByAllPeers(final ProtocolFeature feature) {
+        boolean foundPeer = false;
+
+        for (int i = 0; i < userList.size(); i++) {
+            final User temp = userList.get(i);
+
+            // The list might shrink while looping, since users log off from other threads
+            if (temp != null && !temp.isMe()) {
+                if (!temp.supportsFeature(feature)) {
+                    return false;
+                }
+
+                foundPeer = true;
+            }
+        }
+
+        return foundPeer;
+    }
+
     /**
      * Gets the user list.
      *
@@ -23,7 +23,14 @@
 package net.usikkert.lanchat.misc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This waiting list is used to store unknown users while asking them to
@@ -31,26 +38,69 @@ import java.util.List;
  * By doing this, messages from unknown users can be held back until they
  * have identified themselves.
  *
+ * <p>The messages held back are kept in order for each user, and given back
+ * when the user is removed from the list. Users who don't identify themselves
+ * within {@link #WAITING_TIMEOUT} milliseconds are removed, together with
+ * their messages.</p>
+ *
  * @author Shouvik Goswami
  */
 public class WaitingList {
 
-    private final List<Integer> users;
+    /** Milliseconds to wait for a user to identify. */
+    public static final int WAITING_TIMEOUT = 2000;
+
+    /** The max number of messages to hold back for each user. The oldest are dropped first. */
+    public static final int MAX_PENDING_MESSAGES = 50;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(WaitingList.class.getName());
+
+    /** The waiting users, by their unique code, oldest first. */
+    private final Map<Integer, WaitingUser> users;
 
     /**
      * Constructor.
      */
     public WaitingList() {
-        users = new ArrayList<Integer>();
+        users = new LinkedHashMap<Integer, WaitingUser>();
     }
 
     /**
-     * Adds a user to the waiting list.
+     * Adds a user to the waiting list, unless the user is already waiting.
      *
      * @param userCode The unique code of the user to add.
+     * @return If the user was added, and was not already waiting.
+     */
+    public synchronized boolean addWaitingUser(final int userCode) {
+        removeExpiredUsers();
+
+        if (users.containsKey(userCode)) {
+            return false;
+        }
+
+        users.put(userCode, new WaitingUser());
+
+        return true;
+    }
+
+    /**
+     * Holds back a message from a user until the user has identified.
+     * The user is added to the waiting list if not already waiting.
+     *
+     * @param userCode The unique code of the user who sent the message.
+     * @param message The message, ready to show when the user has identified.
      */
-    public void addWaitingUser(final int userCode) {
-        users.add(userCode);
+    public synchronized void addPendingMessage(final int userCode, final Runnable message) {
+        addWaitingUser(userCode);
+
+        final List<Runnable> messages = users.get(userCode).messages;
+
+        if (messages.size() >= MAX_PENDING_MESSAGES) {
+            messages.remove(0);
+        }
+
+        messages.add(message);
     }
 
     /**
@@ -59,16 +109,61 @@ public class WaitingList {
      * @param userCode The unique code of the user to check for.
      * @return If the user is on the waiting list.
      */
-    public boolean isWaitingUser(final int userCode) {
-        return users.contains(userCode);
+    public synchronized boolean isWaitingUser(final int userCode) {
+        removeExpiredUsers();
+
+        return users.containsKey(userCode);
     }
 
     /**
      * Removes a user from the waiting list.
      *
      * @param userCode The unique code of the user to remove.
+     * @return The messages held back from the user, in the order they arrived.
      */
-    public void removeWaitingUser(final int userCode) {
-        users.remove(new Integer(userCode));
+    public synchronized List<Runnable> removeWaitingUser(final int userCode) {
+        final WaitingUser user = users.remove(userCode);
+
+        if (user == null) {
+            return Collections.emptyList();
+        }
+
+        return user.messages;
+    }
+
+    /**
+     * Removes the users who have waited too long, and their messages.
+     * The oldest users are first in the list, so the search stops at the first user still waiting.
+     */
+    private void removeExpiredUsers() {
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<Integer, WaitingUser>> iterator = users.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, WaitingUser> entry = iterator.next();
+
+            if (now - entry.getValue().addedTime < TimeUnit.MILLISECONDS.toNanos(WAITING_TIMEOUT)) {
+                break;
+            }
+
+            if (!entry.getValue().messages.isEmpty()) {
+                LOG.log(Level.WARNING, "User " + entry.getKey() + " did not identify, dropping " +
+                        entry.getValue().messages.size() + " messages");
+            }
+
+            iterator.remove();
+        }
+    }
+
+    /**
+     * A user on the waiting list.
+     */
+    private static final class WaitingUser {
+
+        /** When the user was added, from {@link System#nanoTime()}. */
+        private final long addedTime = System.nanoTime();
+
+        /** The messages held back from the user. */
+        private final List<Runnable> messages = new ArrayList<Runnable>();
     }
 }
@@ -0,0 +1,238 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that limits the number of bytes per second a file transfer can send or receive.
+ *
+ * <p>Each transfer has its own limiter, with the limiter for all the transfers as the parent.
+ * The bytes must be acquired from both before they are copied, so the slowest of the two
+ * sets the pace. The rates can be changed at any time, also while transfers are waiting.</p>
+ *
+ * <p>The bucket holds at most {@link #BURST_TIME} milliseconds worth of bytes, so an idle transfer
+ * can't save up for a long burst. The bytes are always handed out, but the caller sleeps until
+ * the bucket is no longer in debt. Receivers are limited by reading slower, which makes the
+ * sender wait for room in the socket buffer.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class BandwidthLimiter {
+
+    /** Milliseconds worth of bytes the bucket can hold, and the longest a slice should take to copy. */
+    public static final long BURST_TIME = 100;
+
+    /** The smallest slice to copy at once, to avoid copying tiny slices at low rates. */
+    public static final long MIN_SLICE_SIZE = 4 * 1024;
+
+    /** The limiter for all the transfers, or <code>null</code> if this is the limiter for all the transfers. */
+    private final BandwidthLimiter parent;
+
+    /** Max bytes per second, or 0 if there is no limit. */
+    private volatile long rate;
+
+    /** Bytes available in the bucket. Negative when the bucket is in debt. */
+    private double available;
+
+    /** When the bucket was last filled, in nanoseconds. */
+    private long lastFill;
+
+    /**
+     * Constructor for the limiter of all the transfers.
+     */
+    public BandwidthLimiter() {
+        this(null);
+    }
+
+    /**
+     * Constructor for the limiter of a single transfer.
+     *
+     * @param parent The limiter for all the transfers, or <code>null</code> to only use this limiter.
+     */
+    public BandwidthLimiter(final BandwidthLimiter parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Gets the max bytes per second.
+     *
+     * @return The max bytes per second, or 0 if there is no limit.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the max bytes per second. Takes effect at once, for both ongoing and new transfers.
+     *
+     * @param rate The max bytes per second, or 0 to remove the limit.
+     */
+    public synchronized void setRate(final long rate) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("Rate can not be negative: " + rate);
+        }
+
+        this.rate = rate;
+        available = Math.min(available, getBurstSize(rate));
+        lastFill = nanoTime();
+    }
+
+    /**
+     * Gets the limiter for all the transfers.
+     *
+     * @return The parent limiter, or <code>null</code> if there is none.
+     */
+    public BandwidthLimiter getParent() {
+        return parent;
+    }
+
+    /**
+     * Checks if this limiter, or the parent, has a limit.
+     *
+     * @return If the bytes per second are limited.
+     */
+    public boolean isLimited() {
+        return rate > 0 || (parent != null && parent.isLimited());
+    }
+
+    /**
+     * Gets how many bytes to copy at once, so each slice takes at most {@link #BURST_TIME} milliseconds
+     * at the lowest rate of this limiter and the parent. This keeps the transfer smooth, and lets new
+     * rates take effect quickly.
+     *
+     * @param size The number of bytes the caller wants to copy.
+     * @return The number of bytes to copy, never more than the size.
+     */
+    public long limitSlice(final long size) {
+        final long currentRate = getLowestRate();
+
+        if (currentRate <= 0) {
+            return size;
+        }
+
+        return Math.min(size, getBurstSize(currentRate));
+    }
+
+    /**
+     * Takes the bytes from the bucket of this limiter and the parent, and waits until the buckets
+     * are no longer in debt. Returns at once when there is no limit.
+     *
+     * @param bytes The number of bytes about to be copied.
+     * @throws InterruptedIOException If the thread was interrupted while waiting.
+     */
+    public void acquire(final long bytes) throws InterruptedIOException {
+        final long wait = take(bytes);
+
+        if (wait > 0) {
+            try {
+                sleep(wait);
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+
+        if (parent != null) {
+            parent.acquire(bytes);
+        }
+    }
+
+    /**
+     * Fills the bucket with the bytes earned since the last time, and takes the bytes from it.
+     *
+     * @param bytes The number of bytes to take.
+     * @return Nanoseconds to wait before the bucket is out of debt, or 0 to continue at once.
+     */
+    private synchronized long take(final long bytes) {
+        final long currentRate = rate;
+
+        if (currentRate <= 0) {
+            return 0;
+        }
+
+        final long now = nanoTime();
+        final double earned = (double) (now - lastFill) * currentRate / TimeUnit.SECONDS.toNanos(1);
+
+        available = Math.min(getBurstSize(currentRate), available + earned) - bytes;
+        lastFill = now;
+
+        if (available >= 0) {
+            return 0;
+        }
+
+        return (long) (-available * TimeUnit.SECONDS.toNanos(1) / currentRate);
+    }
+
+    /**
+     * Gets the lowest rate of this limiter and the parent.
+     *
+     * @return The lowest rate, or 0 if there is no limit.
+     */
+    private long getLowestRate() {
+        final long currentRate = rate;
+        final long parentRate = parent != null ? parent.getLowestRate() : 0;
+
+        if (currentRate <= 0) {
+            return parentRate;
+        }
+
+        if (parentRate <= 0) {
+            return currentRate;
+        }
+
+        return Math.min(currentRate, parentRate);
+    }
+
+    /**
+     * Gets the number of bytes the bucket can hold at the rate.
+     *
+     * @param currentRate The bytes per second.
+     * @return The size of the bucket.
+     */
+    private static long getBurstSize(final long currentRate) {
+        return Math.max(MIN_SLICE_SIZE, currentRate * BURST_TIME / 1000);
+    }
+
+    /**
+     * Gets the current time in nanoseconds. Can be overridden to test without waiting.
+     *
+     * @return The current time in nanoseconds.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Sleeps for the number of nanoseconds. Can be overridden to test without waiting.
+     *
+     * @param nanos The number of nanoseconds to sleep.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    protected void sleep(final long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+}
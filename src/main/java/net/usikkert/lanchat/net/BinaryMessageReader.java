@@ -0,0 +1,209 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.UnsupportedEncodingException;
+
+import net.usikkert.lanchat.Constants;
+
+/**
+ * Reads messages in the binary protocol. See {@link BinaryProtocol} for the format.
+ *
+ * <p>The delimiters given when reading fields are ignored, since
+ * every field in the binary protocol has a known length.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class BinaryMessageReader implements MessageReader {
+
+    /** The message to read, with one character per byte. */
+    private final String message;
+
+    /** The unique code of the sender. */
+    private final int code;
+
+    /** The type of message. */
+    private final MessageType type;
+
+    /** The nick name of the sender. */
+    private final String nick;
+
+    /** The position of the next byte to read. */
+    private int position;
+
+    /**
+     * Constructor. Reads the code, type and nick name of the message.
+     * Messages in an unsupported version of the binary protocol get no type.
+     *
+     * @param message The message to read, with one character per byte.
+     */
+    public BinaryMessageReader(final String message) {
+        this.message = message;
+
+        if (!BinaryProtocol.isBinary(message)) {
+            throw new IllegalArgumentException("Not a binary message");
+        }
+
+        // Unsupported versions are given no type, and ignored like unknown types
+        if (message.length() < 4 || message.charAt(1) != BinaryProtocol.VERSION) {
+            type = null;
+            code = 0;
+            nick = null;
+            position = message.length();
+
+            return;
+        }
+
+        type = MessageType.fromId(message.charAt(2));
+        position = 3;
+        code = (int) readNumber();
+
+        if (type != null && type.isNickUsed()) {
+            nick = readString();
+        } else {
+            nick = null;
+        }
+    }
+
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public MessageType getType() {
+        return type;
+    }
+
+    @Override
+    public String getNick() {
+        return nick;
+    }
+
+    @Override
+    public long readNumber(final char open, final char close) {
+        return readNumber();
+    }
+
+    @Override
+    public String readText(final char open, final char close) {
+        return readString();
+    }
+
+    @Override
+    public String readText() {
+        if (position >= message.length()) {
+            return "";
+        }
+
+        return readString();
+    }
+
+    @Override
+    public boolean hasField(final char open) {
+        return position < message.length();
+    }
+
+    /**
+     * Reads a zigzag encoded varint.
+     *
+     * @return The number.
+     */
+    private long readNumber() {
+        long value = 0;
+        int shift = 0;
+        int current;
+
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Invalid number in binary message");
+            }
+
+            current = message.charAt(position++);
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        }
+
+        while ((current & 0x80) != 0);
+
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads the length in bytes, followed by the text in UTF-8.
+     *
+     * @return The text.
+     */
+    private String readString() {
+        final int length = (int) readNumber();
+        final int end = position + length;
+
+        if (length < 0 || end > message.length()) {
+            throw new StringIndexOutOfBoundsException("Text field is outside the message");
+        }
+
+        boolean ascii = true;
+
+        for (int i = position; i < end; i++) {
+            if (message.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+
+        final String text;
+
+        if (ascii) {
+            text = message.substring(position, end);
+        } else {
+            text = decodeUtf8(position, length);
+        }
+
+        position = end;
+
+        return text;
+    }
+
+    /**
+     * Decodes UTF-8 bytes stored as one character per byte.
+     *
+     * @param start The position of the first byte.
+     * @param length The number of bytes.
+     * @return The decoded text.
+     */
+    private String decodeUtf8(final int start, final int length) {
+        final byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) message.charAt(start + i);
+        }
+
+        try {
+            return new String(bytes, Constants.MESSAGE_CHARSET);
+        }
+
+        catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.UnsupportedEncodingException;
+
+import net.usikkert.lanchat.Constants;
+
+/**
+ * Constants and helper methods for version 2 of the network protocol, a compact binary format.
+ *
+ * <p>A binary message looks like this:</p>
+ *
+ * <ul>
+ *   <li>{@link #MAGIC} - never the first byte of a text message, since it's not valid in UTF-8.</li>
+ *   <li>{@link #VERSION}.</li>
+ *   <li>The id of the {@link MessageType}.</li>
+ *   <li>The user code of the sender, as a varint.</li>
+ *   <li>The nick name of the sender, only if {@link MessageType#isNickUsed()}.</li>
+ *   <li>The fields of the message type, in the same order as in the text protocol.</li>
+ * </ul>
+ *
+ * <p>Numbers are zigzag encoded varints, and text is a varint with the number
+ * of bytes followed by the text in UTF-8.</p>
+ *
+ * <p>Inside the application, a binary message is kept in a string with one character
+ * per byte, so it can be handled like the text messages by the senders, receivers and parsers.
+ * The conversion to and from the network is done with {@link #toBytes(String)} and
+ * {@link #fromBytes(byte[], int)}.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class BinaryProtocol {
+
+    /** The first byte of every binary message. */
+    public static final int MAGIC = 0xFE;
+
+    /** The current version of the binary protocol. */
+    public static final int VERSION = 2;
+
+    /** The charset that maps every byte to the character with the same value. */
+    private static final String BYTE_CHARSET = "ISO-8859-1";
+
+    /**
+     * Private constructor, to hide the constructor of a utility class.
+     */
+    private BinaryProtocol() {
+
+    }
+
+    /**
+     * Checks if the message is a binary message.
+     *
+     * @param message The message to check.
+     * @return If the message is binary.
+     */
+    public static boolean isBinary(final String message) {
+        return message.length() > 0 && message.charAt(0) == MAGIC;
+    }
+
+    /**
+     * Checks if the received bytes is a binary message.
+     *
+     * @param firstByte The first byte of the received packet.
+     * @return If the packet is a binary message.
+     */
+    public static boolean isBinary(final byte firstByte) {
+        return (firstByte & 0xFF) == MAGIC;
+    }
+
+    /**
+     * Converts a message to bytes to send over the network.
+     * Binary messages are sent as is, and text messages are encoded as UTF-8.
+     *
+     * @param message The message to convert.
+     * @return The bytes to send.
+     * @throws UnsupportedEncodingException If the charset is missing.
+     */
+    public static byte[] toBytes(final String message) throws UnsupportedEncodingException {
+        if (isBinary(message)) {
+            return message.getBytes(BYTE_CHARSET);
+        }
+
+        return message.getBytes(Constants.MESSAGE_CHARSET);
+    }
+
+    /**
+     * Converts bytes received from the network to a message.
+     * Text messages are decoded as UTF-8, and binary messages with one character per byte.
+     * Only plain text messages are trimmed. Packed messages, fragments and other frames
+     * may contain binary messages that end with bytes that look like whitespace.
+     *
+     * @param data The received bytes.
+     * @param length The number of bytes received.
+     * @return The received message.
+     * @throws UnsupportedEncodingException If the charset is missing.
+     * @see #isTrimmed(byte)
+     */
+    public static String fromBytes(final byte[] data, final int length) throws UnsupportedEncodingException {
+        if (length > 0 && isBinary(data[0])) {
+            return new String(data, 0, length, BYTE_CHARSET);
+        }
+
+        final String message = new String(data, 0, length, Constants.MESSAGE_CHARSET);
+
+        if (length > 0 && isTrimmed(data[0])) {
+            return message.trim();
+        }
+
+        return message;
+    }
+
+    /**
+     * Checks if a received text message should be trimmed. Plain text messages always
+     * start with the user code, while the frames used for packing, fragments and
+     * reliable delivery start with a marker character.
+     *
+     * @param firstByte The first byte of the received packet.
+     * @return If the message is plain text, and should be trimmed.
+     */
+    public static boolean isTrimmed(final byte firstByte) {
+        return firstByte >= '0' && firstByte <= '9';
+    }
+
+    /**
+     * Checks if a message put together from fragments should be trimmed,
+     * like the receivers do with plain text messages.
+     *
+     * @param message The message to check.
+     * @return If the message is plain text, and should be trimmed.
+     * @see #isTrimmed(byte)
+     */
+    public static boolean isTrimmed(final String message) {
+        return message.length() > 0 && message.charAt(0) >= '0' && message.charAt(0) <= '9';
+    }
+}
@@ -0,0 +1,123 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A pool of direct byte buffers of the same size, so large buffers can be reused
+ * between file transfers instead of being allocated for each of them.
+ *
+ * <p>Only a limited number of idle buffers are kept. Buffers released when the pool
+ * is full are left for the garbage collector.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class BufferPool {
+
+    /** The size of each buffer, in bytes. */
+    private final int bufferSize;
+
+    /** Max number of idle buffers to keep. */
+    private final int maxIdleBuffers;
+
+    /** The idle buffers. */
+    private final Deque<ByteBuffer> idleBuffers;
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize The size of each buffer, in bytes.
+     * @param maxIdleBuffers Max number of idle buffers to keep.
+     */
+    public BufferPool(final int bufferSize, final int maxIdleBuffers) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxIdleBuffers = maxIdleBuffers;
+
+        idleBuffers = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Gets a cleared buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return A buffer ready for writing.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer;
+
+        synchronized (idleBuffers) {
+            buffer = idleBuffers.pollFirst();
+        }
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer The buffer to return. Buffers of the wrong size are ignored.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize) {
+            return;
+        }
+
+        synchronized (idleBuffers) {
+            if (idleBuffers.size() < maxIdleBuffers) {
+                idleBuffers.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of idle buffers in the pool.
+     *
+     * @return The number of idle buffers.
+     */
+    public int getIdleBuffers() {
+        synchronized (idleBuffers) {
+            return idleBuffers.size();
+        }
+    }
+
+    /**
+     * Gets the size of each buffer.
+     *
+     * @return The buffer size, in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,104 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of which ranges of a file have been written, when the file is
+ * written out of order. Adjacent and overlapping ranges are merged.
+ *
+ * @author Shouvik Goswami
+ */
+public class ByteRanges {
+
+    /** The written ranges, from the start offset to the end offset (exclusive). */
+    private final TreeMap<Long, Long> ranges;
+
+    /**
+     * Constructor.
+     */
+    public ByteRanges() {
+        ranges = new TreeMap<Long, Long>();
+    }
+
+    /**
+     * Registers a written range.
+     *
+     * @param offset The offset of the first byte written.
+     * @param length The number of bytes written.
+     */
+    public synchronized void add(final long offset, final long length) {
+        if (length <= 0) {
+            return;
+        }
+
+        long start = offset;
+        long end = offset + length;
+
+        final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+            ranges.remove(before.getKey());
+        }
+
+        Map.Entry<Long, Long> after = ranges.ceilingEntry(start);
+
+        while (after != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            ranges.remove(after.getKey());
+            after = ranges.ceilingEntry(start);
+        }
+
+        ranges.put(start, end);
+    }
+
+    /**
+     * Finds the end of the range without holes that starts at the offset.
+     *
+     * @param from The offset to start from.
+     * @return The offset of the first byte after <code>from</code> that is not written,
+     *         or <code>from</code> if that byte is not written.
+     */
+    public synchronized long getContiguousEnd(final long from) {
+        final Map.Entry<Long, Long> range = ranges.floorEntry(from);
+
+        if (range != null && range.getValue() > from) {
+            return range.getValue();
+        }
+
+        return from;
+    }
+
+    /**
+     * Gets the number of separate ranges.
+     *
+     * @return The number of ranges.
+     */
+    public synchronized int size() {
+        return ranges.size();
+    }
+}
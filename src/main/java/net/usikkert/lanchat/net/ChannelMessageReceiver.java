@@ -0,0 +1,235 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.misc.ErrorHandler;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Listens for multicast messages from the network using a non-blocking
+ * {@link DatagramChannel} joined to the multicast group, and notifies any
+ * listeners when messages arrive.
+ *
+ * <p>Unlike {@link MessageReceiver}, there is no thread per receiver. The channel is
+ * registered with the {@link NetworkReactor}, which receives and decodes the packets
+ * into reused buffers, and only decodes the bytes actually received.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class ChannelMessageReceiver implements MulticastReceiver {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ChannelMessageReceiver.class.getName());
+
+    /** The reactor servicing the channel. */
+    private final NetworkReactor reactor;
+
+    /** The port to receive messages on. */
+    private final int port;
+
+    /** The inetaddress object with the multicast ip address to receive messages from. */
+    private InetAddress address;
+
+    /** The channel used for receiving messages. */
+    private DatagramChannel channel;
+
+    /** The membership of the multicast group. */
+    private MembershipKey membership;
+
+    /** The listener getting all the messages received here. */
+    private ReceiverListener listener;
+
+    /** If connected to the network or not. */
+    private boolean connected;
+
+    /**
+     * Default constructor.
+     *
+     * <p>Initializes the network with the default ip address and port.</p>
+     *
+     * @param reactor The reactor servicing the channel.
+     * @see Constants#NETWORK_IP
+     * @see Constants#NETWORK_CHAT_PORT
+     */
+    public ChannelMessageReceiver(final NetworkReactor reactor) {
+        this(reactor, Constants.NETWORK_IP, Constants.NETWORK_CHAT_PORT);
+    }
+
+    /**
+     * Alternative constructor.
+     *
+     * <p>Initializes the network with the given ip address and port.</p>
+     *
+     * @param reactor The reactor servicing the channel.
+     * @param ipAddress Multicast ip address to connect to.
+     * @param port Port to connect to.
+     */
+    public ChannelMessageReceiver(final NetworkReactor reactor, final String ipAddress, final int port) {
+        Validate.notNull(reactor, "NetworkReactor can not be null");
+        LOG.fine("Creating ChannelMessageReceiver on " + ipAddress + ":" + port);
+
+        this.reactor = reactor;
+        this.port = port;
+
+        try {
+            address = InetAddress.getByName(ipAddress);
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+
+            final ErrorHandler errorHandler = ErrorHandler.getErrorHandler();
+            errorHandler.showCriticalError("Failed to initialize the network:\n" + e + "\n" +
+                    Constants.APP_NAME + " will now shutdown.");
+
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connects to the network with the given network interface. A datagram channel
+     * must be joined to the multicast group on a specific network interface, so if
+     * <code>null</code> is given, the first usable network interface is used.
+     *
+     * <p>The channel is registered with the reactor to continuously receive messages.</p>
+     *
+     * @param networkInterface The network interface to use, or <code>null</code>.
+     * @return If connected to the network or not.
+     */
+    @Override
+    public synchronized boolean startReceiver(final NetworkInterface networkInterface) {
+        LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
+
+        try {
+            if (connected) {
+                LOG.log(Level.FINE, "Already connected.");
+            }
+
+            else {
+                NetworkInterface netif = networkInterface;
+
+                if (netif == null) {
+                    netif = NetworkUtils.findFirstUsableNetworkInterface();
+                }
+
+                if (netif == null) {
+                    throw new IOException("No usable network interface");
+                }
+
+                channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(port));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netif);
+                membership = channel.join(address, netif);
+                reactor.registerDatagramChannel(channel, new ReceiverListener() {
+                    @Override
+                    public void messageArrived(final String message, final String ipAddress) {
+                        notifyListener(message, ipAddress);
+                    }
+                });
+
+                LOG.log(Level.FINE, "Connected to " + netif);
+                connected = true;
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, "Could not start receiver: " + e.toString(), e);
+            closeChannel();
+        }
+
+        return connected;
+    }
+
+    /**
+     * Gives the message to the registered listener, if any.
+     *
+     * @param message The message that arrived.
+     * @param ipAddress The ip address of the user that sent the message.
+     */
+    private void notifyListener(final String message, final String ipAddress) {
+        if (listener != null) {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Disconnects from the network and closes the datagram channel.
+     */
+    @Override
+    public synchronized void stopReceiver() {
+        LOG.log(Level.FINE, "Disconnecting from " + address.getHostAddress() + ":" + port);
+
+        if (!connected) {
+            LOG.log(Level.FINE, "Not connected.");
+        }
+
+        else {
+            connected = false;
+
+            if (membership != null && membership.isValid()) {
+                membership.drop();
+            }
+
+            closeChannel();
+
+            LOG.log(Level.FINE, "Disconnected from " + address.getHostAddress() + ":" + port);
+        }
+    }
+
+    /**
+     * Closes the datagram channel, if open.
+     */
+    private void closeChannel() {
+        if (channel != null) {
+            reactor.close(channel);
+        }
+
+        channel = null;
+        membership = null;
+    }
+
+    /**
+     * Registers as the listener to receive all the messages from
+     * the network.
+     *
+     * @param listener The listener to register.
+     */
+    @Override
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+}
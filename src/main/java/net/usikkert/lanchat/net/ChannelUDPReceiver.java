@@ -0,0 +1,183 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.misc.ErrorHandler;
+import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.misc.User;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Receives UDP packets sent directly to the IP address
+ * of this machine, using a non-blocking {@link DatagramChannel}
+ * serviced by the {@link NetworkReactor}.
+ *
+ * @author Shouvik Goswami
+ */
+public class ChannelUDPReceiver implements PrivateMessageReceiver {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ChannelUDPReceiver.class.getName());
+
+    /** The reactor servicing the channel. */
+    private final NetworkReactor reactor;
+
+    /** The error handler for registering important messages. */
+    private final ErrorHandler errorHandler;
+
+    /** The application user. */
+    private final User me;
+
+    /** The datagram channel used for receiving messages. */
+    private DatagramChannel channel;
+
+    /** The listener getting all the messages received here. */
+    private ReceiverListener listener;
+
+    /** If connected to the network or not. */
+    private boolean connected;
+
+    /**
+     * Constructor.
+     *
+     * @param reactor The reactor servicing the channel.
+     * @param settings The settings to use.
+     */
+    public ChannelUDPReceiver(final NetworkReactor reactor, final Settings settings) {
+        Validate.notNull(reactor, "NetworkReactor can not be null");
+        Validate.notNull(settings, "Settings can not be null");
+
+        this.reactor = reactor;
+
+        errorHandler = ErrorHandler.getErrorHandler();
+        me = settings.getMe();
+    }
+
+    /**
+     * Opens a new datagram channel, and registers it with the reactor.
+     * If the UDP port is in use, a new port will be tried instead.
+     */
+    @Override
+    public synchronized void startReceiver() {
+        LOG.log(Level.FINE, "Connecting...");
+
+        if (connected) {
+            LOG.log(Level.FINE, "Already connected.");
+        }
+
+        else {
+            int port = Constants.NETWORK_PRIVCHAT_PORT;
+            int counter = 0;
+
+            while (counter < 50 && !connected) {
+                try {
+                    channel = DatagramChannel.open();
+                    channel.bind(new InetSocketAddress(port));
+                    reactor.registerDatagramChannel(channel, new ReceiverListener() {
+                        @Override
+                        public void messageArrived(final String message, final String ipAddress) {
+                            notifyListener(message, ipAddress);
+                        }
+                    });
+
+                    connected = true;
+                    me.setPrivateChatPort(port);
+                    LOG.log(Level.FINE, "Connected to port " + port);
+                }
+
+                catch (final IOException e) {
+                    LOG.log(Level.SEVERE, e.toString() + " " + port);
+
+                    if (channel != null) {
+                        reactor.close(channel);
+                    }
+
+                    counter++;
+                    port++;
+                    me.setPrivateChatPort(0);
+                }
+            }
+
+            if (!connected) {
+                final String error = "Failed to initialize udp network:" +
+                        "\nNo available listening port between " + Constants.NETWORK_PRIVCHAT_PORT +
+                        " and " + (port - 1) + "." +
+                        "\n\nYou will not be able to receive private messages!";
+
+                LOG.log(Level.SEVERE, error);
+                errorHandler.showError(error);
+            }
+        }
+    }
+
+    /**
+     * Gives the message to the registered listener, if any.
+     *
+     * @param message The message that arrived.
+     * @param ipAddress The ip address of the user that sent the message.
+     */
+    private void notifyListener(final String message, final String ipAddress) {
+        if (listener != null) {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Closes the datagram channel.
+     */
+    @Override
+    public synchronized void stopReceiver() {
+        LOG.log(Level.FINE, "Disconnecting...");
+
+        if (!connected) {
+            LOG.log(Level.FINE, "Not connected.");
+        }
+
+        else {
+            connected = false;
+            reactor.close(channel);
+            channel = null;
+
+            LOG.log(Level.FINE, "Disconnected.");
+        }
+    }
+
+    /**
+     * Sets the listener who will receive all the messages
+     * from the UDP packets.
+     *
+     * @param listener The object to register as a listener.
+     */
+    @Override
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+}
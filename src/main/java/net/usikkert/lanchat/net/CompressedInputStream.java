@@ -0,0 +1,229 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * An input stream that reads the blocks written by {@link CompressedOutputStream},
+ * and decompresses the compressed ones.
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class CompressedInputStream extends InputStream {
+
+    /** The stream to read the blocks from. */
+    private final DataInputStream in;
+
+    /** Where to get the inflater from, and return it to when closed. */
+    private final CompressorPool pool;
+
+    /** The bytes of the current block. One byte larger than a block, to notice blocks that are too large. */
+    private final byte[] block;
+
+    /** The compressed bytes of the current block. */
+    private final byte[] compressed;
+
+    /** The inflater, or <code>null</code> if no compressed blocks have been read yet. */
+    private Inflater inflater;
+
+    /** The position of the next byte to read in the current block. */
+    private int position;
+
+    /** The number of bytes in the current block. */
+    private int limit;
+
+    /** If the stream is closed. */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param in The stream to read the blocks from.
+     * @param pool Where to get an inflater from.
+     */
+    public CompressedInputStream(final InputStream in, final CompressorPool pool) {
+        Validate.notNull(in, "Input stream can not be null");
+        Validate.notNull(pool, "Compressor pool can not be null");
+
+        this.in = new DataInputStream(in);
+        this.pool = pool;
+
+        block = new byte[CompressedOutputStream.BLOCK_SIZE + 1];
+        compressed = new byte[CompressedOutputStream.BLOCK_SIZE];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!fillBlock()) {
+            return -1;
+        }
+
+        return block[position++] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fillBlock()) {
+            return -1;
+        }
+
+        final int length = Math.min(len, limit - position);
+        System.arraycopy(block, position, b, off, length);
+        position += length;
+
+        return length;
+    }
+
+    /**
+     * Gets the number of bytes left of the current block.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    /**
+     * Returns the inflater to the pool, and closes the stream.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        pool.releaseInflater(inflater);
+        inflater = null;
+        in.close();
+    }
+
+    /**
+     * Reads the next block if there are no bytes left of the current block.
+     *
+     * @return If there are bytes to read, or <code>false</code> at the end of the stream.
+     * @throws IOException If the block could not be read, or is invalid.
+     */
+    private boolean fillBlock() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        if (position < limit) {
+            return true;
+        }
+
+        final int type = in.read();
+
+        // The end of the stream is only expected between blocks
+        if (type == -1) {
+            return false;
+        }
+
+        final int rawLength = in.readInt();
+        final int length = in.readInt();
+
+        if (rawLength <= 0 || rawLength > CompressedOutputStream.BLOCK_SIZE
+                || length <= 0 || length > CompressedOutputStream.BLOCK_SIZE) {
+            throw new IOException("Invalid block size: " + rawLength + "/" + length);
+        }
+
+        if (type == CompressedOutputStream.STORED && length == rawLength) {
+            in.readFully(block, 0, rawLength);
+        }
+
+        else if (type == CompressedOutputStream.DEFLATED) {
+            in.readFully(compressed, 0, length);
+            inflate(length, rawLength);
+        }
+
+        else {
+            throw new IOException("Invalid block type: " + type);
+        }
+
+        position = 0;
+        limit = rawLength;
+
+        return true;
+    }
+
+    /**
+     * Decompresses a block into the block buffer.
+     *
+     * @param length The number of compressed bytes.
+     * @param rawLength The number of bytes the block should have after decompression.
+     * @throws IOException If the block is corrupt, or not the expected size.
+     */
+    private void inflate(final int length, final int rawLength) throws IOException {
+        if (inflater == null) {
+            inflater = pool.acquireInflater();
+        }
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+
+        int inflated = 0;
+
+        try {
+            while (!inflater.finished()) {
+                final int bytes = inflater.inflate(block, inflated, block.length - inflated);
+
+                if (bytes == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflated == block.length)) {
+                    throw new IOException("Compressed block is incomplete, or too large");
+                }
+
+                inflated += bytes;
+            }
+        }
+
+        catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed block: " + e.getMessage());
+        }
+
+        if (inflated != rawLength) {
+            throw new IOException("Compressed block has " + inflated + " bytes instead of " + rawLength);
+        }
+    }
+}
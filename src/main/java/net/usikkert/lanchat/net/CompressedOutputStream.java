@@ -0,0 +1,447 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * An output stream that sends the bytes in blocks, where each block is either stored as it is
+ * or compressed with deflate. Read the blocks with {@link CompressedInputStream}.
+ *
+ * <p>Each block starts with a header: the type of block as one byte, then the number of bytes
+ * before and after compression as two ints. Blocks are at most {@link #BLOCK_SIZE} bytes
+ * before compression.</p>
+ *
+ * <p>The choice between stored and compressed is made for each block:</p>
+ *
+ * <ul>
+ *   <li>Blocks where a sample of the bytes has close to 8 bits of entropy, like in
+ *       images, archives and videos, are stored without trying to compress them.</li>
+ *   <li>Blocks that don't get much smaller when compressed are stored.</li>
+ *   <li>The time spent compressing and the time spent writing to the network are measured.
+ *       Compression is stopped when it takes longer to compress a block than it saves in
+ *       writing it, which happens when the network is faster than the CPU. Every
+ *       {@link #PROBE_INTERVAL} blocks a block is compressed anyway, to notice if the network
+ *       gets slower.</li>
+ * </ul>
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class CompressedOutputStream extends OutputStream {
+
+    /** The max number of bytes in a block, before compression. */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /** The size of the block header: the type, and the number of bytes before and after compression. */
+    static final int HEADER_SIZE = 9;
+
+    /** The type of block sent as it is. */
+    static final byte STORED = 0;
+
+    /** The type of block compressed with deflate. */
+    static final byte DEFLATED = 1;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(CompressedOutputStream.class.getName());
+
+    /** Blocks smaller than this are always stored, since there is too little to gain. */
+    private static final int MIN_DEFLATE_SIZE = 512;
+
+    /** Every n-th byte of a block is sampled when calculating the entropy. */
+    private static final int SAMPLE_STEP = 16;
+
+    /** Blocks with more bits of entropy per byte than this in the sample are not compressed. */
+    private static final double MAX_ENTROPY = 7.5;
+
+    /** Compressed blocks larger than this part of the original size are stored instead. */
+    private static final double MAX_RATIO = 0.9;
+
+    /** Compression is used when it's expected to take less than this part of the time of storing. */
+    private static final double MIN_GAIN = 0.9;
+
+    /** Number of blocks between each block compressed to update the measurements, when not compressing. */
+    private static final int PROBE_INTERVAL = 32;
+
+    /** The weight of the newest measurement in the moving averages. */
+    private static final double WEIGHT = 0.25;
+
+    /** The stream to write the blocks to. */
+    private final OutputStream out;
+
+    /** Where to get the deflater from, and return it to when closed. */
+    private final CompressorPool pool;
+
+    /** The bytes of the next block. */
+    private final byte[] block;
+
+    /** The header and the bytes of the block to write. */
+    private final byte[] frame;
+
+    /** The byte counts of the entropy sample. */
+    private final int[] histogram;
+
+    /** The deflater, or <code>null</code> if no blocks have been compressed yet. */
+    private Deflater deflater;
+
+    /** Number of bytes in the next block. */
+    private int count;
+
+    /** If the stream is closed. */
+    private boolean closed;
+
+    /** Average nanoseconds spent compressing each byte, or -1 before the first block is compressed. */
+    private double deflateCost;
+
+    /** Average nanoseconds spent writing each byte, or -1 before the first block is written. */
+    private double writeCost;
+
+    /** Average size after compression, as a part of the size before. */
+    private double ratio;
+
+    /** Number of blocks since the last block that was compressed. */
+    private int blocksSinceDeflate;
+
+    /** Number of bytes written to the stream. */
+    private long rawBytes;
+
+    /** Number of bytes written to the network, with the headers. */
+    private long wireBytes;
+
+    /** Number of blocks sent compressed. */
+    private int deflatedBlocks;
+
+    /** Number of blocks sent as they are. */
+    private int storedBlocks;
+
+    /**
+     * Constructor.
+     *
+     * @param out The stream to write the blocks to.
+     * @param pool Where to get a deflater from.
+     */
+    public CompressedOutputStream(final OutputStream out, final CompressorPool pool) {
+        Validate.notNull(out, "Output stream can not be null");
+        Validate.notNull(pool, "Compressor pool can not be null");
+
+        this.out = out;
+        this.pool = pool;
+
+        block = new byte[BLOCK_SIZE];
+        frame = new byte[HEADER_SIZE + BLOCK_SIZE];
+        histogram = new int[256];
+        deflateCost = -1;
+        writeCost = -1;
+        ratio = 1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        checkOpen();
+        block[count++] = (byte) b;
+
+        if (count == BLOCK_SIZE) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        checkOpen();
+
+        int written = 0;
+
+        while (written < len) {
+            final int length = Math.min(len - written, BLOCK_SIZE - count);
+            System.arraycopy(b, off + written, block, count, length);
+            count += length;
+            written += length;
+
+            if (count == BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes waiting for a full block as a smaller block, and flushes the stream.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the bytes waiting for a full block, returns the deflater to the pool,
+     * and closes the stream.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            writeBlock();
+            out.flush();
+        }
+
+        finally {
+            closed = true;
+            pool.releaseDeflater(deflater);
+            deflater = null;
+            out.close();
+
+            LOG.log(Level.FINE, "Sent " + rawBytes + " bytes as " + wireBytes + " bytes, in "
+                    + deflatedBlocks + " compressed and " + storedBlocks + " stored blocks");
+        }
+    }
+
+    /**
+     * Writes the waiting bytes as a block, compressed or stored.
+     *
+     * @throws IOException If the block could not be written.
+     */
+    private void writeBlock() throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        int length = -1;
+
+        if (shouldDeflate()) {
+            final long start = nanoTime();
+            length = deflate();
+            deflateCost = average(deflateCost, (double) (nanoTime() - start) / count);
+            ratio = average(ratio, length > 0 ? (double) length / count : 1);
+            blocksSinceDeflate = 0;
+        }
+
+        else {
+            blocksSinceDeflate++;
+        }
+
+        if (length > 0 && length <= count * MAX_RATIO) {
+            writeHeader(DEFLATED, length);
+            deflatedBlocks++;
+        }
+
+        else {
+            System.arraycopy(block, 0, frame, HEADER_SIZE, count);
+            length = count;
+            writeHeader(STORED, length);
+            storedBlocks++;
+        }
+
+        final long start = nanoTime();
+        out.write(frame, 0, HEADER_SIZE + length);
+        writeCost = average(writeCost, (double) (nanoTime() - start) / (HEADER_SIZE + length));
+
+        rawBytes += count;
+        wireBytes += HEADER_SIZE + length;
+        count = 0;
+    }
+
+    /**
+     * Checks if the waiting bytes should be compressed, based on their entropy and the time it
+     * took to compress and write the earlier blocks.
+     *
+     * @return If the bytes should be compressed.
+     */
+    private boolean shouldDeflate() {
+        if (count < MIN_DEFLATE_SIZE || hasHighEntropy()) {
+            return false;
+        }
+
+        if (deflateCost < 0 || writeCost < 0 || blocksSinceDeflate >= PROBE_INTERVAL) {
+            return true;
+        }
+
+        return deflateCost + writeCost * ratio < writeCost * MIN_GAIN;
+    }
+
+    /**
+     * Checks if a sample of the waiting bytes has so much entropy that compression is pointless.
+     *
+     * @return If the bytes look random.
+     */
+    private boolean hasHighEntropy() {
+        Arrays.fill(histogram, 0);
+        int samples = 0;
+
+        for (int i = 0; i < count; i += SAMPLE_STEP) {
+            histogram[block[i] & 0xff]++;
+            samples++;
+        }
+
+        double entropy = 0;
+
+        for (final int byteCount : histogram) {
+            if (byteCount > 0) {
+                final double probability = (double) byteCount / samples;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+
+        return entropy / Math.log(2) > MAX_ENTROPY;
+    }
+
+    /**
+     * Compresses the waiting bytes into the frame, after the header.
+     *
+     * @return The compressed size, or -1 if the bytes did not get smaller.
+     */
+    private int deflate() {
+        if (deflater == null) {
+            deflater = pool.acquireDeflater();
+        }
+
+        deflater.reset();
+        deflater.setInput(block, 0, count);
+        deflater.finish();
+
+        int length = 0;
+
+        while (!deflater.finished() && length < count) {
+            length += deflater.deflate(frame, HEADER_SIZE + length, count - length);
+        }
+
+        return deflater.finished() ? length : -1;
+    }
+
+    /**
+     * Writes the block header to the start of the frame.
+     *
+     * @param type The type of block.
+     * @param length The number of bytes after the header.
+     */
+    private void writeHeader(final byte type, final int length) {
+        frame[0] = type;
+        writeInt(1, count);
+        writeInt(5, length);
+    }
+
+    /**
+     * Writes an int to the frame, with the most significant byte first.
+     *
+     * @param position Where to write the int.
+     * @param value The int to write.
+     */
+    private void writeInt(final int position, final int value) {
+        frame[position] = (byte) (value >>> 24);
+        frame[position + 1] = (byte) (value >>> 16);
+        frame[position + 2] = (byte) (value >>> 8);
+        frame[position + 3] = (byte) value;
+    }
+
+    /**
+     * Adds a measurement to a moving average.
+     *
+     * @param average The current average, or a negative number if there is none yet.
+     * @param value The new measurement.
+     * @return The new average.
+     */
+    private double average(final double average, final double value) {
+        if (average < 0) {
+            return value;
+        }
+
+        return average + WEIGHT * (value - average);
+    }
+
+    /**
+     * Checks that the stream is not closed.
+     *
+     * @throws IOException If the stream is closed.
+     */
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /**
+     * Gets the current time, for measuring how long compression and writes take.
+     *
+     * @return The current time, in nanoseconds.
+     */
+    protected long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Gets the number of bytes written to the stream.
+     *
+     * @return The number of bytes before compression.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Gets the number of bytes written to the network, including the block headers.
+     *
+     * @return The number of bytes after compression.
+     */
+    public long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * Gets the number of blocks sent compressed.
+     *
+     * @return The number of compressed blocks.
+     */
+    public int getDeflatedBlocks() {
+        return deflatedBlocks;
+    }
+
+    /**
+     * Gets the number of blocks sent as they are.
+     *
+     * @return The number of stored blocks.
+     */
+    public int getStoredBlocks() {
+        return storedBlocks;
+    }
+}
@@ -0,0 +1,168 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A pool of deflaters and inflaters, so the native memory they use can be reused
+ * between file transfers instead of being allocated for each of them.
+ *
+ * <p>Only a limited number of idle deflaters and inflaters are kept. The ones released when
+ * the pool is full are ended right away, since the garbage collector is slow to free native memory.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class CompressorPool {
+
+    /** The compression level of the deflaters. Files are compressed on the fly, so speed matters most. */
+    private static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    /** Max number of idle deflaters, and idle inflaters, to keep. */
+    private final int maxIdle;
+
+    /** The idle deflaters. */
+    private final Deque<Deflater> idleDeflaters;
+
+    /** The idle inflaters. */
+    private final Deque<Inflater> idleInflaters;
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdle Max number of idle deflaters, and idle inflaters, to keep.
+     */
+    public CompressorPool(final int maxIdle) {
+        this.maxIdle = maxIdle;
+
+        idleDeflaters = new ArrayDeque<Deflater>();
+        idleInflaters = new ArrayDeque<Inflater>();
+    }
+
+    /**
+     * Gets a deflater from the pool, or creates a new one if the pool is empty.
+     *
+     * @return A reset deflater.
+     */
+    public Deflater acquireDeflater() {
+        Deflater deflater;
+
+        synchronized (idleDeflaters) {
+            deflater = idleDeflaters.pollFirst();
+        }
+
+        if (deflater == null) {
+            return new Deflater(COMPRESSION_LEVEL);
+        }
+
+        deflater.reset();
+
+        return deflater;
+    }
+
+    /**
+     * Returns a deflater to the pool. The deflater is ended if the pool is full.
+     *
+     * @param deflater The deflater to return.
+     */
+    public void releaseDeflater(final Deflater deflater) {
+        if (deflater == null) {
+            return;
+        }
+
+        synchronized (idleDeflaters) {
+            if (idleDeflaters.size() < maxIdle) {
+                idleDeflaters.addFirst(deflater);
+                return;
+            }
+        }
+
+        deflater.end();
+    }
+
+    /**
+     * Gets an inflater from the pool, or creates a new one if the pool is empty.
+     *
+     * @return A reset inflater.
+     */
+    public Inflater acquireInflater() {
+        Inflater inflater;
+
+        synchronized (idleInflaters) {
+            inflater = idleInflaters.pollFirst();
+        }
+
+        if (inflater == null) {
+            return new Inflater();
+        }
+
+        inflater.reset();
+
+        return inflater;
+    }
+
+    /**
+     * Returns an inflater to the pool. The inflater is ended if the pool is full.
+     *
+     * @param inflater The inflater to return.
+     */
+    public void releaseInflater(final Inflater inflater) {
+        if (inflater == null) {
+            return;
+        }
+
+        synchronized (idleInflaters) {
+            if (idleInflaters.size() < maxIdle) {
+                idleInflaters.addFirst(inflater);
+                return;
+            }
+        }
+
+        inflater.end();
+    }
+
+    /**
+     * Gets the number of idle deflaters in the pool.
+     *
+     * @return The number of idle deflaters.
+     */
+    public int getIdleDeflaters() {
+        synchronized (idleDeflaters) {
+            return idleDeflaters.size();
+        }
+    }
+
+    /**
+     * Gets the number of idle inflaters in the pool.
+     *
+     * @return The number of idle inflaters.
+     */
+    public int getIdleInflaters() {
+        synchronized (idleInflaters) {
+            return idleInflaters.size();
+        }
+    }
+}
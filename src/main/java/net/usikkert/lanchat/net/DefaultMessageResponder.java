@@ -23,7 +23,11 @@
 package net.usikkert.lanchat.net;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,12 +53,15 @@ public class DefaultMessageResponder implements MessageResponder {
     private static final Logger LOG = Logger.getLogger(DefaultMessageResponder.class.getName());
 
     private final Controller controller;
+    private final Settings settings;
     private final User me;
     private final TransferList tList;
     private final WaitingList wList;
     private final UserInterface ui;
     private final MessageController msgController;
     private final ChatState chatState;
+    private final ExecutorService fileTransferExecutor;
+    private final TransferScheduler transferScheduler;
 
     /**
      * Constructor.
@@ -70,18 +77,22 @@ public class DefaultMessageResponder implements MessageResponder {
 
         this.controller = controller;
         this.ui = ui;
+        this.settings = settings;
 
         msgController = ui.getMessageController();
         me = settings.getMe();
         tList = controller.getTransferList();
         wList = controller.getWaitingList();
         chatState = controller.getChatState();
+        fileTransferExecutor = controller.getFileTransferExecutor();
+        transferScheduler = controller.getTransferScheduler();
     }
 
     /**
      * Shows a message from a user in the user interface.
      * If the user that sent the message does not yet exist in the user list,
-     * the user is asked to identify itself before the message is shown.
+     * the user is asked to identify itself, and the message is held back
+     * until the user has been added to the user list.
      *
      * @param userCode The unique code of the user who sent the message.
      * @param msg The message.
@@ -89,50 +100,68 @@ public class DefaultMessageResponder implements MessageResponder {
      */
     @Override
     public void messageArrived(final int userCode, final String msg, final int color) {
-        // A little hack to stop messages from showing before the user is logged on
-        final Thread t = new Thread("DefaultMessageResponderMessageArrived") {
-            @Override
-            public void run() {
-                if (isAlive()) {
-                    int counter = 0;
+        if (controller.isNewUser(userCode)) {
+            askToIdentify(userCode);
 
-                    while (wList.isWaitingUser(userCode) && counter < 40) {
-                        counter++;
-                        Tools.sleep(50);
-                    }
+            wList.addPendingMessage(userCode, new Runnable() {
+                @Override
+                public void run() {
+                    showUserMessage(userCode, msg, color);
                 }
+            });
+        }
 
-                if (!controller.isNewUser(userCode)) {
-                    final User user = controller.getUser(userCode);
+        else {
+            showUserMessage(userCode, msg, color);
+        }
+    }
 
-                    if (!user.isAway()) {
-                        msgController.showUserMessage(user.getNick(), msg, color);
+    /**
+     * Shows a message from a user in the user list, unless the user is away.
+     *
+     * @param userCode The unique code of the user who sent the message.
+     * @param msg The message.
+     * @param color The color the message has.
+     */
+    private void showUserMessage(final int userCode, final String msg, final int color) {
+        final User user = controller.getUser(userCode);
 
-                        // Visible but not in front
-                        if (ui.isVisible() && !ui.isFocused()) {
-                            me.setNewMsg(true);
-                        }
+        if (user == null) {
+            LOG.log(Level.SEVERE, "Could not find user: " + userCode);
+        }
 
-                        ui.notifyMessageArrived(user);
-                    }
-                }
+        else if (!user.isAway()) {
+            msgController.showUserMessage(user.getNick(), msg, color);
 
-                else {
-                    LOG.log(Level.SEVERE, "Could not find user: " + userCode);
-                }
+            // Visible but not in front
+            if (ui.isVisible() && !ui.isFocused()) {
+                me.setNewMsg(true);
             }
-        };
 
-        if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
+            ui.notifyMessageArrived(user);
+        }
+    }
+
+    /**
+     * Asks an unknown user to identify itself, unless that has already been done.
+     *
+     * @param userCode The unique code of the unknown user.
+     */
+    private void askToIdentify(final int userCode) {
+        if (wList.addWaitingUser(userCode)) {
             controller.sendExposeMessage();
             controller.sendGetTopicMessage();
-
-            t.start();
         }
+    }
 
-        else {
-            t.run();
+    /**
+     * Shows the messages held back while waiting for the user to identify, in the order they arrived.
+     *
+     * @param userCode The unique code of the user who was added to the user list.
+     */
+    private void showPendingMessages(final int userCode) {
+        for (final Runnable pendingMessage : wList.removeWaitingUser(userCode)) {
+            pendingMessage.run();
         }
     }
 
@@ -178,6 +207,7 @@ public class DefaultMessageResponder implements MessageResponder {
 
         controller.getUserList().add(newUser);
         msgController.showSystemMessage(newUser.getNick() + " logged on from " + newUser.getIpAddress());
+        showPendingMessages(newUser.getCode());
     }
 
     /**
@@ -216,9 +246,7 @@ public class DefaultMessageResponder implements MessageResponder {
     @Override
     public void topicChanged(final int userCode, final String newTopic, final String nick, final long time) {
         if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
-            controller.sendExposeMessage();
-            controller.sendGetTopicMessage();
+            askToIdentify(userCode);
         }
 
         else {
@@ -240,6 +268,11 @@ public class DefaultMessageResponder implements MessageResponder {
                         topic.changeTopic(newTopic, nick, time);
                         ui.showTopic();
                     }
+
+                    // Someone else already answered with the same topic
+                    if (newTopic.equals(topic.getTopic()) && time == topic.getTime() && nick.equals(topic.getNick())) {
+                        controller.cancelTopicResponse();
+                    }
                 }
 
                 else {
@@ -248,6 +281,10 @@ public class DefaultMessageResponder implements MessageResponder {
                         topic.changeTopic("", "", time);
                         ui.showTopic();
                     }
+
+                    if (topic.getTopic().length() == 0 && time == topic.getTime()) {
+                        controller.cancelTopicResponse();
+                    }
                 }
             }
         }
@@ -264,10 +301,6 @@ public class DefaultMessageResponder implements MessageResponder {
         if (controller.isNewUser(user.getCode())) {
             // Usually this happens when someone returns from a timeout
             if (chatState.isLogonCompleted()) {
-                if (wList.isWaitingUser(user.getCode())) {
-                    wList.removeWaitingUser(user.getCode());
-                }
-
                 userShowedUp(user);
             }
 
@@ -275,6 +308,8 @@ public class DefaultMessageResponder implements MessageResponder {
             else {
                 controller.getUserList().add(user);
             }
+
+            showPendingMessages(user.getCode());
         }
 
         else {
@@ -343,9 +378,7 @@ public class DefaultMessageResponder implements MessageResponder {
     @Override
     public void awayChanged(final int userCode, final boolean away, final String awayMsg) {
         if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
-            controller.sendExposeMessage();
-            controller.sendGetTopicMessage();
+            askToIdentify(userCode);
         }
 
         else {
@@ -402,14 +435,12 @@ public class DefaultMessageResponder implements MessageResponder {
     @Override
     public void userIdle(final int userCode, final String ipAddress) {
         if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
-            controller.sendExposeMessage();
-            controller.sendGetTopicMessage();
+            askToIdentify(userCode);
         }
 
         else {
             final User user = controller.getUser(userCode);
-            user.setLastIdle(System.currentTimeMillis());
+            controller.userIdle(user);
 
             if (!user.getIpAddress().equals(ipAddress)) {
                 msgController.showSystemMessage(user.getNick() + " changed ip from " + user.getIpAddress() + " to " + ipAddress);
@@ -419,11 +450,11 @@ public class DefaultMessageResponder implements MessageResponder {
     }
 
     /**
-     * Sends the current topic.
+     * Sends the current topic, after a random delay.
      */
     @Override
     public void topicRequested() {
-        controller.sendTopicRequestedMessage();
+        controller.sendTopicResponse();
     }
 
     /**
@@ -438,12 +469,15 @@ public class DefaultMessageResponder implements MessageResponder {
     }
 
     /**
-     * Sends information about this client to the other clients.
+     * Sends information about this client to the other clients, after a random delay.
+     * Users who can ask for the client information when needed only get the features.
+     *
+     * @param userCode The unique code of the user who asked.
      */
     @Override
-    public void exposeRequested() {
-        controller.sendExposingMessage();
-        controller.sendClientInfo();
+    public void exposeRequested(final int userCode) {
+        final User user = controller.getUser(userCode);
+        controller.sendExposingResponse(user == null || !user.supportsFeature(ProtocolFeature.LAZY_CLIENT));
     }
 
     /**
@@ -455,9 +489,7 @@ public class DefaultMessageResponder implements MessageResponder {
     @Override
     public void nickChanged(final int userCode, final String newNick) {
         if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
-            controller.sendExposeMessage();
-            controller.sendGetTopicMessage();
+            askToIdentify(userCode);
         }
 
         else {
@@ -495,88 +527,290 @@ public class DefaultMessageResponder implements MessageResponder {
      */
     @Override
     public void fileSend(final int userCode, final long byteSize, final String fileName, final String user, final int fileHash) {
+        final Runnable fileRequest = new Runnable() {
+            @Override
+            public void run() {
+                startFileReceiver(userCode, byteSize, fileName, user, fileHash, -1);
+            }
+        };
+
         if (controller.isNewUser(userCode)) {
-            wList.addWaitingUser(userCode);
-            controller.sendExposeMessage();
-            controller.sendGetTopicMessage();
+            askToIdentify(userCode);
+            wList.addPendingMessage(userCode, fileRequest);
+        }
+
+        else {
+            fileRequest.run();
         }
+    }
 
-        new Thread("DefaultMessageResponderFileSend") {
+    /**
+     * Asks if the application user wants to receive a batch of files and folders from another user,
+     * and if so, starts a server listening for the batch transfer. The batch is received into
+     * a directory, like a single file.
+     *
+     * If the user does not exist in the user list, it's asked to identify
+     * itself first.
+     *
+     * @param userCode The unique code of the user who is asking to send the batch.
+     * @param byteSize The total size of the files in bytes.
+     * @param fileCount The number of files in the batch.
+     * @param batchName The name of the batch.
+     * @param user The nick name of the user.
+     * @param fileHash The hash code of the batch.
+     */
+    @Override
+    public void fileBatchSend(final int userCode, final long byteSize, final int fileCount, final String batchName,
+                              final String user, final int fileHash) {
+        final Runnable fileRequest = new Runnable() {
             @Override
             public void run() {
-                int counter = 0;
+                startFileReceiver(userCode, byteSize, batchName, user, fileHash, fileCount);
+            }
+        };
 
-                while (wList.isWaitingUser(userCode) && counter < 40) {
-                    counter++;
-                    Tools.sleep(50);
+        if (controller.isNewUser(userCode)) {
+            askToIdentify(userCode);
+            wList.addPendingMessage(userCode, fileRequest);
+        }
+
+        else {
+            fileRequest.run();
+        }
+    }
+
+    /**
+     * Starts asking the application user to receive the file, on a thread from the file transfer executor.
+     * The request is refused if there are too many file transfers already.
+     *
+     * @param userCode The unique code of the user who is asking to send a file.
+     * @param byteSize The size of the file in bytes.
+     * @param fileName The name of the file.
+     * @param user The nick name of the user.
+     * @param fileHash The hash code of the file.
+     * @param fileCount The number of files in the batch, or <code>-1</code> if receiving a single file.
+     */
+    private void startFileReceiver(final int userCode, final long byteSize, final String fileName, final String user,
+                                   final int fileHash, final int fileCount) {
+        try {
+            fileTransferExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receiveFile(userCode, byteSize, fileName, user, fileHash, fileCount);
                 }
+            });
+        }
 
-                if (!controller.isNewUser(userCode)) {
-                    final String size = Tools.byteToString(byteSize);
-                    final User tmpUser = controller.getUser(userCode);
-                    final File defaultFile = new File(
-                            System.getProperty("user.home") + System.getProperty("file.separator") + fileName);
-                    final FileReceiver fileRes = tList.addFileReceiver(tmpUser, defaultFile, byteSize);
-
-                    msgController.showSystemMessage(
-                            user + " is trying to send the file " + fileName + " (#" + fileRes.getId() + ") [" + size + "]");
-
-                    if (ui.askFileSave(user, fileName, size)) {
-                        ui.showFileSave(fileRes);
-
-                        if (fileRes.isAccepted() && !fileRes.isCanceled()) {
-                            ui.showTransfer(fileRes);
-
-                            try {
-                                final int port = fileRes.startServer();
-                                controller.sendFileAccept(tmpUser, port, fileHash, fileName);
-
-                                if (fileRes.transfer()) {
-                                    msgController.showSystemMessage("Successfully received " + fileName +
-                                            " from " + user + ", and saved as " + fileRes.getFile().getName());
-                                }
-
-                                else {
-                                    msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
-                                    fileRes.cancel();
-                                }
-                            }
-
-                            // Failed to start the server
-                            catch (final ServerException e) {
-                                LOG.log(Level.SEVERE, e.toString(), e);
-                                msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
-                                controller.sendFileAbort(tmpUser, fileHash, fileName);
-                                fileRes.cancel();
-                            }
-
-                            // Failed to send the accept message
-                            catch (final CommandException e) {
-                                msgController.showSystemMessage("Failed to receive " + fileName + " from " + user);
-                                fileRes.cancel();
-                            }
-                        }
+        catch (final RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Too many file transfers, refusing " + fileName + " from " + user);
+            msgController.showSystemMessage("Too many file transfers, refused to receive " + fileName + " from " + user);
+
+            final User tmpUser = controller.getUser(userCode);
+
+            if (tmpUser != null) {
+                controller.sendFileAbort(tmpUser, fileHash, fileName);
+            }
+        }
+    }
+
+    /**
+     * Asks the application user to receive the file, and receives it if accepted.
+     * Blocks until the transfer is done, unless the transfer scheduler puts it in the queue.
+     *
+     * <p>A batch is received into a directory, and can not be resumed or segmented.</p>
+     *
+     * @param userCode The unique code of the user who is asking to send a file.
+     * @param byteSize The size of the file in bytes.
+     * @param fileName The name of the file.
+     * @param user The nick name of the user.
+     * @param fileHash The hash code of the file.
+     * @param fileCount The number of files in the batch, or <code>-1</code> if receiving a single file.
+     */
+    private void receiveFile(final int userCode, final long byteSize, final String fileName, final String user,
+                             final int fileHash, final int fileCount) {
+        if (!controller.isNewUser(userCode)) {
+            final boolean batch = fileCount >= 0;
+            final String size = Tools.byteToString(byteSize);
+            final User tmpUser = controller.getUser(userCode);
+            final File partialFile = !batch && tmpUser.supportsFeature(ProtocolFeature.RESUME) ?
+                    tList.getPartialFile(fileName, fileHash, byteSize) : null;
+            final File defaultFile = partialFile != null ? partialFile : new File(
+                    System.getProperty("user.home") + System.getProperty("file.separator") + fileName);
+            final FileReceiver fileRes = tList.addFileReceiver(tmpUser, defaultFile, byteSize);
+            fileRes.setPartialFile(partialFile);
+            final boolean compress = isSupportedByBoth(tmpUser, ProtocolFeature.DEFLATE);
+            fileRes.setBatch(batch);
+            fileRes.setCompress(compress);
+            fileRes.setSegmented(!batch && !compress && isSupportedByBoth(tmpUser, ProtocolFeature.SEGMENTS));
+            fileRes.setVerifyChecksum(isSupportedByBoth(tmpUser, ProtocolFeature.CHECKSUM));
+
+            if (isSupportedByBoth(tmpUser, ProtocolFeature.SHARED_PORT)) {
+                fileRes.setTransferToken(new TransferToken(tmpUser.getCode(), fileHash, fileName));
+            }
+
+            if (batch) {
+                msgController.showSystemMessage(user + " is trying to send the folder " + fileName + " with "
+                        + fileCount + " files (#" + fileRes.getId() + ") [" + size + "]");
+            }
+
+            else {
+                msgController.showSystemMessage(
+                        user + " is trying to send the file " + fileName + " (#" + fileRes.getId() + ") [" + size + "]");
+            }
 
-                        else if (!fileRes.isCanceled()) {
-                            msgController.showSystemMessage("You declined to receive " + fileName + " from " + user);
-                            controller.sendFileAbort(tmpUser, fileHash, fileName);
+            if (ui.askFileSave(user, batch ? fileName + " (" + fileCount + " files)" : fileName, size)) {
+                ui.showFileSave(fileRes);
+
+                if (fileRes.isAccepted() && !fileRes.isCanceled()) {
+                    ui.showTransfer(fileRes);
+
+                    final Runnable queuedTransfer = new Runnable() {
+                        @Override
+                        public void run() {
+                            transferFile(tmpUser, fileRes, fileName, fileHash, byteSize, batch);
+                            tList.removeFileReceiver(fileRes);
                         }
+                    };
 
+                    if (transferScheduler.schedule(fileRes, queuedTransfer)) {
+                        transferFile(tmpUser, fileRes, fileName, fileHash, byteSize, batch);
                     }
 
-                    else if (!fileRes.isCanceled()) {
-                        msgController.showSystemMessage("You declined to receive " + fileName + " from " + user);
-                        controller.sendFileAbort(tmpUser, fileHash, fileName);
+                    else {
+                        msgController.showSystemMessage("Queued receiving of " + fileName + " from " + user +
+                                ", number " + fileRes.getQueuePosition() + " in line");
+                        return;
                     }
+                }
 
-                    tList.removeFileReceiver(fileRes);
+                else if (!fileRes.isCanceled()) {
+                    msgController.showSystemMessage("You declined to receive " + fileName + " from " + user);
+                    controller.sendFileAbort(tmpUser, fileHash, fileName);
                 }
 
-                else {
-                    LOG.log(Level.SEVERE, "Could not find user: " + user);
+            }
+
+            else if (!fileRes.isCanceled()) {
+                msgController.showSystemMessage("You declined to receive " + fileName + " from " + user);
+                controller.sendFileAbort(tmpUser, fileHash, fileName);
+            }
+
+            tList.removeFileReceiver(fileRes);
+        }
+
+        else {
+            LOG.log(Level.SEVERE, "Could not find user: " + user);
+        }
+    }
+
+    /**
+     * Receives the file the application user accepted, when the transfer scheduler lets it start.
+     * Blocks until the transfer is done. Tells the sender if the file was canceled while queued.
+     *
+     * @param tmpUser The user who is sending the file.
+     * @param fileRes The file receiver.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param byteSize The size of the file in bytes.
+     * @param batch If receiving a batch of files.
+     */
+    private void transferFile(final User tmpUser, final FileReceiver fileRes, final String fileName,
+                              final int fileHash, final long byteSize, final boolean batch) {
+        if (fileRes.isCanceled()) {
+            msgController.showSystemMessage("Failed to receive " + fileName + " from " + tmpUser.getNick());
+            controller.sendFileAbort(tmpUser, fileHash, fileName);
+            return;
+        }
+
+        try {
+            final long resumeChecksum = prepareResume(fileRes, fileName, fileHash);
+            final int port = fileRes.startServer();
+
+            if (fileRes.getResumeOffset() > 0) {
+                msgController.showSystemMessage("Resuming " + fileName + " from " +
+                        Tools.byteToString(fileRes.getResumeOffset()));
+                controller.sendFileResume(tmpUser, port, fileHash, fileName,
+                        fileRes.getResumeOffset(), resumeChecksum);
+            }
+
+            else {
+                controller.sendFileAccept(tmpUser, port, fileHash, fileName);
+            }
+
+            if (fileRes.transfer()) {
+                msgController.showSystemMessage("Successfully received " + fileName +
+                        " from " + tmpUser.getNick() + ", and saved as " + fileRes.getFile().getName());
+                tList.removePartialTransfer(fileName, fileHash, byteSize);
+            }
+
+            else {
+                msgController.showSystemMessage("Failed to receive " + fileName + " from " + tmpUser.getNick());
+                fileRes.cancel();
+
+                if (!batch) {
+                    tList.savePartialTransfer(fileRes, fileName, fileHash);
                 }
             }
-        } .start();
+        }
+
+        // Failed to start the server
+        catch (final ServerException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+            msgController.showSystemMessage("Failed to receive " + fileName + " from " + tmpUser.getNick());
+            controller.sendFileAbort(tmpUser, fileHash, fileName);
+            fileRes.cancel();
+        }
+
+        // Failed to send the accept message
+        catch (final CommandException e) {
+            msgController.showSystemMessage("Failed to receive " + fileName + " from " + tmpUser.getNick());
+            fileRes.cancel();
+        }
+    }
+
+    /**
+     * Checks if both clients support a feature that changes the data sent in file transfers.
+     *
+     * @param user The other user in the file transfer.
+     * @param feature The feature to check.
+     * @return If the feature can be used in the file transfer.
+     */
+    private boolean isSupportedByBoth(final User user, final ProtocolFeature feature) {
+        return me.supportsFeature(feature) && user.supportsFeature(feature);
+    }
+
+    /**
+     * Sets the offset to resume from, if the file receiver saves to the partial file
+     * from an earlier transfer of the same file.
+     *
+     * @param fileRes The file receiver.
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @return The checksum of the last bytes before the offset in the partial file,
+     *         or <code>-1</code> if not resuming.
+     */
+    private long prepareResume(final FileReceiver fileRes, final String fileName, final int fileHash) {
+        if (fileRes.getPartialFile() == null) {
+            return -1;
+        }
+
+        final long offset = tList.getResumeOffset(fileRes, fileName, fileHash);
+
+        if (offset == 0) {
+            return -1;
+        }
+
+        try {
+            final long checksum = PartialTransfers.calculateChecksum(fileRes.getFile(), offset);
+            fileRes.setResumeOffset(offset);
+
+            return checksum;
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not resume " + fileName + ": " + e);
+            return -1;
+        }
     }
 
     /**
@@ -609,7 +843,7 @@ public class DefaultMessageResponder implements MessageResponder {
 
     /**
      * The other user has accepted a file transfer. Will try to connect to the
-     * user to send the file.
+     * user to send the file, when the transfer scheduler lets the file sender start.
      *
      * @param userCode The unique code of the user who accepted a file transfer.
      * @param fileName The name of the file.
@@ -618,30 +852,103 @@ public class DefaultMessageResponder implements MessageResponder {
      */
     @Override
     public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) {
-        new Thread("DefaultMessageResponderFileSendAccepted") {
+        final User user = controller.getUser(userCode);
+        final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
+
+        if (fileSend == null) {
+            return;
+        }
+
+        final boolean compress = isSupportedByBoth(user, ProtocolFeature.DEFLATE);
+        fileSend.setCompress(compress);
+
+        // Compressed blocks are sent in order, over a single connection
+        if (fileSend.getBatch() == null && !compress && isSupportedByBoth(user, ProtocolFeature.SEGMENTS)) {
+            fileSend.setSegmented(settings.getFileTransferStreams());
+        }
+
+        fileSend.setVerifyChecksum(isSupportedByBoth(user, ProtocolFeature.CHECKSUM));
+
+        if (isSupportedByBoth(user, ProtocolFeature.SHARED_PORT)) {
+            fileSend.setTransferToken(new TransferToken(me.getCode(), fileHash, fileName));
+        }
+
+        final Runnable send = new Runnable() {
             @Override
             public void run() {
-                final User user = controller.getUser(userCode);
-                final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
+                sendFile(user, fileSend, fileName, port);
+            }
+        };
 
-                if (fileSend != null) {
-                    msgController.showSystemMessage(user.getNick() + " accepted sending of " + fileName);
+        // The file sender takes its place in the scheduler now that the file is accepted
+        if (!transferScheduler.schedule(fileSend, send)) {
+            msgController.showSystemMessage("Queued sending of " + fileName + " to " + user.getNick() +
+                    ", number " + fileSend.getQueuePosition() + " in line");
+            return;
+        }
 
-                    // Give the server some time to set up the connection first
-                    Tools.sleep(200);
+        try {
+            fileTransferExecutor.execute(send);
+        }
 
-                    if (fileSend.transfer(port)) {
-                        msgController.showSystemMessage(fileName + " successfully sent to " + user.getNick());
-                    }
+        catch (final RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Too many file transfers, not sending " + fileName + " to " + user.getNick());
+            msgController.showSystemMessage("Too many file transfers, failed to send " + fileName + " to " + user.getNick());
+            controller.sendFileAbort(user, fileHash, fileName);
+            fileSend.cancel();
+            tList.removeFileSender(fileSend);
+        }
+    }
 
-                    else {
-                        msgController.showSystemMessage("Failed to send " + fileName + " to " + user.getNick());
-                    }
+    /**
+     * The other user has accepted a file transfer, and wants to continue from the end of
+     * a partially received file. The file sender checks the offset and checksum before it resumes.
+     *
+     * @param userCode The unique code of the user who accepted a file transfer.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param port The port to use for connecting to the other user.
+     * @param offset The number of bytes the user has already received.
+     * @param checksum The checksum of the last bytes before the offset in the partial file.
+     */
+    @Override
+    public void fileSendResumed(final int userCode, final String fileName, final int fileHash, final int port,
+                                final long offset, final long checksum) {
+        final User user = controller.getUser(userCode);
+        final FileSender fileSend = tList.getFileSender(user, fileName, fileHash);
 
-                    tList.removeFileSender(fileSend);
-                }
-            }
-        } .start();
+        if (fileSend != null) {
+            fileSend.setResumeRequest(offset, checksum);
+        }
+
+        fileSendAccepted(userCode, fileName, fileHash, port);
+    }
+
+    /**
+     * Sends the file to the user who accepted it. Blocks until the transfer is done.
+     *
+     * @param user The user who accepted the file.
+     * @param fileSend The file sender.
+     * @param fileName The name of the file.
+     * @param port The port to use for connecting to the other user.
+     */
+    private void sendFile(final User user, final FileSender fileSend, final String fileName, final int port) {
+        msgController.showSystemMessage(user.getNick() + " accepted sending of " + fileName);
+
+        // Give the server some time to set up the connection first, unless it's the shared server that is always up
+        if (fileSend.getTransferToken() == null) {
+            Tools.sleep(200);
+        }
+
+        if (fileSend.transfer(port)) {
+            msgController.showSystemMessage(fileName + " successfully sent to " + user.getNick());
+        }
+
+        else {
+            msgController.showSystemMessage("Failed to send " + fileName + " to " + user.getNick());
+        }
+
+        tList.removeFileSender(fileSend);
     }
 
     /**
@@ -654,7 +961,8 @@ public class DefaultMessageResponder implements MessageResponder {
      * @param privateChatPort The port to use for sending private chat messages to this user.
      */
     @Override
-    public void clientInfo(final int userCode, final String client, final long timeSinceLogon, final String operatingSystem, final int privateChatPort) {
+    public void clientInfo(final int userCode, final String client, final long timeSinceLogon, final String operatingSystem, final int privateChatPort,
+            final Set<ProtocolFeature> features) {
         final User user = controller.getUser(userCode);
 
         if (user != null) {
@@ -662,10 +970,40 @@ public class DefaultMessageResponder implements MessageResponder {
             user.setLogonTime(System.currentTimeMillis() - timeSinceLogon);
             user.setOperatingSystem(operatingSystem);
             user.setPrivateChatPort(privateChatPort);
+            user.setFeatures(features);
+        }
+
+        else {
+            LOG.log(Level.SEVERE, "Could not find user: " + userCode);
+        }
+    }
+
+    /**
+     * Updates the private chat port and features of the user.
+     *
+     * @param userCode The unique code of the user who sent the features.
+     * @param privateChatPort The port to use for sending private chat messages to this user.
+     * @param features The optional protocol features the client supports.
+     */
+    @Override
+    public void clientFeatures(final int userCode, final int privateChatPort, final Set<ProtocolFeature> features) {
+        final User user = controller.getUser(userCode);
+
+        if (user != null) {
+            user.setPrivateChatPort(privateChatPort);
+            user.setFeatures(features);
         }
 
         else {
             LOG.log(Level.SEVERE, "Could not find user: " + userCode);
         }
     }
+
+    /**
+     * Sends information about this client to the other clients.
+     */
+    @Override
+    public void clientRequested() {
+        controller.sendClientInfo();
+    }
 }
@@ -0,0 +1,362 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * The manifest of a batch file transfer, with the files and directories sent
+ * over a single connection.
+ *
+ * <p>The paths of the entries are relative to the batch, with <code>/</code> between the directories.
+ * Directories are included, so empty directories are created too. The manifest is sent first on the
+ * connection, as the number of entries followed by the path and size of each entry. Then the bytes of each
+ * file follow in the same order, without any more framing, since the sizes are known.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class FileBatch {
+
+    /** The max number of entries accepted in a batch from another user. */
+    private static final int MAX_ENTRIES = 1000000;
+
+    /** The size of directory entries. */
+    private static final long DIRECTORY_SIZE = -1;
+
+    /** The name of the batch. */
+    private final String name;
+
+    /** The directory the batch is sent from, or <code>null</code> for a received batch. */
+    private final File root;
+
+    /** The files and directories in the batch. */
+    private final List<Entry> entries;
+
+    /** The sum of the file sizes. */
+    private long totalSize;
+
+    /** The number of files, without the directories. */
+    private int fileCount;
+
+    /**
+     * Constructor.
+     *
+     * @param name The name of the batch.
+     * @param root The directory the batch is sent from, or <code>null</code> for a received batch.
+     */
+    private FileBatch(final String name, final File root) {
+        this.name = name;
+        this.root = root;
+
+        entries = new ArrayList<Entry>();
+    }
+
+    /**
+     * Creates a batch of files and directories to send. The directories are sent with everything in them.
+     * A single directory is sent as a batch with the name of the directory. Otherwise the batch gets the name of
+     * the directory the first file is in.
+     *
+     * @param files The files and directories to send.
+     * @return The batch.
+     * @throws IOException If a directory could not be read, or two files have the same name.
+     */
+    public static FileBatch create(final List<File> files) throws IOException {
+        Validate.notNull(files, "Files can not be null");
+
+        if (files.isEmpty()) {
+            throw new IOException("No files to send");
+        }
+
+        final File first = files.get(0).getAbsoluteFile();
+
+        if (files.size() == 1 && first.isDirectory()) {
+            final FileBatch batch = new FileBatch(first.getName(), first);
+            batch.addDirectoryContents(first, "");
+
+            return batch;
+        }
+
+        final File parent = first.getParentFile();
+        final FileBatch batch = new FileBatch(parent != null ? parent.getName() : first.getName(), parent);
+        final Set<String> names = new HashSet<String>();
+
+        for (final File file : files) {
+            if (!names.add(file.getName())) {
+                throw new IOException("More than one file named " + file.getName());
+            }
+
+            batch.add(file.getAbsoluteFile(), file.getName());
+        }
+
+        return batch;
+    }
+
+    /**
+     * Reads the manifest of a batch sent by another user.
+     *
+     * @param input Where to read the manifest from.
+     * @param name The name of the batch, as announced by the sender.
+     * @return The batch.
+     * @throws IOException If the manifest could not be read, or is invalid.
+     */
+    public static FileBatch read(final DataInput input, final String name) throws IOException {
+        final int count = input.readInt();
+
+        if (count < 0 || count > MAX_ENTRIES) {
+            throw new IOException("Invalid number of entries in batch: " + count);
+        }
+
+        final FileBatch batch = new FileBatch(name, null);
+
+        for (int i = 0; i < count; i++) {
+            final String path = input.readUTF();
+            final long size = input.readLong();
+
+            if (size < DIRECTORY_SIZE) {
+                throw new IOException("Invalid size of " + path + " in batch: " + size);
+            }
+
+            batch.addEntry(new Entry(path, size, null));
+        }
+
+        return batch;
+    }
+
+    /**
+     * Writes the manifest, for the receiver to read with {@link #read(DataInput, String)}.
+     *
+     * @param output Where to write the manifest.
+     * @throws IOException If the manifest could not be written.
+     */
+    public void write(final DataOutput output) throws IOException {
+        output.writeInt(entries.size());
+
+        for (final Entry entry : entries) {
+            output.writeUTF(entry.getPath());
+            output.writeLong(entry.getSize());
+        }
+    }
+
+    /**
+     * Finds where to save an entry, inside the directory the batch is saved to.
+     *
+     * @param directory The directory the batch is saved to.
+     * @param path The path of the entry, relative to the batch.
+     * @return Where to save the entry.
+     * @throws IOException If the path is not relative, or points outside the directory.
+     */
+    public static File resolve(final File directory, final String path) throws IOException {
+        File file = directory;
+
+        for (final String part : path.split("/")) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+                throw new IOException("Invalid path in batch: " + path);
+            }
+
+            file = new File(file, part);
+        }
+
+        // Catches anything the operating system resolves differently, like backslashes on Windows
+        final String directoryPath = directory.getCanonicalPath() + File.separator;
+
+        if (!file.getCanonicalPath().startsWith(directoryPath)) {
+            throw new IOException("Path outside the batch: " + path);
+        }
+
+        return file;
+    }
+
+    /**
+     * Gets the name of the batch.
+     *
+     * @return The name of the batch.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the directory the batch is sent from.
+     *
+     * @return The directory, or <code>null</code> for a received batch.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the files and directories in the batch, in the order they are sent.
+     *
+     * @return The entries.
+     */
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Gets the sum of the file sizes.
+     *
+     * @return The total size in bytes.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Gets the number of files, without the directories.
+     *
+     * @return The number of files.
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    /**
+     * Adds a file or a directory with everything in it.
+     *
+     * @param file The file or directory to add.
+     * @param path The path of the file in the batch.
+     * @throws IOException If a directory could not be read.
+     */
+    private void add(final File file, final String path) throws IOException {
+        if (file.isDirectory()) {
+            addEntry(new Entry(path, DIRECTORY_SIZE, file));
+            addDirectoryContents(file, path + "/");
+        }
+
+        else {
+            addEntry(new Entry(path, file.length(), file));
+        }
+    }
+
+    /**
+     * Adds everything in a directory, sorted by name.
+     *
+     * @param directory The directory.
+     * @param prefix The path of the directory in the batch, with a <code>/</code> at the end,
+     *               or an empty string for the root.
+     * @throws IOException If the directory could not be read.
+     */
+    private void addDirectoryContents(final File directory, final String prefix) throws IOException {
+        final File[] files = directory.listFiles();
+
+        if (files == null) {
+            throw new IOException("Could not read directory " + directory);
+        }
+
+        Arrays.sort(files);
+
+        for (final File file : files) {
+            add(file, prefix + file.getName());
+        }
+    }
+
+    /**
+     * Adds an entry, and updates the totals.
+     *
+     * @param entry The entry to add.
+     */
+    private void addEntry(final Entry entry) {
+        entries.add(entry);
+
+        if (!entry.isDirectory()) {
+            totalSize += entry.getSize();
+            fileCount++;
+        }
+    }
+
+    /**
+     * A file or directory in a batch.
+     */
+    public static class Entry {
+
+        /** The path in the batch. */
+        private final String path;
+
+        /** The size of the file, or <code>-1</code> for a directory. */
+        private final long size;
+
+        /** The file to send, or <code>null</code> in a received batch. */
+        private final File file;
+
+        /**
+         * Constructor.
+         *
+         * @param path The path in the batch.
+         * @param size The size of the file, or <code>-1</code> for a directory.
+         * @param file The file to send, or <code>null</code> in a received batch.
+         */
+        public Entry(final String path, final long size, final File file) {
+            this.path = path;
+            this.size = size;
+            this.file = file;
+        }
+
+        /**
+         * Gets the path in the batch, with <code>/</code> between the directories.
+         *
+         * @return The path.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return The size of the file, or <code>-1</code> for a directory.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets the file to send.
+         *
+         * @return The file, or <code>null</code> in a received batch.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Checks if this is a directory.
+         *
+         * @return If this is a directory.
+         */
+        public boolean isDirectory() {
+            return size == DIRECTORY_SIZE;
+        }
+    }
+}
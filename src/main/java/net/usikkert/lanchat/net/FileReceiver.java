@@ -22,12 +22,26 @@
 
 package net.usikkert.lanchat.net;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,12 +49,40 @@ import net.usikkert.lanchat.Constants;
 import net.usikkert.lanchat.event.FileTransferListener;
 import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.util.ByteCounter;
+import net.usikkert.lanchat.util.Validate;
 
 /**
  * This is a class for receiving files from other users.
  *
  * <p>To receive a file, a server socket has to be opened,
- * to wait for incoming transfers.</p>
+ * to wait for incoming transfers. If a {@link NetworkReactor} is available,
+ * a non-blocking server channel is used instead, and the connection is accepted
+ * by the reactor thread.</p>
+ *
+ * <p>If the sender supports the shared file transfer port, no server socket is opened. The file receiver
+ * registers with the {@link FileTransferServer} instead, and gets the connections that start with
+ * the {@link TransferToken} of this file transfer.</p>
+ *
+ * <p>The file is preallocated to the announced size, and received through a pipeline
+ * of two threads: this thread reads from the socket channel into large pooled buffers,
+ * while a {@link FileWriteBehind} thread writes the filled buffers to the file channel.
+ * Streams and a small buffer are used instead if stream file transfer is enabled.</p>
+ *
+ * <p>When resuming a partially received file, the sender starts with 8 bytes telling
+ * which offset the file starts from. That is either the offset asked for, or 0 if the sender
+ * found that the partial file did not match.</p>
+ *
+ * <p>If the sender supports segmented transfers, the file is received in segments using
+ * a {@link SegmentedReceiver}, and the server accepts more connections from the sender
+ * until the transfer is done.</p>
+ *
+ * <p>If the sender supports checksums, the checksum of the received bytes is calculated while receiving,
+ * and compared with the checksum the sender sends after the file, or after each segment. The transfer
+ * fails if they are different, and the bytes received in this transfer are discarded.
+ * See {@link TransferChecksum}.</p>
+ *
+ * <p>If both users have enabled compression, everything after the start offset is received through
+ * a {@link CompressedInputStream}, over a single connection.</p>
  *
  * @author Shouvik Goswami
  */
@@ -49,6 +91,36 @@ public class FileReceiver implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileReceiver.class.getName());
 
+    /** Number of milliseconds to wait for the sender to connect. */
+    private static final int ACCEPT_TIMEOUT = 15000;
+
+    /** Number of milliseconds between each check for cancel while waiting for the sender to connect. */
+    private static final int ACCEPT_POLL_TIME = 250;
+
+    /** The size of each buffer used when receiving with channels. */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /** Number of buffers used by each file transfer, to read and write at the same time. */
+    private static final int BUFFERS_PER_TRANSFER = 4;
+
+    /** Milliseconds between each count of the bytes received by all the connections of a segmented transfer. */
+    private static final long SEGMENT_COUNT_TIME = 250;
+
+    /** The size of the buffer used when receiving a batch of files. */
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    /** Max number of connections waiting to be received from, in a segmented transfer. */
+    private static final int MAX_WAITING_CONNECTIONS = 16;
+
+    /** Milliseconds to wait for new connections between each check of a segmented transfer. */
+    private static final long SEGMENT_POLL_TIME = 50;
+
+    /** The buffers shared by all the file receivers. */
+    private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE, BUFFERS_PER_TRANSFER * 4);
+
+    /** The inflaters shared by all the file receivers. */
+    private static final CompressorPool COMPRESSOR_POOL = new CompressorPool(4);
+
     /** The user sending the file. */
     private final User user;
 
@@ -64,11 +136,44 @@ public class FileReceiver implements FileTransfer {
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
-    /** Percent of the file received. */
-    private int percent;
+    /** If the file should be copied through streams instead of channels. */
+    private final boolean streamTransfer;
+
+    /** The partially received file from an earlier transfer, or <code>null</code> if there is none. */
+    private File partialFile;
+
+    /** The offset to ask the sender to resume from, or 0 to receive the whole file. */
+    private long resumeOffset;
+
+    /** If the file is received in segments, over one or more connections. */
+    private boolean segmented;
+
+    /** If the checksum of the received bytes is compared with the checksum from the sender. */
+    private boolean verifyChecksum;
+
+    /** If the file is received through a {@link CompressedInputStream}. */
+    private boolean compress;
+
+    /** Limits the bytes per second of this file transfer. */
+    private BandwidthLimiter limiter;
+
+    /** The position in the queue of the transfer scheduler, or 0 if not queued. */
+    private volatile int queuePosition;
+
+    /** If a batch of files is received into the directory, instead of a single file. */
+    private boolean batch;
+
+    /** The file in the batch currently being received, or <code>null</code> if none. */
+    private volatile FileBatch.Entry currentEntry;
+
+    /** Number of bytes received of the file in the batch currently being received. */
+    private volatile long currentEntryTransferred;
 
     /** Number of bytes received. */
-    private long transferred;
+    private volatile long transferred;
+
+    /** If the file is being received, so the progress should be published. */
+    private volatile boolean transferring;
 
     /** If the file was successfully received. */
     private boolean received;
@@ -79,141 +184,876 @@ public class FileReceiver implements FileTransfer {
     /** If the client has accepted to receive the file. */
     private boolean accepted;
 
-    /** If the client has rejected the file. */
-    private boolean rejected;
+    /** If the client has rejected the file. */
+    private boolean rejected;
+
+    /** The file transfer listener. */
+    private FileTransferListener listener;
+
+    /** The server socket waiting for an incoming connection. */
+    private ServerSocket sSock;
+
+    /** The socket connection to the other user. */
+    private Socket sock;
+
+    /** The output stream to the file. */
+    private FileOutputStream fos;
+
+    /** The input stream from the other user. */
+    private InputStream is;
+
+    /** The file to write to, when using channels. */
+    private RandomAccessFile raf;
+
+    /** The reactor accepting the connection, or <code>null</code> to use a blocking server socket. */
+    private final NetworkReactor reactor;
+
+    /** The server channel waiting for an incoming connection, when using the reactor. */
+    private ServerSocketChannel serverChannel;
+
+    /** The connection accepted by the reactor. */
+    private final BlockingQueue<SocketChannel> acceptedConnection;
+
+    /** The shared server to register with, or <code>null</code> to always open a server of its own. */
+    private FileTransferServer transferServer;
+
+    /** The token the sender writes on the connections, or <code>null</code> to open a server of its own. */
+    private TransferToken transferToken;
+
+    /** The registration with the shared server, while waiting for connections. */
+    private FileTransferServer.Registration registration;
+
+    /** The timeout closing the blocking server socket if the sender does not connect. */
+    private ScheduledFuture<?> acceptTimeout;
+
+    /**
+     * Constructor. Creates a new file receiver.
+     *
+     * @param user The user which sends the file.
+     * @param file The file the user is sending.
+     * @param size The size of the file, in bytes.
+     * @param id The unique ID of this file transfer.
+     */
+    public FileReceiver(final User user, final File file, final long size, final int id) {
+        this(user, file, size, id, null, false);
+    }
+
+    /**
+     * Constructor. Creates a new file receiver that accepts the connection
+     * using the network reactor.
+     *
+     * @param user The user which sends the file.
+     * @param file The file the user is sending.
+     * @param size The size of the file, in bytes.
+     * @param id The unique ID of this file transfer.
+     * @param reactor The reactor to accept the connection with, or <code>null</code>
+     *                to use a blocking server socket.
+     */
+    public FileReceiver(final User user, final File file, final long size, final int id,
+                        final NetworkReactor reactor) {
+        this(user, file, size, id, reactor, false);
+    }
+
+    /**
+     * Constructor. Creates a new file receiver.
+     *
+     * @param user The user which sends the file.
+     * @param file The file the user is sending.
+     * @param size The size of the file, in bytes.
+     * @param id The unique ID of this file transfer.
+     * @param reactor The reactor to accept the connection with, or <code>null</code>
+     *                to use a blocking server socket.
+     * @param streamTransfer If the file should be copied through streams instead of channels.
+     */
+    public FileReceiver(final User user, final File file, final long size, final int id,
+                        final NetworkReactor reactor, final boolean streamTransfer) {
+        this.user = user;
+        this.file = file;
+        this.size = size;
+        this.id = id;
+        this.reactor = reactor;
+        this.streamTransfer = streamTransfer;
+
+        bCounter = new ByteCounter();
+        limiter = new BandwidthLimiter();
+        acceptedConnection = new ArrayBlockingQueue<SocketChannel>(MAX_WAITING_CONNECTIONS);
+    }
+
+    /**
+     * Starts a server connection which the sender can use to connect
+     * for transferring the file, and returns the opened port.
+     *
+     * <p>If a token is set, the file receiver registers with the shared server instead,
+     * and the port of the shared server is returned.</p>
+     *
+     * @return The port which the sender can connect to.
+     * @throws ServerException If the server could not be started.
+     */
+    public int startServer() throws ServerException {
+        if (transferServer != null && transferToken != null) {
+            return registerWithTransferServer();
+        }
+
+        int port = Constants.NETWORK_FILE_TRANSFER_PORT;
+        boolean done = false;
+        int counter = 0;
+
+        while (!done && counter < 50) {
+            try {
+                if (reactor != null) {
+                    startServerChannel(port);
+                }
+
+                else {
+                    sSock = openServerSocket(port);
+                    startAcceptTimeout();
+                }
+
+                done = true;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not open " + port, e);
+                port++;
+            }
+
+            finally {
+                counter++;
+            }
+        }
+
+        if (!done) {
+            throw new ServerException("Could not start server");
+        }
+
+        return port;
+    }
+
+    /**
+     * Registers with the shared server, to get the connections starting with the token of this file transfer.
+     *
+     * @return The port of the shared server.
+     * @throws ServerException If the shared server could not be started.
+     */
+    private int registerWithTransferServer() throws ServerException {
+        registration = transferServer.register(transferToken, segmented, ACCEPT_TIMEOUT,
+                new NetworkReactor.AcceptListener() {
+                    @Override
+                    public void connectionAccepted(final SocketChannel connection) {
+                        if (!acceptedConnection.offer(connection)) {
+                            closeConnection(connection);
+                        }
+                    }
+                });
+
+        return transferServer.getPort();
+    }
+
+    /**
+     * Closes the blocking server socket if the sender has not connected within 15 seconds.
+     *
+     * <p>This does not mean that the user only has 15 seconds to decide
+     * where to save the file. This timer is started after the user has
+     * decided, and waits for an automated response from the sender.
+     * If nothing has happened to the sender, the response should be very quick.</p>
+     *
+     * <p>The timeout runs on the timer shared by all the file transfers.</p>
+     */
+    private void startAcceptTimeout() {
+        final ServerSocket server = sSock;
+
+        acceptTimeout = FileTransferServer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (sock == null) {
+                    try {
+                        server.close();
+                    }
+
+                    catch (final IOException e) {
+                        LOG.log(Level.SEVERE, e.toString(), e);
+                    }
+                }
+            }
+        }, ACCEPT_TIMEOUT);
+    }
+
+    /**
+     * Opens a blocking server socket on the port. The server socket is created from a
+     * server channel unless using streams, so the accepted connection has a channel.
+     *
+     * @param port The port to listen on.
+     * @return The opened server socket.
+     * @throws IOException If the port is not available.
+     */
+    private ServerSocket openServerSocket(final int port) throws IOException {
+        if (streamTransfer) {
+            return new ServerSocket(port);
+        }
+
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.bind(new InetSocketAddress(port));
+        }
+
+        catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel.socket();
+    }
+
+    /**
+     * Opens a non-blocking server channel on the port, and lets the reactor
+     * accept the connection from the sender.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port is not available.
+     */
+    private void startServerChannel(final int port) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.bind(new InetSocketAddress(port));
+            reactor.registerServerChannel(channel, new NetworkReactor.AcceptListener() {
+                @Override
+                public void connectionAccepted(final SocketChannel connection) {
+                    // Only one connection per file transfer, unless segmented
+                    if (!segmented) {
+                        reactor.close(channel);
+                    }
+
+                    if (!acceptedConnection.offer(connection)) {
+                        reactor.close(connection);
+                    }
+                }
+            });
+
+            serverChannel = channel;
+        }
+
+        catch (final IOException e) {
+            reactor.close(channel);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the sender to connect.
+     *
+     * @return The connection to the sender, or <code>null</code> if no server is started.
+     * @throws IOException If no connection was made in time, or the transfer was canceled.
+     */
+    private Socket acceptConnection() throws IOException {
+        if (registration == null && serverChannel == null) {
+            if (sSock == null) {
+                return null;
+            }
+
+            final Socket connection = sSock.accept();
+
+            if (acceptTimeout != null) {
+                acceptTimeout.cancel(false);
+            }
+
+            return connection;
+        }
+
+        final SocketChannel connection = waitForAcceptedConnection();
+        connection.configureBlocking(true);
+
+        return connection.socket();
+    }
+
+    /**
+     * Waits for the reactor to accept a connection, while checking for cancel.
+     *
+     * @return The accepted connection.
+     * @throws IOException If no connection was made in time, or the transfer was canceled.
+     */
+    private SocketChannel waitForAcceptedConnection() throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACCEPT_TIMEOUT);
+
+        try {
+            while (!cancel) {
+                // Checked before polling, so a connection given right before the registration closed is not missed
+                final boolean waiting = isWaitingForConnection(deadline);
+                final SocketChannel connection = acceptedConnection.poll(ACCEPT_POLL_TIME, TimeUnit.MILLISECONDS);
+
+                if (connection != null) {
+                    return connection;
+                }
+
+                if (!waiting) {
+                    break;
+                }
+            }
+        }
+
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+
+        finally {
+            if (!segmented) {
+                closeServer();
+            }
+        }
+
+        if (cancel) {
+            throw new IOException("File transfer canceled while waiting for connection");
+        }
+
+        throw new IOException("No connection from sender within " + (ACCEPT_TIMEOUT / 1000) + " seconds");
+    }
+
+    /**
+     * Checks if the sender can still connect. The shared server times out the registration,
+     * while the server channel times out at the deadline.
+     *
+     * @param deadline When to stop waiting for the server channel, in nanoseconds.
+     * @return If still waiting for a connection.
+     */
+    private boolean isWaitingForConnection(final long deadline) {
+        if (registration != null) {
+            return registration.isOpen();
+        }
+
+        return System.nanoTime() < deadline;
+    }
+
+    /**
+     * Stops waiting for connections, on the server channel or the shared server.
+     */
+    private void closeServer() {
+        if (registration != null) {
+            registration.close();
+        }
+
+        if (serverChannel != null) {
+            reactor.close(serverChannel);
+        }
+    }
+
+    /**
+     * Waits for an incoming connection, then receives the
+     * file from the other user.
+     *
+     * @return If the file transfer was successful.
+     */
+    public boolean transfer() {
+        listener.statusConnecting();
+
+        received = false;
+        cancel = false;
+
+        try {
+            sock = acceptConnection();
+
+            if (sock != null) {
+                listener.statusTransferring();
+                transferred = resumeOffset > 0 && !segmented && !batch ? readStartOffset() : 0;
+                bCounter.prepare();
+                transferring = true;
+
+                if (batch) {
+                    transferBatch();
+                }
+
+                else if (segmented) {
+                    transferSegmented();
+                }
+
+                else if (!streamTransfer && !compress && sock.getChannel() != null) {
+                    transferWithChannels();
+                }
+
+                else {
+                    transferWithStreams();
+                }
+
+                // The publisher only samples the progress, so the final progress is shown here
+                transferring = false;
+                listener.transferUpdate();
+
+                if (!cancel && transferred == size) {
+                    received = true;
+                    listener.statusCompleted();
+                }
+
+                else {
+                    listener.statusFailed();
+                }
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString());
+            listener.statusFailed();
+        }
+
+        finally {
+            transferring = false;
+            stopReceiver();
+            cleanupConnections();
+        }
+
+        return received;
+    }
+
+    /**
+     * Reads the offset the sender starts the file from, when resuming.
+     *
+     * @return The start offset.
+     * @throws IOException If the offset could not be read, or is not the one asked for or 0.
+     */
+    private long readStartOffset() throws IOException {
+        final long start = new DataInputStream(sock.getInputStream()).readLong();
+
+        if (start != 0 && start != resumeOffset) {
+            throw new IOException("Sender wants to start at " + start + " instead of " + resumeOffset);
+        }
+
+        if (start == 0) {
+            LOG.log(Level.INFO, "Sender did not accept resuming " + file.getName() + ", receiving the whole file");
+        }
+
+        return start;
+    }
+
+    /**
+     * Reads the checksum the sender sends after the file, and compares it with the checksum
+     * of the received bytes.
+     *
+     * @param checksum The checksum of the received bytes.
+     * @return If the checksums are the same.
+     * @throws IOException If the checksum could not be read.
+     */
+    private boolean readChecksum(final TransferChecksum checksum) throws IOException {
+        final long expected = new DataInputStream(is != null ? is : sock.getInputStream()).readLong();
+
+        if (checksum.matches(expected)) {
+            return true;
+        }
+
+        LOG.log(Level.WARNING, "Checksum mismatch for " + file.getName() + ", discarding the received bytes");
+        return false;
+    }
+
+    /**
+     * Updates the checksum with the bytes in the buffer, if the checksum is compared.
+     *
+     * @param checksum The checksum to update.
+     * @param buffer The buffer with the received bytes, before it's flipped.
+     */
+    private void updateChecksum(final TransferChecksum checksum, final ByteBuffer buffer) {
+        if (verifyChecksum) {
+            checksum.update(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of bytes to read next. With checksums, the reads must stop
+     * at the end of the file, since the checksum follows.
+     *
+     * @param max The max number of bytes to read.
+     * @return The number of bytes to read.
+     */
+    private int bytesToRead(final int max) {
+        if (verifyChecksum) {
+            return (int) Math.min(max, size - transferred);
+        }
+
+        return max;
+    }
+
+    /**
+     * Receives the file through the socket stream, using a small buffer.
+     * The stream decompresses the file, if compression is used.
+     * The file is appended to after the start offset, when resuming.
+     *
+     * @throws IOException If the transfer failed.
+     */
+    private void transferWithStreams() throws IOException {
+        final long start = transferred;
+        final TransferChecksum checksum = new TransferChecksum();
+
+        if (transferred > 0) {
+            fos = new FileOutputStream(file, true);
+            fos.getChannel().truncate(transferred);
+        } else {
+            fos = new FileOutputStream(file);
+        }
+
+        is = compress ? new CompressedInputStream(sock.getInputStream(), COMPRESSOR_POOL) : sock.getInputStream();
+
+        final byte[] b = new byte[1024];
+        int tmpTransferred = 0;
+
+        while (!cancel && (!verifyChecksum || transferred < size)
+                && (tmpTransferred = is.read(b, 0, bytesToRead(b.length))) != -1) {
+            fos.write(b, 0, tmpTransferred);
+            limiter.acquire(tmpTransferred);
+
+            if (verifyChecksum) {
+                checksum.update(b, 0, tmpTransferred);
+            }
+
+            transferred += tmpTransferred;
+            bCounter.addBytes(tmpTransferred);
+        }
+
+        if (verifyChecksum && !cancel && transferred == size && !readChecksum(checksum)) {
+            fos.getChannel().truncate(start);
+            transferred = start;
+        }
+    }
+
+    /**
+     * Receives the manifest of a batch, followed by the bytes of each file in the order of the manifest.
+     * The files are saved below the directory, after checking that every path stays inside it.
+     * A file with the wrong checksum is deleted, and fails the rest of the batch.
+     *
+     * @throws IOException If the transfer failed, or the manifest is invalid.
+     */
+    private void transferBatch() throws IOException {
+        final DataInputStream in = new DataInputStream(compress ?
+                new CompressedInputStream(sock.getInputStream(), COMPRESSOR_POOL) :
+                new BufferedInputStream(sock.getInputStream(), BATCH_BUFFER_SIZE));
+        is = in;
+
+        final FileBatch manifest = FileBatch.read(in, file.getName());
+
+        if (manifest.getTotalSize() != size) {
+            throw new IOException("The manifest has " + manifest.getTotalSize() + " bytes, but "
+                    + size + " bytes were announced");
+        }
+
+        if (!file.isDirectory() && !file.mkdirs()) {
+            throw new IOException("Could not create the directory " + file);
+        }
+
+        final byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+
+        for (final FileBatch.Entry entry : manifest.getEntries()) {
+            if (cancel) {
+                break;
+            }
+
+            final File target = FileBatch.resolve(file, entry.getPath());
+
+            if (entry.isDirectory()) {
+                if (!target.isDirectory() && !target.mkdirs()) {
+                    throw new IOException("Could not create the directory " + target);
+                }
+
+                continue;
+            }
+
+            final File parent = target.getParentFile();
+
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Could not create the directory " + parent);
+            }
+
+            currentEntry = entry;
+            currentEntryTransferred = 0;
+
+            final TransferChecksum checksum = new TransferChecksum();
+            fos = new FileOutputStream(target);
+
+            try {
+                while (!cancel && currentEntryTransferred < entry.getSize()) {
+                    final int read = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, entry.getSize() - currentEntryTransferred));
+
+                    if (read == -1) {
+                        throw new EOFException("Connection closed while receiving " + entry.getPath());
+                    }
+
+                    fos.write(buffer, 0, read);
+                    limiter.acquire(read);
+
+                    if (verifyChecksum) {
+                        checksum.update(buffer, 0, read);
+                    }
+
+                    currentEntryTransferred += read;
+                    transferred += read;
+                    bCounter.addBytes(read);
+                }
+            }
+
+            finally {
+                fos.close();
+                fos = null;
+            }
+
+            if (verifyChecksum && !cancel && !checksum.matches(in.readLong())) {
+                if (!target.delete()) {
+                    LOG.log(Level.WARNING, "Could not delete " + target);
+                }
+
+                throw new IOException("Checksum mismatch for " + entry.getPath() + " in " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Receives the file from the socket channel into large buffers, which are written
+     * to the preallocated file by a separate thread while the next buffer is filled.
+     *
+     * <p>The file is written from the start offset, when resuming. It's truncated to the number of bytes
+     * received if the transfer did not complete.</p>
+     *
+     * @throws IOException If the transfer failed.
+     */
+    private void transferWithChannels() throws IOException {
+        openPreallocatedFile();
+
+        final FileChannel fileChannel = raf.getChannel();
+        final SocketChannel socketChannel = sock.getChannel();
+        final long start = transferred;
+        final FileWriteBehind writer = new FileWriteBehind(fileChannel, start, BUFFER_POOL, BUFFERS_PER_TRANSFER,
+                "FileWriteBehind" + id);
+        final TransferChecksum checksum = new TransferChecksum();
+
+        boolean finished = false;
+        writer.start();
+
+        try {
+            ByteBuffer buffer = writer.takeBuffer();
+            int read = 0;
+
+            while (!cancel && (!verifyChecksum || transferred < size)) {
+                buffer.limit(buffer.position() + (int) limiter.limitSlice(bytesToRead(buffer.remaining())));
+                read = socketChannel.read(buffer);
+
+                if (read == -1) {
+                    break;
+                }
+
+                transferred += read;
+                bCounter.addBytes(read);
+                limiter.acquire(read);
+
+                if (!buffer.hasRemaining()) {
+                    updateChecksum(checksum, buffer);
+                    writer.write(buffer);
+                    buffer = writer.takeBuffer();
+                }
+            }
+
+            updateChecksum(checksum, buffer);
+            writer.write(buffer);
+            writer.finish();
+            finished = true;
+
+            if (verifyChecksum && !cancel && transferred == size && !readChecksum(checksum)) {
+                transferred = start;
+            }
+        }
+
+        finally {
+            writer.close();
+
+            if (!finished || transferred != size) {
+                truncateFile(finished ? transferred : start + writer.getWritten());
+            }
+
+            closeFile();
+        }
+    }
+
+    /**
+     * Receives the file in segments from one or more connections, into the preallocated file.
+     * More connections from the sender are accepted until the transfer is done. The bytes received
+     * are counted from this thread only, with the total for all the connections.
+     *
+     * <p>The file is truncated to the part without holes if the transfer did not complete.</p>
+     *
+     * @throws IOException If the transfer failed.
+     */
+    private void transferSegmented() throws IOException {
+        openPreallocatedFile();
+
+        final SegmentedReceiver segments = new SegmentedReceiver(raf.getChannel(), size, resumeOffset, BUFFER_POOL,
+                verifyChecksum, "SegmentReceiver" + id);
+        segments.setBandwidthLimiter(limiter);
+        final long countTime = TimeUnit.MILLISECONDS.toNanos(SEGMENT_COUNT_TIME);
+
+        long lastCount = System.nanoTime();
+        long counted = 0;
+        segments.addStream(sock);
+
+        if (reactor == null) {
+            startAcceptThread();
+        }
+
+        try {
+            while (!cancel && !segments.isFinished()) {
+                final SocketChannel connection = acceptedConnection.poll(SEGMENT_POLL_TIME, TimeUnit.MILLISECONDS);
+
+                if (connection != null) {
+                    connection.configureBlocking(true);
+                    segments.addStream(connection.socket());
+                }
+
+                final long now = System.nanoTime();
+
+                if (now - lastCount >= countTime) {
+                    lastCount = now;
+                    counted = countSegmentedBytes(segments, counted);
+                }
+            }
+
+            countSegmentedBytes(segments, counted);
+
+            if (!segments.isComplete()) {
+                segments.checkError();
+            }
+        }
 
-    /** The file transfer listener. */
-    private FileTransferListener listener;
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
 
-    /** The server socket waiting for an incoming connection. */
-    private ServerSocket sSock;
+        finally {
+            segments.close();
+            closeWaitingConnections();
+            transferred = segments.getStart() + segments.getReceived();
 
-    /** The socket connection to the other user. */
-    private Socket sock;
+            if (!segments.isComplete()) {
+                truncateFile(segments.getContiguousEnd());
+            }
 
-    /** The output stream to the file. */
-    private FileOutputStream fos;
+            closeFile();
+            LOG.log(Level.FINE, "Received " + file.getName() + " using " + segments.getStreams() + " connections");
+        }
+    }
 
-    /** The input stream from the other user. */
-    private InputStream is;
+    /**
+     * Closes connections that were accepted, but not used before the segmented transfer was done.
+     */
+    private void closeWaitingConnections() {
+        SocketChannel connection;
+
+        while ((connection = acceptedConnection.poll()) != null) {
+            closeConnection(connection);
+        }
+    }
 
     /**
-     * Constructor. Creates a new file receiver.
+     * Closes a connection that will not be received from.
      *
-     * @param user The user which sends the file.
-     * @param file The file the user is sending.
-     * @param size The size of the file, in bytes.
-     * @param id The unique ID of this file transfer.
+     * @param connection The connection to close.
      */
-    public FileReceiver(final User user, final File file, final long size, final int id) {
-        this.user = user;
-        this.file = file;
-        this.size = size;
-        this.id = id;
+    private void closeConnection(final SocketChannel connection) {
+        try {
+            connection.close();
+        }
 
-        bCounter = new ByteCounter();
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
     }
 
     /**
-     * Starts a server connection which the sender can use to connect
-     * for transferring the file, and returns the opened port.
+     * Counts the bytes received by all the connections of a segmented transfer.
      *
-     * @return The port which the sender can connect to.
-     * @throws ServerException If the server could not be started.
+     * @param segments The segmented transfer.
+     * @param counted The number of bytes already added to the byte counter.
+     * @return The number of bytes added to the byte counter now.
      */
-    public int startServer() throws ServerException {
-        int port = Constants.NETWORK_FILE_TRANSFER_PORT;
-        boolean done = false;
-        int counter = 0;
+    private long countSegmentedBytes(final SegmentedReceiver segments, final long counted) {
+        final long received = segments.getReceived();
+        bCounter.addBytes(received - counted);
+        transferred = segments.getStart() + received;
 
-        while (!done && counter < 50) {
-            try {
-                sSock = new ServerSocket(port);
-                final TimeoutThread tt = new TimeoutThread();
-                tt.start();
-                done = true;
-            }
+        return received;
+    }
 
-            catch (final IOException e) {
-                LOG.log(Level.WARNING, "Could not open " + port, e);
-                port++;
-            }
+    /**
+     * Starts a thread accepting more connections on the blocking server socket, for a segmented transfer.
+     * The thread stops when the server socket is closed.
+     */
+    private void startAcceptThread() {
+        final ServerSocket server = sSock;
 
-            finally {
-                counter++;
-            }
+        if (server == null) {
+            return;
         }
 
-        if (!done) {
-            throw new ServerException("Could not start server");
-        }
+        final Thread acceptThread = new Thread("FileAcceptThread" + id) {
+            @Override
+            public void run() {
+                try {
+                    while (!server.isClosed()) {
+                        final Socket connection = server.accept();
 
-        return port;
+                        if (!acceptedConnection.offer(connection.getChannel())) {
+                            connection.close();
+                        }
+                    }
+                }
+
+                catch (final IOException e) {
+                    LOG.log(Level.FINE, "Stopped accepting connections: " + e);
+                }
+            }
+        };
+
+        acceptThread.setDaemon(true);
+        acceptThread.start();
     }
 
     /**
-     * Waits for an incoming connection, then receives the
-     * file from the other user.
+     * Opens the file to write to with channels, and preallocates it to the size of the file.
      *
-     * @return If the file transfer was successful.
+     * @throws IOException If the file could not be opened or preallocated.
      */
-    public boolean transfer() {
-        listener.statusConnecting();
-
-        received = false;
-        cancel = false;
+    private void openPreallocatedFile() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
 
         try {
-            if (sSock != null) {
-                sock = sSock.accept();
-                listener.statusTransferring();
-                fos = new FileOutputStream(file);
-                is = sock.getInputStream();
-
-                final byte[] b = new byte[1024];
-                transferred = 0;
-                percent = 0;
-                int tmpTransferred = 0;
-                int tmpPercent = 0;
-                int transCounter = 0;
-                bCounter.prepare();
-
-                while (!cancel && (tmpTransferred = is.read(b)) != -1) {
-                    fos.write(b, 0, tmpTransferred);
-                    transferred += tmpTransferred;
-                    percent = (int) ((transferred * 100) / size);
-                    bCounter.addBytes(tmpTransferred);
-                    transCounter++;
-
-                    if (percent > tmpPercent || transCounter >= 250) {
-                        transCounter = 0;
-                        tmpPercent = percent;
-                        listener.transferUpdate();
-                    }
-                }
+            raf.setLength(size);
+        }
 
-                if (!cancel && transferred == size) {
-                    received = true;
-                    listener.statusCompleted();
-                }
+        catch (final IOException e) {
+            closeFile();
+            throw e;
+        }
+    }
 
-                else {
-                    listener.statusFailed();
-                }
-            }
+    /**
+     * Truncates the file after an incomplete transfer, so no preallocated space is left at the end.
+     *
+     * @param length The new length of the file.
+     */
+    private void truncateFile(final long length) {
+        try {
+            raf.setLength(length);
         }
 
         catch (final IOException e) {
-            LOG.log(Level.SEVERE, e.toString());
-            listener.statusFailed();
+            LOG.log(Level.WARNING, e.toString());
         }
+    }
 
-        finally {
-            stopReceiver();
-            cleanupConnections();
+    /**
+     * Closes the file written to with channels. This is not done in {@link #stopReceiver()},
+     * since the file must stay open until it is truncated after a cancel.
+     */
+    private void closeFile() {
+        try {
+            raf.close();
         }
 
-        return received;
+        catch (final IOException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
     }
 
     /**
@@ -222,8 +1062,12 @@ public class FileReceiver implements FileTransfer {
     private void cleanupConnections() {
         is = null;
         fos = null;
+        raf = null;
         sock = null;
         sSock = null;
+        serverChannel = null;
+        registration = null;
+        acceptTimeout = null;
     }
 
     /**
@@ -279,6 +1123,8 @@ public class FileReceiver implements FileTransfer {
         catch (final IOException e) {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
+
+        closeServer();
     }
 
     /**
@@ -311,7 +1157,17 @@ public class FileReceiver implements FileTransfer {
      */
     @Override
     public int getPercent() {
-        return percent;
+        return (int) Math.min(100, (transferred * 100) / Math.max(1, size));
+    }
+
+    /**
+     * Notifies the listener of the progress, while the file is being received.
+     */
+    @Override
+    public void publishProgress() {
+        if (transferring && listener != null) {
+            listener.transferUpdate();
+        }
     }
 
     /**
@@ -334,6 +1190,212 @@ public class FileReceiver implements FileTransfer {
         return file;
     }
 
+    /**
+     * Gets the partially received file from an earlier transfer of the same file.
+     * Saving to this file resumes the transfer.
+     *
+     * @return The partial file, or <code>null</code> if there is none.
+     */
+    public File getPartialFile() {
+        return partialFile;
+    }
+
+    /**
+     * Sets the partially received file from an earlier transfer of the same file.
+     *
+     * @param partialFile The partial file, or <code>null</code> if there is none.
+     */
+    public void setPartialFile(final File partialFile) {
+        this.partialFile = partialFile;
+    }
+
+    /**
+     * Receives the file in segments, over one or more connections. Only for senders
+     * supporting {@link ProtocolFeature#SEGMENTS}. Must be set before {@link #startServer()}.
+     *
+     * @param segmented If the file is received in segments.
+     */
+    public void setSegmented(final boolean segmented) {
+        this.segmented = segmented;
+    }
+
+    /**
+     * Checks if the file is received in segments.
+     *
+     * @return If the file transfer is segmented.
+     */
+    public boolean isSegmented() {
+        return segmented;
+    }
+
+    /**
+     * Receives a batch of files into the file, which is a directory. Only for senders
+     * supporting {@link ProtocolFeature#BATCH}. Must be set before {@link #transfer()}.
+     *
+     * @param batch If a batch of files is received.
+     */
+    public void setBatch(final boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Checks if a batch of files is received, instead of a single file.
+     *
+     * @return If a batch of files is received.
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Gets the file in the batch currently being received.
+     *
+     * @return The current file, or <code>null</code> if not receiving a batch, or not started yet.
+     */
+    @Override
+    public FileBatch.Entry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    /**
+     * Gets the number of bytes received of the file in the batch currently being received.
+     *
+     * @return Bytes received of the current file.
+     */
+    @Override
+    public long getCurrentEntryTransferred() {
+        return currentEntryTransferred;
+    }
+
+    /**
+     * Sets the limiter for the bytes per second of this file transfer. The limiter should have
+     * the limiter for all the file transfers as the parent. Must be set before {@link #transfer()}.
+     *
+     * @param limiter The limiter to use.
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter limiter) {
+        Validate.notNull(limiter, "Bandwidth limiter can not be null");
+        this.limiter = limiter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BandwidthLimiter getBandwidthLimiter() {
+        return limiter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setQueuePosition(final int queuePosition) {
+        final int oldPosition = this.queuePosition;
+        this.queuePosition = queuePosition;
+
+        if (listener != null && queuePosition != oldPosition) {
+            if (queuePosition > 0) {
+                listener.statusQueued();
+            } else {
+                listener.statusWaiting();
+            }
+        }
+    }
+
+    /**
+     * Sets the shared server to register with, when the sender supports {@link ProtocolFeature#SHARED_PORT}.
+     *
+     * @param transferServer The shared server.
+     */
+    public void setTransferServer(final FileTransferServer transferServer) {
+        this.transferServer = transferServer;
+    }
+
+    /**
+     * Sets the token the sender writes on the connections, to use the shared server instead of
+     * a server of its own. Only for senders supporting {@link ProtocolFeature#SHARED_PORT}.
+     * Must be set before {@link #startServer()}.
+     *
+     * @param transferToken The token of this file transfer.
+     */
+    public void setTransferToken(final TransferToken transferToken) {
+        this.transferToken = transferToken;
+    }
+
+    /**
+     * Gets the token the sender writes on the connections.
+     *
+     * @return The token, or <code>null</code> if not using the shared server.
+     */
+    public TransferToken getTransferToken() {
+        return transferToken;
+    }
+
+    /**
+     * Receives the file compressed. Only for senders supporting {@link ProtocolFeature#DEFLATE}.
+     * Must be set before {@link #transfer()}.
+     *
+     * @param compress If the file is received compressed.
+     */
+    public void setCompress(final boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Checks if the file is received compressed.
+     *
+     * @return If the file is received compressed.
+     */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Compares the checksum of the received bytes with the checksum from the sender. Only for senders
+     * supporting {@link ProtocolFeature#CHECKSUM}. Must be set before {@link #transfer()}.
+     *
+     * @param verifyChecksum If the checksum should be compared.
+     */
+    public void setVerifyChecksum(final boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    /**
+     * Checks if the checksum of the received bytes is compared with the checksum from the sender.
+     *
+     * @return If the checksum is compared.
+     */
+    public boolean isVerifyChecksum() {
+        return verifyChecksum;
+    }
+
+    /**
+     * Gets the offset to ask the sender to resume from.
+     *
+     * @return The offset, or 0 to receive the whole file.
+     */
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Sets the offset to ask the sender to resume from. Must be set before {@link #transfer()}.
+     *
+     * @param resumeOffset The offset, or 0 to receive the whole file.
+     */
+    public void setResumeOffset(final long resumeOffset) {
+        this.resumeOffset = resumeOffset;
+    }
+
     /**
      * Changes the file to save to.
      *
@@ -422,6 +1484,10 @@ public class FileReceiver implements FileTransfer {
     public void registerListener(final FileTransferListener listener) {
         this.listener = listener;
         listener.statusWaiting();
+
+        if (queuePosition > 0) {
+            listener.statusQueued();
+        }
     }
 
     /**
@@ -455,48 +1521,4 @@ public class FileReceiver implements FileTransfer {
     public void reject() {
         rejected = true;
     }
-
-    /**
-     * A thread for closing the server connection if no client
-     * has connected within 15 seconds.
-     *
-     * <p>This does not mean that the user only has 15 seconds to decide
-     * where to save the file. This timer is started after the user has
-     * decided, and waits for an automated response from the sender.
-     * If nothing has happened to the sender, the response should be very quick.</p>
-     */
-    private class TimeoutThread extends Thread {
-        /**
-         * Constructor. Sets the name of the thread.
-         */
-        public TimeoutThread() {
-            setName("TimeoutThread");
-        }
-
-        /**
-         * The thread. Sleeps for 15 seconds, and then closes the
-         * server connection if it is not already closed.
-         */
-        @Override
-        public void run() {
-            try {
-                sleep(15000);
-            }
-
-            catch (final InterruptedException e) {
-                LOG.log(Level.SEVERE, e.toString(), e);
-            }
-
-            try {
-                if (sSock != null) {
-                    sSock.close();
-                    sSock = null;
-                }
-            }
-
-            catch (final IOException e) {
-                LOG.log(Level.SEVERE, e.toString(), e);
-            }
-        }
-    }
 }
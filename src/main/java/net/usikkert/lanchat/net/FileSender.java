@@ -22,19 +22,30 @@
 
 package net.usikkert.lanchat.net;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
+import net.usikkert.lanchat.Constants;
 import net.usikkert.lanchat.event.FileTransferListener;
 import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.util.ByteCounter;
+import net.usikkert.lanchat.util.Validate;
 
 /**
  * This is a class for sending files to other users.
@@ -42,6 +53,34 @@ import net.usikkert.lanchat.util.ByteCounter;
  * <p>To send a file, the user at the other end needs to
  * open a server socket so this client can connect.</p>
  *
+ * <p>The file is copied from the file channel to the socket channel with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+ * the operating system copy the data without going through the JVM. The file is sent in slices,
+ * and the size of the slices is adjusted so each slice takes around {@link #SLICE_TIME} milliseconds.
+ * The progress is updated between the slices. Streams and a small buffer are used instead if
+ * stream file transfer is enabled.</p>
+ *
+ * <p>If the receiver asks to resume a partially received file, the start offset is sent
+ * as 8 bytes before the file. The partial file is only resumed if the checksum of its last bytes
+ * matches this file. Otherwise the start offset is 0, and the whole file is sent.</p>
+ *
+ * <p>If the receiver supports segmented transfers, the file is sent in segments using
+ * a {@link SegmentedSender}, over as many connections as gives more throughput, up to a max.
+ * The progress is still reported as one file transfer.</p>
+ *
+ * <p>If the receiver supports checksums, the checksum of the sent bytes is calculated while sending,
+ * and sent as 8 bytes after the file, or after each segment. See {@link TransferChecksum}.
+ * The file is then read through a buffer instead of sent with transferTo, so the checksum
+ * is calculated from the bytes already read, and the file is only read once.</p>
+ *
+ * <p>A {@link FileBatch} of many files and directories is sent over a single connection,
+ * as the manifest followed by the bytes of each file, with the checksum after each file if used.
+ * The progress is reported for the whole batch, and for the file currently being sent.</p>
+ *
+ * <p>If both users have enabled compression, everything after the start offset is sent through
+ * a {@link CompressedOutputStream}, which compresses the blocks where that makes the transfer faster.
+ * Compressed transfers use a single connection.</p>
+ *
  * @author Shouvik Goswami
  */
 public class FileSender implements FileTransfer {
@@ -49,23 +88,89 @@ public class FileSender implements FileTransfer {
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(FileSender.class.getName());
 
+    /** The number of bytes in the first slice sent with channels. */
+    private static final long FIRST_SLICE_SIZE = 256 * 1024;
+
+    /** The smallest slice to send with channels. */
+    private static final long MIN_SLICE_SIZE = 64 * 1024;
+
+    /** The largest slice to send with channels. */
+    private static final long MAX_SLICE_SIZE = 64 * 1024 * 1024;
+
+    /** Milliseconds each slice should take to send. */
+    private static final long SLICE_TIME = 50;
+
+    /** The size of the buffer used when sending a batch. */
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    /** The size of the buffer used instead of transferTo, when sending a file with a checksum. */
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    /** Milliseconds between each check of the connections of a segmented transfer. */
+    private static final long SEGMENT_CHECK_TIME = 250;
+
+    /** The deflaters shared by all the file senders. */
+    private static final CompressorPool COMPRESSOR_POOL = new CompressorPool(4);
+
+    /** Milliseconds between each check for adding another connection, in a segmented transfer. */
+    private static final long ADAPT_TIME = 2000;
+
     /** The user to send a file to. */
     private final User user;
 
-    /** The file to send to the user. */
+    /** The file to send to the user, or the directory of the batch. */
     private final File file;
 
+    /** The batch of files to send, or <code>null</code> if sending a single file. */
+    private final FileBatch batch;
+
+    /** The file in the batch currently being sent. */
+    private volatile FileBatch.Entry currentEntry;
+
+    /** Number of bytes sent of the file in the batch currently being sent. */
+    private volatile long currentEntryTransferred;
+
     /** The unique ID of this file transfer. */
     private final int id;
 
     /** Keeps count of the transfer speed. */
     private final ByteCounter bCounter;
 
-    /** Percent of the file transferred. */
-    private int percent;
+    /** If the file should be copied through streams instead of channels. */
+    private final boolean streamTransfer;
+
+    /** The offset the receiver asked to resume from, or <code>-1</code> if not resuming. */
+    private long resumeOffset;
+
+    /** The checksum of the last bytes before the offset in the partial file of the receiver. */
+    private long resumeChecksum;
+
+    /** If the checksum of the sent bytes is sent to the receiver. */
+    private boolean verifyChecksum;
+
+    /** If the file is sent through a {@link CompressedOutputStream}. */
+    private boolean compress;
+
+    /** Limits the bytes per second of this file transfer. */
+    private BandwidthLimiter limiter;
+
+    /** The position in the queue of the transfer scheduler, or 0 if not queued. */
+    private volatile int queuePosition;
+
+    /** Identifies the file in the messages about this file transfer. */
+    private int fileHash;
+
+    /** Max number of connections for a segmented transfer, or 0 to send the file over a single plain connection. */
+    private int maxStreams;
+
+    /** The token to write first on every connection, or <code>null</code> if not using the shared server. */
+    private TransferToken transferToken;
 
     /** Number of bytes transferred. */
-    private long transferred;
+    private volatile long transferred;
+
+    /** If the file is being transferred, so the progress should be published. */
+    private volatile boolean transferring;
 
     /** If the file was successfully sent. */
     private boolean sent;
@@ -89,19 +194,186 @@ public class FileSender implements FileTransfer {
     private Socket sock;
 
     /**
-     * Constructor. Creates a new file sender.
+     * Constructor. Creates a new file sender, using channels.
      *
      * @param user The user to send the file to.
      * @param file The file to send.
      * @param id The unique ID of this file transfer.
      */
     public FileSender(final User user, final File file, final int id) {
+        this(user, file, id, false);
+    }
+
+    /**
+     * Constructor. Creates a new file sender.
+     *
+     * @param user The user to send the file to.
+     * @param file The file to send.
+     * @param id The unique ID of this file transfer.
+     * @param streamTransfer If the file should be copied through streams instead of channels.
+     */
+    public FileSender(final User user, final File file, final int id, final boolean streamTransfer) {
+        this(user, file, null, id, streamTransfer);
+    }
+
+    /**
+     * Constructor. Creates a new file sender for a batch of files and directories.
+     *
+     * @param user The user to send the files to.
+     * @param batch The files to send.
+     * @param id The unique ID of this file transfer.
+     * @param streamTransfer If files should be copied through streams instead of channels.
+     */
+    public FileSender(final User user, final FileBatch batch, final int id, final boolean streamTransfer) {
+        this(user, batch.getRoot(), batch, id, streamTransfer);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param user The user to send the file to.
+     * @param file The file to send, or the directory of the batch.
+     * @param batch The batch of files to send, or <code>null</code> if sending a single file.
+     * @param id The unique ID of this file transfer.
+     * @param streamTransfer If the file should be copied through streams instead of channels.
+     */
+    private FileSender(final User user, final File file, final FileBatch batch, final int id,
+                       final boolean streamTransfer) {
         this.user = user;
         this.file = file;
+        this.batch = batch;
         this.id = id;
+        this.streamTransfer = streamTransfer;
 
         bCounter = new ByteCounter();
+        limiter = new BandwidthLimiter();
         waiting = true;
+        resumeOffset = -1;
+        fileHash = createFileHash(file);
+    }
+
+    /**
+     * Creates a hash of the path, size and modification time of the file. The same file gets the same hash,
+     * so the receiver can find a partially received copy, unless the file has changed since then.
+     *
+     * @param file The file to create a hash of.
+     * @return The hash.
+     */
+    public static int createFileHash(final File file) {
+        final String identity = file.getAbsolutePath() + "/" + file.length() + "/" + file.lastModified();
+        final CRC32 crc = new CRC32();
+        crc.update(identity.getBytes(Charset.forName(Constants.MESSAGE_CHARSET)));
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Gets the hash that identifies the file in the messages about this file transfer.
+     *
+     * @return The file hash.
+     */
+    public int getFileHash() {
+        return fileHash;
+    }
+
+    /**
+     * Sets the hash that identifies the file in the messages about this file transfer.
+     * Used to make the hash unique for the user, if another file transfer already has the same hash.
+     *
+     * @param fileHash The file hash.
+     */
+    public void setFileHash(final int fileHash) {
+        this.fileHash = fileHash;
+    }
+
+    /**
+     * Sends the checksum of the sent bytes to the receiver. Only for receivers supporting
+     * {@link ProtocolFeature#CHECKSUM}. Must be set before {@link #transfer(int)}.
+     *
+     * @param verifyChecksum If the checksum should be sent.
+     */
+    public void setVerifyChecksum(final boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    /**
+     * Checks if the checksum of the sent bytes is sent to the receiver.
+     *
+     * @return If the checksum is sent.
+     */
+    public boolean isVerifyChecksum() {
+        return verifyChecksum;
+    }
+
+    /**
+     * Sends the file compressed, where that makes the transfer faster. Only for receivers supporting
+     * {@link ProtocolFeature#DEFLATE}. Must be set before {@link #transfer(int)}.
+     *
+     * @param compress If the file should be sent compressed.
+     */
+    public void setCompress(final boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Checks if the file is sent compressed.
+     *
+     * @return If the file is sent compressed.
+     */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Sets the offset and checksum of the partial file the receiver asked to resume.
+     * Must be set before {@link #transfer(int)}.
+     *
+     * @param offset The number of bytes the receiver already has.
+     * @param checksum The checksum of the last bytes before the offset in the partial file.
+     * @see PartialTransfers#calculateChecksum(File, long)
+     */
+    public void setResumeRequest(final long offset, final long checksum) {
+        resumeOffset = offset;
+        resumeChecksum = checksum;
+    }
+
+    /**
+     * Sends the file in segments over up to the specified number of connections.
+     * Only for receivers supporting {@link ProtocolFeature#SEGMENTS}. Must be set before {@link #transfer(int)}.
+     *
+     * @param maxStreams Max number of connections, at least 1.
+     */
+    public void setSegmented(final int maxStreams) {
+        this.maxStreams = Math.max(1, maxStreams);
+    }
+
+    /**
+     * Checks if the file is sent in segments.
+     *
+     * @return If the file transfer is segmented.
+     */
+    public boolean isSegmented() {
+        return maxStreams > 0;
+    }
+
+    /**
+     * Writes the token first on every connection, so the receiver's shared server knows which file transfer
+     * the connection is for. Only for receivers supporting {@link ProtocolFeature#SHARED_PORT}.
+     * Must be set before {@link #transfer(int)}.
+     *
+     * @param transferToken The token of this file transfer.
+     */
+    public void setTransferToken(final TransferToken transferToken) {
+        this.transferToken = transferToken;
+    }
+
+    /**
+     * Gets the token written first on every connection.
+     *
+     * @return The token, or <code>null</code> if the receiver opens a server for this file transfer.
+     */
+    public TransferToken getTransferToken() {
+        return transferToken;
     }
 
     /**
@@ -120,12 +392,13 @@ public class FileSender implements FileTransfer {
 
             try {
                 int counter = 0;
+                final InetAddress address = InetAddress.getByName(user.getIpAddress());
 
                 while (sock == null && counter < 10) {
                     counter++;
 
                     try {
-                        sock = new Socket(InetAddress.getByName(user.getIpAddress()), port);
+                        sock = connect(address, port);
                     }
 
                     catch (final UnknownHostException e) {
@@ -147,32 +420,46 @@ public class FileSender implements FileTransfer {
 
                 if (sock != null && !cancel) {
                     listener.statusTransferring();
-                    fis = new FileInputStream(file);
-                    os = sock.getOutputStream();
-
-                    final byte[] b = new byte[1024];
                     transferred = 0;
-                    percent = 0;
-                    int tmpTransferred = 0;
-                    int tmpPercent = 0;
-                    int transCounter = 0;
                     bCounter.prepare();
+                    transferring = true;
+
+                    if (batch != null) {
+                        transferBatch();
+                    }
+
+                    else if (maxStreams > 0) {
+                        fis = new FileInputStream(file);
+                        transferSegmented(address, port);
+                    }
 
-                    while (!cancel && (tmpTransferred = fis.read(b)) != -1) {
-                        os.write(b, 0, tmpTransferred);
-                        transferred += tmpTransferred;
-                        percent = (int) ((transferred * 100) / file.length());
-                        bCounter.addBytes(tmpTransferred);
-                        transCounter++;
-
-                        if (percent > tmpPercent || transCounter >= 250) {
-                            transCounter = 0;
-                            tmpPercent = percent;
-                            listener.transferUpdate();
+                    else {
+                        fis = new FileInputStream(file);
+
+                        if (resumeOffset >= 0) {
+                            transferred = sendStartOffset();
+                        }
+
+                        final TransferChecksum checksum = new TransferChecksum();
+
+                        if (sock.getChannel() != null && !compress && verifyChecksum) {
+                            transferWithChecksum(checksum);
+                        } else if (sock.getChannel() != null && !compress) {
+                            transferWithChannels();
+                        } else {
+                            transferWithStreams(checksum);
+                        }
+
+                        if (verifyChecksum && !cancel && transferred == file.length()) {
+                            sendChecksum(checksum);
                         }
                     }
 
-                    if (!cancel && transferred == file.length()) {
+                    // The publisher only samples the progress, so the final progress is shown here
+                    transferring = false;
+                    listener.transferUpdate();
+
+                    if (!cancel && transferred == getFileSize()) {
                         sent = true;
                         listener.statusCompleted();
                     }
@@ -198,6 +485,7 @@ public class FileSender implements FileTransfer {
             }
 
             finally {
+                transferring = false;
                 stopSender();
                 cleanupConnections();
             }
@@ -206,6 +494,323 @@ public class FileSender implements FileTransfer {
         return sent;
     }
 
+    /**
+     * Connects to the user, with a socket channel unless using streams.
+     * The token is written first, if the receiver uses a shared server.
+     *
+     * @param address The address of the user.
+     * @param port The port to connect to.
+     * @return The connected socket.
+     * @throws IOException If the connection failed.
+     */
+    private Socket connect(final InetAddress address, final int port) throws IOException {
+        final Socket connection;
+
+        if (streamTransfer) {
+            connection = new Socket(address, port);
+        } else {
+            connection = SocketChannel.open(new InetSocketAddress(address, port)).socket();
+        }
+
+        if (transferToken != null) {
+            try {
+                connection.getOutputStream().write(transferToken.toBytes());
+            }
+
+            catch (final IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        return connection;
+    }
+
+    /**
+     * Tells the receiver which offset the file starts from, and skips to that offset in the file.
+     *
+     * @return The start offset.
+     * @throws IOException If the offset could not be sent.
+     */
+    private long sendStartOffset() throws IOException {
+        final long start = isResumable() ? resumeOffset : 0;
+        final DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+        out.writeLong(start);
+        out.flush();
+
+        if (start > 0) {
+            LOG.log(Level.INFO, "Resuming " + file.getName() + " from " + start + " bytes");
+            fis.getChannel().position(start);
+        }
+
+        return start;
+    }
+
+    /**
+     * Sends the checksum of the file after the last byte of the file.
+     *
+     * @param checksum The checksum of the sent bytes.
+     * @throws IOException If the checksum could not be sent.
+     */
+    private void sendChecksum(final TransferChecksum checksum) throws IOException {
+        final DataOutputStream out = new DataOutputStream(os != null ? os : sock.getOutputStream());
+        out.writeLong(checksum.getValue());
+        out.flush();
+    }
+
+    /**
+     * Checks if the partial file of the receiver has the same bytes before the offset as this file.
+     *
+     * @return If the file transfer can be resumed.
+     */
+    private boolean isResumable() {
+        if (resumeOffset <= 0 || resumeOffset >= file.length()) {
+            return false;
+        }
+
+        try {
+            return PartialTransfers.calculateChecksum(file, resumeOffset) == resumeChecksum;
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Sends the file through the socket stream, using a small buffer.
+     * The stream compresses the file, if compression is used.
+     *
+     * @param checksum The checksum to update with the sent bytes.
+     * @throws IOException If the transfer failed.
+     */
+    private void transferWithStreams(final TransferChecksum checksum) throws IOException {
+        os = compress ? new CompressedOutputStream(sock.getOutputStream(), COMPRESSOR_POOL) : sock.getOutputStream();
+
+        final byte[] b = new byte[1024];
+        int tmpTransferred = 0;
+
+        while (!cancel && (tmpTransferred = fis.read(b)) != -1) {
+            limiter.acquire(tmpTransferred);
+            os.write(b, 0, tmpTransferred);
+
+            if (verifyChecksum) {
+                checksum.update(b, 0, tmpTransferred);
+            }
+
+            transferred += tmpTransferred;
+            bCounter.addBytes(tmpTransferred);
+        }
+
+        // Sends the last block, when compressing
+        os.flush();
+    }
+
+    /**
+     * Sends the file directly from the file channel to the socket channel, in slices.
+     * The bytes transferred are only counted between the slices.
+     *
+     * @throws IOException If the transfer failed.
+     */
+    private void transferWithChannels() throws IOException {
+        final FileChannel fileChannel = fis.getChannel();
+        final SocketChannel socketChannel = sock.getChannel();
+        final long fileSize = file.length();
+        final long sliceTime = TimeUnit.MILLISECONDS.toNanos(SLICE_TIME);
+
+        long sliceSize = FIRST_SLICE_SIZE;
+
+        while (!cancel && transferred < fileSize) {
+            final long start = System.nanoTime();
+            final long sent = fileChannel.transferTo(transferred,
+                    limiter.limitSlice(Math.min(sliceSize, fileSize - transferred)), socketChannel);
+
+            // The file got shorter after the transfer started
+            if (sent == 0 && transferred >= fileChannel.size()) {
+                break;
+            }
+
+            transferred += sent;
+            bCounter.addBytes(sent);
+            limiter.acquire(sent);
+
+            final long elapsed = System.nanoTime() - start;
+
+            // Only adjust after full slices, since the socket might just have had less room this time
+            if (sent == sliceSize && elapsed < sliceTime / 2) {
+                sliceSize = Math.min(MAX_SLICE_SIZE, sliceSize * 2);
+            } else if (elapsed > sliceTime * 2) {
+                sliceSize = Math.max(MIN_SLICE_SIZE, sliceSize / 2);
+            }
+        }
+    }
+
+    /**
+     * Sends the file from the file channel to the socket channel through a buffer, and updates the checksum
+     * with the bytes already in the buffer. Used instead of transferTo when the receiver checks the checksum,
+     * so the file is only read once.
+     *
+     * @param checksum The checksum to update with the sent bytes.
+     * @throws IOException If the transfer failed.
+     */
+    private void transferWithChecksum(final TransferChecksum checksum) throws IOException {
+        final FileChannel fileChannel = fis.getChannel();
+        final SocketChannel socketChannel = sock.getChannel();
+        final long fileSize = file.length();
+        final ByteBuffer buffer = ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE);
+
+        while (!cancel && transferred < fileSize) {
+            final int sent = checksum.copy(fileChannel, transferred, limiter.limitSlice(fileSize - transferred),
+                    buffer, socketChannel);
+
+            transferred += sent;
+            bCounter.addBytes(sent);
+            limiter.acquire(sent);
+        }
+    }
+
+    /**
+     * Sends the file in segments, starting with one connection and adding more while
+     * the throughput increases. The bytes transferred are counted from this thread only,
+     * with the total for all the connections.
+     *
+     * @param address The address of the user.
+     * @param port The port to connect to.
+     * @throws IOException If the transfer failed.
+     */
+    private void transferSegmented(final InetAddress address, final int port) throws IOException {
+        final long start = isResumable() ? resumeOffset : 0;
+        final long fileSize = file.length();
+        final SegmentedSender segments = new SegmentedSender(fis.getChannel(), start, fileSize, verifyChecksum,
+                "SegmentSender" + id);
+        segments.setBandwidthLimiter(limiter);
+        final long adaptTime = TimeUnit.MILLISECONDS.toNanos(ADAPT_TIME);
+
+        long lastAdapt = System.nanoTime();
+        long counted = 0;
+        transferred = start;
+
+        if (start > 0) {
+            LOG.log(Level.INFO, "Resuming " + file.getName() + " from " + start + " bytes");
+        }
+
+        segments.addStream(sock);
+
+        try {
+            while (!cancel && !segments.isDone()) {
+                segments.await(SEGMENT_CHECK_TIME);
+
+                final long sent = segments.getSent();
+                bCounter.addBytes(sent - counted);
+                counted = sent;
+                transferred = start + sent;
+
+                final long now = System.nanoTime();
+
+                if (now - lastAdapt >= adaptTime) {
+                    lastAdapt = now;
+
+                    if (segments.shouldAddStream(bCounter.getBytesPerSec(), maxStreams)) {
+                        addStream(segments, address, port);
+                    }
+                }
+            }
+
+            segments.checkError();
+        }
+
+        finally {
+            segments.close();
+        }
+
+        transferred = start + segments.getSent();
+        LOG.log(Level.FINE, "Sent " + file.getName() + " using " + segments.getStreams() + " connections");
+    }
+
+    /**
+     * Sends the manifest of the batch, followed by the bytes of each file in the order of the manifest.
+     * The bytes go through a large buffer, or the blocks of the compressed stream, so small files are
+     * sent in a few packets without waiting for the receiver.
+     *
+     * @throws IOException If the transfer failed, or a file got shorter after the batch was announced.
+     */
+    private void transferBatch() throws IOException {
+        final DataOutputStream out = new DataOutputStream(compress ?
+                new CompressedOutputStream(sock.getOutputStream(), COMPRESSOR_POOL) :
+                new BufferedOutputStream(sock.getOutputStream(), BATCH_BUFFER_SIZE));
+        os = out;
+        batch.write(out);
+
+        final byte[] buffer = new byte[BATCH_BUFFER_SIZE];
+
+        for (final FileBatch.Entry entry : batch.getEntries()) {
+            if (cancel) {
+                break;
+            }
+
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            currentEntry = entry;
+            currentEntryTransferred = 0;
+
+            final TransferChecksum checksum = new TransferChecksum();
+            final FileInputStream in = new FileInputStream(entry.getFile());
+
+            try {
+                while (!cancel && currentEntryTransferred < entry.getSize()) {
+                    final int read = in.read(buffer, 0,
+                            (int) Math.min(buffer.length, entry.getSize() - currentEntryTransferred));
+
+                    if (read == -1) {
+                        throw new IOException(entry.getPath() + " got shorter after the transfer started");
+                    }
+
+                    limiter.acquire(read);
+                    out.write(buffer, 0, read);
+
+                    if (verifyChecksum) {
+                        checksum.update(buffer, 0, read);
+                    }
+
+                    currentEntryTransferred += read;
+                    transferred += read;
+                    bCounter.addBytes(read);
+                }
+            }
+
+            finally {
+                in.close();
+            }
+
+            if (verifyChecksum && !cancel) {
+                out.writeLong(checksum.getValue());
+            }
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Opens another connection to the receiver, for a segmented transfer.
+     *
+     * @param segments The segmented transfer to add the connection to.
+     * @param address The address of the user.
+     * @param port The port to connect to.
+     */
+    private void addStream(final SegmentedSender segments, final InetAddress address, final int port) {
+        try {
+            segments.addStream(connect(address, port));
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not open another connection to " + user.getNick() + ": " + e);
+            segments.stopAddingStreams();
+        }
+    }
+
     /**
      * Sets all connections to null.
      */
@@ -297,7 +902,17 @@ public class FileSender implements FileTransfer {
      */
     @Override
     public int getPercent() {
-        return percent;
+        return (int) Math.min(100, (transferred * 100) / Math.max(1, getFileSize()));
+    }
+
+    /**
+     * Notifies the listener of the progress, while the file is being transferred.
+     */
+    @Override
+    public void publishProgress() {
+        if (transferring && listener != null) {
+            listener.transferUpdate();
+        }
     }
 
     /**
@@ -327,6 +942,10 @@ public class FileSender implements FileTransfer {
      */
     @Override
     public long getFileSize() {
+        if (batch != null) {
+            return batch.getTotalSize();
+        }
+
         return file.length();
     }
 
@@ -370,6 +989,79 @@ public class FileSender implements FileTransfer {
         return file;
     }
 
+    /**
+     * Gets the batch of files being sent.
+     *
+     * @return The batch, or <code>null</code> if sending a single file.
+     */
+    public FileBatch getBatch() {
+        return batch;
+    }
+
+    /**
+     * Gets the file in the batch currently being sent.
+     *
+     * @return The current file, or <code>null</code> if not sending a batch, or not started yet.
+     */
+    @Override
+    public FileBatch.Entry getCurrentEntry() {
+        return currentEntry;
+    }
+
+    /**
+     * Gets the number of bytes sent of the file in the batch currently being sent.
+     *
+     * @return Bytes sent of the current file.
+     */
+    @Override
+    public long getCurrentEntryTransferred() {
+        return currentEntryTransferred;
+    }
+
+    /**
+     * Sets the limiter for the bytes per second of this file transfer. The limiter should have
+     * the limiter for all the file transfers as the parent. Must be set before {@link #transfer(int)}.
+     *
+     * @param limiter The limiter to use.
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter limiter) {
+        Validate.notNull(limiter, "Bandwidth limiter can not be null");
+        this.limiter = limiter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BandwidthLimiter getBandwidthLimiter() {
+        return limiter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setQueuePosition(final int queuePosition) {
+        final int oldPosition = this.queuePosition;
+        this.queuePosition = queuePosition;
+
+        if (listener != null && queuePosition != oldPosition) {
+            if (queuePosition > 0) {
+                listener.statusQueued();
+            } else {
+                listener.statusWaiting();
+            }
+        }
+    }
+
     /**
      * If still waiting for the file transfer to begin.
      *
@@ -389,5 +1081,9 @@ public class FileSender implements FileTransfer {
     public void registerListener(final FileTransferListener listener) {
         this.listener = listener;
         listener.statusWaiting();
+
+        if (queuePosition > 0) {
+            listener.statusQueued();
+        }
     }
 }
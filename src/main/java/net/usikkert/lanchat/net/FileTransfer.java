@@ -88,6 +88,42 @@ public interface FileTransfer {
      */
     long getFileSize();
 
+    /**
+     * Gets the file currently being transferred, when transferring a batch of files.
+     *
+     * @return The current file, or <code>null</code> if not transferring a batch, or not started yet.
+     */
+    FileBatch.Entry getCurrentEntry();
+
+    /**
+     * Gets the number of bytes transferred of the file currently being transferred in a batch.
+     *
+     * @return Bytes transferred of the current file.
+     */
+    long getCurrentEntryTransferred();
+
+    /**
+     * Gets the limiter for the bytes per second of this file transfer.
+     *
+     * @return The bandwidth limiter.
+     */
+    BandwidthLimiter getBandwidthLimiter();
+
+    /**
+     * Gets the position of the file transfer in the queue of the {@link TransferScheduler}.
+     *
+     * @return The position in the queue, starting at 1, or 0 if not queued.
+     */
+    int getQueuePosition();
+
+    /**
+     * Sets the position of the file transfer in the queue. Called by the {@link TransferScheduler}.
+     * The listener is told when the file transfer is queued, and when it leaves the queue.
+     *
+     * @param queuePosition The position in the queue, starting at 1, or 0 if not queued.
+     */
+    void setQueuePosition(int queuePosition);
+
     /**
      * Gets the number of bytes transferred per second.
      *
@@ -95,6 +131,12 @@ public interface FileTransfer {
      */
     long getSpeed();
 
+    /**
+     * Notifies the listener of the progress, if the file is being transferred. Called regularly
+     * by the {@link TransferProgressPublisher}, so the thread doing the transfer does not have to.
+     */
+    void publishProgress();
+
     /**
      * Gets the ID of this file transfer. The ID is unique during the session, and starts with 1.
      *
@@ -0,0 +1,501 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * A single long-lived server for the incoming file transfer connections, shared by all the file receivers.
+ *
+ * <p>The server channel is opened the first time a file receiver registers, and then stays open.
+ * A file sender connecting to the server writes a {@link TransferToken} first, and the connection
+ * is given to the file receiver registered with that token. So setting up a file transfer does not
+ * need to open a server socket, or look for a free port.</p>
+ *
+ * <p>The connections are accepted and the tokens read by the {@link NetworkReactor}, without blocking.
+ * The timeouts for the registrations and the tokens are handled by one timer thread,
+ * shared by all the file transfers.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class FileTransferServer {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FileTransferServer.class.getName());
+
+    /** Number of ports to try, from the default file transfer port and up. */
+    private static final int MAX_PORT_ATTEMPTS = 50;
+
+    /** Number of milliseconds a new connection has to send the token. */
+    private static final int HANDSHAKE_TIMEOUT = 5000;
+
+    /** The timer shared by all the file transfers. */
+    private static final ScheduledExecutorService TIMER = createTimer();
+
+    /** The reactor accepting the connections and reading the tokens. */
+    private final NetworkReactor reactor;
+
+    /** The file receivers waiting for connections, by token. */
+    private final Map<TransferToken, Registration> registrations;
+
+    /** The server channel, or <code>null</code> if not started. */
+    private ServerSocketChannel serverChannel;
+
+    /** The port the server channel listens on. */
+    private int port;
+
+    /**
+     * Constructor.
+     *
+     * @param reactor The reactor to accept the connections and read the tokens with.
+     */
+    public FileTransferServer(final NetworkReactor reactor) {
+        Validate.notNull(reactor, "Network reactor can not be null");
+
+        this.reactor = reactor;
+        registrations = new ConcurrentHashMap<TransferToken, Registration>();
+    }
+
+    /**
+     * Starts the server, unless it's already started. Tries the ports from the default
+     * file transfer port and up, until one is available.
+     *
+     * @return The port the server listens on.
+     * @throws ServerException If no port was available.
+     */
+    public synchronized int start() throws ServerException {
+        if (serverChannel != null) {
+            return port;
+        }
+
+        for (int attempt = 0; attempt < MAX_PORT_ATTEMPTS; attempt++) {
+            final int nextPort = Constants.NETWORK_FILE_TRANSFER_PORT + attempt;
+
+            try {
+                serverChannel = openServerChannel(nextPort);
+                port = nextPort;
+                LOG.log(Level.FINE, "Listening for file transfers on port " + port);
+
+                return port;
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, "Could not open " + nextPort, e);
+            }
+        }
+
+        throw new ServerException("Could not start file transfer server");
+    }
+
+    /**
+     * Opens a server channel on the port, and lets the reactor accept the connections.
+     *
+     * @param serverPort The port to listen on.
+     * @return The opened server channel.
+     * @throws IOException If the port is not available.
+     */
+    private ServerSocketChannel openServerChannel(final int serverPort) throws IOException {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.bind(new InetSocketAddress(serverPort));
+            reactor.registerServerChannel(channel, new NetworkReactor.AcceptListener() {
+                @Override
+                public void connectionAccepted(final SocketChannel connection) {
+                    new Handshake(connection).start();
+                }
+            });
+        }
+
+        catch (final IOException e) {
+            reactor.close(channel);
+            throw e;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Stops the server, and closes all the registrations.
+     */
+    public synchronized void stop() {
+        if (serverChannel != null) {
+            reactor.close(serverChannel);
+            serverChannel = null;
+            port = 0;
+        }
+
+        for (final Registration registration : registrations.values()) {
+            registration.close();
+        }
+    }
+
+    /**
+     * Checks if the server is started.
+     *
+     * @return If the server is started.
+     */
+    public synchronized boolean isStarted() {
+        return serverChannel != null;
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return The port, or 0 if not started.
+     */
+    public synchronized int getPort() {
+        return port;
+    }
+
+    /**
+     * Registers a file receiver waiting for connections with the token. The server is started first
+     * if it's not already started.
+     *
+     * <p>The registration is closed if no connection arrives within the timeout, after the first connection
+     * unless more connections are expected, or when closed by the file receiver.</p>
+     *
+     * @param token The token the sender will write on the connections.
+     * @param multipleConnections If more than one connection is expected, like in a segmented transfer.
+     * @param acceptTimeout Number of milliseconds to wait for the first connection.
+     * @param listener The listener to give the connections to. Called on the reactor thread.
+     *                 The connections are no longer registered with the reactor, and can be made blocking.
+     * @return The registration.
+     * @throws ServerException If the server could not be started,
+     *                         or a file receiver is already registered with the token.
+     */
+    public Registration register(final TransferToken token, final boolean multipleConnections,
+                                 final long acceptTimeout, final NetworkReactor.AcceptListener listener)
+            throws ServerException {
+        Validate.notNull(token, "Token can not be null");
+        Validate.notNull(listener, "Listener can not be null");
+
+        start();
+
+        final Registration registration = new Registration(token, multipleConnections, listener);
+
+        if (registrations.putIfAbsent(token, registration) != null) {
+            throw new ServerException("Already waiting for a connection with " + token);
+        }
+
+        registration.startTimeout(acceptTimeout);
+
+        return registration;
+    }
+
+    /**
+     * Gives the connection to the file receiver registered with the token.
+     * The connection is closed if there is none.
+     *
+     * @param token The token the connection started with.
+     * @param connection The connection.
+     */
+    private void route(final TransferToken token, final SocketChannel connection) {
+        final Registration registration = registrations.get(token);
+
+        if (registration == null) {
+            LOG.log(Level.WARNING, "No file transfer waiting for " + token + ", closing the connection");
+            reactor.close(connection);
+        }
+
+        else {
+            registration.connectionAccepted(connection);
+        }
+    }
+
+    /**
+     * Schedules a task on the timer shared by all the file transfers.
+     *
+     * @param task The task to run.
+     * @param delay Number of milliseconds to wait before running the task.
+     * @return The scheduled task, which can be cancelled.
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long delay) {
+        return TIMER.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the timer shared by all the file transfers. Cancelled tasks are removed at once,
+     * since most timeouts are cancelled.
+     *
+     * @return The new timer.
+     */
+    private static ScheduledExecutorService createTimer() {
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "FileTransferTimer");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        timer.setRemoveOnCancelPolicy(true);
+
+        return timer;
+    }
+
+    /**
+     * A file receiver waiting for connections with a token.
+     */
+    public final class Registration {
+
+        /** The token the sender writes on the connections. */
+        private final TransferToken token;
+
+        /** If more than one connection is expected. */
+        private final boolean multipleConnections;
+
+        /** The listener to give the connections to. */
+        private final NetworkReactor.AcceptListener listener;
+
+        /** The timeout for the first connection, or <code>null</code> if not started. */
+        private ScheduledFuture<?> timeout;
+
+        /** If a connection has been given to the listener. */
+        private boolean connected;
+
+        /** If the registration can still get connections. */
+        private boolean open;
+
+        /**
+         * Constructor.
+         *
+         * @param token The token the sender writes on the connections.
+         * @param multipleConnections If more than one connection is expected.
+         * @param listener The listener to give the connections to.
+         */
+        private Registration(final TransferToken token, final boolean multipleConnections,
+                             final NetworkReactor.AcceptListener listener) {
+            this.token = token;
+            this.multipleConnections = multipleConnections;
+            this.listener = listener;
+
+            open = true;
+        }
+
+        /**
+         * Starts the timeout for the first connection, unless it has already arrived.
+         *
+         * @param acceptTimeout Number of milliseconds to wait for the first connection.
+         */
+        private synchronized void startTimeout(final long acceptTimeout) {
+            if (open && !connected) {
+                timeout = schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(acceptTimeout);
+                    }
+                }, acceptTimeout);
+            }
+        }
+
+        /**
+         * Closes the registration if no connection has arrived.
+         *
+         * @param acceptTimeout The timeout that was used, for logging.
+         */
+        private synchronized void expire(final long acceptTimeout) {
+            if (open && !connected) {
+                LOG.log(Level.WARNING, "No connection with " + token + " within " + acceptTimeout + " ms");
+                close();
+            }
+        }
+
+        /**
+         * Gives the connection to the listener, and closes the registration unless more
+         * connections are expected. The connection is closed if the registration is closed.
+         *
+         * @param connection The connection.
+         */
+        private synchronized void connectionAccepted(final SocketChannel connection) {
+            if (!open) {
+                reactor.close(connection);
+                return;
+            }
+
+            connected = true;
+
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            listener.connectionAccepted(connection);
+
+            if (!multipleConnections) {
+                close();
+            }
+        }
+
+        /**
+         * Checks if the registration can still get connections.
+         *
+         * @return If the registration is open.
+         */
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Closes the registration, so no more connections are given to the listener.
+         */
+        public synchronized void close() {
+            if (open) {
+                open = false;
+                registrations.remove(token, this);
+
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the token from a new connection without blocking, and routes the connection when
+     * the whole token has arrived. The connection is closed if the token is invalid, or
+     * does not arrive in time.
+     */
+    private final class Handshake implements NetworkReactor.ReadListener {
+
+        /** The new connection. */
+        private final SocketChannel connection;
+
+        /** The buffer the token is read into. */
+        private final ByteBuffer buffer;
+
+        /** If the handshake is finished, either by the token or by the timeout. */
+        private final AtomicBoolean finished;
+
+        /** The timeout for the token. */
+        private ScheduledFuture<?> timeout;
+
+        /**
+         * Constructor.
+         *
+         * @param connection The new connection.
+         */
+        private Handshake(final SocketChannel connection) {
+            this.connection = connection;
+
+            buffer = ByteBuffer.allocate(TransferToken.SIZE);
+            finished = new AtomicBoolean();
+        }
+
+        /**
+         * Starts the timeout, and waits for the token.
+         */
+        private void start() {
+            timeout = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (finished.compareAndSet(false, true)) {
+                        LOG.log(Level.WARNING, "No file transfer token from " +
+                                connection.socket().getInetAddress() + " within " + HANDSHAKE_TIMEOUT + " ms");
+                        reactor.close(connection);
+                    }
+                }
+            }, HANDSHAKE_TIMEOUT);
+
+            try {
+                reactor.registerSocketChannel(connection, this);
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+                finish();
+                reactor.close(connection);
+            }
+        }
+
+        @Override
+        public void channelReadable(final SocketChannel channel) {
+            try {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed before the file transfer token");
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+
+                if (finish()) {
+                    reactor.close(channel);
+                }
+
+                return;
+            }
+
+            if (buffer.hasRemaining() || !finish()) {
+                return;
+            }
+
+            buffer.flip();
+            final TransferToken token = TransferToken.fromBytes(buffer);
+
+            if (token == null) {
+                LOG.log(Level.WARNING, "No file transfer token from " + channel.socket().getInetAddress() +
+                        ", closing the connection");
+                reactor.close(channel);
+                return;
+            }
+
+            reactor.release(channel, new Runnable() {
+                @Override
+                public void run() {
+                    route(token, channel);
+                }
+            });
+        }
+
+        /**
+         * Finishes the handshake, unless the timeout already did.
+         *
+         * @return If the handshake was finished now.
+         */
+        private boolean finish() {
+            timeout.cancel(false);
+
+            return finished.compareAndSet(false, true);
+        }
+    }
+}
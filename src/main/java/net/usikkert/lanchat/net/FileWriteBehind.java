@@ -0,0 +1,297 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Writes buffers to a file channel in a separate thread, so the thread filling the
+ * buffers can keep reading from the network while the previous buffers are written to disk.
+ *
+ * <p>A fixed number of buffers are passed back and forth between the two threads.
+ * Get an empty buffer with {@link #takeBuffer()}, fill it, and hand it over with
+ * {@link #write(ByteBuffer)}. When all buffers are waiting to be written, {@link #takeBuffer()}
+ * blocks until the disk has caught up. The buffers are written in order, using positional
+ * writes starting at the position given in the constructor.</p>
+ *
+ * <p>If a write fails, the rest of the buffers are skipped, and the error is thrown from
+ * the next call to {@link #takeBuffer()}, {@link #write(ByteBuffer)} or {@link #finish()}.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class FileWriteBehind {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FileWriteBehind.class.getName());
+
+    /** Marks the end of the buffers to write. */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /** The file channel to write to. */
+    private final FileChannel channel;
+
+    /** The pool to get the buffers from. */
+    private final BufferPool pool;
+
+    /** Max number of buffers to use. */
+    private final int maxBuffers;
+
+    /** Buffers that are ready to be filled. */
+    private final BlockingQueue<ByteBuffer> freeBuffers;
+
+    /** Buffers that are waiting to be written. */
+    private final BlockingQueue<ByteBuffer> filledBuffers;
+
+    /** The thread writing to the file. */
+    private final Thread writerThread;
+
+    /** Number of buffers taken from the pool. */
+    private int buffersInUse;
+
+    /** The position in the file to write the next buffer to. Only used by the writer thread. */
+    private long position;
+
+    /** Number of bytes written to the file. */
+    private volatile long written;
+
+    /** The first error from writing to the file. */
+    private volatile IOException error;
+
+    /** If the rest of the buffers should be skipped. */
+    private volatile boolean aborted;
+
+    /**
+     * Constructor.
+     *
+     * @param channel The file channel to write to.
+     * @param startPosition The position in the file to write the first buffer to.
+     * @param pool The pool to get the buffers from.
+     * @param maxBuffers Max number of buffers to use. Use at least 2 to read and write at the same time.
+     * @param name The name of the writer thread.
+     */
+    public FileWriteBehind(final FileChannel channel, final long startPosition, final BufferPool pool,
+                           final int maxBuffers, final String name) {
+        Validate.notNull(channel, "Channel can not be null");
+        Validate.notNull(pool, "Pool can not be null");
+
+        if (maxBuffers <= 0) {
+            throw new IllegalArgumentException("Max buffers must be positive");
+        }
+
+        this.channel = channel;
+        this.position = startPosition;
+        this.pool = pool;
+        this.maxBuffers = maxBuffers;
+
+        freeBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+        filledBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers + 1);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffers();
+            }
+        }, name);
+
+        writerThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        writerThread.start();
+    }
+
+    /**
+     * Gets an empty buffer to fill. Waits for the writer thread if all the buffers are in use.
+     *
+     * @return An empty buffer.
+     * @throws IOException If a write has failed, or the wait was interrupted.
+     */
+    public ByteBuffer takeBuffer() throws IOException {
+        checkError();
+
+        ByteBuffer buffer = freeBuffers.poll();
+
+        if (buffer == null && buffersInUse < maxBuffers) {
+            buffersInUse++;
+            return pool.acquire();
+        }
+
+        try {
+            if (buffer == null) {
+                buffer = freeBuffers.take();
+            }
+        }
+
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+
+        checkError();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Hands a filled buffer over to the writer thread.
+     *
+     * @param buffer The buffer to write, from {@link #takeBuffer()}. Must not be flipped.
+     * @throws IOException If a write has failed, or the wait was interrupted.
+     */
+    public void write(final ByteBuffer buffer) throws IOException {
+        checkError();
+        buffer.flip();
+
+        if (!buffer.hasRemaining()) {
+            freeBuffers.offer(buffer);
+            return;
+        }
+
+        try {
+            filledBuffers.put(buffer);
+        }
+
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+    }
+
+    /**
+     * Waits for all the filled buffers to be written, and stops the writer thread.
+     *
+     * @throws IOException If a write has failed, or the wait was interrupted.
+     */
+    public void finish() throws IOException {
+        try {
+            filledBuffers.put(END);
+            writerThread.join();
+        }
+
+        catch (final InterruptedException e) {
+            throw new InterruptedIOException(e.toString());
+        }
+
+        checkError();
+    }
+
+    /**
+     * Stops the writer thread without writing the remaining buffers, and returns the buffers to the pool.
+     * Does nothing to the thread if {@link #finish()} has completed.
+     */
+    public void close() {
+        if (writerThread.isAlive()) {
+            aborted = true;
+            filledBuffers.offer(END);
+
+            try {
+                writerThread.join();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.WARNING, e.toString());
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        ByteBuffer buffer;
+
+        while ((buffer = freeBuffers.poll()) != null) {
+            pool.release(buffer);
+        }
+
+        while ((buffer = filledBuffers.poll()) != null) {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of bytes written to the file so far.
+     *
+     * @return Number of bytes written.
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Writes the filled buffers until the end is reached. After an error,
+     * the buffers are just returned so the other thread does not get stuck.
+     */
+    private void writeBuffers() {
+        try {
+            while (true) {
+                final ByteBuffer buffer = filledBuffers.take();
+
+                if (buffer == END) {
+                    return;
+                }
+
+                if (error == null && !aborted) {
+                    try {
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+
+                        written += buffer.limit();
+                    }
+
+                    catch (final IOException e) {
+                        error = e;
+                    }
+                }
+
+                freeBuffers.offer(buffer);
+            }
+        }
+
+        catch (final InterruptedException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+
+    /**
+     * Throws the error from the writer thread, if any.
+     *
+     * @throws IOException If a write has failed.
+     */
+    private void checkError() throws IOException {
+        final IOException e = error;
+
+        if (e != null) {
+            throw new IOException("Could not write to file: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,745 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.misc.User;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Protects against users sending too many messages, by limiting the rate of
+ * datagrams from each sender as soon as they are received.
+ *
+ * <p>This is the first step after the {@link MessageDispatcher}, so a flood is dropped before
+ * the fragments are put together and the reliable frames are handled. Only the outer frame of
+ * the datagram is read, to find the sender and the type. Packed datagrams are split here, and each
+ * packed message is limited on its own, so a packed datagram costs as much as the messages inside.</p>
+ *
+ * <p>Each sender, identified by the user code and the IP address, gets a token bucket for
+ * each {@link MessageClass}. A datagram uses one token, and the buckets are refilled at the
+ * configured rate. A bucket holds at most {@link #BURST_SECONDS} seconds worth of tokens.
+ * Datagrams arriving when the bucket is empty are dropped, except single presence messages, where
+ * only the latest of each kind is kept and given to the listener when there are tokens again.
+ * A timer gives them to the listener if the sender sends nothing more.</p>
+ *
+ * <p>Fragments are limited as chat messages, since that is mostly what they carry. Datagrams without
+ * a known sender are limited as control messages, with one bucket for each IP address. Messages from
+ * the application user are only left alone when they come from the IP address of the application user.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class FloodProtection implements ReceiverListener {
+
+    /** The classes of messages, with a separate rate limit for each. */
+    public enum MessageClass {
+
+        /** Messages shown in the chat: <code>MSG</code> and <code>TOPIC</code>. */
+        CHAT,
+
+        /** Status updates: <code>IDLE</code>, <code>WRITING</code>, <code>AWAY</code> and <code>NICK</code>. */
+        PRESENCE,
+
+        /** The rest: logon, logoff, expose, client information and file transfers. */
+        CONTROL;
+
+        /**
+         * Finds the class of a message type.
+         *
+         * @param type The type of message.
+         * @return The class of the message type.
+         */
+        public static MessageClass fromType(final MessageType type) {
+            switch (type) {
+                case MSG:
+                case TOPIC:
+                    return CHAT;
+
+                case IDLE:
+                case WRITING:
+                case STOPPEDWRITING:
+                case AWAY:
+                case BACK:
+                case NICK:
+                    return PRESENCE;
+
+                default:
+                    return CONTROL;
+            }
+        }
+    }
+
+    /** The number of seconds worth of tokens a bucket can hold. */
+    public static final int BURST_SECONDS = 4;
+
+    /** The max number of senders to keep track of. */
+    public static final int MAX_SENDERS = 1024;
+
+    /** The user code to limit datagrams without a known sender with, together with the IP address. */
+    private static final int UNKNOWN_SENDER = 0;
+
+    /** The least number of milliseconds to wait before giving collapsed presence messages to the listener. */
+    private static final int MIN_FLUSH_DELAY = 50;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(FloodProtection.class.getName());
+
+    /** The application user. */
+    private final User me;
+
+    /** Messages per second for each class of messages, or 0 for no limit. */
+    private final int[] rates;
+
+    /** The senders, least recently used first. */
+    private final Map<SenderKey, Sender> senders;
+
+    /** Timer for giving the collapsed presence messages to the listener when the senders go quiet. */
+    private final Timer flushTimer;
+
+    /** Held while giving messages to the listener, so the timer and the dispatch thread take turns. */
+    private final Object deliveryLock;
+
+    /** If the timer is going to give the collapsed presence messages to the listener. */
+    private boolean flushScheduled;
+
+    /** The listener to give the messages to. */
+    private ReceiverListener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param me The application user.
+     * @param chatRate Chat messages per second from each sender, or 0 for no limit.
+     * @param presenceRate Presence messages per second from each sender, or 0 for no limit.
+     * @param controlRate Control messages per second from each sender, or 0 for no limit.
+     */
+    public FloodProtection(final User me, final int chatRate, final int presenceRate, final int controlRate) {
+        Validate.notNull(me, "User can not be null");
+
+        this.me = me;
+
+        rates = new int[MessageClass.values().length];
+        rates[MessageClass.CHAT.ordinal()] = Math.max(0, chatRate);
+        rates[MessageClass.PRESENCE.ordinal()] = Math.max(0, presenceRate);
+        rates[MessageClass.CONTROL.ordinal()] = Math.max(0, controlRate);
+
+        senders = new LinkedHashMap<SenderKey, Sender>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<SenderKey, Sender> eldest) {
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        flushTimer = new Timer("FloodProtectionTimer", true);
+        deliveryLock = new Object();
+    }
+
+    /**
+     * Sets the listener to give the messages to.
+     *
+     * @param listener The listener to give the messages to.
+     */
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gives the datagram to the next listener, unless the sender has sent too many datagrams.
+     * The messages in packed datagrams are limited, and given to the next listener, one by one.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        synchronized (deliveryLock) {
+            if (MessagePacker.isPacked(message)) {
+                final List<String> packedMessages = MessagePacker.unpack(message);
+
+                // Nothing could be unpacked, so the datagram is limited as one without a known sender
+                if (packedMessages.isEmpty()) {
+                    limit(message, ipAddress);
+                }
+
+                for (final String packedMessage : packedMessages) {
+                    limit(packedMessage, ipAddress);
+                }
+            }
+
+            else {
+                limit(message, ipAddress);
+            }
+        }
+    }
+
+    /**
+     * Gives the message to the next listener, unless the sender has sent too many messages.
+     * Must be called while holding the delivery lock.
+     *
+     * @param message The message.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    private void limit(final String message, final String ipAddress) {
+        final Header header = Header.read(message);
+
+        if (header != null && isFromMe(header, ipAddress)) {
+            deliver(message, ipAddress);
+            return;
+        }
+
+        final MessageClass messageClass = header != null ? header.messageClass : MessageClass.CONTROL;
+        final boolean collapsible = header != null && header.isCollapsible();
+        final List<String> collapsedMessages;
+        final boolean allowed;
+
+        synchronized (this) {
+            final Sender sender = getSender(header != null ? header.code : UNKNOWN_SENDER, ipAddress);
+            final long now = System.nanoTime();
+
+            collapsedMessages = sender.takeCollapsedMessages(now);
+            allowed = sender.tryTake(messageClass, now);
+
+            if (!allowed) {
+                if (collapsible) {
+                    sender.collapse(header.type, message);
+                    scheduleFlush();
+                } else {
+                    sender.drop(messageClass);
+                }
+            }
+
+            else if (collapsible) {
+                // A newer message of the same kind makes a collapsed message obsolete
+                sender.removeCollapsed(header.type);
+            }
+        }
+
+        for (final String collapsedMessage : collapsedMessages) {
+            deliver(collapsedMessage, ipAddress);
+        }
+
+        if (allowed) {
+            deliver(message, ipAddress);
+        }
+    }
+
+    /**
+     * Checks if the message is from the application user. Anyone can use the user code of the
+     * application user, so the message must also come from the IP address of the application user.
+     *
+     * @param header The header of the message.
+     * @param ipAddress The IP address the message came from.
+     * @return If the message is from the application user.
+     */
+    private boolean isFromMe(final Header header, final String ipAddress) {
+        return header.code == me.getCode() && ipAddress.equals(me.getIpAddress());
+    }
+
+    /**
+     * Gives the collapsed presence messages to the listener, for the senders with tokens again.
+     * Runs on the timer, so the latest presence of a sender that went quiet is not held back forever.
+     */
+    void flushCollapsedMessages() {
+        synchronized (deliveryLock) {
+            final List<String> messages = new ArrayList<String>();
+            final List<String> ipAddresses = new ArrayList<String>();
+
+            synchronized (this) {
+                flushScheduled = false;
+                final long now = System.nanoTime();
+                boolean remaining = false;
+
+                for (final Map.Entry<SenderKey, Sender> entry : senders.entrySet()) {
+                    final Sender sender = entry.getValue();
+
+                    for (final String collapsedMessage : sender.takeCollapsedMessages(now)) {
+                        messages.add(collapsedMessage);
+                        ipAddresses.add(entry.getKey().ipAddress);
+                    }
+
+                    remaining |= sender.hasCollapsed();
+                }
+
+                if (remaining) {
+                    scheduleFlush();
+                }
+            }
+
+            for (int i = 0; i < messages.size(); i++) {
+                deliver(messages.get(i), ipAddresses.get(i));
+            }
+        }
+    }
+
+    /**
+     * Schedules the collapsed presence messages to be given to the listener, after about the time
+     * it takes to get a new presence token. Must be called while holding the lock.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+
+        flushScheduled = true;
+        final int presenceRate = rates[MessageClass.PRESENCE.ordinal()];
+        final long delay = Math.max(MIN_FLUSH_DELAY, 1000 / Math.max(1, presenceRate));
+
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flushCollapsedMessages();
+            }
+        }, delay);
+    }
+
+    /**
+     * Gets the sender with the user code and IP address, and creates it if it's new.
+     *
+     * @param userCode The unique code of the sender.
+     * @param ipAddress The IP address of the sender.
+     * @return The sender.
+     */
+    private Sender getSender(final int userCode, final String ipAddress) {
+        final SenderKey key = new SenderKey(userCode, ipAddress);
+        Sender sender = senders.get(key);
+
+        if (sender == null) {
+            sender = new Sender(System.nanoTime());
+            senders.put(key, sender);
+        }
+
+        return sender;
+    }
+
+    /**
+     * Gives the message to the next listener.
+     *
+     * @param message The message.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    private void deliver(final String message, final String ipAddress) {
+        if (listener != null) {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Gets the total number of messages dropped or collapsed, from all the senders.
+     *
+     * @return The number of dropped messages.
+     */
+    public synchronized long getDroppedMessages() {
+        long dropped = 0;
+
+        for (final Sender sender : senders.values()) {
+            dropped += sender.getTotalDropped();
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Shows the number of dropped messages for each sender that has had messages dropped.
+     *
+     * @return A line with the user code, IP address and dropped messages for each sender.
+     */
+    public synchronized String[] showDroppedMessagesPerSender() {
+        final List<String> lines = new ArrayList<String>();
+
+        for (final Map.Entry<SenderKey, Sender> entry : senders.entrySet()) {
+            final Sender sender = entry.getValue();
+
+            if (sender.getTotalDropped() > 0) {
+                lines.add(entry.getKey() + ": chat=" + sender.dropped[MessageClass.CHAT.ordinal()] +
+                        ", presence=" + sender.dropped[MessageClass.PRESENCE.ordinal()] +
+                        ", control=" + sender.dropped[MessageClass.CONTROL.ordinal()]);
+            }
+        }
+
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Identifies a sender by the user code and the IP address.
+     */
+    private static final class SenderKey {
+
+        private final int userCode;
+        private final String ipAddress;
+
+        SenderKey(final int userCode, final String ipAddress) {
+            this.userCode = userCode;
+            this.ipAddress = ipAddress;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof SenderKey)) {
+                return false;
+            }
+
+            final SenderKey other = (SenderKey) obj;
+
+            return userCode == other.userCode && ipAddress.equals(other.ipAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * userCode + ipAddress.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return userCode + "@" + ipAddress;
+        }
+    }
+
+    /**
+     * The token buckets and the dropped messages of one sender.
+     */
+    private final class Sender {
+
+        /** The number of tokens left in each bucket. */
+        private final double[] tokens;
+
+        /** The number of dropped messages in each class. Collapsed presence messages are counted as dropped. */
+        private final long[] dropped;
+
+        /** When the buckets were last refilled, from {@link System#nanoTime()}. */
+        private long lastRefill;
+
+        /** The latest presence message of each kind that was held back, or <code>null</code> if none. */
+        private Map<MessageType, String> collapsed;
+
+        Sender(final long now) {
+            tokens = new double[rates.length];
+            dropped = new long[rates.length];
+            lastRefill = now;
+
+            for (int i = 0; i < rates.length; i++) {
+                tokens[i] = rates[i] * BURST_SECONDS;
+            }
+        }
+
+        /**
+         * Takes a token from the bucket of the message class, if there is one.
+         *
+         * @param messageClass The class of the message.
+         * @param now The current time, from {@link System#nanoTime()}.
+         * @return If there was a token, and the message can be delivered.
+         */
+        boolean tryTake(final MessageClass messageClass, final long now) {
+            final int index = messageClass.ordinal();
+
+            if (rates[index] == 0) {
+                return true;
+            }
+
+            refill(now);
+
+            if (tokens[index] >= 1) {
+                tokens[index]--;
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Adds the tokens earned since the last refill to all the buckets.
+         *
+         * @param now The current time, from {@link System#nanoTime()}.
+         */
+        private void refill(final long now) {
+            final double seconds = (now - lastRefill) / (double) TimeUnit.SECONDS.toNanos(1);
+            lastRefill = now;
+
+            for (int i = 0; i < rates.length; i++) {
+                tokens[i] = Math.min(rates[i] * BURST_SECONDS, tokens[i] + seconds * rates[i]);
+            }
+        }
+
+        void drop(final MessageClass messageClass) {
+            dropped[messageClass.ordinal()]++;
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Dropped " + messageClass + " message because of flooding");
+            }
+        }
+
+        /**
+         * Keeps the presence message until there are tokens again,
+         * replacing any older message of the same kind.
+         *
+         * @param type The type of message.
+         * @param message The message.
+         */
+        void collapse(final MessageType type, final String message) {
+            if (collapsed == null) {
+                collapsed = new EnumMap<MessageType, String>(MessageType.class);
+            }
+
+            // Writing and stopped writing, and away and back, replace each other
+            if (collapsed.put(getCollapseKey(type), message) != null) {
+                dropped[MessageClass.PRESENCE.ordinal()]++;
+            }
+        }
+
+        boolean hasCollapsed() {
+            return collapsed != null && !collapsed.isEmpty();
+        }
+
+        void removeCollapsed(final MessageType type) {
+            if (collapsed != null && collapsed.remove(getCollapseKey(type)) != null) {
+                dropped[MessageClass.PRESENCE.ordinal()]++;
+            }
+        }
+
+        /**
+         * Takes the presence messages that were held back, if there are tokens for them.
+         *
+         * @param now The current time, from {@link System#nanoTime()}.
+         * @return The messages to deliver.
+         */
+        List<String> takeCollapsedMessages(final long now) {
+            if (collapsed == null || collapsed.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            final List<String> messages = new ArrayList<String>();
+
+            while (!collapsed.isEmpty() && tryTake(MessageClass.PRESENCE, now)) {
+                final MessageType key = collapsed.keySet().iterator().next();
+                messages.add(collapsed.remove(key));
+            }
+
+            return messages;
+        }
+
+        long getTotalDropped() {
+            long total = 0;
+
+            for (final long count : dropped) {
+                total += count;
+            }
+
+            return total;
+        }
+
+        private MessageType getCollapseKey(final MessageType type) {
+            if (type == MessageType.STOPPEDWRITING) {
+                return MessageType.WRITING;
+            }
+
+            if (type == MessageType.BACK) {
+                return MessageType.AWAY;
+            }
+
+            return type;
+        }
+    }
+
+    /**
+     * The sender and type of a received datagram, read from the outer frame
+     * without copying or unwrapping the datagram.
+     */
+    static final class Header {
+
+        /** The unique code of the sender. */
+        private final int code;
+
+        /** The type of message, or <code>null</code> if the datagram is not a single message. */
+        private final MessageType type;
+
+        /** The class of message to limit the datagram as. */
+        private final MessageClass messageClass;
+
+        private Header(final int code, final MessageType type, final MessageClass messageClass) {
+            this.code = code;
+            this.type = type;
+            this.messageClass = messageClass;
+        }
+
+        /**
+         * Reads the header of a received datagram. Reliable data frames are read through to the
+         * message inside. Packed datagrams must be split first, and have no header.
+         *
+         * @param datagram The received datagram.
+         * @return The header, or <code>null</code> if the sender is unknown.
+         */
+        static Header read(final String datagram) {
+            return read(datagram, 0);
+        }
+
+        private static Header read(final String datagram, final int start) {
+            if (start >= datagram.length()) {
+                return null;
+            }
+
+            final char first = datagram.charAt(start);
+
+            if (first == ReliableMulticast.FRAME_MARKER) {
+                return readReliableFrame(datagram, start);
+            }
+
+            if (first == MessageFragmenter.FRAGMENT_MARKER) {
+                final Integer code = readCode(datagram, start + 1, '.');
+                return code != null ? new Header(code, null, MessageClass.CHAT) : null;
+            }
+
+            if (first == BinaryProtocol.MAGIC) {
+                return readBinaryMessage(datagram, start);
+            }
+
+            return readTextMessage(datagram, start);
+        }
+
+        private static Header readReliableFrame(final String datagram, final int start) {
+            if (start + 1 >= datagram.length()) {
+                return null;
+            }
+
+            final char kind = datagram.charAt(start + 1);
+            final Integer code = readCode(datagram, start + 2, '.');
+
+            if (code == null) {
+                return null;
+            }
+
+            if (kind == ReliableMulticast.DATA) {
+                final int colon = datagram.indexOf(':', start + 2);
+                final Header message = colon != -1 ? read(datagram, colon + 1) : null;
+
+                if (message != null && message.code == code) {
+                    return message;
+                }
+
+                return new Header(code, null, MessageClass.CHAT);
+            }
+
+            return new Header(code, null, MessageClass.CONTROL);
+        }
+
+        private static Header readTextMessage(final String datagram, final int start) {
+            final Integer code = readCode(datagram, start, '!');
+
+            if (code == null) {
+                return null;
+            }
+
+            final int exclamation = datagram.indexOf('!', start);
+            final int hash = datagram.indexOf('#', exclamation + 1);
+            final MessageType type = hash != -1 ? MessageType.fromName(datagram, exclamation + 1, hash) : null;
+
+            return header(code, type);
+        }
+
+        private static Header readBinaryMessage(final String datagram, final int start) {
+            if (datagram.length() < start + 4 || datagram.charAt(start + 1) != BinaryProtocol.VERSION) {
+                return null;
+            }
+
+            final MessageType type = MessageType.fromId(datagram.charAt(start + 2));
+            long value = 0;
+            int shift = 0;
+            int position = start + 3;
+            int current;
+
+            do {
+                if (shift > 35 || position >= datagram.length()) {
+                    return null;
+                }
+
+                current = datagram.charAt(position++);
+                value |= (long) (current & 0x7F) << shift;
+                shift += 7;
+            }
+
+            while ((current & 0x80) != 0);
+
+            return header((int) ((value >>> 1) ^ -(value & 1)), type);
+        }
+
+        private static Header header(final int code, final MessageType type) {
+            if (type == null) {
+                return null;
+            }
+
+            return new Header(code, type, MessageClass.fromType(type));
+        }
+
+        /**
+         * Reads a user code in the text format, directly from the datagram.
+         *
+         * @param datagram The datagram with the code.
+         * @param start The position of the first character of the code.
+         * @param end The character after the code.
+         * @return The code, or <code>null</code> if it's invalid.
+         */
+        private static Integer readCode(final String datagram, final int start, final char end) {
+            final int length = datagram.length();
+            final boolean negative = start < length && datagram.charAt(start) == '-';
+            int index = negative ? start + 1 : start;
+            long value = 0;
+
+            while (index < length && datagram.charAt(index) >= '0' && datagram.charAt(index) <= '9'
+                    && value <= Integer.MAX_VALUE) {
+                value = value * 10 + datagram.charAt(index) - '0';
+                index++;
+            }
+
+            if (index == (negative ? start + 1 : start) || index >= length || datagram.charAt(index) != end
+                    || value > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            return (int) (negative ? -value : value);
+        }
+
+        boolean isCollapsible() {
+            return type != null && messageClass == MessageClass.PRESENCE;
+        }
+
+        int getCode() {
+            return code;
+        }
+
+        MessageType getType() {
+            return type;
+        }
+
+        MessageClass getMessageClass() {
+            return messageClass;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+/**
+ * Decouples a receiver from the listener handling the messages, so a slow listener
+ * does not block the thread reading from the socket.
+ *
+ * <p>The receiver puts the messages in a bounded buffer, and a separate dispatch
+ * thread gives them to the listener in the same order. When the buffer is full,
+ * the oldest queued <code>IDLE</code> or <code>WRITING</code> message is dropped to make room,
+ * since the next one will arrive soon anyway. If there are none of those in the buffer,
+ * the new message is dropped if it's one of those, and the oldest message if not.</p>
+ *
+ * <p>The low priority messages are kept in a ring of their own, so the oldest of them can be
+ * dropped without moving the other messages. Each message gets an increasing number when queued,
+ * and the dispatch thread takes the oldest message from the head of either ring.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class MessageDispatcher implements ReceiverListener, Runnable {
+
+    /** The types of messages that can be dropped first when the buffer is full. */
+    private static final Set<MessageType> LOW_PRIORITY_TYPES = EnumSet.of(MessageType.IDLE, MessageType.WRITING);
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageDispatcher.class.getName());
+
+    /** The name of the dispatch thread. */
+    private final String threadName;
+
+    /** The max number of queued messages, in both rings together. */
+    private final int capacity;
+
+    /** The queued messages that are not low priority. */
+    private final Ring normalRing;
+
+    /** The queued <code>IDLE</code> and <code>WRITING</code> messages. */
+    private final Ring lowPriorityRing;
+
+    /** The number to give the next queued message, to keep the order between the rings. */
+    private long nextNumber;
+
+    /** The number of queued messages. */
+    private int size;
+
+    /** The highest number of queued messages at the same time. */
+    private int maxSize;
+
+    /** The number of low priority messages dropped because the buffer was full. */
+    private long droppedLowPriorityMessages;
+
+    /** The number of other messages dropped because the buffer was full. */
+    private long droppedMessages;
+
+    /** The listener to give the messages to. */
+    private volatile ReceiverListener listener;
+
+    /** The thread giving the messages to the listener, started when the first message arrives. */
+    private Thread worker;
+
+    /**
+     * Constructor.
+     *
+     * @param threadName The name of the dispatch thread.
+     * @param capacity The max number of messages to queue.
+     */
+    public MessageDispatcher(final String threadName, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+
+        this.threadName = threadName;
+        this.capacity = capacity;
+
+        normalRing = new Ring(capacity);
+        lowPriorityRing = new Ring(capacity);
+    }
+
+    /**
+     * Sets the listener to give the messages to.
+     *
+     * @param listener The listener to give the messages to.
+     */
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Puts the message in the buffer, and returns right away.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        final boolean lowPriorityMessage = isLowPriority(message);
+
+        synchronized (this) {
+            if (size == capacity && !makeRoom(lowPriorityMessage)) {
+                return;
+            }
+
+            final Ring ring = lowPriorityMessage ? lowPriorityRing : normalRing;
+            ring.add(message, ipAddress, nextNumber++);
+            size++;
+
+            if (size > maxSize) {
+                maxSize = size;
+            }
+
+            if (worker == null) {
+                startThread();
+            }
+
+            // The dispatch thread only waits when the buffer is empty
+            if (size == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gives the queued messages to the listener, one at a time.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            final String message;
+            final String ipAddress;
+
+            synchronized (this) {
+                while (size == 0) {
+                    try {
+                        wait();
+                    }
+
+                    catch (final InterruptedException e) {
+                        LOG.log(Level.WARNING, e.toString());
+                        return;
+                    }
+                }
+
+                final Ring ring = getOldestRing();
+                message = ring.getHeadMessage();
+                ipAddress = ring.getHeadIpAddress();
+                ring.removeHead();
+                size--;
+            }
+
+            try {
+                final ReceiverListener currentListener = listener;
+
+                if (currentListener != null) {
+                    currentListener.messageArrived(message, ipAddress);
+                }
+            }
+
+            // The thread must survive a failing listener, or nothing more would be received
+            catch (final RuntimeException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Drops a message to make room for a new message, when the buffer is full.
+     *
+     * @param lowPriorityMessage If the new message is a low priority message.
+     * @return If there is room for the new message.
+     */
+    private boolean makeRoom(final boolean lowPriorityMessage) {
+        if (!lowPriorityRing.isEmpty()) {
+            lowPriorityRing.removeHead();
+            size--;
+            droppedLowPriorityMessages++;
+            return true;
+        }
+
+        if (lowPriorityMessage) {
+            droppedLowPriorityMessages++;
+            return false;
+        }
+
+        normalRing.removeHead();
+        size--;
+        droppedMessages++;
+
+        return true;
+    }
+
+    /**
+     * Finds the ring with the oldest queued message. There must be at least one queued message.
+     *
+     * @return The ring to take the next message from.
+     */
+    private Ring getOldestRing() {
+        if (lowPriorityRing.isEmpty()) {
+            return normalRing;
+        }
+
+        if (normalRing.isEmpty()) {
+            return lowPriorityRing;
+        }
+
+        return lowPriorityRing.getHeadNumber() < normalRing.getHeadNumber() ? lowPriorityRing : normalRing;
+    }
+
+    /**
+     * Starts the thread giving the messages to the listener.
+     */
+    private void startThread() {
+        LOG.log(Level.FINE, "Starting " + threadName);
+
+        worker = new Thread(this, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Checks if the message can be dropped first when the buffer is full.
+     * Only the header of single messages is checked. Packed messages, fragments
+     * and other frames are never low priority.
+     *
+     * @param message The message to check.
+     * @return If the message is low priority.
+     */
+    static boolean isLowPriority(final String message) {
+        final MessageType type;
+
+        if (BinaryProtocol.isBinary(message)) {
+            type = message.length() > 2 ? MessageType.fromId(message.charAt(2)) : null;
+        }
+
+        else if (BinaryProtocol.isTrimmed(message)) {
+            final int exclamation = message.indexOf('!');
+            final int hash = exclamation != -1 ? message.indexOf('#', exclamation + 1) : -1;
+            type = hash != -1 ? MessageType.fromName(message, exclamation + 1, hash) : null;
+        }
+
+        else {
+            type = null;
+        }
+
+        return type != null && LOW_PRIORITY_TYPES.contains(type);
+    }
+
+    /**
+     * Gets the number of messages waiting to be given to the listener.
+     *
+     * @return The number of queued messages.
+     */
+    public synchronized int getQueueSize() {
+        return size;
+    }
+
+    /**
+     * Gets the highest number of messages waiting at the same time.
+     *
+     * @return The max number of queued messages.
+     */
+    public synchronized int getMaxQueueSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of <code>IDLE</code> and <code>WRITING</code> messages
+     * dropped because the buffer was full.
+     *
+     * @return The number of dropped low priority messages.
+     */
+    public synchronized long getDroppedLowPriorityMessages() {
+        return droppedLowPriorityMessages;
+    }
+
+    /**
+     * Gets the number of other messages dropped because the buffer was full.
+     *
+     * @return The number of dropped messages.
+     */
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * A fixed size ring of queued messages. Not thread safe, so the dispatcher must lock.
+     */
+    private static final class Ring {
+
+        /** The queued messages. */
+        private final String[] messages;
+
+        /** The IP addresses the queued messages were received from. */
+        private final String[] ipAddresses;
+
+        /** The order the queued messages arrived in, across the rings. */
+        private final long[] numbers;
+
+        /** The position of the oldest queued message. */
+        private int head;
+
+        /** The number of queued messages. */
+        private int size;
+
+        Ring(final int capacity) {
+            messages = new String[capacity];
+            ipAddresses = new String[capacity];
+            numbers = new long[capacity];
+        }
+
+        void add(final String message, final String ipAddress, final long number) {
+            final int tail = (head + size) % messages.length;
+            messages[tail] = message;
+            ipAddresses[tail] = ipAddress;
+            numbers[tail] = number;
+            size++;
+        }
+
+        void removeHead() {
+            messages[head] = null;
+            ipAddresses[head] = null;
+            head = (head + 1) % messages.length;
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        String getHeadMessage() {
+            return messages[head];
+        }
+
+        String getHeadIpAddress() {
+            return ipAddresses[head];
+        }
+
+        long getHeadNumber() {
+            return numbers[head];
+        }
+    }
+}
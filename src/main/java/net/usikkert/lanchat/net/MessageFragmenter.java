@@ -0,0 +1,179 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.lanchat.Constants;
+
+/**
+ * Splits messages that are too large for one packet into fragments,
+ * that are put together again by the {@link MessageReassembler}.
+ *
+ * <p>A fragment looks like this: <code>^12345678.42.0.3:first part of the message</code>.
+ * That is the {@link #FRAGMENT_MARKER}, the user code of the sender, the id of the message,
+ * the index of the fragment, the number of fragments, and then a part of the message.</p>
+ *
+ * <p>Fragments are sent as UTF-8, and are never trimmed by the receivers,
+ * since the parts of the message can start or end with whitespace.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class MessageFragmenter {
+
+    /** The first character of a fragment. */
+    public static final char FRAGMENT_MARKER = '^';
+
+    /** The max number of fragments in one message. */
+    public static final int MAX_FRAGMENTS = 64;
+
+    /** Room for the fragment header in each packet. */
+    private static final int MAX_HEADER_BYTES = 40;
+
+    /** The max number of message bytes in each fragment. */
+    private static final int MAX_FRAGMENT_BYTES = Constants.NETWORK_PACKET_SIZE - MAX_HEADER_BYTES;
+
+    /** The id of the next message to fragment. */
+    private final AtomicInteger messageIdCounter;
+
+    /**
+     * Constructor.
+     */
+    public MessageFragmenter() {
+        messageIdCounter = new AtomicInteger();
+    }
+
+    /**
+     * Checks if the message is too large to send in one packet.
+     *
+     * @param message The message to check.
+     * @return If the message must be fragmented to arrive intact.
+     */
+    public boolean isTooLarge(final String message) {
+        try {
+            return BinaryProtocol.toBytes(message).length > Constants.NETWORK_PACKET_SIZE;
+        }
+
+        catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Splits the message into fragments that each fit in one packet.
+     *
+     * @param message The message to split.
+     * @param userCode The unique code of the sender.
+     * @return The fragments, in order.
+     * @throws IllegalArgumentException If the message needs more than {@link #MAX_FRAGMENTS} fragments.
+     */
+    public List<String> fragment(final String message, final int userCode) {
+        final List<String> parts = new ArrayList<String>();
+        int start = 0;
+
+        while (start < message.length()) {
+            final int end = findEnd(message, start);
+            parts.add(message.substring(start, end));
+            start = end;
+        }
+
+        if (parts.size() > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("Message is too large to fragment: " + parts.size() + " fragments");
+        }
+
+        final int messageId = messageIdCounter.incrementAndGet();
+        final List<String> fragments = new ArrayList<String>(parts.size());
+
+        for (int i = 0; i < parts.size(); i++) {
+            fragments.add(String.valueOf(FRAGMENT_MARKER) + userCode + '.' + messageId + '.' + i + '.' + parts.size() +
+                    ':' + parts.get(i));
+        }
+
+        return fragments;
+    }
+
+    /**
+     * Finds where the fragment starting at <code>start</code> must end to stay within
+     * {@link #MAX_FRAGMENT_BYTES} when encoded as UTF-8. Surrogate pairs are never split.
+     *
+     * @param message The message to split.
+     * @param start The start of the fragment.
+     * @return The end of the fragment, exclusive.
+     */
+    private int findEnd(final String message, final int start) {
+        int bytes = 0;
+        int position = start;
+
+        while (position < message.length()) {
+            final char current = message.charAt(position);
+            final int charBytes;
+            final int charLength;
+
+            if (Character.isHighSurrogate(current) && position + 1 < message.length()) {
+                charBytes = 4;
+                charLength = 2;
+            } else if (current < 0x80) {
+                charBytes = 1;
+                charLength = 1;
+            } else if (current < 0x800) {
+                charBytes = 2;
+                charLength = 1;
+            } else {
+                charBytes = 3;
+                charLength = 1;
+            }
+
+            if (bytes + charBytes > MAX_FRAGMENT_BYTES) {
+                break;
+            }
+
+            bytes += charBytes;
+            position += charLength;
+        }
+
+        return position;
+    }
+
+    /**
+     * Checks if the message is a fragment.
+     *
+     * @param message The message to check.
+     * @return If the message is a fragment.
+     */
+    public static boolean isFragment(final String message) {
+        return message.length() > 0 && message.charAt(0) == FRAGMENT_MARKER;
+    }
+
+    /**
+     * Checks if the received packet is a fragment.
+     *
+     * @param firstByte The first byte of the packet.
+     * @return If the packet is a fragment.
+     */
+    public static boolean isFragment(final byte firstByte) {
+        return firstByte == FRAGMENT_MARKER;
+    }
+}
@@ -0,0 +1,316 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.util.Tools;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Queues outgoing multicast messages for a short linger time, and packs
+ * the queued messages into as few datagrams as possible.
+ *
+ * <p>A packed datagram starts with {@link #PACKED_MARKER}, followed by each message
+ * prefixed with its length in characters and {@link #LENGTH_SEPARATOR}.
+ * Example with two messages: <code>~21:12345678!IDLE#Nick:24:12345678!WRITING#Nick:</code>.</p>
+ *
+ * <p>Messages are only packed when all the other clients have advertised
+ * {@link ProtocolFeature#PACKING}. Older clients expect one message per packet,
+ * so the messages are sent directly when any of them are logged on.
+ * A batch with only one message is always sent unpacked.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class MessagePacker {
+
+    /** The first character of a packed datagram. Normal messages start with the user code. */
+    public static final char PACKED_MARKER = '~';
+
+    /** The separator between the message length and the message. */
+    public static final char LENGTH_SEPARATOR = ':';
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessagePacker.class.getName());
+
+    /** The sender of the datagrams. */
+    private final MessageSender messageSender;
+
+    /** The messages waiting to be sent. */
+    private final List<String> queue;
+
+    /** Timer for flushing the queue when the linger time is over. */
+    private final Timer flushTimer;
+
+    /** For checking if the other clients support packing. */
+    private PeerFeatures peerFeatures;
+
+    /** Milliseconds to wait for more messages before sending. 0 disables packing. */
+    private volatile int lingerTime;
+
+    /** The size of the queued messages as a packed datagram, in bytes. */
+    private int queuedBytes;
+
+    /** Identifies the current batch, so a delayed flush task does not flush the next batch too early. */
+    private long batch;
+
+    /**
+     * Constructor.
+     *
+     * @param messageSender The sender of the datagrams.
+     * @param lingerTime Milliseconds to wait for more messages before sending. 0 disables packing.
+     */
+    public MessagePacker(final MessageSender messageSender, final int lingerTime) {
+        Validate.notNull(messageSender, "MessageSender can not be null");
+
+        this.messageSender = messageSender;
+        this.lingerTime = lingerTime;
+
+        queue = new ArrayList<String>();
+        flushTimer = new Timer("MessagePackerTimer", true);
+    }
+
+    /**
+     * Sets the source of information about the features of the other clients.
+     * Nothing is packed until this is set.
+     *
+     * @param peerFeatures For checking if the other clients support packing.
+     */
+    public synchronized void setPeerFeatures(final PeerFeatures peerFeatures) {
+        this.peerFeatures = peerFeatures;
+    }
+
+    /**
+     * Sets the time to wait for more messages before sending.
+     *
+     * @param lingerTime Milliseconds to wait for more messages. 0 disables packing.
+     */
+    public void setLingerTime(final int lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * Sends the message, or queues it to be packed with the next messages.
+     *
+     * @param message The message to send.
+     * @return If the message was sent or queued for sending.
+     */
+    public synchronized boolean send(final String message) {
+        if (!isPackingEnabled()) {
+            flush();
+            return messageSender.send(message);
+        }
+
+        if (!messageSender.isConnected()) {
+            return false;
+        }
+
+        final int packedSize = getPackedSize(message);
+
+        // Too large to share a datagram with anything
+        if (packedSize + 1 > Constants.NETWORK_PACKET_SIZE) {
+            flush();
+            return messageSender.send(message);
+        }
+
+        if (1 + queuedBytes + packedSize > Constants.NETWORK_PACKET_SIZE) {
+            flush();
+        }
+
+        queue.add(message);
+        queuedBytes += packedSize;
+
+        if (queue.size() == 1) {
+            scheduleFlush();
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends the message in its own datagram, after the queued messages.
+     * Used for messages that must never be packed, like fragments.
+     *
+     * @param message The message to send.
+     * @return If the message was sent.
+     */
+    public synchronized boolean sendUnpacked(final String message) {
+        flush();
+        return messageSender.send(message);
+    }
+
+    /**
+     * Sends all the queued messages now.
+     */
+    public synchronized void flush() {
+        if (queue.isEmpty()) {
+            return;
+        }
+
+        final String datagram;
+
+        if (queue.size() == 1) {
+            datagram = queue.get(0);
+        } else {
+            datagram = pack(queue);
+        }
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Flushing " + queue.size() + " messages in one datagram");
+        }
+
+        queue.clear();
+        queuedBytes = 0;
+        batch++;
+
+        if (!messageSender.send(datagram)) {
+            LOG.log(Level.WARNING, "Could not send queued messages");
+        }
+    }
+
+    /**
+     * Checks if messages should be queued for packing now.
+     *
+     * @return If packing is enabled and supported by the other clients.
+     */
+    private boolean isPackingEnabled() {
+        return lingerTime > 0 && peerFeatures != null && peerFeatures.isSupportedByAllPeers(ProtocolFeature.PACKING);
+    }
+
+    /**
+     * Schedules a flush of the current batch when the linger time is over.
+     */
+    private void scheduleFlush() {
+        final long currentBatch = batch;
+
+        flushTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (MessagePacker.this) {
+                    if (batch == currentBatch) {
+                        flush();
+                    }
+                }
+            }
+        }, lingerTime);
+    }
+
+    /**
+     * Gets the number of bytes the message will use in a packed datagram,
+     * not including the marker.
+     *
+     * @param message The message to check.
+     * @return The size of the message with the length prefix.
+     */
+    private int getPackedSize(final String message) {
+        return Tools.getBytes(message) + Integer.toString(message.length()).length() + 1;
+    }
+
+    /**
+     * Packs the messages into one datagram.
+     *
+     * @param messages The messages to pack.
+     * @return The packed datagram.
+     */
+    public static String pack(final List<String> messages) {
+        final StringBuilder packed = new StringBuilder(Constants.NETWORK_PACKET_SIZE);
+        packed.append(PACKED_MARKER);
+
+        for (final String message : messages) {
+            packed.append(message.length()).append(LENGTH_SEPARATOR).append(message);
+        }
+
+        return packed.toString();
+    }
+
+    /**
+     * Checks if the datagram contains packed messages.
+     *
+     * @param datagram The datagram to check.
+     * @return If the datagram is packed.
+     */
+    public static boolean isPacked(final String datagram) {
+        return datagram.length() > 0 && datagram.charAt(0) == PACKED_MARKER;
+    }
+
+    /**
+     * Checks if a received datagram contains packed messages, from the first byte.
+     * Packed datagrams must not be trimmed, or the length of the last message would not match.
+     *
+     * @param firstByte The first byte of the received datagram.
+     * @return If the datagram is packed.
+     */
+    public static boolean isPacked(final byte firstByte) {
+        return firstByte == PACKED_MARKER;
+    }
+
+    /**
+     * Splits a packed datagram into the original messages. A truncated or corrupt
+     * message ends the unpacking, but the messages before it are returned.
+     *
+     * @param datagram The packed datagram.
+     * @return The messages in the datagram.
+     */
+    public static List<String> unpack(final String datagram) {
+        final List<String> messages = new ArrayList<String>();
+        int position = 1;
+
+        while (position < datagram.length()) {
+            final int separator = datagram.indexOf(LENGTH_SEPARATOR, position);
+
+            if (separator == -1) {
+                LOG.log(Level.WARNING, "Missing length in packed datagram: " + datagram);
+                break;
+            }
+
+            final int length;
+
+            try {
+                length = Integer.parseInt(datagram.substring(position, separator));
+            }
+
+            catch (final NumberFormatException e) {
+                LOG.log(Level.WARNING, "Invalid length in packed datagram: " + datagram);
+                break;
+            }
+
+            final int end = separator + 1 + length;
+
+            if (length < 0 || end > datagram.length()) {
+                LOG.log(Level.WARNING, "Truncated packed datagram: " + datagram);
+                break;
+            }
+
+            messages.add(datagram.substring(separator + 1, end));
+            position = end;
+        }
+
+        return messages;
+    }
+}
@@ -22,6 +22,8 @@
 
 package net.usikkert.lanchat.net;
 
+import java.util.Collections;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -55,6 +57,10 @@ import net.usikkert.lanchat.util.Validate;
  *   <li>SENDFILEABORT</li>
  *   <li>SENDFILE</li>
  *   <li>CLIENT</li>
+ *   <li>FEATURES</li>
+ *   <li>GETCLIENT</li>
+ *   <li>SENDFILERESUME</li>
+ *   <li>SENDFILEBATCH</li>
  * </ul>
  *
  * @author Shouvik Goswami
@@ -92,212 +98,284 @@ public class MessageParser implements ReceiverListener {
      * and then gives the correct data to the responder for
      * more processing.
      *
+     * <p>Messages in both the text and the binary protocol are supported.
+     * Only the header of the message is read before the message is filtered.
+     * Unknown types, own messages and messages addressed to other users are
+     * dropped without reading the rest of the message.</p>
+     *
      * @param message The raw message to parse.
      * @param ipAddress The IP address of the user who sent the message.
      */
     @Override
     public void messageArrived(final String message, final String ipAddress) {
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
-
-            final int msgCode = Integer.parseInt(message.substring(0, exclamation));
-            final String type = message.substring(exclamation + 1, hash);
-            final String msgNick = message.substring(hash + 1, colon);
-            final String msg = message.substring(colon + 1, message.length());
-
-            final User tempme = settings.getMe();
-
-            if (msgCode != tempme.getCode() && loggedOn) {
-                if (type.equals("MSG")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-
-                    responder.messageArrived(msgCode, msg.substring(rightBracket + 1, msg.length()), rgb);
-                }
-
-                else if (type.equals("LOGON")) {
-                    final User newUser = new User(msgNick, msgCode);
-                    newUser.setIpAddress(ipAddress);
-                    newUser.setLastIdle(System.currentTimeMillis());
-                    newUser.setLogonTime(System.currentTimeMillis());
-
-                    responder.userLogOn(newUser);
-                }
+            final MessageReader reader;
 
-                else if (type.equals("EXPOSING")) {
-                    final User user = new User(msgNick, msgCode);
-                    user.setIpAddress(ipAddress);
-                    user.setAwayMsg(msg);
+            if (BinaryProtocol.isBinary(message)) {
+                reader = new BinaryMessageReader(message);
+            } else {
+                reader = new TextMessageReader(message);
+            }
 
-                    if (msg.length() > 0) {
-                        user.setAway(true);
-                    }
+            final MessageType type = reader.getType();
 
-                    user.setLastIdle(System.currentTimeMillis());
-                    user.setLogonTime(System.currentTimeMillis());
+            if (type == null) {
+                LOG.log(Level.FINE, "Unknown message type from {0}", ipAddress);
+                return;
+            }
 
-                    responder.userExposing(user);
-                }
+            final int msgCode = reader.getCode();
+            final User tempme = settings.getMe();
 
-                else if (type.equals("LOGOFF")) {
-                    responder.userLogOff(msgCode);
-                }
+            if (msgCode == tempme.getCode()) {
+                parseMessageFromMe(type, ipAddress);
+            }
 
-                else if (type.equals("AWAY")) {
-                    responder.awayChanged(msgCode, true, msg);
-                }
+            else if (loggedOn && isForMe(reader, type, tempme)) {
+                parseMessageFromOtherUser(reader, type, msgCode, ipAddress, tempme);
+            }
+        }
 
-                else if (type.equals("BACK")) {
-                    responder.awayChanged(msgCode, false, "");
-                }
+        catch (final StringIndexOutOfBoundsException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
 
-                else if (type.equals("EXPOSE")) {
-                    responder.exposeRequested();
-                }
+        catch (final IllegalArgumentException e) {
+            LOG.log(Level.SEVERE, e.toString(), e);
+        }
+    }
 
-                else if (type.equals("NICKCRASH")) {
-                    if (tempme.getNick().equals(msg)) {
-                        responder.nickCrash();
-                    }
-                }
+    /**
+     * Checks if a message from another user should be parsed. Messages addressed to
+     * a single user start with the code of that user, and are dropped if it's someone else.
+     *
+     * @param reader The reader of the message.
+     * @param type The type of message.
+     * @param tempme The application user.
+     * @return If the message should be parsed.
+     */
+    private boolean isForMe(final MessageReader reader, final MessageType type, final User tempme) {
+        return !type.isAddressed() || reader.readNumber('(', ')') == tempme.getCode();
+    }
 
-                else if (type.equals("WRITING")) {
-                    responder.writingChanged(msgCode, true);
-                }
+    /**
+     * Handles the messages from <code>me</code> that are used to detect that the network works.
+     * Everything else sent by <code>me</code> is ignored.
+     *
+     * @param type The type of message.
+     * @param ipAddress The IP address the message was sent from.
+     */
+    private void parseMessageFromMe(final MessageType type, final String ipAddress) {
+        if (type == MessageType.LOGON) {
+            responder.meLogOn(ipAddress);
+            loggedOn = true;
+        }
 
-                else if (type.equals("STOPPEDWRITING")) {
-                    responder.writingChanged(msgCode, false);
-                }
+        else if (type == MessageType.IDLE && loggedOn) {
+            responder.meIdle(ipAddress);
+        }
+    }
 
-                else if (type.equals("GETTOPIC")) {
-                    responder.topicRequested();
+    /**
+     * Parses a message from another user than <code>me</code>, using the type to
+     * find the fields to read.
+     *
+     * @param reader The reader of the message.
+     * @param type The type of message.
+     * @param msgCode The unique code of the user who sent the message.
+     * @param ipAddress The IP address of the user who sent the message.
+     * @param tempme The application user.
+     */
+    private void parseMessageFromOtherUser(final MessageReader reader, final MessageType type, final int msgCode,
+            final String ipAddress, final User tempme) {
+        switch (type) {
+            case MSG:
+                final int rgb = (int) reader.readNumber('[', ']');
+                responder.messageArrived(msgCode, reader.readText(), rgb);
+                break;
+
+            case LOGON:
+                final User newUser = new User(reader.getNick(), msgCode);
+                newUser.setIpAddress(ipAddress);
+                newUser.setLastIdle(System.currentTimeMillis());
+                newUser.setLogonTime(System.currentTimeMillis());
+
+                responder.userLogOn(newUser);
+                break;
+
+            case EXPOSING:
+                final User user = new User(reader.getNick(), msgCode);
+                final String awayMsg = reader.readText();
+                user.setIpAddress(ipAddress);
+                user.setAwayMsg(awayMsg);
+
+                if (awayMsg.length() > 0) {
+                    user.setAway(true);
                 }
 
-                else if (type.equals("TOPIC")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
+                user.setLastIdle(System.currentTimeMillis());
+                user.setLogonTime(System.currentTimeMillis());
 
-                    if (rightBracket != -1 && leftBracket != -1) {
-                        final String theNick = msg.substring(leftPara + 1, rightPara);
-                        final long theTime = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        String theTopic = null;
+                responder.userExposing(user);
+                break;
 
-                        if (msg.length() > rightBracket + 1) {
-                            theTopic = msg.substring(rightBracket + 1, msg.length());
-                        }
+            case LOGOFF:
+                responder.userLogOff(msgCode);
+                break;
 
-                        responder.topicChanged(msgCode, theTopic, theNick, theTime);
-                    }
-                }
+            case AWAY:
+                responder.awayChanged(msgCode, true, reader.readText());
+                break;
 
-                else if (type.equals("NICK")) {
-                    responder.nickChanged(msgCode, msgNick);
-                }
+            case BACK:
+                responder.awayChanged(msgCode, false, "");
+                break;
 
-                else if (type.equals("IDLE")) {
-                    responder.userIdle(msgCode, ipAddress);
-                }
+            case EXPOSE:
+                responder.exposeRequested(msgCode);
+                break;
 
-                else if (type.equals("SENDFILEACCEPT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final int port = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-
-                        responder.fileSendAccepted(msgCode, fileName, fileHash, port);
-                    }
+            case NICKCRASH:
+                if (tempme.getNick().equals(reader.readText())) {
+                    responder.nickCrash();
                 }
 
-                else if (type.equals("SENDFILEABORT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSendAborted(msgCode, fileName, fileHash);
-                    }
-                }
+                break;
+
+            case WRITING:
+                responder.writingChanged(msgCode, true);
+                break;
+
+            case STOPPEDWRITING:
+                responder.writingChanged(msgCode, false);
+                break;
+
+            case GETTOPIC:
+                responder.topicRequested();
+                break;
+
+            case TOPIC:
+                parseTopic(reader, msgCode);
+                break;
+
+            case NICK:
+                responder.nickChanged(msgCode, reader.getNick());
+                break;
+
+            case IDLE:
+                responder.userIdle(msgCode, ipAddress);
+                break;
+
+            // The receiver of the file messages is checked in isForMe()
+            case SENDFILEACCEPT:
+                final int port = (int) reader.readNumber('[', ']');
+                final int acceptedFileHash = (int) reader.readNumber('{', '}');
+                responder.fileSendAccepted(msgCode, reader.readText(), acceptedFileHash, port);
+                break;
+
+            case SENDFILERESUME:
+                final int resumePort = (int) reader.readNumber('[', ']');
+                final int resumedFileHash = (int) reader.readNumber('{', '}');
+                final long offset = reader.readNumber('<', '>');
+                final long checksum = reader.readNumber('|', '|');
+                responder.fileSendResumed(msgCode, reader.readText(), resumedFileHash, resumePort, offset, checksum);
+                break;
+
+            case SENDFILEABORT:
+                final int abortedFileHash = (int) reader.readNumber('{', '}');
+                responder.fileSendAborted(msgCode, reader.readText(), abortedFileHash);
+                break;
+
+            case SENDFILE:
+                final long byteSize = reader.readNumber('[', ']');
+                final int fileHash = (int) reader.readNumber('{', '}');
+                responder.fileSend(msgCode, byteSize, reader.readText(), reader.getNick(), fileHash);
+                break;
+
+            case SENDFILEBATCH:
+                final long batchSize = reader.readNumber('[', ']');
+                final int batchHash = (int) reader.readNumber('{', '}');
+                final int fileCount = (int) reader.readNumber('<', '>');
+                responder.fileBatchSend(msgCode, batchSize, fileCount, reader.readText(), reader.getNick(), batchHash);
+                break;
+
+            case CLIENT:
+                parseClient(reader, msgCode);
+                break;
+
+            case FEATURES:
+                parseFeatures(reader, msgCode);
+                break;
+
+            // The receiver is checked in isForMe()
+            case GETCLIENT:
+                responder.clientRequested();
+                break;
+
+            default:
+                LOG.log(Level.FINE, "Ignoring message of type " + type + " from " + ipAddress);
+        }
+    }
 
-                else if (type.equals("SENDFILE")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int fileCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
-
-                    if (fileCode == tempme.getCode()) {
-                        final int leftCurly = msg.indexOf("{");
-                        final int rightCurly = msg.indexOf("}");
-                        final int leftBracket = msg.indexOf("[");
-                        final int rightBracket = msg.indexOf("]");
-                        final long byteSize = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                        final String fileName = msg.substring(rightCurly + 1, msg.length());
-                        final int fileHash = Integer.parseInt(msg.substring(leftCurly + 1, rightCurly));
-
-                        responder.fileSend(msgCode, byteSize, fileName, msgNick, fileHash);
-                    }
-                }
+    /**
+     * Parses a message with the current topic.
+     *
+     * @param reader The reader of the message.
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseTopic(final MessageReader reader, final int msgCode) {
+        final String theNick = reader.readText('(', ')');
+        final long theTime = reader.readNumber('[', ']');
+        String theTopic = reader.readText();
 
-                else if (type.equals("CLIENT")) {
-                    final int leftPara = msg.indexOf("(");
-                    final int rightPara = msg.indexOf(")");
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int leftCurly = msg.indexOf("{");
-                    final int rightCurly = msg.indexOf("}");
-                    final int lessThan = msg.indexOf("<");
-                    final int greaterThan = msg.indexOf(">");
+        if (theTopic.length() == 0) {
+            theTopic = null;
+        }
 
-                    final String client = msg.substring(leftPara + 1, rightPara);
-                    final long timeSinceLogon = Long.parseLong(msg.substring(leftBracket + 1, rightBracket));
-                    final String operatingSystem = msg.substring(leftCurly + 1, rightCurly);
+        responder.topicChanged(msgCode, theTopic, theNick, theTime);
+    }
 
-                    int privateChatPort = 0;
+    /**
+     * Parses a message with information about the client of another user.
+     *
+     * @param reader The reader of the message.
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseClient(final MessageReader reader, final int msgCode) {
+        final String client = reader.readText('(', ')');
+        final long timeSinceLogon = reader.readNumber('[', ']');
+        final String operatingSystem = reader.readText('{', '}');
 
-                    try {
-                        privateChatPort = Integer.parseInt(msg.substring(lessThan + 1, greaterThan));
-                    }
+        int privateChatPort = 0;
 
-                    catch (final NumberFormatException e) {
-                        LOG.log(Level.WARNING, e.toString());
-                    }
+        try {
+            privateChatPort = (int) reader.readNumber('<', '>');
+        }
 
-                    responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort);
-                }
-            }
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
 
-            else if (msgCode == tempme.getCode() && type.equals("LOGON")) {
-                responder.meLogOn(ipAddress);
-                loggedOn = true;
-            }
+        // Older clients don't send the feature list
+        Set<ProtocolFeature> features = Collections.emptySet();
 
-            else if (msgCode == tempme.getCode() && type.equals("IDLE") && loggedOn) {
-                responder.meIdle(ipAddress);
-            }
+        if (reader.hasField('|')) {
+            features = ProtocolFeature.parseFeatureList(reader.readText('|', '|'));
         }
 
-        catch (final StringIndexOutOfBoundsException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
-        }
+        responder.clientInfo(msgCode, client, timeSinceLogon, operatingSystem, privateChatPort, features);
+    }
 
-        catch (final NumberFormatException e) {
-            LOG.log(Level.SEVERE, e.toString(), e);
-        }
+    /**
+     * Parses a message with the private chat port and features of another user.
+     *
+     * @param reader The reader of the message.
+     * @param msgCode The unique code of the user who sent the message.
+     */
+    private void parseFeatures(final MessageReader reader, final int msgCode) {
+        final int privateChatPort = (int) reader.readNumber('<', '>');
+        final Set<ProtocolFeature> features = ProtocolFeature.parseFeatureList(reader.readText('|', '|'));
+
+        responder.clientFeatures(msgCode, privateChatPort, features);
     }
 }
@@ -0,0 +1,89 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+/**
+ * Reads the fields of a received message, in the same order as they were
+ * added to the {@link ProtocolMessage} by the sender.
+ *
+ * <p>Implementations throw {@link StringIndexOutOfBoundsException} or
+ * {@link IllegalArgumentException} if the message is badly formatted.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public interface MessageReader {
+
+    /**
+     * Gets the unique code of the sender.
+     *
+     * @return The code of the sender.
+     */
+    int getCode();
+
+    /**
+     * Gets the type of message.
+     *
+     * @return The type, or <code>null</code> if it's unknown.
+     */
+    MessageType getType();
+
+    /**
+     * Gets the nick name of the sender.
+     *
+     * @return The nick name, or <code>null</code> if not included in the message.
+     */
+    String getNick();
+
+    /**
+     * Reads the next number field.
+     *
+     * @param open The delimiter before the number in the text protocol.
+     * @param close The delimiter after the number in the text protocol.
+     * @return The number.
+     */
+    long readNumber(char open, char close);
+
+    /**
+     * Reads the next text field.
+     *
+     * @param open The delimiter before the text in the text protocol.
+     * @param close The delimiter after the text in the text protocol.
+     * @return The text.
+     */
+    String readText(char open, char close);
+
+    /**
+     * Reads the text at the end of the message.
+     *
+     * @return The text at the end, or an empty string if none.
+     */
+    String readText();
+
+    /**
+     * Checks if the message has another field.
+     *
+     * @param open The delimiter before the field in the text protocol.
+     * @return If there is another field.
+     */
+    boolean hasField(char open);
+}
@@ -0,0 +1,280 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Puts fragmented messages together again, before giving them to the next listener.
+ * Messages that are not fragments are given directly to the next listener.
+ *
+ * <p>The fragments of a message are kept until all of them have arrived, keyed by the user code
+ * of the sender and the id of the message. To limit the memory used, there is a max number of
+ * incomplete messages and characters kept at the same time. The oldest incomplete message is
+ * dropped to make room for new ones, and incomplete messages are dropped after
+ * {@link #FRAGMENT_TIMEOUT} milliseconds.</p>
+ *
+ * @author Shouvik Goswami
+ * @see MessageFragmenter
+ */
+public class MessageReassembler implements ReceiverListener {
+
+    /** Milliseconds to wait for the rest of the fragments of a message. */
+    public static final int FRAGMENT_TIMEOUT = 10000;
+
+    /** The max number of incomplete messages to keep. */
+    public static final int MAX_INCOMPLETE_MESSAGES = 32;
+
+    /** The max number of characters to keep in incomplete messages. */
+    public static final int MAX_INCOMPLETE_CHARS = 128 * 1024;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(MessageReassembler.class.getName());
+
+    /** The listener to give the complete messages to. */
+    private final ReceiverListener listener;
+
+    /** The incomplete messages, oldest first. */
+    private final Map<String, IncompleteMessage> incompleteMessages;
+
+    /** The number of characters in all the incomplete messages. */
+    private int incompleteChars;
+
+    /** The number of incomplete messages that were dropped. */
+    private long droppedMessages;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to give the complete messages to.
+     */
+    public MessageReassembler(final ReceiverListener listener) {
+        Validate.notNull(listener, "ReceiverListener can not be null");
+
+        this.listener = listener;
+        incompleteMessages = new LinkedHashMap<String, IncompleteMessage>();
+    }
+
+    /**
+     * Gives complete messages to the next listener, and keeps fragments
+     * until the rest of the message has arrived.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (!MessageFragmenter.isFragment(message)) {
+            listener.messageArrived(message, ipAddress);
+            return;
+        }
+
+        String completeMessage = null;
+
+        try {
+            completeMessage = addFragment(message);
+        }
+
+        catch (final StringIndexOutOfBoundsException e) {
+            LOG.log(Level.WARNING, "Invalid fragment from " + ipAddress + ": " + e);
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid fragment from " + ipAddress + ": " + e);
+        }
+
+        if (completeMessage != null) {
+            // The same as the receivers do with text messages that are not fragmented
+            if (BinaryProtocol.isTrimmed(completeMessage)) {
+                completeMessage = completeMessage.trim();
+            }
+
+            listener.messageArrived(completeMessage, ipAddress);
+        }
+    }
+
+    /**
+     * Adds the fragment to the incomplete message it's part of.
+     *
+     * @param fragment The fragment to add.
+     * @return The complete message, or <code>null</code> if there are more fragments to wait for.
+     */
+    private synchronized String addFragment(final String fragment) {
+        final int firstDot = fragment.indexOf('.');
+        final int secondDot = fragment.indexOf('.', firstDot + 1);
+        final int thirdDot = fragment.indexOf('.', secondDot + 1);
+        final int colon = fragment.indexOf(':', thirdDot + 1);
+
+        final String key = fragment.substring(1, secondDot);
+        final int index = Integer.parseInt(fragment.substring(secondDot + 1, thirdDot));
+        final int count = Integer.parseInt(fragment.substring(thirdDot + 1, colon));
+        final String part = fragment.substring(colon + 1);
+
+        if (count < 1 || count > MessageFragmenter.MAX_FRAGMENTS || index < 0 || index >= count) {
+            LOG.log(Level.WARNING, "Invalid fragment " + index + " of " + count + " in message " + key);
+            return null;
+        }
+
+        final long now = System.nanoTime();
+        removeExpiredMessages(now);
+
+        IncompleteMessage incompleteMessage = incompleteMessages.get(key);
+
+        if (incompleteMessage == null) {
+            while (incompleteMessages.size() >= MAX_INCOMPLETE_MESSAGES) {
+                removeOldestMessage();
+            }
+
+            incompleteMessage = new IncompleteMessage(count, now);
+            incompleteMessages.put(key, incompleteMessage);
+        }
+
+        else if (incompleteMessage.parts.length != count) {
+            LOG.log(Level.WARNING, "Fragment count changed in message " + key);
+            return null;
+        }
+
+        if (incompleteMessage.parts[index] == null) {
+            incompleteMessage.parts[index] = part;
+            incompleteMessage.received++;
+            incompleteMessage.chars += part.length();
+            incompleteChars += part.length();
+        }
+
+        if (incompleteMessage.received == count) {
+            incompleteMessages.remove(key);
+            incompleteChars -= incompleteMessage.chars;
+
+            return incompleteMessage.join();
+        }
+
+        while (incompleteChars > MAX_INCOMPLETE_CHARS && !incompleteMessages.isEmpty()) {
+            removeOldestMessage();
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes the messages that have waited too long for the rest of the fragments.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    private void removeExpiredMessages(final long now) {
+        final long timeout = TimeUnit.MILLISECONDS.toNanos(FRAGMENT_TIMEOUT);
+        final Iterator<IncompleteMessage> iterator = incompleteMessages.values().iterator();
+
+        while (iterator.hasNext()) {
+            final IncompleteMessage incompleteMessage = iterator.next();
+
+            // Oldest first, so the rest are newer
+            if (now - incompleteMessage.created < timeout) {
+                break;
+            }
+
+            iterator.remove();
+            dropped(incompleteMessage);
+        }
+    }
+
+    /**
+     * Removes the oldest incomplete message, to make room for new fragments.
+     */
+    private void removeOldestMessage() {
+        final Iterator<IncompleteMessage> iterator = incompleteMessages.values().iterator();
+        final IncompleteMessage oldest = iterator.next();
+        iterator.remove();
+        dropped(oldest);
+    }
+
+    /**
+     * Updates the statistics after dropping an incomplete message.
+     *
+     * @param incompleteMessage The dropped message.
+     */
+    private void dropped(final IncompleteMessage incompleteMessage) {
+        incompleteChars -= incompleteMessage.chars;
+        droppedMessages++;
+
+        LOG.log(Level.FINE, "Dropped incomplete message with " + incompleteMessage.received +
+                " of " + incompleteMessage.parts.length + " fragments");
+    }
+
+    /**
+     * Gets the number of incomplete messages waiting for more fragments.
+     *
+     * @return The number of incomplete messages.
+     */
+    public synchronized int getIncompleteMessages() {
+        return incompleteMessages.size();
+    }
+
+    /**
+     * Gets the number of incomplete messages dropped because of timeout or lack of space.
+     *
+     * @return The number of dropped messages.
+     */
+    public synchronized long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * A message waiting for more fragments.
+     */
+    private static final class IncompleteMessage {
+
+        /** The parts of the message. The missing ones are <code>null</code>. */
+        private final String[] parts;
+
+        /** When the first fragment arrived, from {@link System#nanoTime()}. */
+        private final long created;
+
+        /** The number of fragments received. */
+        private int received;
+
+        /** The number of characters received. */
+        private int chars;
+
+        IncompleteMessage(final int count, final long created) {
+            this.parts = new String[count];
+            this.created = created;
+        }
+
+        String join() {
+            final StringBuilder message = new StringBuilder(chars);
+
+            for (final String part : parts) {
+                message.append(part);
+            }
+
+            return message.toString();
+        }
+    }
+}
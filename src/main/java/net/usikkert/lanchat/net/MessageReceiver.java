@@ -41,7 +41,7 @@ import net.usikkert.lanchat.util.Tools;
  *
  * @author Shouvik Goswami
  */
-public class MessageReceiver implements Runnable {
+public class MessageReceiver implements MulticastReceiver, Runnable {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(MessageReceiver.class.getName());
@@ -107,17 +107,24 @@ public class MessageReceiver implements Runnable {
     /**
      * Waits for incoming packets, and notifies the listener when they arrive.
      */
+    @Override
     public void run() {
+        final DatagramPacket packet = new DatagramPacket(
+                new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
+
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
+                // The packet is reused, so the length of the last message must be reset
+                packet.setLength(Constants.NETWORK_PACKET_SIZE);
 
                 if (connected) {
                     mcSocket.receive(packet);
                     final String ip = packet.getAddress().getHostAddress();
-                    final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                    final String message = BinaryProtocol.fromBytes(packet.getData(), packet.getLength());
+
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                    }
 
                     if (listener != null) {
                         listener.messageArrived(message, ip);
@@ -157,6 +164,7 @@ public class MessageReceiver implements Runnable {
      * @param networkInterface The network interface to use, or <code>null</code>.
      * @return If connected to the network or not.
      */
+    @Override
     public synchronized boolean startReceiver(final NetworkInterface networkInterface) {
         LOG.log(Level.FINE, "Connecting to " + address.getHostAddress() + ":" + port + " on " + networkInterface);
 
@@ -206,6 +214,7 @@ public class MessageReceiver implements Runnable {
     /**
      * Disconnects from the network and closes the multicast socket.
      */
+    @Override
     public synchronized void stopReceiver() {
         LOG.log(Level.FINE, "Disconnecting from " + address.getHostAddress() + ":" + port);
 
@@ -241,6 +250,7 @@ public class MessageReceiver implements Runnable {
      *
      * @param listener The listener to register.
      */
+    @Override
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
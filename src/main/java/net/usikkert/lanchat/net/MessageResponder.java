@@ -22,6 +22,8 @@
 
 package net.usikkert.lanchat.net;
 
+import java.util.Set;
+
 import net.usikkert.lanchat.misc.User;
 
 /**
@@ -111,8 +113,10 @@ public interface MessageResponder {
     /**
      * A user has requested information about the other clients that are logged
      * on to the chat.
+     *
+     * @param userCode The unique code of the user who asked.
      */
-    void exposeRequested();
+    void exposeRequested(int userCode);
 
     /**
      * A user has started or stopped writing.
@@ -150,6 +154,18 @@ public interface MessageResponder {
      */
     void fileSend(int userCode, long byteSize, String fileName, String user, int fileHash);
 
+    /**
+     * A user is asking the application user to receive a batch of files and directories.
+     *
+     * @param userCode The unique code of the user who wants to send the files.
+     * @param byteSize The size of all the files in bytes.
+     * @param fileCount The number of files in the batch.
+     * @param batchName The name of the batch.
+     * @param user The nick name of the user.
+     * @param fileHash The hash code of the batch.
+     */
+    void fileBatchSend(int userCode, long byteSize, int fileCount, String batchName, String user, int fileHash);
+
     /**
      * A user has aborted a file transfer from the application user.
      *
@@ -169,6 +185,19 @@ public interface MessageResponder {
      */
     void fileSendAccepted(int userCode, String fileName, int fileHash, int port);
 
+    /**
+     * A user has accepted a file transfer from the application user, and wants
+     * to continue from the end of a partially received file.
+     *
+     * @param userCode The unique code of the user who accepted a file transfer.
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param port The port to use for connecting to the other user.
+     * @param offset The number of bytes the user has already received.
+     * @param checksum The checksum of the last bytes before the offset in the partial file.
+     */
+    void fileSendResumed(int userCode, String fileName, int fileHash, int port, long offset, long checksum);
+
     /**
      * A user has sent information about it's client.
      *
@@ -177,6 +206,22 @@ public interface MessageResponder {
      * @param timeSinceLogon Number of milliseconds since the user logged on.
      * @param operatingSystem The user's operating system.
      * @param privateChatPort The port to use for sending private chat messages to this user.
+     * @param features The optional protocol features the client supports.
+     */
+    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort,
+            Set<ProtocolFeature> features);
+
+    /**
+     * A user has sent the client information needed by the protocol.
+     *
+     * @param userCode The unique code of the user who sent the features.
+     * @param privateChatPort The port to use for sending private chat messages to this user.
+     * @param features The optional protocol features the client supports.
+     */
+    void clientFeatures(int userCode, int privateChatPort, Set<ProtocolFeature> features);
+
+    /**
+     * A user has asked for information about the client of the application user.
      */
-    void clientInfo(int userCode, String client, long timeSinceLogon, String operatingSystem, int privateChatPort);
+    void clientRequested();
 }
@@ -107,7 +107,7 @@ public class MessageSender {
     public synchronized boolean send(final String message) {
         if (connected) {
             try {
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
+                final byte[] encodedMsg = BinaryProtocol.toBytes(message);
                 final int size = encodedMsg.length;
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
@@ -130,6 +130,15 @@ public class MessageSender {
         return false;
     }
 
+    /**
+     * Checks if connected to the network.
+     *
+     * @return If connected to the network or not.
+     */
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
     /**
      * Connects to the network with the given network interface, or gives
      * the control to the operating system to choose if <code>null</code>
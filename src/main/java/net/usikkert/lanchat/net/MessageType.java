@@ -0,0 +1,189 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The types of messages sent over the network.
+ *
+ * <p>Each type has a name used in the text protocol, and an id used
+ * in the binary protocol. The ids must never change, since they are
+ * part of the network protocol.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public enum MessageType {
+
+    MSG(1, false, false),
+    LOGON(2, true, false),
+    EXPOSING(3, true, false),
+    LOGOFF(4, false, false),
+    AWAY(5, false, false),
+    BACK(6, false, false),
+    EXPOSE(7, false, false),
+    NICKCRASH(8, false, false),
+    WRITING(9, false, false),
+    STOPPEDWRITING(10, false, false),
+    GETTOPIC(11, false, false),
+    TOPIC(12, false, false),
+    NICK(13, true, false),
+    IDLE(14, false, false),
+    SENDFILEACCEPT(15, false, true),
+    SENDFILEABORT(16, false, true),
+    SENDFILE(17, true, true),
+    CLIENT(18, false, false),
+    PRIVMSG(19, false, true),
+    GETCLIENT(20, false, true),
+    FEATURES(21, false, false),
+    SENDFILERESUME(22, false, true),
+    SENDFILEBATCH(23, true, true);
+
+    /** The length of the longest type name. */
+    private static final int MAX_NAME_LENGTH = 14;
+
+    /** Lookup table from the length of the type name to the types with names of that length. */
+    private static final MessageType[][] TYPES_BY_NAME_LENGTH = new MessageType[MAX_NAME_LENGTH + 1][];
+
+    /** Lookup table from the type id to the type. */
+    private static final MessageType[] TYPES_BY_ID = new MessageType[32];
+
+    static {
+        final List<List<MessageType>> typesByNameLength = new ArrayList<List<MessageType>>();
+
+        for (int length = 0; length <= MAX_NAME_LENGTH; length++) {
+            typesByNameLength.add(new ArrayList<MessageType>());
+        }
+
+        for (final MessageType type : values()) {
+            typesByNameLength.get(type.name().length()).add(type);
+            TYPES_BY_ID[type.getId()] = type;
+        }
+
+        for (int length = 0; length <= MAX_NAME_LENGTH; length++) {
+            final List<MessageType> types = typesByNameLength.get(length);
+            TYPES_BY_NAME_LENGTH[length] = types.toArray(new MessageType[types.size()]);
+        }
+    }
+
+    /** The id used in the binary protocol. */
+    private final int id;
+
+    /** If the nick name of the sender is used by the receiver of this type of message. */
+    private final boolean nickUsed;
+
+    /** If the first field of this type of message is the code of the user the message is for. */
+    private final boolean addressed;
+
+    /**
+     * Constructor.
+     *
+     * @param id The id used in the binary protocol.
+     * @param nickUsed If the nick name of the sender is used by the receiver.
+     * @param addressed If the first field is the code of the user the message is for.
+     */
+    private MessageType(final int id, final boolean nickUsed, final boolean addressed) {
+        this.id = id;
+        this.nickUsed = nickUsed;
+        this.addressed = addressed;
+    }
+
+    /**
+     * Gets the id used in the binary protocol.
+     *
+     * @return The id of the type.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Checks if the receiver needs the nick name of the sender for this type of message.
+     * The binary protocol only includes the nick name when it's needed.
+     *
+     * @return If the nick name is used.
+     */
+    public boolean isNickUsed() {
+        return nickUsed;
+    }
+
+    /**
+     * Checks if the first field of this type of message is the code of the user
+     * the message is for. Other users can ignore the message without reading the rest.
+     *
+     * @return If the message is addressed to a single user.
+     */
+    public boolean isAddressed() {
+        return addressed;
+    }
+
+    /**
+     * Finds the message type with the name used in the text protocol.
+     *
+     * @param name The name of the type.
+     * @return The type, or <code>null</code> if it's unknown.
+     */
+    public static MessageType fromName(final String name) {
+        return fromName(name, 0, name.length());
+    }
+
+    /**
+     * Finds the message type with the name found in part of a message in the text protocol,
+     * without copying the name out of the message first.
+     *
+     * @param message The message with the name of the type.
+     * @param start The position of the first character of the name.
+     * @param end The position after the last character of the name.
+     * @return The type, or <code>null</code> if it's unknown.
+     */
+    public static MessageType fromName(final String message, final int start, final int end) {
+        final int length = end - start;
+
+        if (length < 0 || length > MAX_NAME_LENGTH) {
+            return null;
+        }
+
+        for (final MessageType type : TYPES_BY_NAME_LENGTH[length]) {
+            if (message.regionMatches(start, type.name(), 0, length)) {
+                return type;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the message type with the id used in the binary protocol.
+     *
+     * @param id The id of the type.
+     * @return The type, or <code>null</code> if it's unknown.
+     */
+    public static MessageType fromId(final int id) {
+        if (id < 0 || id >= TYPES_BY_ID.length) {
+            return null;
+        }
+
+        return TYPES_BY_ID[id];
+    }
+}
@@ -0,0 +1,63 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Splits packed datagrams into the separate messages, before giving
+ * them to the next listener. Other messages are given directly to the next listener.
+ *
+ * @author Shouvik Goswami
+ * @see MessagePacker
+ */
+public class MessageUnpacker implements ReceiverListener {
+
+    /** The listener to give the unpacked messages to. */
+    private final ReceiverListener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener to give the unpacked messages to.
+     */
+    public MessageUnpacker(final ReceiverListener listener) {
+        Validate.notNull(listener, "ReceiverListener can not be null");
+
+        this.listener = listener;
+    }
+
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (MessagePacker.isPacked(message)) {
+            for (final String unpackedMessage : MessagePacker.unpack(message)) {
+                listener.messageArrived(unpackedMessage, ipAddress);
+            }
+        }
+
+        else {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+}
@@ -68,8 +68,8 @@ public class Messages {
      * <p>Note: the network will be checked if this fails!</p>
      */
     public void sendIdleMessage() {
-        final String msg = createMessage("IDLE");
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.IDLE);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -84,8 +84,8 @@ public class Messages {
      * @param topic The new topic to send.
      */
     public void sendTopicChangeMessage(final Topic topic) {
-        final String msg = createTopicMessage(topic);
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createTopicMessage(topic);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -98,8 +98,8 @@ public class Messages {
      * @param topic The current topic to send.
      */
     public void sendTopicRequestedMessage(final Topic topic) {
-        final String msg = createTopicMessage(topic);
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createTopicMessage(topic);
+        sendMulticastMsg(msg);
     }
 
     /**
@@ -110,8 +110,8 @@ public class Messages {
      * @param awayMsg The away message to set.
      */
     public void sendAwayMessage(final String awayMsg) {
-        final String msg = createMessage("AWAY") + awayMsg;
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.AWAY).setText(awayMsg);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -124,8 +124,8 @@ public class Messages {
      * <p>Note: the network will be checked if this fails!</p>
      */
     public void sendBackMessage() {
-        final String msg = createMessage("BACK");
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.BACK);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -141,11 +141,11 @@ public class Messages {
      * @throws CommandException If the message was not sent successfully.
      */
     public void sendChatMessage(final String chatMsg) throws CommandException {
-        final String msg = createMessage("MSG") +
-                "[" + settings.getOwnColor() + "]" +
-                chatMsg;
+        final ProtocolMessage msg = createMessage(MessageType.MSG)
+                .addNumber('[', ']', settings.getOwnColor())
+                .setText(chatMsg);
 
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final boolean sent = sendReliableMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -157,56 +157,56 @@ public class Messages {
      * Sends a message to log this client on the network.
      */
     public void sendLogonMessage() {
-        final String msg = createMessage("LOGON");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.LOGON);
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message to log this client off the network.
      */
     public void sendLogoffMessage() {
-        final String msg = createMessage("LOGOFF");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.LOGOFF);
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message asking the other clients to identify themselves.
      */
     public void sendExposeMessage() {
-        final String msg = createMessage("EXPOSE");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.EXPOSE);
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message to identify this client.
      */
     public void sendExposingMessage() {
-        final String msg = createMessage("EXPOSING") + me.getAwayMsg();
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.EXPOSING).setText(me.getAwayMsg());
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message to ask for the current topic.
      */
     public void sendGetTopicMessage() {
-        final String msg = createMessage("GETTOPIC");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.GETTOPIC);
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message to notify that the user is writing.
      */
     public void sendWritingMessage() {
-        final String msg = createMessage("WRITING");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.WRITING);
+        sendMulticastMsg(msg);
     }
 
     /**
      * Sends a message to notify that the user has stopped writing.
      */
     public void sendStoppedWritingMessage() {
-        final String msg = createMessage("STOPPEDWRITING");
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.STOPPEDWRITING);
+        sendMulticastMsg(msg);
     }
 
     /**
@@ -217,8 +217,8 @@ public class Messages {
      * @param newNick The new nick to send.
      */
     public void sendNickMessage(final String newNick) {
-        final String msg = createMessage("NICK", newNick);
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.NICK, newNick);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -232,8 +232,8 @@ public class Messages {
      * @param crashNick The nick name that is already in use by the user.
      */
     public void sendNickCrashMessage(final String crashNick) {
-        final String msg = createMessage("NICKCRASH") + crashNick;
-        networkService.sendMulticastMsg(msg);
+        final ProtocolMessage msg = createMessage(MessageType.NICKCRASH).setText(crashNick);
+        sendMulticastMsg(msg);
     }
 
     /**
@@ -244,12 +244,12 @@ public class Messages {
      * @param fileName The name of the file.
      */
     public void sendFileAbort(final User user, final int fileHash, final String fileName) {
-        final String msg = createMessage("SENDFILEABORT") +
-                "(" + user.getCode() + ")" +
-                "{" + fileHash + "}" +
-                fileName;
+        final ProtocolMessage msg = createMessage(MessageType.SENDFILEABORT)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('{', '}', fileHash)
+                .setText(fileName);
 
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -271,13 +271,13 @@ public class Messages {
      */
     public void sendFileAccept(final User user, final int port,
             final int fileHash, final String fileName) throws CommandException {
-        final String msg = createMessage("SENDFILEACCEPT") +
-                "(" + user.getCode() + ")" +
-                "[" + port + "]" +
-                "{" + fileHash + "}" +
-                fileName;
+        final ProtocolMessage msg = createMessage(MessageType.SENDFILEACCEPT)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('[', ']', port)
+                .addNumber('{', '}', fileHash)
+                .setText(fileName);
 
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -285,6 +285,68 @@ public class Messages {
         }
     }
 
+    /**
+     * Sends a message to notify the file sender that you accepted the file transfer, and
+     * want to continue from the end of the partially received file. Only for users supporting
+     * {@link ProtocolFeature#RESUME}.
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param user The user sending a file.
+     * @param port The port the file sender can connect to on this client
+     *             to start the file transfer.
+     * @param fileHash The unique hash code of the file.
+     * @param fileName The name of the file.
+     * @param offset The number of bytes already received.
+     * @param checksum The checksum of the last bytes before the offset.
+     * @throws CommandException If the message was not sent successfully.
+     * @see PartialTransfers#calculateChecksum(File, long)
+     */
+    public void sendFileResume(final User user, final int port, final int fileHash, final String fileName,
+            final long offset, final long checksum) throws CommandException {
+        final ProtocolMessage msg = createMessage(MessageType.SENDFILERESUME)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('[', ']', port)
+                .addNumber('{', '}', fileHash)
+                .addNumber('<', '>', offset)
+                .addNumber('|', '|', checksum)
+                .setText(fileName);
+
+        final boolean sent = sendMulticastMsg(msg);
+
+        if (!sent) {
+            checkNetwork();
+            notifyUser("Failed to accept file transfer from " + user.getNick() + ": " + fileName);
+        }
+    }
+
+    /**
+     * Sends a message to notify another user that you want to send a batch of files and directories.
+     * Only for users supporting {@link ProtocolFeature#BATCH}.
+     *
+     * <p>Note: the network will be checked, and the user notified if this fails!</p>
+     *
+     * @param user The user asked to receive the files.
+     * @param batch The files to send.
+     * @param fileHash The hash that identifies the file transfer. See {@link FileSender#getFileHash()}.
+     * @throws CommandException If the message was not sent successfully.
+     */
+    public void sendFileBatch(final User user, final FileBatch batch, final int fileHash) throws CommandException {
+        final ProtocolMessage msg = createMessage(MessageType.SENDFILEBATCH)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('[', ']', batch.getTotalSize())
+                .addNumber('{', '}', fileHash)
+                .addNumber('<', '>', batch.getFileCount())
+                .setText(batch.getName());
+
+        final boolean sent = sendMulticastMsg(msg);
+
+        if (!sent) {
+            checkNetwork();
+            notifyUser("Failed to send files to " + user.getNick() + ": " + batch.getName());
+        }
+    }
+
     /**
      * Sends a message to notify another user that you want to send a file.
      *
@@ -292,16 +354,17 @@ public class Messages {
      *
      * @param user The user asked to receive a file.
      * @param file The file to send.
+     * @param fileHash The hash that identifies the file transfer. See {@link FileSender#getFileHash()}.
      * @throws CommandException If the message was not sent successfully.
      */
-    public void sendFile(final User user, final File file) throws CommandException {
-        final String msg = createMessage("SENDFILE") +
-                "(" + user.getCode() + ")" +
-                "[" + file.length() + "]" +
-                "{" + file.hashCode() + "}" +
-                file.getName();
+    public void sendFile(final User user, final File file, final int fileHash) throws CommandException {
+        final ProtocolMessage msg = createMessage(MessageType.SENDFILE)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('[', ']', file.length())
+                .addNumber('{', '}', fileHash)
+                .setText(file.getName());
 
-        final boolean sent = networkService.sendMulticastMsg(msg);
+        final boolean sent = sendMulticastMsg(msg);
 
         if (!sent) {
             checkNetwork();
@@ -317,16 +380,48 @@ public class Messages {
      *   <li>Client uptime.</li>
      *   <li>Operating system.</li>
      *   <li>Port to connect to for private chat.</li>
+     *   <li>Supported protocol features.</li>
      * </ul>
      */
     public void sendClient() {
-        final String msg = createMessage("CLIENT") +
-                "(" + me.getClient() + ")" +
-                "[" + (System.currentTimeMillis() - me.getLogonTime()) + "]" +
-                "{" + me.getOperatingSystem() + "}" +
-                "<" + me.getPrivateChatPort() + ">";
+        final ProtocolMessage msg = createMessage(MessageType.CLIENT)
+                .addText('(', ')', me.getClient())
+                .addNumber('[', ']', System.currentTimeMillis() - me.getLogonTime())
+                .addText('{', '}', me.getOperatingSystem())
+                .addNumber('<', '>', me.getPrivateChatPort())
+                .addText('|', '|', ProtocolFeature.toFeatureList(me.getFeatures()));
+
+        sendMulticastMsg(msg);
+    }
 
-        networkService.sendMulticastMsg(msg);
+    /**
+     * Sends a message with the client information needed by the protocol:
+     *
+     * <ul>
+     *   <li>Port to connect to for private chat.</li>
+     *   <li>Supported protocol features.</li>
+     * </ul>
+     *
+     * <p>The rest of the client information can be asked for with {@link #sendGetClientMessage(User)}.</p>
+     */
+    public void sendFeatures() {
+        final ProtocolMessage msg = createMessage(MessageType.FEATURES)
+                .addNumber('<', '>', me.getPrivateChatPort())
+                .addText('|', '|', ProtocolFeature.toFeatureList(me.getFeatures()));
+
+        sendMulticastMsg(msg);
+    }
+
+    /**
+     * Sends a message asking a user to send the client information.
+     *
+     * @param user The user to ask.
+     */
+    public void sendGetClientMessage(final User user) {
+        final ProtocolMessage msg = createMessage(MessageType.GETCLIENT)
+                .addNumber('(', ')', user.getCode());
+
+        sendMulticastMsg(msg);
     }
 
     /**
@@ -339,12 +434,19 @@ public class Messages {
      * @throws CommandException If the message was not sent successfully.
      */
     public void sendPrivateMessage(final String privMsg, final User user) throws CommandException {
-        final String msg = createMessage("PRIVMSG") +
-                "(" + user.getCode() + ")" +
-                "[" + settings.getOwnColor() + "]" +
-                privMsg;
-
-        final boolean sent = networkService.sendUDPMsg(msg, user.getIpAddress(), user.getPrivateChatPort());
+        final ProtocolMessage msg = createMessage(MessageType.PRIVMSG)
+                .addNumber('(', ')', user.getCode())
+                .addNumber('[', ']', settings.getOwnColor())
+                .setText(privMsg);
+
+        final String encodedMsg = encodeFor(msg, user);
+        final boolean sent;
+
+        if (user.supportsFeature(ProtocolFeature.FRAGMENTS)) {
+            sent = networkService.sendFragmentedUDPMsg(encodedMsg, user.getIpAddress(), user.getPrivateChatPort());
+        } else {
+            sent = networkService.sendUDPMsg(encodedMsg, user.getIpAddress(), user.getPrivateChatPort());
+        }
 
         if (!sent) {
             checkNetwork();
@@ -353,26 +455,26 @@ public class Messages {
     }
 
     /**
-     * Creates the standard part of all messages, with the specified type
+     * Creates a new message from this user, with the specified type
      * as the message type.
      *
      * @param type The message type.
-     * @return The standard part of the message.
+     * @return The new message.
      */
-    private String createMessage(final String type) {
+    private ProtocolMessage createMessage(final MessageType type) {
         return createMessage(type, me.getNick());
     }
 
     /**
-     * Creates the standard part of all messages, with the specified type
+     * Creates a new message from this user, with the specified type
      * as the message type, and a specified nick name.
      *
      * @param type The message type.
      * @param nick The nick name to use in the message.
-     * @return The standard part of the message.
+     * @return The new message.
      */
-    private String createMessage(final String type, final String nick) {
-        return me.getCode() + "!" + type + "#" + nick + ":";
+    private ProtocolMessage createMessage(final MessageType type, final String nick) {
+        return new ProtocolMessage(type, me.getCode(), nick);
     }
 
     /**
@@ -381,11 +483,58 @@ public class Messages {
      * @param topic The topic to use in the message.
      * @return The new message.
      */
-    private String createTopicMessage(final Topic topic) {
-        return createMessage("TOPIC") +
-                "(" + topic.getNick() + ")" +
-                "[" + topic.getTime() + "]" +
-                topic.getTopic();
+    private ProtocolMessage createTopicMessage(final Topic topic) {
+        return createMessage(MessageType.TOPIC)
+                .addText('(', ')', topic.getNick())
+                .addNumber('[', ']', topic.getTime())
+                .setText(topic.getTopic());
+    }
+
+    /**
+     * Sends the message with multicast. The binary protocol is used if all the other
+     * clients support it, and the text protocol is used if not.
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not.
+     */
+    private boolean sendMulticastMsg(final ProtocolMessage message) {
+        if (networkService.isSupportedByAllPeers(ProtocolFeature.BINARY)) {
+            return networkService.sendMulticastMsg(message.toBinary());
+        }
+
+        return networkService.sendMulticastMsg(message.toText());
+    }
+
+    /**
+     * Sends the message with multicast, with a sequence number so missing messages
+     * can be sent again. The binary protocol is used if all the other clients support it.
+     *
+     * @param message The message to send.
+     * @return If the message was sent or not.
+     * @see NetworkService#sendReliableMulticastMsg(String)
+     */
+    private boolean sendReliableMulticastMsg(final ProtocolMessage message) {
+        if (networkService.isSupportedByAllPeers(ProtocolFeature.BINARY)) {
+            return networkService.sendReliableMulticastMsg(message.toBinary());
+        }
+
+        return networkService.sendReliableMulticastMsg(message.toText());
+    }
+
+    /**
+     * Writes the message in the binary protocol if the user supports it,
+     * or in the text protocol if not.
+     *
+     * @param message The message to write.
+     * @param user The user who will receive the message.
+     * @return The message, ready to send.
+     */
+    private String encodeFor(final ProtocolMessage message, final User user) {
+        if (user.supportsFeature(ProtocolFeature.BINARY)) {
+            return message.toBinary();
+        }
+
+        return message.toText();
     }
 
     /**
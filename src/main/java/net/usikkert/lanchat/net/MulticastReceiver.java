@@ -0,0 +1,61 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.net.NetworkInterface;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+/**
+ * This is the interface for the classes that receive multicast messages
+ * for the main chat, and notify a listener when messages arrive.
+ *
+ * @author Shouvik Goswami
+ */
+public interface MulticastReceiver {
+
+    /**
+     * Connects to the network with the given network interface, or gives
+     * the control to the operating system to choose if <code>null</code>
+     * is given.
+     *
+     * <p>Will also start receiving messages in the background.</p>
+     *
+     * @param networkInterface The network interface to use, or <code>null</code>.
+     * @return If connected to the network or not.
+     */
+    boolean startReceiver(NetworkInterface networkInterface);
+
+    /**
+     * Disconnects from the network and stops receiving messages.
+     */
+    void stopReceiver();
+
+    /**
+     * Registers as the listener to receive all the messages from
+     * the network.
+     *
+     * @param listener The listener to register.
+     */
+    void registerReceiverListener(ReceiverListener listener);
+}
@@ -0,0 +1,502 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.ReceiverListener;
+
+/**
+ * A single threaded event loop for all the non-blocking network channels.
+ *
+ * <p>Datagram channels for the main chat and private chat, and the server channels
+ * waiting for file transfer connections, are registered here and serviced by
+ * one {@link Selector}, instead of each having a blocking thread of its own.</p>
+ *
+ * <ul>
+ *   <li>Datagrams are decoded into reused buffers and given to the registered {@link ReceiverListener}.</li>
+ *   <li>Accepted connections are given to the registered {@link AcceptListener}.</li>
+ *   <li>Readable socket channels are given to the registered {@link ReadListener}.</li>
+ * </ul>
+ *
+ * <p>The listeners are notified on the reactor thread, so they should return quickly.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class NetworkReactor implements Runnable {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(NetworkReactor.class.getName());
+
+    /** Max number of datagrams to read from one channel before the other ready channels get their turn. */
+    static final int MAX_DATAGRAMS_PER_SELECT = 64;
+
+    /** The reused buffer the datagrams are received into. */
+    private final ByteBuffer receiveBuffer;
+
+    /** The reused buffer the datagrams are decoded into. */
+    private final CharBuffer decodeBuffer;
+
+    /** The reused decoder for the message charset. */
+    private final CharsetDecoder decoder;
+
+    /** Changes to the registered channels, to be run on the reactor thread. */
+    private final Queue<Runnable> pendingChanges;
+
+    /** Tasks to run on the reactor thread when released channels are no longer registered. */
+    private final Queue<Runnable> pendingReleases;
+
+    /** The selector, or <code>null</code> if not started. */
+    private volatile Selector selector;
+
+    /** The reactor thread. */
+    private volatile Thread worker;
+
+    /** The address of the previous sender. */
+    private InetAddress lastSender;
+
+    /** The ip address of the previous sender, as a string. */
+    private String lastSenderIp;
+
+    /**
+     * Constructor.
+     */
+    public NetworkReactor() {
+        receiveBuffer = ByteBuffer.allocateDirect(Constants.NETWORK_PACKET_SIZE);
+        decodeBuffer = CharBuffer.allocate(Constants.NETWORK_PACKET_SIZE);
+        decoder = Charset.forName(Constants.MESSAGE_CHARSET).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        pendingChanges = new ConcurrentLinkedQueue<Runnable>();
+        pendingReleases = new ConcurrentLinkedQueue<Runnable>();
+    }
+
+    /**
+     * Waits for channels to become ready, and dispatches the events.
+     */
+    @Override
+    public void run() {
+        while (Thread.currentThread() == worker) {
+            try {
+                runPendingChanges();
+                selector.select();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid()) {
+                        dispatch(key);
+                    }
+                }
+
+                runPendingReleases();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+
+            // Happens when the reactor is stopped
+            catch (final ClosedSelectorException e) {
+                LOG.log(Level.FINE, e.toString());
+            }
+        }
+
+        LOG.log(Level.FINE, "Stopped.");
+    }
+
+    /**
+     * Runs all the channel registrations and cancellations requested from other threads.
+     */
+    private void runPendingChanges() {
+        Runnable change = pendingChanges.poll();
+
+        while (change != null) {
+            change.run();
+            change = pendingChanges.poll();
+        }
+    }
+
+    /**
+     * Runs the tasks waiting for released channels, after removing the cancelled keys from the selector.
+     *
+     * @throws IOException If the selector failed.
+     */
+    private void runPendingReleases() throws IOException {
+        if (pendingReleases.isEmpty()) {
+            return;
+        }
+
+        // Cancelled keys are only removed during a select
+        selector.selectNow();
+
+        Runnable release = pendingReleases.poll();
+
+        while (release != null) {
+            release.run();
+            release = pendingReleases.poll();
+        }
+    }
+
+    /**
+     * Gives the ready channel to the correct handler.
+     *
+     * @param key The selection key of the ready channel.
+     */
+    private void dispatch(final SelectionKey key) {
+        final Object attachment = key.attachment();
+
+        if (key.isReadable() && attachment instanceof ReceiverListener) {
+            readDatagrams((DatagramChannel) key.channel(), (ReceiverListener) attachment);
+        }
+
+        else if (key.isAcceptable() && attachment instanceof AcceptListener) {
+            acceptConnection((ServerSocketChannel) key.channel(), (AcceptListener) attachment);
+        }
+
+        else if (key.isReadable() && attachment instanceof ReadListener) {
+            ((ReadListener) attachment).channelReadable((SocketChannel) key.channel());
+        }
+    }
+
+    /**
+     * Reads the available datagrams from the channel, and notifies the listener.
+     *
+     * <p>At most {@link #MAX_DATAGRAMS_PER_SELECT} datagrams are read at a time, so a busy channel can't
+     * keep the reactor from accepting file transfer connections. The channel is still readable
+     * if there are more datagrams, so the rest are read after the next select.</p>
+     *
+     * @param channel The readable channel.
+     * @param listener The listener to notify.
+     */
+    private void readDatagrams(final DatagramChannel channel, final ReceiverListener listener) {
+        try {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            int count = 0;
+
+            while (sender != null) {
+                receiveBuffer.flip();
+                final String ip = getIpAddress((InetSocketAddress) sender);
+                final String message = decode(receiveBuffer);
+
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                }
+
+                listener.messageArrived(message, ip);
+                count++;
+
+                if (count >= MAX_DATAGRAMS_PER_SELECT) {
+                    break;
+                }
+
+                receiveBuffer.clear();
+                sender = channel.receive(receiveBuffer);
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+
+    /**
+     * Accepts a new connection, and gives it to the listener.
+     *
+     * @param channel The server channel with a pending connection.
+     * @param listener The listener to give the connection to.
+     */
+    private void acceptConnection(final ServerSocketChannel channel, final AcceptListener listener) {
+        try {
+            final SocketChannel connection = channel.accept();
+
+            if (connection != null) {
+                LOG.log(Level.FINE, "Accepted connection from " + connection.socket().getInetAddress());
+                listener.connectionAccepted(connection);
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+
+    /**
+     * Decodes the received bytes into a string, using the reused decoder and buffer.
+     *
+     * <p>Only the bytes that were actually received are decoded. Binary messages are copied
+     * with one character per byte, and only plain text messages are trimmed.</p>
+     *
+     * @param bytes The received bytes, ready to be read.
+     * @return The decoded message.
+     * @see BinaryProtocol#fromBytes(byte[], int)
+     */
+    private String decode(final ByteBuffer bytes) {
+        decodeBuffer.clear();
+
+        if (bytes.hasRemaining() && BinaryProtocol.isBinary(bytes.get(bytes.position()))) {
+            while (bytes.hasRemaining()) {
+                decodeBuffer.put((char) (bytes.get() & 0xFF));
+            }
+
+            decodeBuffer.flip();
+
+            return decodeBuffer.toString();
+        }
+
+        final boolean trimmed = bytes.hasRemaining() && BinaryProtocol.isTrimmed(bytes.get(bytes.position()));
+
+        decoder.reset();
+        decoder.decode(bytes, decodeBuffer, true);
+        decoder.flush(decodeBuffer);
+        decodeBuffer.flip();
+
+        if (trimmed) {
+            return decodeBuffer.toString().trim();
+        }
+
+        return decodeBuffer.toString();
+    }
+
+    /**
+     * Gets the ip address of the sender as a string. Since the same client usually
+     * sends many messages in a row, the string of the previous sender is reused.
+     *
+     * @param sender The socket address of the sender.
+     * @return The ip address of the sender.
+     */
+    private String getIpAddress(final InetSocketAddress sender) {
+        final InetAddress senderAddress = sender.getAddress();
+
+        if (!senderAddress.equals(lastSender)) {
+            lastSender = senderAddress;
+            lastSenderIp = senderAddress.getHostAddress();
+        }
+
+        return lastSenderIp;
+    }
+
+    /**
+     * Registers a datagram channel. Every datagram arriving on the channel is decoded
+     * and given to the listener.
+     *
+     * @param channel The channel to register. Will be made non-blocking.
+     * @param listener The listener to give the messages to.
+     * @throws IOException If the reactor could not be started, or the channel could not be made non-blocking.
+     */
+    public void registerDatagramChannel(final DatagramChannel channel, final ReceiverListener listener)
+            throws IOException {
+        register(channel, SelectionKey.OP_READ, listener);
+    }
+
+    /**
+     * Registers a server channel. Every accepted connection is given to the listener.
+     *
+     * @param channel The channel to register. Will be made non-blocking.
+     * @param listener The listener to give the accepted connections to.
+     * @throws IOException If the reactor could not be started, or the channel could not be made non-blocking.
+     */
+    public void registerServerChannel(final ServerSocketChannel channel, final AcceptListener listener)
+            throws IOException {
+        register(channel, SelectionKey.OP_ACCEPT, listener);
+    }
+
+    /**
+     * Registers a socket channel. The listener is notified every time there are bytes to read.
+     *
+     * @param channel The channel to register. Will be made non-blocking.
+     * @param listener The listener to notify.
+     * @throws IOException If the reactor could not be started, or the channel could not be made non-blocking.
+     */
+    public void registerSocketChannel(final SocketChannel channel, final ReadListener listener)
+            throws IOException {
+        register(channel, SelectionKey.OP_READ, listener);
+    }
+
+    /**
+     * Stops selecting on the channel without closing it. The task is run on the reactor thread
+     * when the channel is no longer registered, and can be made blocking again.
+     * Must be called on the reactor thread.
+     *
+     * @param channel The channel to release.
+     * @param released The task to run when the channel is released.
+     */
+    public void release(final SelectableChannel channel, final Runnable released) {
+        final SelectionKey key = channel.keyFor(selector);
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        pendingReleases.add(released);
+    }
+
+    /**
+     * Registers the channel with the selector, on the reactor thread.
+     *
+     * @param channel The channel to register.
+     * @param operations The operations to select.
+     * @param listener The listener to attach.
+     * @throws IOException If the reactor could not be started, or the channel could not be made non-blocking.
+     */
+    private void register(final SelectableChannel channel, final int operations, final Object listener)
+            throws IOException {
+        channel.configureBlocking(false);
+        start();
+
+        pendingChanges.add(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(selector, operations, listener);
+                }
+
+                catch (final ClosedChannelException e) {
+                    LOG.log(Level.FINE, "Channel closed before registration: " + e);
+                }
+            }
+        });
+
+        selector.wakeup();
+    }
+
+    /**
+     * Stops selecting on the channel, and closes it.
+     *
+     * @param channel The channel to close.
+     */
+    public void close(final SelectableChannel channel) {
+        try {
+            channel.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+
+        final Selector currentSelector = selector;
+
+        if (currentSelector != null) {
+            // Wake up so the cancelled key is removed from the selector
+            currentSelector.wakeup();
+        }
+    }
+
+    /**
+     * Starts the reactor thread, unless it's already running.
+     *
+     * @throws IOException If the selector could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (worker == null) {
+            LOG.log(Level.FINE, "Starting.");
+
+            selector = Selector.open();
+            worker = new Thread(this, "NetworkReactorWorker");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Stops the reactor thread, and closes the selector.
+     * Registered channels are not closed.
+     */
+    public synchronized void stop() {
+        if (worker != null) {
+            LOG.log(Level.FINE, "Stopping.");
+
+            worker = null;
+            selector.wakeup();
+
+            try {
+                selector.close();
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.WARNING, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Checks if the reactor thread is running.
+     *
+     * @return If the reactor is running.
+     */
+    public synchronized boolean isRunning() {
+        return worker != null && worker.isAlive();
+    }
+
+    /**
+     * Listener for connections accepted on a registered server channel.
+     */
+    public interface AcceptListener {
+
+        /**
+         * Called on the reactor thread when a new connection has been accepted.
+         *
+         * @param connection The accepted connection. Non-blocking.
+         */
+        void connectionAccepted(SocketChannel connection);
+    }
+
+    /**
+     * Listener for bytes to read on a registered socket channel.
+     */
+    public interface ReadListener {
+
+        /**
+         * Called on the reactor thread when there are bytes to read, or the connection was closed.
+         *
+         * @param channel The readable channel. Non-blocking.
+         */
+        void channelReadable(SocketChannel channel);
+    }
+}
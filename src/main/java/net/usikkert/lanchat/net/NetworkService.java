@@ -25,9 +25,11 @@ package net.usikkert.lanchat.net;
 import java.net.NetworkInterface;
 import java.util.logging.Logger;
 
+import net.usikkert.lanchat.Constants;
 import net.usikkert.lanchat.event.NetworkConnectionListener;
 import net.usikkert.lanchat.event.ReceiverListener;
 import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.util.Validate;
 
 /**
@@ -46,14 +48,44 @@ public class NetworkService implements NetworkConnectionListener {
     /** The multicast message sender. */
     private final MessageSender messageSender;
 
+    /** Splits messages that are too large for one packet. */
+    private final MessageFragmenter messageFragmenter;
+
+    /** The application user. */
+    private final User me;
+
+    /** Packs queued multicast messages into fewer datagrams. */
+    private final MessagePacker messagePacker;
+
     /** The multicast message receiver. */
-    private final MessageReceiver messageReceiver;
+    private final MulticastReceiver messageReceiver;
+
+    /** Hands the received multicast messages over to a separate thread. */
+    private final MessageDispatcher messageDispatcher;
+
+    /** Puts fragmented multicast messages together again. */
+    private final MessageReassembler messageReassembler;
+
+    /** Sequence numbers and retransmission of chat messages. */
+    private final ReliableMulticast reliableMulticast;
+
+    /** Limits the rate of multicast messages from each user. */
+    private final FloodProtection floodProtection;
 
     /** The private message sender. */
     private final UDPSender udpSender;
 
     /** The private message receiver. */
-    private final UDPReceiver udpReceiver;
+    private final PrivateMessageReceiver udpReceiver;
+
+    /** Hands the received private messages over to a separate thread. */
+    private final MessageDispatcher udpDispatcher;
+
+    /** The reactor for the non-blocking channels, or <code>null</code> if not using channels. */
+    private final NetworkReactor networkReactor;
+
+    /** For checking the protocol features of the other clients. */
+    private volatile PeerFeatures peerFeatures;
 
     /** If private chat should be enabled. */
     private final boolean privateChatEnabled;
@@ -69,19 +101,49 @@ public class NetworkService implements NetworkConnectionListener {
         LOG.fine("Initializing network");
 
         privateChatEnabled = !settings.isNoPrivateChat();
+        me = settings.getMe();
+        messageFragmenter = new MessageFragmenter();
+
+        if (settings.isNioReceiver()) {
+            LOG.fine("Using non-blocking channels");
+            networkReactor = new NetworkReactor();
+            messageReceiver = new ChannelMessageReceiver(networkReactor);
+        }
+
+        else {
+            networkReactor = null;
+            messageReceiver = new MessageReceiver();
+        }
+
+        reliableMulticast = new ReliableMulticast(this, me.getCode());
+        messageReassembler = new MessageReassembler(new MessageUnpacker(reliableMulticast));
+        floodProtection = new FloodProtection(me, settings.getFloodChatRate(),
+                settings.getFloodPresenceRate(), settings.getFloodControlRate());
+        floodProtection.registerReceiverListener(messageReassembler);
+        messageDispatcher = new MessageDispatcher("MessageDispatcherWorker", Constants.NETWORK_RECEIVE_QUEUE_SIZE);
+        messageDispatcher.registerReceiverListener(floodProtection);
+        messageReceiver.registerReceiverListener(messageDispatcher);
 
-        messageReceiver = new MessageReceiver();
         messageSender = new MessageSender();
+        messagePacker = new MessagePacker(messageSender, settings.getPackingLingerTime());
         connectionWorker = new ConnectionWorker(settings);
 
         if (privateChatEnabled) {
-            udpReceiver = new UDPReceiver(settings);
+            if (networkReactor != null) {
+                udpReceiver = new ChannelUDPReceiver(networkReactor, settings);
+            } else {
+                udpReceiver = new UDPReceiver(settings);
+            }
+
+            udpDispatcher = new MessageDispatcher("UDPDispatcherWorker", Constants.NETWORK_RECEIVE_QUEUE_SIZE);
+            udpReceiver.registerReceiverListener(udpDispatcher);
             udpSender = new UDPSender();
         }
 
         else {
             LOG.fine("Private chat is disabled");
             udpReceiver = null;
+            udpDispatcher = null;
             udpSender = null;
         }
 
@@ -99,6 +161,7 @@ public class NetworkService implements NetworkConnectionListener {
      * Stops the thread responsible for connecting to the network.
      */
     public void disconnect() {
+        messagePacker.flush();
         connectionWorker.stop();
     }
 
@@ -111,6 +174,15 @@ public class NetworkService implements NetworkConnectionListener {
         return connectionWorker;
     }
 
+    /**
+     * Gets the reactor for the non-blocking channels.
+     *
+     * @return The network reactor, or <code>null</code> if not using non-blocking channels.
+     */
+    public NetworkReactor getNetworkReactor() {
+        return networkReactor;
+    }
+
     /**
      * Checks if the connection thread is alive.
      *
@@ -141,31 +213,94 @@ public class NetworkService implements NetworkConnectionListener {
     /**
      * Register a listener for incoming messages from the network.
      *
+     * <p>The listener gets complete messages, one at a time, on a separate thread from the receiver.
+     * See {@link MessageDispatcher}. Users sending too many messages are limited first by
+     * {@link FloodProtection}, which also splits packed datagrams to limit each message in them.
+     * Then fragments are put together and the frames from {@link ReliableMulticast} are handled
+     * before the messages are given to the listener.</p>
+     *
      * @param listener The listener to register.
      */
     public void registerMessageReceiverListener(final ReceiverListener listener) {
-        messageReceiver.registerReceiverListener(listener);
+        reliableMulticast.registerReceiverListener(listener);
     }
 
     /**
      * Register a listener for incoming UDP messages from the network.
      *
+     * <p>The listener gets the messages on a separate thread from the receiver.
+     * Fragments are put together before the messages are given to the listener.</p>
+     *
      * @param listener The listener to register.
      */
     public void registerUDPReceiverListener(final ReceiverListener listener) {
         if (privateChatEnabled) {
-            udpReceiver.registerReceiverListener(listener);
+            udpDispatcher.registerReceiverListener(new MessageReassembler(listener));
         }
     }
 
+    /**
+     * Sets the source of information about the protocol features of the other clients.
+     * Used to find out when multicast messages can be packed together, and when
+     * the binary protocol can be used.
+     *
+     * @param peerFeatures For checking the features of the other clients.
+     */
+    public void setPeerFeatures(final PeerFeatures peerFeatures) {
+        this.peerFeatures = peerFeatures;
+        messagePacker.setPeerFeatures(peerFeatures);
+    }
+
+    /**
+     * Checks if all the other clients logged on to the network support the protocol feature.
+     *
+     * @param feature The feature to check.
+     * @return If every other client supports the feature.
+     */
+    public boolean isSupportedByAllPeers(final ProtocolFeature feature) {
+        final PeerFeatures currentPeerFeatures = peerFeatures;
+        return currentPeerFeatures != null && currentPeerFeatures.isSupportedByAllPeers(feature);
+    }
+
     /**
      * Send a message with multicast, to all users.
      *
+     * <p>The message might be queued for a few milliseconds to be packed together
+     * with other messages. See {@link MessagePacker}.</p>
+     *
      * @param message The message to send.
-     * @return If the message was sent or not.
+     * @return If the message was sent, or queued to be sent.
      */
     public boolean sendMulticastMsg(final String message) {
-        return messageSender.send(message);
+        if (messageFragmenter.isTooLarge(message) && isSupportedByAllPeers(ProtocolFeature.FRAGMENTS)) {
+            boolean sent = true;
+
+            for (final String fragment : messageFragmenter.fragment(message, me.getCode())) {
+                sent &= messagePacker.sendUnpacked(fragment);
+            }
+
+            return sent;
+        }
+
+        return messagePacker.send(message);
+    }
+
+    /**
+     * Send a chat message with multicast, to all users. The message gets a sequence number,
+     * so the other clients can ask for it again if it goes missing. See {@link ReliableMulticast}.
+     *
+     * <p>Sequence numbers are only used when all the other clients support
+     * {@link ProtocolFeature#RELIABLE}, and reliable multicast is enabled in the settings.</p>
+     *
+     * @param message The message to send.
+     * @return If the message was sent, or queued to be sent.
+     */
+    public boolean sendReliableMulticastMsg(final String message) {
+        if (me.supportsFeature(ProtocolFeature.RELIABLE) && isSupportedByAllPeers(ProtocolFeature.RELIABLE)) {
+            return sendMulticastMsg(reliableMulticast.wrap(message));
+        }
+
+        return sendMulticastMsg(message);
     }
 
     /**
@@ -186,6 +321,74 @@ public class NetworkService implements NetworkConnectionListener {
         }
     }
 
+    /**
+     * Send a message with UDP, to a single user that supports {@link ProtocolFeature#FRAGMENTS}.
+     * Messages that are too large for one packet are split into fragments.
+     *
+     * @param message The message to send.
+     * @param ip The ip address of the user.
+     * @param port The port to send the message to.
+     * @return If the message was sent or not.
+     */
+    public boolean sendFragmentedUDPMsg(final String message, final String ip, final int port) {
+        if (!messageFragmenter.isTooLarge(message)) {
+            return sendUDPMsg(message, ip, port);
+        }
+
+        boolean sent = true;
+
+        for (final String fragment : messageFragmenter.fragment(message, me.getCode())) {
+            sent &= sendUDPMsg(fragment, ip, port);
+        }
+
+        return sent;
+    }
+
+    /**
+     * Gets the reliability layer for the multicast messages.
+     *
+     * @return The reliable multicast.
+     */
+    public ReliableMulticast getReliableMulticast() {
+        return reliableMulticast;
+    }
+
+    /**
+     * Gets the rate limiter for the received multicast messages.
+     *
+     * @return The flood protection.
+     */
+    public FloodProtection getFloodProtection() {
+        return floodProtection;
+    }
+
+    /**
+     * Gets the dispatcher of the received multicast messages.
+     *
+     * @return The message dispatcher.
+     */
+    public MessageDispatcher getMessageDispatcher() {
+        return messageDispatcher;
+    }
+
+    /**
+     * Gets the dispatcher of the received private messages.
+     *
+     * @return The private message dispatcher, or <code>null</code> if private chat is disabled.
+     */
+    public MessageDispatcher getUDPDispatcher() {
+        return udpDispatcher;
+    }
+
+    /**
+     * Gets the reassembler for fragmented multicast messages.
+     *
+     * @return The message reassembler.
+     */
+    public MessageReassembler getMessageReassembler() {
+        return messageReassembler;
+    }
+
     /**
      * Checks the state of the network, and tries to keep the best possible
      * network connection up.
@@ -206,6 +409,7 @@ public class NetworkService implements NetworkConnectionListener {
             udpReceiver.stopReceiver();
         }
 
+        messagePacker.flush();
         messageSender.stopSender();
         messageReceiver.stopReceiver();
     }
@@ -0,0 +1,307 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps track of files that were only partially received, so the file transfer
+ * can continue where it stopped instead of starting over.
+ *
+ * <p>Each partial transfer is identified by the file name, hash code and size announced
+ * by the sender, and remembers the local file and the number of bytes saved.
+ * The list is saved to a file, so it survives a restart.</p>
+ *
+ * <p>Before a file transfer is resumed, the sender compares a checksum of the last bytes before
+ * the offset in the partial file with the same bytes in the original file, using
+ * {@link #calculateChecksum(File, long)}.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class PartialTransfers {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(PartialTransfers.class.getName());
+
+    /** Number of bytes before the offset to include in the checksum. */
+    public static final int CHECKSUM_SIZE = 1024 * 1024;
+
+    /** The separator between the fields in the keys and values. */
+    private static final String SEPARATOR = "/";
+
+    /** The file to save the partial transfers in, or <code>null</code> to only keep them in memory. */
+    private final File file;
+
+    /** The partial transfers. The value is the offset and the path of the local file. */
+    private final Properties transfers;
+
+    /**
+     * Constructor. Loads the partial transfers from the file.
+     *
+     * @param file The file to save the partial transfers in, or <code>null</code> to only keep them in memory.
+     */
+    public PartialTransfers(final File file) {
+        this.file = file;
+
+        transfers = new Properties();
+        load();
+    }
+
+    /**
+     * Remembers a partial transfer. The previous partial transfer of the same file is replaced.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     * @param partialFile The local file with the bytes received so far.
+     * @param offset The number of bytes saved in the local file.
+     */
+    public synchronized void add(final String fileName, final int fileHash, final long size,
+                                 final File partialFile, final long offset) {
+        transfers.setProperty(createKey(fileName, fileHash, size),
+                offset + SEPARATOR + partialFile.getAbsolutePath());
+        save();
+    }
+
+    /**
+     * Forgets a partial transfer.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     */
+    public synchronized void remove(final String fileName, final int fileHash, final long size) {
+        if (transfers.remove(createKey(fileName, fileHash, size)) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Gets the local file of a partial transfer.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     * @return The local file, or <code>null</code> if there is no partial transfer of the file.
+     */
+    public synchronized File getFile(final String fileName, final int fileHash, final long size) {
+        final String value = transfers.getProperty(createKey(fileName, fileHash, size));
+
+        if (value == null) {
+            return null;
+        }
+
+        return new File(value.substring(value.indexOf(SEPARATOR) + 1));
+    }
+
+    /**
+     * Gets the offset to resume a partial transfer from, if the local file is the partial file.
+     * The offset is never larger than the local file.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     * @param localFile The file to save to.
+     * @return The offset to resume from, or 0 if the transfer must start from the beginning.
+     */
+    public synchronized long getOffset(final String fileName, final int fileHash, final long size,
+                                       final File localFile) {
+        final String value = transfers.getProperty(createKey(fileName, fileHash, size));
+
+        if (value == null || !localFile.isFile()) {
+            return 0;
+        }
+
+        final int separator = value.indexOf(SEPARATOR);
+
+        if (!value.substring(separator + 1).equals(localFile.getAbsolutePath())) {
+            return 0;
+        }
+
+        try {
+            final long offset = Math.min(Long.parseLong(value.substring(0, separator)), localFile.length());
+            return offset < size ? Math.max(0, offset) : 0;
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid offset in partial transfer: " + value);
+            return 0;
+        }
+    }
+
+    /**
+     * Gets the number of partial transfers.
+     *
+     * @return The number of partial transfers.
+     */
+    public synchronized int size() {
+        return transfers.size();
+    }
+
+    /**
+     * Calculates a CRC32 checksum of the {@link #CHECKSUM_SIZE} bytes before the offset in the file,
+     * or all the bytes before the offset if the offset is smaller.
+     *
+     * @param checkedFile The file to calculate the checksum of.
+     * @param offset The offset to stop at.
+     * @return The checksum.
+     * @throws IOException If the file could not be read, or is shorter than the offset.
+     */
+    public static long calculateChecksum(final File checkedFile, final long offset) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(checkedFile, "r");
+
+        try {
+            final FileChannel channel = raf.getChannel();
+
+            if (channel.size() < offset) {
+                throw new IOException(checkedFile.getName() + " is shorter than " + offset + " bytes");
+            }
+
+            final int length = (int) Math.min(CHECKSUM_SIZE, offset);
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            long position = offset - length;
+
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, position);
+
+                if (read == -1) {
+                    throw new IOException("Unexpected end of " + checkedFile.getName());
+                }
+
+                position += read;
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, length);
+
+            return crc.getValue();
+        }
+
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Creates the key of a partial transfer.
+     *
+     * @param fileName The name of the file.
+     * @param fileHash The hash code of the file.
+     * @param size The size of the file.
+     * @return The key.
+     */
+    private String createKey(final String fileName, final int fileHash, final long size) {
+        return fileHash + SEPARATOR + size + SEPARATOR + fileName;
+    }
+
+    /**
+     * Loads the partial transfers from the file. Partial transfers where the local file
+     * no longer exists are skipped.
+     */
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        FileInputStream fileStream = null;
+
+        try {
+            final Properties fileContents = new Properties();
+            fileStream = new FileInputStream(file);
+            fileContents.load(fileStream);
+
+            for (final String key : fileContents.stringPropertyNames()) {
+                final String value = fileContents.getProperty(key);
+                final int separator = value.indexOf(SEPARATOR);
+
+                if (separator > 0 && new File(value.substring(separator + 1)).isFile()) {
+                    transfers.setProperty(key, value);
+                }
+            }
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not load partial transfers: " + e);
+        }
+
+        finally {
+            try {
+                if (fileStream != null) {
+                    fileStream.close();
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+
+    /**
+     * Saves the partial transfers to the file. Creates the folder if it's missing.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+
+        final File folder = file.getParentFile();
+
+        if (folder != null && !folder.exists()) {
+            folder.mkdir();
+        }
+
+        FileOutputStream fileStream = null;
+
+        try {
+            fileStream = new FileOutputStream(file);
+            transfers.store(fileStream, "Partially received files");
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, "Could not save partial transfers: " + e);
+        }
+
+        finally {
+            try {
+                if (fileStream != null) {
+                    fileStream.close();
+                }
+            }
+
+            catch (final IOException e) {
+                LOG.log(Level.SEVERE, e.toString(), e);
+            }
+        }
+    }
+}
@@ -73,30 +73,27 @@ public class PrivateMessageParser implements ReceiverListener {
     @Override
     public void messageArrived(final String message, final String ipAddress) {
         try {
-            final int exclamation = message.indexOf("!");
-            final int hash = message.indexOf("#");
-            final int colon = message.indexOf(":");
+            final MessageReader reader;
 
-            final int fromCode = Integer.parseInt(message.substring(0, exclamation));
-
-            final String type = message.substring(exclamation + 1, hash);
-            final String msg = message.substring(colon + 1, message.length());
+            if (BinaryProtocol.isBinary(message)) {
+                reader = new BinaryMessageReader(message);
+            } else {
+                reader = new TextMessageReader(message);
+            }
 
-            final int leftPara = msg.indexOf("(");
-            final int rightPara = msg.indexOf(")");
-            final int toCode = Integer.parseInt(msg.substring(leftPara + 1, rightPara));
+            // Only the header and the receiver is read before the message is filtered
+            if (reader.getType() != MessageType.PRIVMSG) {
+                return;
+            }
 
+            final int fromCode = reader.getCode();
             final User tempme = settings.getMe();
 
-            if (fromCode != tempme.getCode() && toCode == tempme.getCode()) {
-                if (type.equals("PRIVMSG")) {
-                    final int leftBracket = msg.indexOf("[");
-                    final int rightBracket = msg.indexOf("]");
-                    final int rgb = Integer.parseInt(msg.substring(leftBracket + 1, rightBracket));
-                    final String privmsg = msg.substring(rightBracket + 1, msg.length());
+            if (fromCode != tempme.getCode() && reader.readNumber('(', ')') == tempme.getCode()) {
+                final int rgb = (int) reader.readNumber('[', ']');
+                final String privmsg = reader.readText();
 
-                    privmsgResponder.messageArrived(fromCode, privmsg, rgb);
-                }
+                privmsgResponder.messageArrived(fromCode, privmsg, rgb);
             }
         }
 
@@ -106,7 +103,7 @@ public class PrivateMessageParser implements ReceiverListener {
         }
 
         // Just ignore, someone sent a badly formatted message
-        catch (final NumberFormatException e) {
+        catch (final IllegalArgumentException e) {
             LOG.log(Level.SEVERE, e.toString(), e);
         }
     }
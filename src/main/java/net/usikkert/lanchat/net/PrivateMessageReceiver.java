@@ -0,0 +1,53 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+/**
+ * This is the interface for the classes that receive udp messages
+ * sent directly to this client, for the private chat.
+ *
+ * @author Shouvik Goswami
+ */
+public interface PrivateMessageReceiver {
+
+    /**
+     * Starts listening on the first available private chat port,
+     * and updates the private chat port of the application user.
+     */
+    void startReceiver();
+
+    /**
+     * Stops listening for private messages.
+     */
+    void stopReceiver();
+
+    /**
+     * Sets the listener who will receive all the messages
+     * from the udp packets.
+     *
+     * @param listener The object to register as a listener.
+     */
+    void registerReceiverListener(ReceiverListener listener);
+}
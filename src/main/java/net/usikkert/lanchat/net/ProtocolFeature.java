@@ -0,0 +1,160 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The optional protocol features a client can support. The supported features
+ * are advertised to the other clients in the <code>CLIENT</code> message,
+ * and a feature is only used when all the receivers have advertised it.
+ *
+ * <p>Older clients advertise no features, and only understand
+ * one plain text message per packet.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public enum ProtocolFeature {
+
+    /** Several messages packed into one datagram. See {@link MessagePacker}. */
+    PACKING("pack"),
+
+    /** The compact binary protocol. See {@link BinaryProtocol}. */
+    BINARY("v2"),
+
+    /** Messages too large for one packet are split in fragments. See {@link MessageFragmenter}. */
+    FRAGMENTS("frag"),
+
+    /** Chat messages with sequence numbers, and NACKs to ask for missing messages. See {@link ReliableMulticast}. */
+    RELIABLE("rel"),
+
+    /**
+     * Only the private chat port and the features are sent as a response to <code>EXPOSE</code>,
+     * in a <code>FEATURES</code> message. The rest of the client information is asked for with
+     * <code>GETCLIENT</code> when needed.
+     */
+    LAZY_CLIENT("lazy"),
+
+    /** The interval between idle messages, and the timeout, grows with the number of users. See {@link net.usikkert.lanchat.misc.IdleInterval}. */
+    ADAPTIVE_IDLE("aidle"),
+
+    /**
+     * Partially received files are resumed from where they stopped, using <code>SENDFILERESUME</code>
+     * instead of <code>SENDFILEACCEPT</code>. See {@link PartialTransfers}.
+     */
+    RESUME("resume"),
+
+    /** Files are sent in segments over one or more connections. See {@link SegmentedSender}. */
+    SEGMENTS("seg"),
+
+    /** The checksum of the file is sent after the file, and checked by the receiver. See {@link TransferChecksum}. */
+    CHECKSUM("crc"),
+
+    /**
+     * Many files and directories are sent in one file transfer, announced with <code>SENDFILEBATCH</code>.
+     * See {@link FileBatch}.
+     */
+    BATCH("batch"),
+
+    /**
+     * Files are sent in blocks that are compressed when that makes the transfer faster.
+     * Only advertised when compression is enabled in the settings. See {@link CompressedOutputStream}.
+     */
+    DEFLATE("deflate"),
+
+    /**
+     * File transfers connect to one shared port, and start with a token that tells which file transfer
+     * the connection is for. See {@link FileTransferServer}.
+     */
+    SHARED_PORT("port");
+
+    /** The separator between the features in the feature list. */
+    private static final String SEPARATOR = ",";
+
+    /** The name of the feature, as used in the network messages. */
+    private final String featureName;
+
+    /**
+     * Constructor.
+     *
+     * @param featureName The name of the feature, as used in the network messages.
+     */
+    private ProtocolFeature(final String featureName) {
+        this.featureName = featureName;
+    }
+
+    /**
+     * Gets the name of the feature, as used in the network messages.
+     *
+     * @return The name of the feature.
+     */
+    public String getFeatureName() {
+        return featureName;
+    }
+
+    /**
+     * Creates a comma separated list of the features, to send over the network.
+     *
+     * @param features The features to list.
+     * @return The features as a string.
+     */
+    public static String toFeatureList(final Set<ProtocolFeature> features) {
+        final StringBuilder featureList = new StringBuilder();
+
+        for (final ProtocolFeature feature : features) {
+            if (featureList.length() > 0) {
+                featureList.append(SEPARATOR);
+            }
+
+            featureList.append(feature.getFeatureName());
+        }
+
+        return featureList.toString();
+    }
+
+    /**
+     * Parses a comma separated list of features received from the network.
+     * Unknown features are ignored, since they are from newer clients.
+     *
+     * @param featureList The features as a string.
+     * @return The known features in the list.
+     */
+    public static Set<ProtocolFeature> parseFeatureList(final String featureList) {
+        final Set<ProtocolFeature> features = EnumSet.noneOf(ProtocolFeature.class);
+
+        if (featureList == null) {
+            return features;
+        }
+
+        for (final String featureName : featureList.split(SEPARATOR)) {
+            for (final ProtocolFeature feature : values()) {
+                if (feature.getFeatureName().equals(featureName.trim())) {
+                    features.add(feature);
+                }
+            }
+        }
+
+        return features;
+    }
+}
@@ -0,0 +1,267 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * A message to send over the network, that can be written in both the text
+ * protocol and the binary protocol.
+ *
+ * <p>The fields are added in the order they appear in the message. In the text protocol,
+ * each field is surrounded by the given delimiters, like <code>(1234)</code>, and the
+ * text at the end is added without delimiters. In the binary protocol the delimiters
+ * are left out, since every field has a known length. See {@link BinaryProtocol}.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class ProtocolMessage {
+
+    /** The type of message. */
+    private final MessageType type;
+
+    /** The unique code of the sender. */
+    private final int code;
+
+    /** The nick name of the sender. */
+    private final String nick;
+
+    /** The fields in the message, in order. */
+    private final List<Field> fields;
+
+    /** The text at the end of the message, or <code>null</code> if none. */
+    private String text;
+
+    /**
+     * Constructor.
+     *
+     * @param type The type of message.
+     * @param code The unique code of the sender.
+     * @param nick The nick name of the sender.
+     */
+    public ProtocolMessage(final MessageType type, final int code, final String nick) {
+        Validate.notNull(type, "Type can not be null");
+
+        this.type = type;
+        this.code = code;
+        this.nick = nick;
+
+        fields = new ArrayList<Field>(5);
+    }
+
+    /**
+     * Adds a number field.
+     *
+     * @param open The delimiter before the number in the text protocol.
+     * @param close The delimiter after the number in the text protocol.
+     * @param number The number.
+     * @return This message.
+     */
+    public ProtocolMessage addNumber(final char open, final char close, final long number) {
+        fields.add(new Field(open, close, number, null));
+        return this;
+    }
+
+    /**
+     * Adds a text field.
+     *
+     * @param open The delimiter before the text in the text protocol.
+     * @param close The delimiter after the text in the text protocol.
+     * @param fieldText The text.
+     * @return This message.
+     */
+    public ProtocolMessage addText(final char open, final char close, final String fieldText) {
+        fields.add(new Field(open, close, 0, String.valueOf(fieldText)));
+        return this;
+    }
+
+    /**
+     * Sets the text at the end of the message.
+     *
+     * @param endText The text at the end.
+     * @return This message.
+     */
+    public ProtocolMessage setText(final String endText) {
+        text = String.valueOf(endText);
+        return this;
+    }
+
+    /**
+     * Gets the type of message.
+     *
+     * @return The type.
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Writes the message in the text protocol, like <code>1234!MSG#Nick:[-1]Hello</code>.
+     *
+     * @return The message as text.
+     */
+    public String toText() {
+        final StringBuilder message = new StringBuilder(64);
+        message.append(code).append('!').append(type.name()).append('#').append(nick).append(':');
+
+        for (final Field field : fields) {
+            message.append(field.open);
+
+            if (field.text == null) {
+                message.append(field.number);
+            } else {
+                message.append(field.text);
+            }
+
+            message.append(field.close);
+        }
+
+        if (text != null) {
+            message.append(text);
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Writes the message in the binary protocol.
+     *
+     * @return The message as binary, with one character per byte.
+     */
+    public String toBinary() {
+        final StringBuilder message = new StringBuilder(32);
+        message.append((char) BinaryProtocol.MAGIC);
+        message.append((char) BinaryProtocol.VERSION);
+        message.append((char) type.getId());
+        appendNumber(message, code);
+
+        if (type.isNickUsed()) {
+            appendText(message, nick);
+        }
+
+        for (final Field field : fields) {
+            if (field.text == null) {
+                appendNumber(message, field.number);
+            } else {
+                appendText(message, field.text);
+            }
+        }
+
+        if (text != null) {
+            appendText(message, text);
+        }
+
+        return message.toString();
+    }
+
+    /**
+     * Appends a zigzag encoded varint.
+     *
+     * @param message The message to append to.
+     * @param number The number to append.
+     */
+    static void appendNumber(final StringBuilder message, final long number) {
+        long value = (number << 1) ^ (number >> 63);
+
+        while ((value & ~0x7FL) != 0) {
+            message.append((char) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        message.append((char) value);
+    }
+
+    /**
+     * Appends the length of the text in bytes followed by the text in UTF-8.
+     *
+     * @param message The message to append to.
+     * @param fieldText The text to append.
+     */
+    static void appendText(final StringBuilder message, final String fieldText) {
+        if (isAscii(fieldText)) {
+            appendNumber(message, fieldText.length());
+            message.append(fieldText);
+        }
+
+        else {
+            try {
+                final byte[] bytes = fieldText.getBytes(Constants.MESSAGE_CHARSET);
+                appendNumber(message, bytes.length);
+
+                for (final byte b : bytes) {
+                    message.append((char) (b & 0xFF));
+                }
+            }
+
+            catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Checks if the text only contains ascii characters, which are the same in UTF-8.
+     *
+     * @param fieldText The text to check.
+     * @return If the text is ascii.
+     */
+    private static boolean isAscii(final String fieldText) {
+        for (int i = 0; i < fieldText.length(); i++) {
+            if (fieldText.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A field in the message.
+     */
+    private static final class Field {
+
+        /** The delimiter before the field in the text protocol. */
+        private final char open;
+
+        /** The delimiter after the field in the text protocol. */
+        private final char close;
+
+        /** The value of a number field. */
+        private final long number;
+
+        /** The value of a text field, or <code>null</code> if it's a number field. */
+        private final String text;
+
+        Field(final char open, final char close, final long number, final String text) {
+            this.open = open;
+            this.close = close;
+            this.number = number;
+            this.text = text;
+        }
+    }
+}
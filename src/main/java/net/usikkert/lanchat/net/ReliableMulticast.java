@@ -0,0 +1,745 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * An optional reliability layer for multicast messages.
+ *
+ * <p>Messages sent with {@link #wrap(String)} get a sequence number from this client,
+ * and are kept in a bounded retransmit buffer. Receivers keep a window of the sequence
+ * numbers received from each sender. When a gap is detected, a NACK is sent to ask the
+ * sender to send the missing messages again. Duplicates are dropped.</p>
+ *
+ * <p>A gap is kept until the missing messages arrive. The NACK is sent after a random delay of up to
+ * {@link #NACK_DELAY} milliseconds, and sent again with backoff, starting at {@link #NACK_RETRY_TIME}
+ * milliseconds, at most {@link #MAX_NACK_ATTEMPTS} times. The NACK or the messages sent again could
+ * be lost too. When another receiver asks for the same messages first, the NACK counts as sent, so
+ * a loss seen by many receivers does not make all of them ask at once.</p>
+ *
+ * <p>The frames look like this:</p>
+ *
+ * <ul>
+ *   <li>Data: <code>&amp;D12345678.42:message</code> - the sender code, the sequence number and the message.</li>
+ *   <li>NACK: <code>&amp;N12345678.87654321.40.41</code> - the code of the user asking, the code of the
+ *       sender of the missing messages, and the first and last missing sequence number.</li>
+ * </ul>
+ *
+ * <p>Messages are given to the next listener as soon as they arrive, so a message sent again
+ * arrives after the messages sent after it. A gap is only detected when the next message
+ * from the same sender arrives. This is intended: there are no heartbeats with the latest sequence
+ * number, to keep the layer free when nobody is chatting. The loss of the last messages before
+ * a sender goes quiet is therefore not detected until the sender sends another message with this layer.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class ReliableMulticast implements ReceiverListener {
+
+    /** The first character of all the frames. */
+    public static final char FRAME_MARKER = '&';
+
+    /** The number of sent messages to keep for sending again. */
+    public static final int RETRANSMIT_BUFFER_SIZE = 256;
+
+    /** The number of sequence numbers to keep track of from each sender. */
+    public static final int RECEIVE_WINDOW_SIZE = 256;
+
+    /** The max number of senders to keep track of. */
+    public static final int MAX_SENDERS = 512;
+
+    /** The max number of messages to ask for in one NACK. */
+    public static final int MAX_NACK_RANGE = 64;
+
+    /** Milliseconds to wait before sending the same message again, when several users ask for it. */
+    public static final int RETRANSMIT_HOLDOFF_TIME = 200;
+
+    /** Max milliseconds to wait before the first NACK for a gap, chosen at random by each receiver. */
+    public static final int NACK_DELAY = 100;
+
+    /** Milliseconds to wait for the missing messages before asking again. Doubled for each attempt. */
+    public static final int NACK_RETRY_TIME = 400;
+
+    /** The max number of NACKs for each gap, before giving up on the missing messages. */
+    public static final int MAX_NACK_ATTEMPTS = 5;
+
+    /** The max number of gaps to keep from each sender. The oldest gap is given up when there are more. */
+    public static final int MAX_PENDING_GAPS = 16;
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(ReliableMulticast.class.getName());
+
+    /** Type of frame with a message. */
+    static final char DATA = 'D';
+
+    /** Type of frame asking for missing messages. */
+    static final char NACK = 'N';
+
+    /** For sending NACKs and messages again. */
+    private final NetworkService networkService;
+
+    /** The unique code of the application user. */
+    private final int myCode;
+
+    /** The sent frames, indexed by sequence number modulo the size. */
+    private final String[] retransmitFrames;
+
+    /** The sequence numbers of the sent frames. */
+    private final long[] retransmitSequences;
+
+    /** When each of the sent frames was last sent again, from {@link System#nanoTime()}. */
+    private final long[] retransmitTimes;
+
+    /** The receive window of each sender, least recently used first. */
+    private final Map<Integer, ReceiveWindow> receiveWindows;
+
+    /** Timer for sending the NACKs when they are due. */
+    private final Timer nackTimer;
+
+    /** For the random delay before the first NACK for a gap. */
+    private final Random random;
+
+    /** The number of missing messages detected. */
+    private final AtomicLong gaps;
+
+    /** The number of NACKs sent. */
+    private final AtomicLong nacksSent;
+
+    /** The number of NACKs not sent, because another receiver asked for the same messages first. */
+    private final AtomicLong nacksSuppressed;
+
+    /** The number of NACKs received for messages from this client. */
+    private final AtomicLong nacksReceived;
+
+    /** The number of messages sent again. */
+    private final AtomicLong retransmits;
+
+    /** The number of duplicate messages dropped. */
+    private final AtomicLong duplicates;
+
+    /** The listener to give the messages to. */
+    private ReceiverListener listener;
+
+    /** The sequence number of the next message to send. */
+    private long nextSequence;
+
+    /** If the timer is going to send the NACKs that are due. */
+    private boolean nackCheckScheduled;
+
+    /**
+     * Constructor.
+     *
+     * @param networkService For sending NACKs and messages again.
+     * @param myCode The unique code of the application user.
+     */
+    public ReliableMulticast(final NetworkService networkService, final int myCode) {
+        this(networkService, myCode, new Timer("ReliableMulticastTimer", true));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param networkService For sending NACKs and messages again.
+     * @param myCode The unique code of the application user.
+     * @param nackTimer Timer for sending the NACKs when they are due.
+     */
+    ReliableMulticast(final NetworkService networkService, final int myCode, final Timer nackTimer) {
+        Validate.notNull(networkService, "Network service can not be null");
+        Validate.notNull(nackTimer, "NACK timer can not be null");
+
+        this.networkService = networkService;
+        this.myCode = myCode;
+        this.nackTimer = nackTimer;
+
+        retransmitFrames = new String[RETRANSMIT_BUFFER_SIZE];
+        retransmitSequences = new long[RETRANSMIT_BUFFER_SIZE];
+        retransmitTimes = new long[RETRANSMIT_BUFFER_SIZE];
+        nextSequence = 1;
+
+        receiveWindows = new LinkedHashMap<Integer, ReceiveWindow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Integer, ReceiveWindow> eldest) {
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        random = new Random();
+        gaps = new AtomicLong();
+        nacksSent = new AtomicLong();
+        nacksSuppressed = new AtomicLong();
+        nacksReceived = new AtomicLong();
+        retransmits = new AtomicLong();
+        duplicates = new AtomicLong();
+    }
+
+    /**
+     * Sets the listener to give the messages to.
+     *
+     * @param listener The listener to give the messages to.
+     */
+    public void registerReceiverListener(final ReceiverListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gives the next sequence number to the message, and keeps it for sending again.
+     *
+     * @param message The message to send reliably.
+     * @return The data frame to send.
+     */
+    public synchronized String wrap(final String message) {
+        final long sequence = nextSequence++;
+        final String frame = String.valueOf(FRAME_MARKER) + DATA + myCode + '.' + sequence + ':' + message;
+        final int slot = (int) (sequence % RETRANSMIT_BUFFER_SIZE);
+
+        retransmitFrames[slot] = frame;
+        retransmitSequences[slot] = sequence;
+        retransmitTimes[slot] = 0;
+
+        return frame;
+    }
+
+    /**
+     * Checks if the message is a frame from the reliability layer.
+     *
+     * @param message The message to check.
+     * @return If the message is a frame.
+     */
+    public static boolean isFrame(final String message) {
+        return message.length() > 1 && message.charAt(0) == FRAME_MARKER;
+    }
+
+    /**
+     * Handles data frames and NACKs, and gives the rest of the messages directly to the next listener.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageArrived(final String message, final String ipAddress) {
+        if (!isFrame(message)) {
+            deliver(message, ipAddress);
+            return;
+        }
+
+        try {
+            if (message.charAt(1) == DATA) {
+                dataArrived(message, ipAddress);
+            } else if (message.charAt(1) == NACK) {
+                nackArrived(message);
+            } else {
+                LOG.log(Level.WARNING, "Unknown frame from " + ipAddress);
+            }
+        }
+
+        catch (final StringIndexOutOfBoundsException e) {
+            LOG.log(Level.WARNING, "Invalid frame from " + ipAddress + ": " + e);
+        }
+
+        catch (final NumberFormatException e) {
+            LOG.log(Level.WARNING, "Invalid frame from " + ipAddress + ": " + e);
+        }
+    }
+
+    /**
+     * Checks the sequence number of the data frame, and gives the message to the next listener
+     * unless it's a duplicate. The gap is kept, and a NACK is sent later, if messages are missing.
+     *
+     * @param frame The data frame.
+     * @param ipAddress The IP address of the user who sent the frame.
+     */
+    private void dataArrived(final String frame, final String ipAddress) {
+        final int dot = frame.indexOf('.');
+        final int colon = frame.indexOf(':', dot);
+
+        final int senderCode = Integer.parseInt(frame.substring(2, dot));
+        final long sequence = Long.parseLong(frame.substring(dot + 1, colon));
+        final String message = frame.substring(colon + 1);
+
+        // Own messages are only used to detect that the network works
+        if (senderCode == myCode) {
+            deliver(message, ipAddress);
+            return;
+        }
+
+        synchronized (this) {
+            final ReceiveWindow window = receiveWindows.get(senderCode);
+
+            if (window == null) {
+                receiveWindows.put(senderCode, new ReceiveWindow(sequence));
+            }
+
+            else if (!window.receive(sequence)) {
+                duplicates.incrementAndGet();
+                return;
+            }
+
+            else if (window.getFirstMissing() > 0) {
+                final long firstMissing = window.getFirstMissing();
+                gaps.addAndGet(sequence - firstMissing);
+
+                // The random delay gives the other receivers a chance to ask first
+                final long delay = TimeUnit.MILLISECONDS.toNanos(random.nextInt(NACK_DELAY + 1));
+                window.addGap(Math.max(firstMissing, sequence - MAX_NACK_RANGE), sequence - 1,
+                        System.nanoTime() + delay);
+                scheduleNackCheck(delay);
+            }
+        }
+
+        deliver(message, ipAddress);
+    }
+
+    /**
+     * Sends the missing messages again, if the NACK is for this client. A NACK for another sender
+     * counts as sent by this client too, if this client is missing the same messages.
+     *
+     * @param frame The NACK frame.
+     */
+    private void nackArrived(final String frame) {
+        final int firstDot = frame.indexOf('.');
+        final int secondDot = frame.indexOf('.', firstDot + 1);
+        final int thirdDot = frame.indexOf('.', secondDot + 1);
+
+        final int targetCode = Integer.parseInt(frame.substring(firstDot + 1, secondDot));
+        final long from = Long.parseLong(frame.substring(secondDot + 1, thirdDot));
+        final long to = Math.min(Long.parseLong(frame.substring(thirdDot + 1)), from + MAX_NACK_RANGE);
+
+        if (targetCode != myCode) {
+            suppressNacks(targetCode, from, to);
+            return;
+        }
+
+        nacksReceived.incrementAndGet();
+
+        for (long sequence = from; sequence <= to; sequence++) {
+            final String retransmitFrame = getFrameToRetransmit(sequence);
+
+            if (retransmitFrame != null) {
+                retransmits.incrementAndGet();
+                networkService.sendMulticastMsg(retransmitFrame);
+            }
+        }
+    }
+
+    /**
+     * Gets a sent frame to send again, unless it's gone from the buffer
+     * or was sent again very recently because of another NACK.
+     *
+     * @param sequence The sequence number of the frame.
+     * @return The frame, or <code>null</code> if it should not be sent again.
+     */
+    private synchronized String getFrameToRetransmit(final long sequence) {
+        final int slot = (int) (sequence % RETRANSMIT_BUFFER_SIZE);
+
+        if (sequence < 1 || retransmitSequences[slot] != sequence) {
+            return null;
+        }
+
+        final long now = System.nanoTime();
+
+        if (retransmitTimes[slot] != 0 && now - retransmitTimes[slot] < TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_HOLDOFF_TIME)) {
+            return null;
+        }
+
+        retransmitTimes[slot] = now;
+
+        return retransmitFrames[slot];
+    }
+
+    /**
+     * Waits for the messages another receiver asked for, instead of asking for them too.
+     *
+     * @param senderCode The unique code of the sender of the missing messages.
+     * @param from The first missing sequence number.
+     * @param to The last missing sequence number.
+     */
+    private synchronized void suppressNacks(final int senderCode, final long from, final long to) {
+        final ReceiveWindow window = receiveWindows.get(senderCode);
+
+        if (window != null) {
+            nacksSuppressed.addAndGet(window.postponeGaps(from, to, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Schedules the NACKs that are due to be sent, unless the timer is already going to.
+     * Must be called while holding the lock.
+     *
+     * @param delay Nanoseconds to wait before sending the NACKs.
+     */
+    private void scheduleNackCheck(final long delay) {
+        if (nackCheckScheduled) {
+            return;
+        }
+
+        nackCheckScheduled = true;
+
+        nackTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                sendDueNacks(System.nanoTime());
+            }
+        }, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay)));
+    }
+
+    /**
+     * Sends the NACKs for the gaps that are due, and schedules the next check if there are gaps left.
+     * Runs on the timer.
+     *
+     * @param now The current time, from {@link System#nanoTime()}.
+     */
+    void sendDueNacks(final long now) {
+        final List<long[]> nacks = new ArrayList<long[]>();
+
+        synchronized (this) {
+            nackCheckScheduled = false;
+            long nextDue = Long.MAX_VALUE;
+
+            for (final Map.Entry<Integer, ReceiveWindow> entry : receiveWindows.entrySet()) {
+                nextDue = Math.min(nextDue, entry.getValue().takeDueGaps(entry.getKey(), now, nacks));
+            }
+
+            if (nextDue != Long.MAX_VALUE) {
+                scheduleNackCheck(nextDue - now);
+            }
+        }
+
+        for (final long[] nack : nacks) {
+            sendNack((int) nack[0], nack[1], nack[2]);
+        }
+    }
+
+    /**
+     * Asks the sender to send the missing messages again.
+     *
+     * @param senderCode The unique code of the sender of the missing messages.
+     * @param from The first missing sequence number.
+     * @param to The last missing sequence number.
+     */
+    private void sendNack(final int senderCode, final long from, final long to) {
+        LOG.log(Level.FINE, "Missing messages " + from + "-" + to + " from " + senderCode);
+
+        nacksSent.incrementAndGet();
+        networkService.sendMulticastMsg(String.valueOf(FRAME_MARKER) + NACK + myCode + '.' + senderCode + '.' + from + '.' + to);
+    }
+
+    /**
+     * Gives the message to the next listener.
+     *
+     * @param message The message.
+     * @param ipAddress The IP address of the user who sent the message.
+     */
+    private void deliver(final String message, final String ipAddress) {
+        if (listener != null) {
+            listener.messageArrived(message, ipAddress);
+        }
+    }
+
+    /**
+     * Gets the number of missing messages detected.
+     *
+     * @return The number of missing messages.
+     */
+    public long getGaps() {
+        return gaps.get();
+    }
+
+    /**
+     * Gets the number of NACKs sent to ask for missing messages.
+     *
+     * @return The number of NACKs sent.
+     */
+    public long getNacksSent() {
+        return nacksSent.get();
+    }
+
+    /**
+     * Gets the number of NACKs not sent, because another receiver asked for the same messages first.
+     *
+     * @return The number of suppressed NACKs.
+     */
+    public long getNacksSuppressed() {
+        return nacksSuppressed.get();
+    }
+
+    /**
+     * Gets the number of NACKs received for messages from this client.
+     *
+     * @return The number of NACKs received.
+     */
+    public long getNacksReceived() {
+        return nacksReceived.get();
+    }
+
+    /**
+     * Gets the number of messages sent again because of NACKs.
+     *
+     * @return The number of messages sent again.
+     */
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    /**
+     * Gets the number of duplicate messages dropped.
+     *
+     * @return The number of duplicates.
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * Keeps track of the sequence numbers received from one sender.
+     */
+    private static final class ReceiveWindow {
+
+        /** Which of the sequence numbers in the window have been received, indexed by sequence modulo the size. */
+        private final boolean[] received;
+
+        /** The lowest sequence number not received yet. Lower numbers are treated as duplicates. */
+        private long base;
+
+        /** The highest sequence number received. */
+        private long highest;
+
+        /** The first missing sequence number found by the last call to {@link #receive(long)}, or 0. */
+        private long firstMissing;
+
+        /** The gaps waiting for the missing messages, oldest first, or <code>null</code> if none yet. */
+        private List<PendingGap> pendingGaps;
+
+        ReceiveWindow(final long firstSequence) {
+            received = new boolean[RECEIVE_WINDOW_SIZE];
+            base = firstSequence + 1;
+            highest = firstSequence;
+        }
+
+        /**
+         * Registers the sequence number as received.
+         *
+         * @param sequence The received sequence number.
+         * @return If it's new, and not a duplicate.
+         */
+        boolean receive(final long sequence) {
+            firstMissing = 0;
+
+            if (sequence < base) {
+                return false;
+            }
+
+            // So far ahead that nothing in the window is kept, so start over without stepping through every number
+            if (sequence - base >= 2 * RECEIVE_WINDOW_SIZE) {
+                Arrays.fill(received, false);
+                base = sequence - RECEIVE_WINDOW_SIZE + 1;
+            }
+
+            // Too far ahead, so give up on the oldest missing messages
+            while (sequence - base >= RECEIVE_WINDOW_SIZE) {
+                received[(int) (base % RECEIVE_WINDOW_SIZE)] = false;
+                base++;
+            }
+
+            final int slot = (int) (sequence % RECEIVE_WINDOW_SIZE);
+
+            if (received[slot]) {
+                return false;
+            }
+
+            received[slot] = true;
+
+            if (sequence > highest + 1) {
+                firstMissing = Math.max(highest + 1, base);
+            }
+
+            highest = Math.max(highest, sequence);
+
+            while (received[(int) (base % RECEIVE_WINDOW_SIZE)] && base <= highest) {
+                received[(int) (base % RECEIVE_WINDOW_SIZE)] = false;
+                base++;
+            }
+
+            return true;
+        }
+
+        long getFirstMissing() {
+            return firstMissing;
+        }
+
+        /**
+         * Keeps the gap until the missing messages arrive. The oldest gap is given up if there are too many.
+         *
+         * @param from The first missing sequence number.
+         * @param to The last missing sequence number.
+         * @param due When to send the first NACK, from {@link System#nanoTime()}.
+         */
+        void addGap(final long from, final long to, final long due) {
+            if (pendingGaps == null) {
+                pendingGaps = new ArrayList<PendingGap>();
+            }
+
+            if (pendingGaps.size() >= MAX_PENDING_GAPS) {
+                pendingGaps.remove(0);
+            }
+
+            pendingGaps.add(new PendingGap(from, to, due));
+        }
+
+        /**
+         * Counts a NACK from another receiver as an attempt for the gaps it covers,
+         * and waits for the missing messages before asking again.
+         *
+         * @param from The first sequence number in the NACK.
+         * @param to The last sequence number in the NACK.
+         * @param now The current time, from {@link System#nanoTime()}.
+         * @return The number of gaps that were postponed.
+         */
+        int postponeGaps(final long from, final long to, final long now) {
+            if (pendingGaps == null) {
+                return 0;
+            }
+
+            int postponed = 0;
+
+            for (final PendingGap gap : pendingGaps) {
+                // Only before this client asks, so a NACK that was not answered can't keep it quiet
+                if (gap.from <= to && gap.to >= from && gap.due > now) {
+                    gap.attempts++;
+                    gap.due = now + getRetryTime(gap.attempts);
+                    postponed++;
+                }
+            }
+
+            return postponed;
+        }
+
+        /**
+         * Finds the gaps that are due, narrowed down to the messages still missing. Gaps where all
+         * the messages have arrived, or that were asked for too many times, are removed.
+         *
+         * @param senderCode The unique code of the sender of this window.
+         * @param now The current time, from {@link System#nanoTime()}.
+         * @param nacks The list to add the sender code and the range of each NACK to send to.
+         * @return When the next gap is due, or {@link Long#MAX_VALUE} if there are no gaps left.
+         */
+        long takeDueGaps(final int senderCode, final long now, final List<long[]> nacks) {
+            if (pendingGaps == null) {
+                return Long.MAX_VALUE;
+            }
+
+            long nextDue = Long.MAX_VALUE;
+            final Iterator<PendingGap> iterator = pendingGaps.iterator();
+
+            while (iterator.hasNext()) {
+                final PendingGap gap = iterator.next();
+
+                while (gap.from <= gap.to && !isMissing(gap.from)) {
+                    gap.from++;
+                }
+
+                while (gap.to >= gap.from && !isMissing(gap.to)) {
+                    gap.to--;
+                }
+
+                if (gap.from > gap.to) {
+                    iterator.remove();
+                    continue;
+                }
+
+                if (gap.due <= now) {
+                    if (gap.attempts >= MAX_NACK_ATTEMPTS) {
+                        LOG.log(Level.FINE, "Gave up on messages " + gap.from + "-" + gap.to + " from " + senderCode);
+                        iterator.remove();
+                        continue;
+                    }
+
+                    nacks.add(new long[] {senderCode, gap.from, gap.to});
+                    gap.attempts++;
+                    gap.due = now + getRetryTime(gap.attempts);
+                }
+
+                nextDue = Math.min(nextDue, gap.due);
+            }
+
+            return nextDue;
+        }
+
+        /**
+         * Checks if the message with the sequence number is still missing, and can still arrive.
+         *
+         * @param sequence The sequence number to check.
+         * @return If the message is missing.
+         */
+        private boolean isMissing(final long sequence) {
+            return sequence >= base && sequence <= highest && !received[(int) (sequence % RECEIVE_WINDOW_SIZE)];
+        }
+
+        /**
+         * Gets the time to wait for the missing messages after a NACK.
+         *
+         * @param attempts The number of NACKs for the gap so far.
+         * @return The time to wait, in nanoseconds.
+         */
+        private static long getRetryTime(final int attempts) {
+            return TimeUnit.MILLISECONDS.toNanos((long) NACK_RETRY_TIME << Math.min(attempts - 1, 16));
+        }
+    }
+
+    /**
+     * A range of missing messages from one sender, waiting to arrive.
+     */
+    private static final class PendingGap {
+
+        /** The first sequence number still missing. */
+        private long from;
+
+        /** The last sequence number still missing. */
+        private long to;
+
+        /** When to send the next NACK, from {@link System#nanoTime()}. */
+        private long due;
+
+        /** The number of NACKs for the gap so far, including the ones sent by other receivers. */
+        private int attempts;
+
+        PendingGap(final long from, final long to, final long due) {
+            this.from = from;
+            this.to = to;
+            this.due = due;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Receives a file sent in segments by a {@link SegmentedSender}, over one or more
+ * connections, with one thread per connection.
+ *
+ * <p>The segments are written to the preallocated file with positional writes, in the order they
+ * arrive. The written ranges are tracked, so the file can be truncated to the part without holes
+ * if the transfer fails, and resumed later.</p>
+ *
+ * <p>With checksums, a segment is only registered as written after its checksum matches
+ * the checksum from the sender, and the transfer fails if it does not.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class SegmentedReceiver {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(SegmentedReceiver.class.getName());
+
+    /** The file to write to. */
+    private final FileChannel fileChannel;
+
+    /** The size of the file. */
+    private final long size;
+
+    /** The offset the sender is allowed to resume from, or 0 if not resuming. */
+    private final long resumeOffset;
+
+    /** The pool to get buffers from. */
+    private final BufferPool pool;
+
+    /** If each segment is followed by its checksum. */
+    private final boolean checksums;
+
+    /** The name of the threads receiving the segments. */
+    private final String name;
+
+    /** The ranges of the file that are written. */
+    private final ByteRanges written;
+
+    /** Number of bytes written to the file. */
+    private final AtomicLong received;
+
+    /** The open connections. */
+    private final List<Socket> sockets;
+
+    /** The threads receiving the segments. */
+    private final List<Thread> threads;
+
+    /** Number of threads that are still receiving. */
+    private int activeStreams;
+
+    /** The offset the transfer starts from, or <code>-1</code> until the first connection tells. */
+    private volatile long start;
+
+    /** The first error from a connection. */
+    private volatile IOException error;
+
+    /** Limits the bytes per second of all the connections together. */
+    private BandwidthLimiter limiter;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel The file to write to. Should be preallocated to the size of the file.
+     * @param size The size of the file.
+     * @param resumeOffset The offset the sender is allowed to resume from, or 0 if not resuming.
+     * @param pool The pool to get buffers from.
+     * @param checksums If each segment is followed by its checksum.
+     * @param name The name of the threads receiving the segments.
+     */
+    public SegmentedReceiver(final FileChannel fileChannel, final long size, final long resumeOffset,
+                             final BufferPool pool, final boolean checksums, final String name) {
+        this.fileChannel = fileChannel;
+        this.size = size;
+        this.resumeOffset = resumeOffset;
+        this.pool = pool;
+        this.checksums = checksums;
+        this.name = name;
+
+        written = new ByteRanges();
+        received = new AtomicLong();
+        sockets = new ArrayList<Socket>();
+        threads = new ArrayList<Thread>();
+        start = -1;
+        limiter = new BandwidthLimiter();
+    }
+
+    /**
+     * Sets the limiter for the bytes per second of all the connections together.
+     * Must be set before the first connection is added.
+     *
+     * @param limiter The limiter to use.
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter limiter) {
+        Validate.notNull(limiter, "Bandwidth limiter can not be null");
+        this.limiter = limiter;
+    }
+
+    /**
+     * Starts receiving segments from a new connection.
+     *
+     * @param socket The connection from the sender. Must have a channel.
+     */
+    public synchronized void addStream(final Socket socket) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveSegments(socket);
+            }
+        }, name + "-" + (threads.size() + 1));
+
+        sockets.add(socket);
+        threads.add(thread);
+        activeStreams++;
+        thread.start();
+    }
+
+    /**
+     * Checks if the whole file from the start offset is received.
+     *
+     * @return If the file is complete.
+     */
+    public boolean isComplete() {
+        final long startOffset = start;
+        return startOffset >= 0 && written.getContiguousEnd(startOffset) == size;
+    }
+
+    /**
+     * Checks if the transfer is over, because the file is complete, a connection failed,
+     * or all the connections are closed.
+     *
+     * @return If the transfer is over.
+     */
+    public synchronized boolean isFinished() {
+        return isComplete() || error != null || activeStreams == 0;
+    }
+
+    /**
+     * Gets the offset the transfer starts from.
+     *
+     * @return The start offset, or 0 if not known yet.
+     */
+    public long getStart() {
+        return Math.max(0, start);
+    }
+
+    /**
+     * Gets the number of bytes written to the file, from all the connections.
+     *
+     * @return Bytes written.
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Gets the length of the file from the beginning, without holes.
+     *
+     * @return The offset of the first byte that is not written.
+     */
+    public long getContiguousEnd() {
+        return written.getContiguousEnd(getStart());
+    }
+
+    /**
+     * Gets the number of connections used.
+     *
+     * @return The number of connections.
+     */
+    public synchronized int getStreams() {
+        return threads.size();
+    }
+
+    /**
+     * Throws the error from a connection that failed, if any.
+     *
+     * @throws IOException If a connection failed.
+     */
+    public void checkError() throws IOException {
+        final IOException e = error;
+
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all the connections, and waits for the threads to stop.
+     */
+    public void close() {
+        final List<Socket> socketsToClose;
+        final List<Thread> threadsToJoin;
+
+        synchronized (this) {
+            socketsToClose = new ArrayList<Socket>(sockets);
+            threadsToJoin = new ArrayList<Thread>(threads);
+        }
+
+        for (final Socket socket : socketsToClose) {
+            closeSocket(socket);
+        }
+
+        for (final Thread thread : threadsToJoin) {
+            try {
+                thread.join();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.WARNING, e.toString());
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Receives segments from the connection until the sender closes it.
+     *
+     * @param socket The connection from the sender.
+     */
+    private void receiveSegments(final Socket socket) {
+        final SocketChannel channel = socket.getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        final ByteBuffer buffer = pool.acquire();
+
+        try {
+            header.limit(8);
+
+            // The sender opened a connection it did not need
+            if (!readFully(channel, header)) {
+                return;
+            }
+
+            checkStart(header.getLong(0));
+
+            while (error == null && !isComplete()) {
+                header.clear();
+
+                if (!readFully(channel, header)) {
+                    break;
+                }
+
+                receiveSegment(channel, buffer, header.getLong(0), header.getLong(8));
+            }
+        }
+
+        catch (final IOException e) {
+            if (!isComplete()) {
+                setError(e);
+            }
+        }
+
+        finally {
+            pool.release(buffer);
+            closeSocket(socket);
+
+            synchronized (this) {
+                activeStreams--;
+            }
+        }
+    }
+
+    /**
+     * Receives a segment, and writes it to the file using the buffer.
+     * The segment is registered as written when it's received, after the checksum is verified if used.
+     *
+     * @param channel The channel from the sender.
+     * @param buffer The buffer to use.
+     * @param offset The offset of the segment.
+     * @param length The length of the segment.
+     * @throws IOException If the segment could not be received, or is outside the file.
+     */
+    private void receiveSegment(final SocketChannel channel, final ByteBuffer buffer, final long offset,
+                                final long length) throws IOException {
+        if (offset < getStart() || length <= 0 || offset + length > size) {
+            throw new IOException("Invalid segment from sender: " + offset + "+" + length);
+        }
+
+        final TransferChecksum checksum = new TransferChecksum();
+        long position = offset;
+        final long segmentEnd = offset + length;
+
+        while (position < segmentEnd) {
+            buffer.clear();
+            buffer.limit((int) limiter.limitSlice(Math.min(buffer.capacity(), segmentEnd - position)));
+            boolean closed = false;
+
+            while (buffer.hasRemaining() && !closed) {
+                closed = channel.read(buffer) == -1;
+            }
+
+            if (checksums) {
+                checksum.update(buffer);
+            }
+
+            // Without checksums, keeps what was received before the connection closed, so it can be resumed
+            buffer.flip();
+            final int bytes = buffer.remaining();
+
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer, position + buffer.position());
+            }
+
+            if (!checksums) {
+                written.add(position, bytes);
+            }
+
+            received.addAndGet(bytes);
+            position += bytes;
+            limiter.acquire(bytes);
+
+            if (closed) {
+                throw new EOFException("Connection closed in the middle of a segment");
+            }
+        }
+
+        if (checksums) {
+            final ByteBuffer expected = ByteBuffer.allocate(8);
+
+            if (!readFully(channel, expected)) {
+                throw new EOFException("Connection closed before the checksum of the segment");
+            }
+
+            if (!checksum.matches(expected.getLong(0))) {
+                throw new IOException("Checksum mismatch in segment: " + offset + "+" + length);
+            }
+
+            written.add(offset, length);
+        }
+    }
+
+    /**
+     * Checks that the start offset is the same in all the connections,
+     * and either the offset asked for or 0.
+     *
+     * @param startOffset The start offset from the sender.
+     * @throws IOException If the start offset is invalid.
+     */
+    private synchronized void checkStart(final long startOffset) throws IOException {
+        if (start == -1 && (startOffset == 0 || startOffset == resumeOffset)) {
+            start = startOffset;
+        }
+
+        else if (start != startOffset) {
+            throw new IOException("Sender wants to start at " + startOffset + " instead of " + resumeOffset);
+        }
+    }
+
+    /**
+     * Reads until the buffer is full.
+     *
+     * @param channel The channel to read from.
+     * @param buffer The buffer to fill.
+     * @return If the buffer was filled, or <code>false</code> if the connection was closed before the first byte.
+     * @throws IOException If the connection was closed in the middle of the buffer, or the read failed.
+     */
+    private boolean readFully(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        final int first = buffer.position();
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                if (buffer.position() == first) {
+                    return false;
+                }
+
+                throw new EOFException("Connection closed in the middle of a message");
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Remembers the first error, so the transfer stops.
+     *
+     * @param e The error.
+     */
+    private synchronized void setError(final IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @param socket The connection to close.
+     */
+    private void closeSocket(final Socket socket) {
+        try {
+            socket.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+}
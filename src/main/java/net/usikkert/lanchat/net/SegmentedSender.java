@@ -0,0 +1,499 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Sends a file in segments over one or more connections, one thread per connection.
+ *
+ * <p>Each connection starts with the offset the transfer starts from, as 8 bytes.
+ * Then each thread claims the next segment of the file, sends the offset and length of the segment
+ * as 8 bytes each, followed by the segment, and continues until all the segments are claimed.
+ * With checksums, each segment is followed by the checksum of the segment as 8 bytes.
+ * The connection is closed when there are no more segments.</p>
+ *
+ * <p>The transfer starts with a single connection. {@link #shouldAddStream(long, int)} is used
+ * regularly to decide if another connection should be added, based on the throughput.
+ * A new connection is added as long as the previous one gave at least {@link #MIN_SPEEDUP}
+ * times the throughput. The segment size follows the throughput of each connection, so each
+ * segment takes around {@link #SEGMENT_TIME} milliseconds.</p>
+ *
+ * @author Shouvik Goswami
+ * @see SegmentedReceiver
+ */
+public class SegmentedSender {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(SegmentedSender.class.getName());
+
+    /** The size of the first segments. */
+    private static final long FIRST_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** The smallest segment. */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** The largest segment. */
+    private static final long MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /** Milliseconds each segment should take to send. */
+    private static final long SEGMENT_TIME = 500;
+
+    /** Max bytes to copy in each call to transferTo, so the progress is updated regularly. */
+    private static final long MAX_SLICE_SIZE = 1024 * 1024;
+
+    /** The size of the buffer used instead of transferTo, when each segment is followed by its checksum. */
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    /** How much faster the transfer must get for another connection to be added. */
+    private static final double MIN_SPEEDUP = 1.1;
+
+    /** The file to send. */
+    private final FileChannel fileChannel;
+
+    /** The offset the transfer starts from. */
+    private final long start;
+
+    /** The size of the file. */
+    private final long end;
+
+    /** If each segment is followed by its checksum. */
+    private final boolean checksums;
+
+    /** The name of the threads sending the segments. */
+    private final String name;
+
+    /** The open connections. */
+    private final List<Socket> sockets;
+
+    /** The threads sending the segments. */
+    private final List<Thread> threads;
+
+    /** Number of bytes sent. */
+    private final AtomicLong sent;
+
+    /** The offset of the next segment to claim. */
+    private long nextOffset;
+
+    /** The size of the next segments. */
+    private long segmentSize;
+
+    /** Number of threads that are still sending. */
+    private int activeStreams;
+
+    /** If more connections can be added. */
+    private boolean probing;
+
+    /** The throughput before the last connection was added. */
+    private long speedBeforeLastStream;
+
+    /** The first error from a connection that was sending a segment. */
+    private volatile IOException error;
+
+    /** Limits the bytes per second of all the connections together. */
+    private BandwidthLimiter limiter;
+
+    /**
+     * Constructor.
+     *
+     * @param fileChannel The file to send.
+     * @param start The offset the transfer starts from.
+     * @param end The size of the file.
+     * @param checksums If each segment should be followed by its checksum.
+     * @param name The name of the threads sending the segments.
+     */
+    public SegmentedSender(final FileChannel fileChannel, final long start, final long end,
+                           final boolean checksums, final String name) {
+        this.fileChannel = fileChannel;
+        this.start = start;
+        this.end = end;
+        this.checksums = checksums;
+        this.name = name;
+
+        sockets = new ArrayList<Socket>();
+        threads = new ArrayList<Thread>();
+        sent = new AtomicLong();
+        nextOffset = start;
+        segmentSize = FIRST_SEGMENT_SIZE;
+        limiter = new BandwidthLimiter();
+        probing = true;
+    }
+
+    /**
+     * Sets the limiter for the bytes per second of all the connections together.
+     * Must be set before the first connection is added.
+     *
+     * @param limiter The limiter to use.
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter limiter) {
+        Validate.notNull(limiter, "Bandwidth limiter can not be null");
+        this.limiter = limiter;
+    }
+
+    /**
+     * Starts sending segments over a new connection.
+     *
+     * @param socket The connection to the receiver. Must have a channel.
+     */
+    public synchronized void addStream(final Socket socket) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendSegments(socket);
+            }
+        }, name + "-" + (threads.size() + 1));
+
+        sockets.add(socket);
+        threads.add(thread);
+        activeStreams++;
+        thread.start();
+    }
+
+    /**
+     * Adjusts the segment size to the throughput, and checks if another connection should be added.
+     * Use with intervals long enough for the throughput to reflect the last added connection.
+     *
+     * @param bytesPerSec The current throughput of the whole transfer.
+     * @param maxStreams Max number of connections.
+     * @return If another connection should be added.
+     */
+    public synchronized boolean shouldAddStream(final long bytesPerSec, final int maxStreams) {
+        if (bytesPerSec <= 0) {
+            return false;
+        }
+
+        final long bytesPerStream = bytesPerSec / Math.max(1, activeStreams);
+        segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(MAX_SEGMENT_SIZE, bytesPerStream * SEGMENT_TIME / 1000));
+
+        if (!probing || threads.size() >= maxStreams || end - nextOffset < 2 * segmentSize) {
+            return false;
+        }
+
+        if (speedBeforeLastStream > 0 && bytesPerSec < speedBeforeLastStream * MIN_SPEEDUP) {
+            LOG.log(Level.FINE, "No speedup from connection " + threads.size() + ", stopping at " + threads.size());
+            probing = false;
+            return false;
+        }
+
+        speedBeforeLastStream = bytesPerSec;
+
+        return true;
+    }
+
+    /**
+     * Stops adding connections, after failing to open one.
+     */
+    public synchronized void stopAddingStreams() {
+        probing = false;
+    }
+
+    /**
+     * Checks if all the threads are done sending.
+     *
+     * @return If all the threads are done.
+     */
+    public synchronized boolean isDone() {
+        return activeStreams == 0;
+    }
+
+    /**
+     * Waits until all the threads are done sending, or the time is up.
+     *
+     * @param millis Max milliseconds to wait.
+     * @throws IOException If interrupted.
+     */
+    public synchronized void await(final long millis) throws IOException {
+        if (activeStreams > 0) {
+            try {
+                wait(millis);
+            }
+
+            catch (final InterruptedException e) {
+                throw new IOException("Interrupted while sending segments", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bytes sent, in all the connections.
+     *
+     * @return Bytes sent.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * Gets the number of connections used.
+     *
+     * @return The number of connections.
+     */
+    public synchronized int getStreams() {
+        return threads.size();
+    }
+
+    /**
+     * Throws the error from a connection that failed while sending a segment, if any.
+     *
+     * @throws IOException If a segment could not be sent.
+     */
+    public void checkError() throws IOException {
+        final IOException e = error;
+
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all the connections, and waits for the threads to stop.
+     */
+    public void close() {
+        final List<Socket> socketsToClose;
+        final List<Thread> threadsToJoin;
+
+        synchronized (this) {
+            socketsToClose = new ArrayList<Socket>(sockets);
+            threadsToJoin = new ArrayList<Thread>(threads);
+        }
+
+        for (final Socket socket : socketsToClose) {
+            closeSocket(socket);
+        }
+
+        for (final Thread thread : threadsToJoin) {
+            try {
+                thread.join();
+            }
+
+            catch (final InterruptedException e) {
+                LOG.log(Level.WARNING, e.toString());
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claims the next segment to send.
+     *
+     * @return The offset and length of the segment, or <code>null</code> if there are no more segments.
+     */
+    private synchronized long[] claimSegment() {
+        if (nextOffset >= end || error != null) {
+            return null;
+        }
+
+        final long length = Math.min(segmentSize, end - nextOffset);
+        final long[] segment = {nextOffset, length};
+        nextOffset += length;
+
+        return segment;
+    }
+
+    /**
+     * Sends segments over the connection until there are no more.
+     * Errors before the first segment is claimed are ignored, since the receiver
+     * might have completed and closed the server while the connection was opened.
+     *
+     * @param socket The connection to the receiver.
+     */
+    private void sendSegments(final Socket socket) {
+        final SocketChannel channel = socket.getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        final ByteBuffer buffer = checksums ? ByteBuffer.allocate(CHECKSUM_BUFFER_SIZE) : null;
+        boolean sendingSegment = false;
+
+        try {
+            header.putLong(start).flip();
+            writeFully(channel, header);
+
+            long[] segment;
+
+            while ((segment = claimSegment()) != null) {
+                sendingSegment = true;
+                header.clear();
+                header.putLong(segment[0]).putLong(segment[1]).flip();
+                writeFully(channel, header);
+
+                if (checksums) {
+                    final TransferChecksum checksum = new TransferChecksum();
+                    sendSegment(channel, segment[0], segment[1], checksum, buffer);
+
+                    // Another connection failed, so the segment might not be complete
+                    if (error != null) {
+                        break;
+                    }
+
+                    sendChecksum(channel, header, checksum);
+                }
+
+                else {
+                    sendSegment(channel, segment[0], segment[1]);
+
+                    if (error != null) {
+                        break;
+                    }
+                }
+
+                sendingSegment = false;
+            }
+        }
+
+        catch (final IOException e) {
+            if (sendingSegment) {
+                setError(e);
+            }
+
+            else {
+                LOG.log(Level.FINE, "Connection closed before sending any segments: " + e);
+            }
+        }
+
+        finally {
+            closeSocket(socket);
+
+            synchronized (this) {
+                activeStreams--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sends a segment of the file directly from the file channel to the socket channel.
+     *
+     * @param channel The channel to the receiver.
+     * @param offset The offset of the segment.
+     * @param length The length of the segment.
+     * @throws IOException If the segment could not be sent.
+     */
+    private void sendSegment(final SocketChannel channel, final long offset, final long length) throws IOException {
+        long position = offset;
+        final long segmentEnd = offset + length;
+
+        while (position < segmentEnd && error == null) {
+            final long count = fileChannel.transferTo(position,
+                    limiter.limitSlice(Math.min(MAX_SLICE_SIZE, segmentEnd - position)), channel);
+
+            if (count == 0 && position >= fileChannel.size()) {
+                throw new IOException("The file got shorter after the transfer started");
+            }
+
+            position += count;
+            sent.addAndGet(count);
+            limiter.acquire(count);
+        }
+    }
+
+    /**
+     * Sends a segment of the file through the buffer, and updates the checksum with the bytes
+     * already in the buffer, so the file is only read once.
+     *
+     * @param channel The channel to the receiver.
+     * @param offset The offset of the segment.
+     * @param length The length of the segment.
+     * @param checksum The checksum to update with the sent bytes.
+     * @param buffer The buffer to copy the bytes through.
+     * @throws IOException If the segment could not be sent.
+     */
+    private void sendSegment(final SocketChannel channel, final long offset, final long length,
+                             final TransferChecksum checksum, final ByteBuffer buffer) throws IOException {
+        long position = offset;
+        final long segmentEnd = offset + length;
+
+        while (position < segmentEnd && error == null) {
+            final int count = checksum.copy(fileChannel, position, limiter.limitSlice(segmentEnd - position),
+                    buffer, channel);
+
+            position += count;
+            sent.addAndGet(count);
+            limiter.acquire(count);
+        }
+    }
+
+    /**
+     * Sends the checksum of the segment that was just sent.
+     *
+     * @param channel The channel to the receiver.
+     * @param header The buffer to use for the checksum.
+     * @param checksum The checksum of the segment.
+     * @throws IOException If the checksum could not be sent.
+     */
+    private void sendChecksum(final SocketChannel channel, final ByteBuffer header,
+                              final TransferChecksum checksum) throws IOException {
+        header.clear();
+        header.putLong(checksum.getValue()).flip();
+        writeFully(channel, header);
+    }
+
+    /**
+     * Writes all the bytes in the buffer.
+     *
+     * @param channel The channel to write to.
+     * @param buffer The buffer to write.
+     * @throws IOException If the write failed.
+     */
+    private void writeFully(final SocketChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Remembers the first error, so the other threads stop sending.
+     *
+     * @param e The error.
+     */
+    private synchronized void setError(final IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    /**
+     * Closes the connection.
+     *
+     * @param socket The connection to close.
+     */
+    private void closeSocket(final Socket socket) {
+        try {
+            socket.close();
+        }
+
+        catch (final IOException e) {
+            LOG.log(Level.WARNING, e.toString());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+/**
+ * Reads messages in the text protocol, like <code>1234!MSG#Nick:[-1]Hello</code>.
+ *
+ * <p>The message is read in a single pass from the start to the end. Numbers are parsed
+ * directly from the message, and text is only copied out of the message when asked for.
+ * The constructor does not fail on messages with an invalid header, but gives them
+ * no type, so they can be ignored without the cost of an exception.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class TextMessageReader implements MessageReader {
+
+    /** The message to read. */
+    private final String message;
+
+    /** The unique code of the sender. */
+    private final int code;
+
+    /** The type of message, or <code>null</code> if unknown or the header is invalid. */
+    private final MessageType type;
+
+    /** The position of the first character of the nick name. */
+    private final int nickStart;
+
+    /** The position after the last character of the nick name. */
+    private final int nickEnd;
+
+    /** The nick name of the sender, copied from the message the first time it's needed. */
+    private String nick;
+
+    /** The position of the next character to read. */
+    private int position;
+
+    /**
+     * Constructor. Reads the code and type of the message, and finds the nick name.
+     *
+     * @param message The message to read.
+     */
+    public TextMessageReader(final String message) {
+        this.message = message;
+
+        final int length = message.length();
+        final boolean negative = length > 0 && message.charAt(0) == '-';
+        int index = negative ? 1 : 0;
+        long value = 0;
+
+        while (index < length && isDigit(message.charAt(index)) && value <= Integer.MAX_VALUE) {
+            value = value * 10 + message.charAt(index) - '0';
+            index++;
+        }
+
+        final int exclamation = index;
+        final boolean validCode = exclamation > (negative ? 1 : 0) && exclamation < length
+                && message.charAt(exclamation) == '!' && value <= Integer.MAX_VALUE;
+
+        final int hash = validCode ? message.indexOf('#', exclamation + 1) : -1;
+        final int colon = hash != -1 ? message.indexOf(':', hash + 1) : -1;
+
+        if (colon == -1) {
+            code = 0;
+            type = null;
+            nickStart = 0;
+            nickEnd = 0;
+            position = length;
+        }
+
+        else {
+            code = (int) (negative ? -value : value);
+            type = MessageType.fromName(message, exclamation + 1, hash);
+            nickStart = hash + 1;
+            nickEnd = colon;
+            position = colon + 1;
+        }
+    }
+
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public MessageType getType() {
+        return type;
+    }
+
+    @Override
+    public String getNick() {
+        if (nick == null) {
+            nick = message.substring(nickStart, nickEnd);
+        }
+
+        return nick;
+    }
+
+    /**
+     * Reads the number between the delimiters, directly from the message.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long readNumber(final char open, final char close) {
+        final int start = message.indexOf(open, position);
+
+        if (start == -1) {
+            throw new StringIndexOutOfBoundsException("Missing field: " + open);
+        }
+
+        final int length = message.length();
+        final boolean negative = start + 1 < length && message.charAt(start + 1) == '-';
+        int index = negative ? start + 2 : start + 1;
+        final int firstDigit = index;
+        long value = 0;
+
+        while (index < length && isDigit(message.charAt(index))) {
+            if (value > (Long.MAX_VALUE - 9) / 10) {
+                throw new NumberFormatException("Number too large in field: " + open);
+            }
+
+            value = value * 10 + message.charAt(index) - '0';
+            index++;
+        }
+
+        if (index == firstDigit || index >= length || message.charAt(index) != close) {
+            throw new NumberFormatException("Invalid number in field: " + open);
+        }
+
+        position = index + 1;
+
+        return negative ? -value : value;
+    }
+
+    @Override
+    public String readText(final char open, final char close) {
+        final int start = message.indexOf(open, position);
+        final int end = message.indexOf(close, start + 1);
+
+        final String text = message.substring(start + 1, end);
+        position = end + 1;
+
+        return text;
+    }
+
+    @Override
+    public String readText() {
+        final String text = message.substring(position);
+        position = message.length();
+
+        return text;
+    }
+
+    @Override
+    public boolean hasField(final char open) {
+        return message.indexOf(open, position) != -1;
+    }
+
+    /**
+     * Checks if the character is one of the digits from 0 to 9.
+     *
+     * @param character The character to check.
+     * @return If the character is a digit.
+     */
+    private static boolean isDigit(final char character) {
+        return character >= '0' && character <= '9';
+    }
+}
@@ -0,0 +1,155 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates the checksum of the bytes in a file transfer, a piece at a time while the bytes are copied.
+ * Used with {@link ProtocolFeature#CHECKSUM}, where the sender sends the checksum as 8 bytes after the data,
+ * and the receiver compares it with its own before the transfer is completed.
+ *
+ * <p>Not thread safe.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class TransferChecksum {
+
+    /** Max bytes to copy out of a direct buffer at a time. */
+    private static final int COPY_SIZE = 64 * 1024;
+
+    /** The checksum so far. */
+    private final CRC32 crc;
+
+    /** Buffer for bytes that are not already in an array. Created when needed. */
+    private byte[] copyBuffer;
+
+    /**
+     * Constructor.
+     */
+    public TransferChecksum() {
+        crc = new CRC32();
+    }
+
+    /**
+     * Updates the checksum with bytes from an array.
+     *
+     * @param bytes The array with the bytes.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     */
+    public void update(final byte[] bytes, final int offset, final int length) {
+        crc.update(bytes, offset, length);
+    }
+
+    /**
+     * Updates the checksum with the bytes before the position of the buffer, as they are
+     * after reading into the buffer. The position and limit of the buffer are not changed.
+     *
+     * @param buffer The buffer with the bytes.
+     */
+    public void update(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset(), buffer.position());
+            return;
+        }
+
+        final ByteBuffer bytes = buffer.duplicate();
+        bytes.flip();
+
+        while (bytes.hasRemaining()) {
+            final int length = Math.min(bytes.remaining(), COPY_SIZE);
+            bytes.get(getCopyBuffer(), 0, length);
+            crc.update(copyBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Copies bytes from a file to a channel through the buffer, and updates the checksum with the bytes
+     * on the way. Used instead of {@link FileChannel#transferTo(long, long, WritableByteChannel)} when
+     * the checksum is needed, so the file is only read once. At most one buffer of bytes is copied.
+     *
+     * @param file The file to read the bytes from.
+     * @param position The offset of the first byte.
+     * @param length Max number of bytes to copy.
+     * @param buffer The buffer to copy through. A heap buffer avoids copying the bytes for the checksum.
+     * @param target The channel to write the bytes to.
+     * @return The number of bytes copied.
+     * @throws IOException If the bytes could not be read or written.
+     */
+    public int copy(final FileChannel file, final long position, final long length, final ByteBuffer buffer,
+                    final WritableByteChannel target) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), length));
+        final int read = file.read(buffer, position);
+
+        if (read == -1) {
+            throw new IOException("The file got shorter after the transfer started");
+        }
+
+        update(buffer);
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+
+        return read;
+    }
+
+    /**
+     * Gets the checksum of all the bytes so far.
+     *
+     * @return The checksum.
+     */
+    public long getValue() {
+        return crc.getValue();
+    }
+
+    /**
+     * Checks if the checksum from the other side of the transfer is the same as this checksum.
+     *
+     * @param expected The checksum from the other side.
+     * @return If the checksums are the same.
+     */
+    public boolean matches(final long expected) {
+        return expected == crc.getValue();
+    }
+
+    /**
+     * Gets the buffer to copy bytes into, and creates it the first time.
+     *
+     * @return The copy buffer.
+     */
+    private byte[] getCopyBuffer() {
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_SIZE];
+        }
+
+        return copyBuffer;
+    }
+}
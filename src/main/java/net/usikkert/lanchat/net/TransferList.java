@@ -24,32 +24,189 @@ package net.usikkert.lanchat.net;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.usikkert.lanchat.misc.User;
+import net.usikkert.lanchat.util.Validate;
 
 /**
  * This class keeps a list of all the ongoing file transfers.
  *
+ * <p>The file transfers are indexed by id, by user, and by user, file name and file hash,
+ * so lookups don't need to go through every file transfer. Changes to the indexes are synchronized,
+ * while lookups can be done from any thread without locking. The lists returned are snapshots,
+ * so they are safe to iterate while file transfers are added and removed.</p>
+ *
  * @author Shouvik Goswami
  */
 public class TransferList {
 
-    /** The list of all the file senders. */
-    private final List<FileSender> senders;
+    /** Sorts file transfers by id, which is the order they were added in. */
+    private static final Comparator<FileTransfer> ID_COMPARATOR = new Comparator<FileTransfer>() {
+        @Override
+        public int compare(final FileTransfer ft1, final FileTransfer ft2) {
+            return Integer.compare(ft1.getId(), ft2.getId());
+        }
+    };
+
+    /** The file senders, by file transfer id. */
+    private final Map<Integer, FileSender> sendersById;
+
+    /** The file receivers, by file transfer id. */
+    private final Map<Integer, FileReceiver> receiversById;
+
+    /** The file senders of each user, in the order they were added. */
+    private final Map<TransferKey, List<FileSender>> sendersByUser;
+
+    /** The file receivers of each user, in the order they were added. */
+    private final Map<TransferKey, List<FileReceiver>> receiversByUser;
+
+    /** The file senders, by user, file name and file hash. */
+    private final Map<TransferKey, FileSender> sendersByName;
+
+    /** Lock for changes to the indexes, so they always agree with each other. */
+    private final Object indexLock;
+
+    /** The reactor used by file receivers, or <code>null</code> if not using non-blocking channels. */
+    private final NetworkReactor networkReactor;
+
+    /** The shared server for the file receivers. */
+    private final FileTransferServer transferServer;
+
+    /** If file transfers should be copied through streams instead of channels. */
+    private final boolean streamFileTransfer;
+
+    /** The partially received files, which can be resumed. */
+    private final PartialTransfers partialTransfers;
 
-    /** The list of all the file receivers. */
-    private final List<FileReceiver> receivers;
+    /** Limits the bytes per second of all the file transfers together. */
+    private final BandwidthLimiter bandwidthLimiter;
+
+    /** Max bytes per second for each new file transfer, or 0 if there is no limit. */
+    private volatile long transferBandwidthLimit;
+
+    /** The scheduler to tell when a file transfer is removed, or <code>null</code> if none. */
+    private volatile TransferScheduler scheduler;
 
     /** Counter for unique file transfer id's. */
-    private int fileTransferIdCounter;
+    private final AtomicInteger fileTransferIdCounter;
 
     /**
      * Constructor.
      */
     public TransferList() {
-        senders = new ArrayList<FileSender>();
-        receivers = new ArrayList<FileReceiver>();
+        this(null, false, new PartialTransfers(null));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param networkReactor The reactor file receivers should accept connections with,
+     *                       or <code>null</code> to use blocking server sockets.
+     * @param streamFileTransfer If file transfers should be copied through streams instead of channels.
+     * @param partialTransfers The partially received files, which can be resumed.
+     */
+    public TransferList(final NetworkReactor networkReactor, final boolean streamFileTransfer,
+                        final PartialTransfers partialTransfers) {
+        Validate.notNull(partialTransfers, "Partial transfers can not be null");
+
+        this.networkReactor = networkReactor;
+        this.streamFileTransfer = streamFileTransfer;
+        this.partialTransfers = partialTransfers;
+
+        // The shared server always uses a reactor, but only needs a thread of its own if there is no shared reactor
+        transferServer = new FileTransferServer(networkReactor != null ? networkReactor : new NetworkReactor());
+
+        sendersById = new ConcurrentHashMap<Integer, FileSender>();
+        receiversById = new ConcurrentHashMap<Integer, FileReceiver>();
+        sendersByUser = new ConcurrentHashMap<TransferKey, List<FileSender>>();
+        receiversByUser = new ConcurrentHashMap<TransferKey, List<FileReceiver>>();
+        sendersByName = new ConcurrentHashMap<TransferKey, FileSender>();
+        indexLock = new Object();
+        fileTransferIdCounter = new AtomicInteger();
+        bandwidthLimiter = new BandwidthLimiter();
+    }
+
+    /**
+     * Sets the scheduler to tell when a file transfer is removed, so its place can be given
+     * to the next file transfer in the queue.
+     *
+     * @param scheduler The scheduler of the file transfers in this list.
+     */
+    void setScheduler(final TransferScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Gets the shared server the file receivers register with, when the senders support it.
+     *
+     * @return The shared file transfer server.
+     */
+    public FileTransferServer getTransferServer() {
+        return transferServer;
+    }
+
+    /**
+     * Stops the shared server the file receivers register with.
+     */
+    public void stopTransferServer() {
+        transferServer.stop();
+    }
+
+    /**
+     * Gets the limiter for the bytes per second of all the file transfers together.
+     *
+     * @return The bandwidth limiter for all the file transfers.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Sets the max bytes per second for all the file transfers together.
+     * Takes effect at once, also for the ongoing file transfers.
+     *
+     * @param bytesPerSec The max bytes per second, or 0 to remove the limit.
+     */
+    public void setBandwidthLimit(final long bytesPerSec) {
+        bandwidthLimiter.setRate(bytesPerSec);
+    }
+
+    /**
+     * Sets the max bytes per second for each file transfer. Takes effect at once for the ongoing
+     * file transfers too, replacing any limit set for a single file transfer.
+     *
+     * @param bytesPerSec The max bytes per second, or 0 to remove the limit.
+     */
+    public void setTransferBandwidthLimit(final long bytesPerSec) {
+        transferBandwidthLimit = bytesPerSec;
+
+        for (final FileSender fs : getFileSenders()) {
+            fs.getBandwidthLimiter().setRate(bytesPerSec);
+        }
+
+        for (final FileReceiver fr : getFileReceivers()) {
+            fr.getBandwidthLimiter().setRate(bytesPerSec);
+        }
+    }
+
+    /**
+     * Creates a limiter for a new file transfer, with the limit for each file transfer,
+     * and the limiter for all the file transfers as the parent.
+     *
+     * @return The new bandwidth limiter.
+     */
+    private BandwidthLimiter createBandwidthLimiter() {
+        final BandwidthLimiter limiter = new BandwidthLimiter(bandwidthLimiter);
+        limiter.setRate(transferBandwidthLimit);
+
+        return limiter;
     }
 
     /**
@@ -60,19 +217,69 @@ public class TransferList {
      * @return The file sender object that was added to the transfer list.
      */
     public FileSender addFileSender(final User user, final File file) {
-        final FileSender fileSender = new FileSender(user, file, ++fileTransferIdCounter);
-        senders.add(fileSender);
+        final FileSender fileSender = new FileSender(user, file, fileTransferIdCounter.incrementAndGet(), streamFileTransfer);
+        fileSender.setBandwidthLimiter(createBandwidthLimiter());
+        addUniqueFileSender(fileSender);
 
         return fileSender;
     }
 
     /**
-     * Removes a file sender from the list.
+     * Adds a new file sender for a batch of files and directories to the list.
+     *
+     * @param user The user to send the files to.
+     * @param batch The files to send.
+     * @return The file sender object that was added to the transfer list.
+     */
+    public FileSender addBatchSender(final User user, final FileBatch batch) {
+        final FileSender fileSender = new FileSender(user, batch, fileTransferIdCounter.incrementAndGet(), streamFileTransfer);
+        fileSender.setBandwidthLimiter(createBandwidthLimiter());
+        addUniqueFileSender(fileSender);
+
+        return fileSender;
+    }
+
+    /**
+     * Adds the file sender to the list, with a file hash that is unique for the user and the file name.
+     *
+     * @param fileSender The file sender to add.
+     */
+    private void addUniqueFileSender(final FileSender fileSender) {
+        final User user = fileSender.getUser();
+        final String fileName = fileSender.getFile().getName();
+        int fileHash = fileSender.getFileHash();
+
+        synchronized (indexLock) {
+            // The user must be able to tell the file transfers apart, even when sending the same file again
+            while (sendersByName.containsKey(new TransferKey(user, fileName, fileHash))) {
+                fileHash++;
+            }
+
+            fileSender.setFileHash(fileHash);
+            sendersByName.put(new TransferKey(user, fileName, fileHash), fileSender);
+            sendersById.put(fileSender.getId(), fileSender);
+            addToUser(sendersByUser, user, fileSender);
+        }
+    }
+
+    /**
+     * Removes a file sender from the list, and frees its place in the scheduler.
      *
      * @param fileSender The file sender to remove.
      */
     public void removeFileSender(final FileSender fileSender) {
-        senders.remove(fileSender);
+        synchronized (indexLock) {
+            if (sendersById.get(fileSender.getId()) == fileSender) {
+                sendersById.remove(fileSender.getId());
+                sendersByName.remove(new TransferKey(fileSender.getUser(), fileSender.getFile().getName(),
+                        fileSender.getFileHash()));
+                removeFromUser(sendersByUser, fileSender.getUser(), fileSender);
+            }
+        }
+
+        if (scheduler != null) {
+            scheduler.finished(fileSender);
+        }
     }
 
     /**
@@ -80,20 +287,11 @@ public class TransferList {
      *
      * @param user The file sending user.
      * @param fileName The name of the file being sent.
-     * @param fileHash The file's hash code.
+     * @param fileHash The hash that identifies the file transfer.
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final String fileName, final int fileHash) {
-        FileSender fileSender = null;
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName) && fs.getFile().hashCode() == fileHash) {
-                fileSender = fs;
-                break;
-            }
-        }
-
-        return fileSender;
+        return sendersByName.get(new TransferKey(user, fileName, fileHash));
     }
 
     /**
@@ -104,16 +302,17 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final String fileName) {
-        FileSender fileSender = null;
+        final List<FileSender> userSenders = sendersByUser.get(new TransferKey(user));
 
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getFile().getName().equals(fileName)) {
-                fileSender = fs;
-                break;
+        if (userSenders != null) {
+            for (final FileSender fs : userSenders) {
+                if (fs.getFile().getName().equals(fileName)) {
+                    return fs;
+                }
             }
         }
 
-        return fileSender;
+        return null;
     }
 
     /**
@@ -124,10 +323,10 @@ public class TransferList {
      * @return The file sender object, or <code>null</code> if none was found.
      */
     public FileSender getFileSender(final User user, final int id) {
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user && fs.getId() == id) {
-                return fs;
-            }
+        final FileSender fileSender = sendersById.get(id);
+
+        if (fileSender != null && fileSender.getUser() == user) {
+            return fileSender;
         }
 
         return null;
@@ -140,15 +339,7 @@ public class TransferList {
      * @return A list of all the file senders for the user.
      */
     public List<FileSender> getFileSenders(final User user) {
-        final List<FileSender> list = new ArrayList<FileSender>();
-
-        for (final FileSender fs : senders) {
-            if (fs.getUser() == user) {
-                list.add(fs);
-            }
-        }
-
-        return list;
+        return getSnapshot(sendersByUser, user);
     }
 
     /**
@@ -157,13 +348,62 @@ public class TransferList {
      * @return A list of all the file senders.
      */
     public List<FileSender> getFileSenders() {
-        final List<FileSender> list = new ArrayList<FileSender>();
+        final List<FileSender> list = new ArrayList<FileSender>(sendersById.values());
+        Collections.sort(list, ID_COMPARATOR);
+
+        return list;
+    }
 
-        for (final FileSender fs : senders) {
-            list.add(fs);
+    /**
+     * Gets the local file of an earlier partial transfer of the file.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     * @return The partially received file, or <code>null</code> if there is none.
+     */
+    public File getPartialFile(final String fileName, final int fileHash, final long size) {
+        return partialTransfers.getFile(fileName, fileHash, size);
+    }
+
+    /**
+     * Gets the offset the file receiver can resume from, if it saves to the partial file
+     * from an earlier transfer of the same file.
+     *
+     * @param fileReceiver The file receiver.
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @return The offset to resume from, or 0 to receive the whole file.
+     */
+    public long getResumeOffset(final FileReceiver fileReceiver, final String fileName, final int fileHash) {
+        return partialTransfers.getOffset(fileName, fileHash, fileReceiver.getFileSize(), fileReceiver.getFile());
+    }
+
+    /**
+     * Remembers the bytes saved by a failed file receiver, so the transfer can be resumed later.
+     * Nothing is remembered if no bytes were received.
+     *
+     * @param fileReceiver The file receiver that failed.
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     */
+    public void savePartialTransfer(final FileReceiver fileReceiver, final String fileName, final int fileHash) {
+        final long offset = Math.min(fileReceiver.getFile().length(), fileReceiver.getTransferred());
+
+        if (offset > 0 && offset < fileReceiver.getFileSize()) {
+            partialTransfers.add(fileName, fileHash, fileReceiver.getFileSize(), fileReceiver.getFile(), offset);
         }
+    }
 
-        return list;
+    /**
+     * Forgets the partial transfer of a file, after the whole file was received.
+     *
+     * @param fileName The name of the file, as announced by the sender.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param size The size of the file, as announced by the sender.
+     */
+    public void removePartialTransfer(final String fileName, final int fileHash, final long size) {
+        partialTransfers.remove(fileName, fileHash, size);
     }
 
     /**
@@ -175,19 +415,35 @@ public class TransferList {
      * @return The file receiver object that was added to the transfer list.
      */
     public FileReceiver addFileReceiver(final User user, final File file, final long size) {
-        final FileReceiver fileReceiver = new FileReceiver(user, file, size, ++fileTransferIdCounter);
-        receivers.add(fileReceiver);
+        final FileReceiver fileReceiver = new FileReceiver(user, file, size, fileTransferIdCounter.incrementAndGet(), networkReactor,
+                streamFileTransfer);
+        fileReceiver.setBandwidthLimiter(createBandwidthLimiter());
+        fileReceiver.setTransferServer(transferServer);
+
+        synchronized (indexLock) {
+            receiversById.put(fileReceiver.getId(), fileReceiver);
+            addToUser(receiversByUser, user, fileReceiver);
+        }
 
         return fileReceiver;
     }
 
     /**
-     * Removes a file receiver from the list.
+     * Removes a file receiver from the list, and frees its place in the scheduler.
      *
      * @param fileReceiver The file receiver to remove.
      */
     public void removeFileReceiver(final FileReceiver fileReceiver) {
-        receivers.remove(fileReceiver);
+        synchronized (indexLock) {
+            if (receiversById.get(fileReceiver.getId()) == fileReceiver) {
+                receiversById.remove(fileReceiver.getId());
+                removeFromUser(receiversByUser, fileReceiver.getUser(), fileReceiver);
+            }
+        }
+
+        if (scheduler != null) {
+            scheduler.finished(fileReceiver);
+        }
     }
 
     /**
@@ -197,15 +453,7 @@ public class TransferList {
      * @return A list of all the file receivers for the user.
      */
     public List<FileReceiver> getFileReceivers(final User user) {
-        final List<FileReceiver> list = new ArrayList<FileReceiver>();
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user) {
-                list.add(fr);
-            }
-        }
-
-        return list;
+        return getSnapshot(receiversByUser, user);
     }
 
     /**
@@ -216,30 +464,32 @@ public class TransferList {
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     public FileReceiver getFileReceiver(final User user, final String fileName) {
-        FileReceiver fileReceiver = null;
-
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getFile().getName().equals(fileName)) {
-                fileReceiver = fr;
-                break;
+        // Not indexed by name, since the file can be renamed before it's saved
+        final List<FileReceiver> userReceivers = receiversByUser.get(new TransferKey(user));
+
+        if (userReceivers != null) {
+            for (final FileReceiver fr : userReceivers) {
+                if (fr.getFile().getName().equals(fileName)) {
+                    return fr;
+                }
             }
         }
 
-        return fileReceiver;
+        return null;
     }
 
     /**
      * Gets the file receiver object for the specified user and file transfer id.
      *
      * @param user The file receiver user.
-     * @param id TThe file transfer id of the file being received.
+     * @param id The file transfer id of the file being received.
      * @return The file receiver object, or <code>null</code> if none was found.
      */
     public FileReceiver getFileReceiver(final User user, final int id) {
-        for (final FileReceiver fr : receivers) {
-            if (fr.getUser() == user && fr.getId() == id) {
-                return fr;
-            }
+        final FileReceiver fileReceiver = receiversById.get(id);
+
+        if (fileReceiver != null && fileReceiver.getUser() == user) {
+            return fileReceiver;
         }
 
         return null;
@@ -251,11 +501,8 @@ public class TransferList {
      * @return A list of all the file receivers.
      */
     public List<FileReceiver> getFileReceivers() {
-        final List<FileReceiver> list = new ArrayList<FileReceiver>();
-
-        for (final FileReceiver fr : receivers) {
-            list.add(fr);
-        }
+        final List<FileReceiver> list = new ArrayList<FileReceiver>(receiversById.values());
+        Collections.sort(list, ID_COMPARATOR);
 
         return list;
     }
@@ -295,4 +542,131 @@ public class TransferList {
             return getFileSender(user, id);
         }
     }
+
+    /**
+     * Adds the file transfer to the list of file transfers for the user.
+     * Must be called while holding the index lock.
+     *
+     * @param index The file transfers of each user.
+     * @param user The user of the file transfer.
+     * @param fileTransfer The file transfer to add.
+     * @param <T> The type of file transfer.
+     */
+    private static <T> void addToUser(final Map<TransferKey, List<T>> index, final User user, final T fileTransfer) {
+        final TransferKey key = new TransferKey(user);
+        List<T> list = index.get(key);
+
+        if (list == null) {
+            list = new CopyOnWriteArrayList<T>();
+            index.put(key, list);
+        }
+
+        list.add(fileTransfer);
+    }
+
+    /**
+     * Removes the file transfer from the list of file transfers for the user,
+     * and forgets the user when there are no more file transfers.
+     * Must be called while holding the index lock.
+     *
+     * @param index The file transfers of each user.
+     * @param user The user of the file transfer.
+     * @param fileTransfer The file transfer to remove.
+     * @param <T> The type of file transfer.
+     */
+    private static <T> void removeFromUser(final Map<TransferKey, List<T>> index, final User user,
+                                           final T fileTransfer) {
+        final TransferKey key = new TransferKey(user);
+        final List<T> list = index.get(key);
+
+        if (list != null) {
+            list.remove(fileTransfer);
+
+            if (list.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Gets a copy of the list of file transfers for the user.
+     *
+     * @param index The file transfers of each user.
+     * @param user The user to get the file transfers for.
+     * @param <T> The type of file transfer.
+     * @return A new list with the file transfers of the user.
+     */
+    private static <T> List<T> getSnapshot(final Map<TransferKey, List<T>> index, final User user) {
+        final List<T> list = index.get(new TransferKey(user));
+
+        if (list == null) {
+            return new ArrayList<T>();
+        }
+
+        return new ArrayList<T>(list);
+    }
+
+    /**
+     * Key for the indexes, with a user and an optional file name and file hash.
+     *
+     * <p>The user is compared by identity, like the file transfers have always been looked up.</p>
+     */
+    private static final class TransferKey {
+
+        /** The user of the file transfer. */
+        private final User user;
+
+        /** The file name, or <code>null</code> to only use the user. */
+        private final String fileName;
+
+        /** The hash that identifies the file transfer. */
+        private final int fileHash;
+
+        /**
+         * Constructor for a key with only the user.
+         *
+         * @param user The user of the file transfer.
+         */
+        TransferKey(final User user) {
+            this(user, null, 0);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param user The user of the file transfer.
+         * @param fileName The name of the file.
+         * @param fileHash The hash that identifies the file transfer.
+         */
+        TransferKey(final User user, final String fileName, final int fileHash) {
+            this.user = user;
+            this.fileName = fileName;
+            this.fileHash = fileHash;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final TransferKey key = (TransferKey) o;
+
+            return user == key.user && fileHash == key.fileHash
+                    && (fileName == null ? key.fileName == null : fileName.equals(key.fileName));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(user);
+            result = 31 * result + (fileName != null ? fileName.hashCode() : 0);
+            result = 31 * result + fileHash;
+
+            return result;
+        }
+    }
 }
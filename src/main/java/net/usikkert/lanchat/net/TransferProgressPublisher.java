@@ -0,0 +1,134 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Publishes the progress of all the file transfers in the {@link TransferList} at a fixed rate.
+ *
+ * <p>The threads copying the files only count the bytes transferred. This publisher samples the
+ * progress of all the active file transfers in one pass, about 10 times per second, no matter how
+ * fast the files are copied. So the copy loops never wait for the listeners or the user interface.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class TransferProgressPublisher {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(TransferProgressPublisher.class.getName());
+
+    /** Milliseconds between each time the progress is published. */
+    public static final long UPDATE_INTERVAL = 100;
+
+    /** The file transfers to publish the progress of. */
+    private final TransferList tList;
+
+    /** The timer publishing the progress, or <code>null</code> if not started. */
+    private ScheduledExecutorService timer;
+
+    /**
+     * Constructor.
+     *
+     * @param tList The file transfers to publish the progress of.
+     */
+    public TransferProgressPublisher(final TransferList tList) {
+        Validate.notNull(tList, "Transfer list can not be null");
+        this.tList = tList;
+    }
+
+    /**
+     * Starts publishing the progress, if not already started.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "TransferProgressPublisher");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                publish();
+            }
+        }, UPDATE_INTERVAL, UPDATE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops publishing the progress.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+
+    /**
+     * Checks if the progress is being published.
+     *
+     * @return If started.
+     */
+    public synchronized boolean isStarted() {
+        return timer != null;
+    }
+
+    /**
+     * Publishes the progress of all the file transfers once. The file transfers that are not
+     * being transferred at the moment skip it themselves.
+     */
+    void publish() {
+        publish(tList.getFileSenders());
+        publish(tList.getFileReceivers());
+    }
+
+    private void publish(final List<? extends FileTransfer> transfers) {
+        for (final FileTransfer transfer : transfers) {
+            // A failing listener must not stop the timer, or the progress of the other file transfers
+            try {
+                transfer.publishProgress();
+            }
+
+            catch (final RuntimeException e) {
+                LOG.log(Level.WARNING, "Failed to publish the progress of file transfer " + transfer.getId(), e);
+            }
+        }
+    }
+}
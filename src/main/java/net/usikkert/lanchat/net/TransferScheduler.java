@@ -0,0 +1,603 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.usikkert.lanchat.misc.User;
+import net.usikkert.lanchat.util.Validate;
+
+/**
+ * Decides when the file transfers in the {@link TransferList} can start, so only a limited number of them
+ * copy files at the same time. The rest wait in a queue, and start in order when other file transfers finish.
+ *
+ * <p>There is a limit for all the file transfers, for the file transfers with each user, and for each
+ * direction. A limit of 0 means no limit. Small files are queued before large files, and otherwise
+ * first come, first served.</p>
+ *
+ * <p>A file sender takes its place when the file is offered, since it must start right away when the other
+ * user accepts. The offer expires after {@link #OFFER_TIMEOUT} milliseconds without an answer, so an offer
+ * the other user never answers can't hold the place forever. A file receiver takes its place when the user
+ * accepts the file, before telling the sender. File senders waiting for an answer are not counted when
+ * a file receiver wants to start, so two users sending files to each other can't end up waiting for each
+ * other. The place is freed when the file transfer is removed from the transfer list.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public class TransferScheduler {
+
+    /** The logger. */
+    private static final Logger LOG = Logger.getLogger(TransferScheduler.class.getName());
+
+    /** File transfers of this many bytes or less are queued before larger file transfers. */
+    public static final long SMALL_TRANSFER_SIZE = 1024 * 1024;
+
+    /** Milliseconds to wait for an answer to an offer before the offer expires. */
+    public static final long OFFER_TIMEOUT = 2 * 60 * 1000;
+
+    /**
+     * The priority of a file transfer in the queue.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL
+    };
+
+    /** The file transfers to schedule. */
+    private final TransferList tList;
+
+    /** Runs the file transfers that had to wait in the queue. */
+    private final Executor executor;
+
+    /** The file transfers that have started. */
+    private final List<FileTransfer> active;
+
+    /** The file senders that have offered their file, and the timeouts of their offers. */
+    private final Map<FileSender, ScheduledFuture<?>> offered;
+
+    /** The file transfers waiting to start, sorted by priority and then by the time they were queued. */
+    private final List<QueuedTransfer> queue;
+
+    /** Counts the queued file transfers, to keep them in order. */
+    private long queueCounter;
+
+    /** Max file transfers at the same time, or 0 for no limit. */
+    private int maxTransfers;
+
+    /** Max file transfers with each user at the same time, or 0 for no limit. */
+    private int maxTransfersPerUser;
+
+    /** Max files sent at the same time, or 0 for no limit. */
+    private int maxSends;
+
+    /** Max files received at the same time, or 0 for no limit. */
+    private int maxReceives;
+
+    /** Milliseconds to wait for an answer to an offer. */
+    private long offerTimeout;
+
+    /**
+     * Constructor.
+     *
+     * @param tList The file transfers to schedule. Tells the scheduler when a file transfer is removed.
+     * @param executor Runs the file transfers that had to wait in the queue.
+     */
+    public TransferScheduler(final TransferList tList, final Executor executor) {
+        Validate.notNull(tList, "Transfer list can not be null");
+        Validate.notNull(executor, "Executor can not be null");
+
+        this.tList = tList;
+        this.executor = executor;
+
+        active = new ArrayList<FileTransfer>();
+        offered = new HashMap<FileSender, ScheduledFuture<?>>();
+        queue = new ArrayList<QueuedTransfer>();
+        offerTimeout = OFFER_TIMEOUT;
+        tList.setScheduler(this);
+    }
+
+    /**
+     * Gets the file transfers this scheduler is scheduling.
+     *
+     * @return The transfer list.
+     */
+    public TransferList getTransferList() {
+        return tList;
+    }
+
+    /**
+     * Sets the max number of file transfers at the same time. Queued file transfers are started
+     * right away if the new limits allow it.
+     *
+     * @param maxTransfers Max file transfers in total, or 0 for no limit.
+     * @param maxTransfersPerUser Max file transfers with each user, or 0 for no limit.
+     * @param maxSends Max files sent, or 0 for no limit.
+     * @param maxReceives Max files received, or 0 for no limit.
+     */
+    public void setLimits(final int maxTransfers, final int maxTransfersPerUser, final int maxSends,
+                          final int maxReceives) {
+        synchronized (this) {
+            this.maxTransfers = maxTransfers;
+            this.maxTransfersPerUser = maxTransfersPerUser;
+            this.maxSends = maxSends;
+            this.maxReceives = maxReceives;
+        }
+
+        startQueued();
+    }
+
+    /**
+     * Sets the number of milliseconds to wait for an answer to an offer. Used by tests.
+     *
+     * @param offerTimeout Milliseconds before an offer expires.
+     */
+    void setOfferTimeout(final long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    /**
+     * Asks to start the file transfer. If the limits allow it, the file transfer takes its place right away,
+     * and the caller should start it. Otherwise the file transfer is queued, and the task is run on the
+     * executor when it's the file transfer's turn. A file sender that has offered its file already has
+     * its place, and always starts right away, since the other user is waiting for the connection.
+     *
+     * @param transfer The file transfer to start.
+     * @param start The task that starts the file transfer, if it has to wait in the queue.
+     * @return If the caller can start the file transfer right away.
+     */
+    public boolean schedule(final FileTransfer transfer, final Runnable start) {
+        Validate.notNull(transfer, "File transfer can not be null");
+        Validate.notNull(start, "Start task can not be null");
+
+        synchronized (this) {
+            final ScheduledFuture<?> timeout = offered.remove(transfer);
+
+            // The other user accepted the file, and is waiting for the connection
+            if (timeout != null) {
+                timeout.cancel(false);
+                active.add(transfer);
+                return true;
+            }
+
+            if (canStart(transfer)) {
+                active.add(transfer);
+                return true;
+            }
+
+            queue.add(new QueuedTransfer(transfer, getPriority(transfer), ++queueCounter, start, null));
+            sortQueue();
+        }
+
+        LOG.log(Level.FINE, "Queued " + transfer.getFile().getName() + " with " + transfer.getUser().getNick());
+        return false;
+    }
+
+    /**
+     * Asks to offer the file of the file sender. If the limits allow it, the file sender takes its place
+     * right away, and the caller should offer the file. Otherwise the file sender is queued, and the task
+     * is run on the executor when it's the file sender's turn. The file sender keeps its place until
+     * the file transfer is removed, or until the offer expires. Then the expire task is run,
+     * and should withdraw the offer.
+     *
+     * @param sender The file sender to offer the file of.
+     * @param offer The task that offers the file, if it has to wait in the queue.
+     * @param expire The task that withdraws the offer, if it's not answered in time.
+     * @return If the caller can offer the file right away.
+     */
+    public boolean offer(final FileSender sender, final Runnable offer, final Runnable expire) {
+        Validate.notNull(sender, "File sender can not be null");
+        Validate.notNull(offer, "Offer task can not be null");
+        Validate.notNull(expire, "Expire task can not be null");
+
+        synchronized (this) {
+            if (canStart(sender)) {
+                addOffer(sender, expire);
+                return true;
+            }
+
+            queue.add(new QueuedTransfer(sender, getPriority(sender), ++queueCounter, offer, expire));
+            sortQueue();
+        }
+
+        LOG.log(Level.FINE, "Queued offer of " + sender.getFile().getName() + " to " + sender.getUser().getNick());
+        return false;
+    }
+
+    /**
+     * Frees the place of the file transfer, or removes it from the queue, and starts the next
+     * file transfers in the queue. Called by the transfer list when the file transfer is removed.
+     *
+     * @param transfer The file transfer that is finished.
+     */
+    public void finished(final FileTransfer transfer) {
+        synchronized (this) {
+            active.remove(transfer);
+            removeOffer(transfer);
+
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.get(i).getTransfer() == transfer) {
+                    queue.remove(i);
+                    transfer.setQueuePosition(0);
+                    updateQueuePositions();
+                    break;
+                }
+            }
+        }
+
+        startQueued();
+    }
+
+    /**
+     * Takes the queued file transfer out of the queue, and runs the task that starts it, so it can clean up
+     * after being canceled. Does nothing if the file transfer is not in the queue.
+     *
+     * @param transfer The canceled file transfer.
+     */
+    public void cancel(final FileTransfer transfer) {
+        QueuedTransfer canceled = null;
+
+        synchronized (this) {
+            for (int i = 0; i < queue.size(); i++) {
+                if (queue.get(i).getTransfer() == transfer) {
+                    canceled = queue.remove(i);
+                    break;
+                }
+            }
+
+            if (canceled != null) {
+                transfer.setQueuePosition(0);
+                updateQueuePositions();
+            }
+        }
+
+        if (canceled != null) {
+            execute(canceled, false);
+        }
+    }
+
+    /**
+     * Checks if the file transfer is waiting in the queue.
+     *
+     * @param transfer The file transfer to check.
+     * @return If the file transfer is queued.
+     */
+    public synchronized boolean isQueued(final FileTransfer transfer) {
+        return transfer.getQueuePosition() > 0;
+    }
+
+    /**
+     * Gets the file transfers waiting in the queue, in the order they will start.
+     *
+     * @return The queued file transfers.
+     */
+    public synchronized List<FileTransfer> getQueuedTransfers() {
+        final List<FileTransfer> list = new ArrayList<FileTransfer>();
+
+        for (final QueuedTransfer queued : queue) {
+            list.add(queued.getTransfer());
+        }
+
+        return list;
+    }
+
+    /**
+     * Gets the number of file transfers that have taken their place.
+     *
+     * @return The number of active file transfers.
+     */
+    public synchronized int getActiveTransfers() {
+        return active.size();
+    }
+
+    /**
+     * Gets the number of file senders waiting for an answer to their offer.
+     *
+     * @return The number of offered files.
+     */
+    public synchronized int getOfferedTransfers() {
+        return offered.size();
+    }
+
+    /**
+     * Starts the file transfers in the queue that the limits allow, in order. A file transfer that
+     * has to wait for its user does not stop the file transfers with other users.
+     */
+    private void startQueued() {
+        final List<QueuedTransfer> toStart = new ArrayList<QueuedTransfer>();
+
+        synchronized (this) {
+            for (int i = 0; i < queue.size(); i++) {
+                final QueuedTransfer queued = queue.get(i);
+
+                if (canStart(queued.getTransfer())) {
+                    queue.remove(i--);
+
+                    if (queued.isOffer()) {
+                        addOffer((FileSender) queued.getTransfer(), queued.getExpire());
+                    } else {
+                        active.add(queued.getTransfer());
+                    }
+
+                    queued.getTransfer().setQueuePosition(0);
+                    toStart.add(queued);
+                }
+            }
+
+            if (!toStart.isEmpty()) {
+                updateQueuePositions();
+            }
+        }
+
+        for (final QueuedTransfer queued : toStart) {
+            execute(queued, true);
+        }
+    }
+
+    /**
+     * Runs the task that starts the file transfer on the executor. If the executor is full, the file
+     * transfer goes back to the front of the queue, and is tried again when another file transfer finishes.
+     *
+     * @param queued The file transfer to start.
+     * @param requeue If the file transfer should be queued again when the executor is full.
+     */
+    private void execute(final QueuedTransfer queued, final boolean requeue) {
+        try {
+            executor.execute(queued.getStart());
+        }
+
+        catch (final RejectedExecutionException e) {
+            LOG.log(Level.WARNING, "Could not start " + queued.getTransfer().getFile().getName() + ": " + e);
+
+            if (requeue) {
+                synchronized (this) {
+                    active.remove(queued.getTransfer());
+                    removeOffer(queued.getTransfer());
+                    queue.add(queued);
+                    sortQueue();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives the file sender its place while waiting for an answer to the offer,
+     * and starts the timeout of the offer.
+     *
+     * @param sender The file sender offering its file.
+     * @param expire The task that withdraws the offer, if it's not answered in time.
+     */
+    private void addOffer(final FileSender sender, final Runnable expire) {
+        offered.put(sender, FileTransferServer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(sender, expire);
+            }
+        }, offerTimeout));
+    }
+
+    /**
+     * Frees the place of the file sender if it's waiting for an answer, and stops the timeout of the offer.
+     *
+     * @param transfer The file transfer to remove the offer of.
+     */
+    private void removeOffer(final FileTransfer transfer) {
+        final ScheduledFuture<?> timeout = offered.remove(transfer);
+
+        if (timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Frees the place of a file sender that got no answer to its offer in time, withdraws the offer,
+     * and starts the next file transfers in the queue. Does nothing if the offer was answered.
+     *
+     * @param sender The file sender that offered its file.
+     * @param expire The task that withdraws the offer.
+     */
+    private void expire(final FileSender sender, final Runnable expire) {
+        synchronized (this) {
+            if (offered.remove(sender) == null) {
+                return;
+            }
+        }
+
+        LOG.log(Level.FINE, "Offer of " + sender.getFile().getName() + " to " + sender.getUser().getNick() +
+                " expired");
+
+        try {
+            expire.run();
+        }
+
+        finally {
+            startQueued();
+        }
+    }
+
+    /**
+     * Checks if the limits allow the file transfer to start now.
+     *
+     * @param transfer The file transfer to check.
+     * @return If the file transfer can start.
+     */
+    private boolean canStart(final FileTransfer transfer) {
+        final User user = transfer.getUser();
+        final FileTransfer.Direction direction = transfer.getDirection();
+        int total = 0;
+        int withUser = 0;
+        int sameDirection = 0;
+
+        for (final FileTransfer other : active) {
+            total++;
+
+            if (other.getUser() == user) {
+                withUser++;
+            }
+
+            if (other.getDirection() == direction) {
+                sameDirection++;
+            }
+        }
+
+        // File senders waiting for an answer are not sure to start soon, so they can't make a file receiver wait
+        if (direction == FileTransfer.Direction.SEND) {
+            for (final FileSender other : offered.keySet()) {
+                total++;
+                sameDirection++;
+
+                if (other.getUser() == user) {
+                    withUser++;
+                }
+            }
+        }
+
+        final int maxDirection = direction == FileTransfer.Direction.SEND ? maxSends : maxReceives;
+
+        return isBelow(total, maxTransfers) && isBelow(withUser, maxTransfersPerUser)
+                && isBelow(sameDirection, maxDirection);
+    }
+
+    /**
+     * Gets the priority of a file transfer that has not started yet.
+     *
+     * @param transfer The file transfer to queue.
+     * @return The priority in the queue.
+     */
+    private static Priority getPriority(final FileTransfer transfer) {
+        return transfer.getFileSize() <= SMALL_TRANSFER_SIZE ? Priority.HIGH : Priority.NORMAL;
+    }
+
+    /**
+     * Checks if the count is below the limit.
+     *
+     * @param count The count to check.
+     * @param limit The limit, or 0 if there is no limit.
+     * @return If the count is below the limit.
+     */
+    private static boolean isBelow(final int count, final int limit) {
+        return limit <= 0 || count < limit;
+    }
+
+    /**
+     * Sorts the queue by priority, and then by the time the file transfers were queued,
+     * and tells the file transfers their new positions.
+     */
+    private void sortQueue() {
+        Collections.sort(queue, new Comparator<QueuedTransfer>() {
+            @Override
+            public int compare(final QueuedTransfer q1, final QueuedTransfer q2) {
+                final int byPriority = q1.getPriority().compareTo(q2.getPriority());
+
+                if (byPriority != 0) {
+                    return byPriority;
+                }
+
+                return Long.valueOf(q1.getOrder()).compareTo(q2.getOrder());
+            }
+        });
+
+        updateQueuePositions();
+    }
+
+    /**
+     * Tells the queued file transfers their positions in the queue.
+     */
+    private void updateQueuePositions() {
+        for (int i = 0; i < queue.size(); i++) {
+            queue.get(i).getTransfer().setQueuePosition(i + 1);
+        }
+    }
+
+    /**
+     * A file transfer waiting in the queue.
+     */
+    private static class QueuedTransfer {
+
+        /** The file transfer. */
+        private final FileTransfer transfer;
+
+        /** The priority of the file transfer. */
+        private final Priority priority;
+
+        /** When the file transfer was queued, compared to the other file transfers. */
+        private final long order;
+
+        /** The task that starts the file transfer. */
+        private final Runnable start;
+
+        /** The task that withdraws the offer if it expires, or <code>null</code> if not an offer. */
+        private final Runnable expire;
+
+        /**
+         * Constructor.
+         *
+         * @param transfer The file transfer.
+         * @param priority The priority of the file transfer.
+         * @param order When the file transfer was queued, compared to the other file transfers.
+         * @param start The task that starts the file transfer.
+         * @param expire The task that withdraws the offer if it expires, or <code>null</code> if not an offer.
+         */
+        QueuedTransfer(final FileTransfer transfer, final Priority priority, final long order,
+                       final Runnable start, final Runnable expire) {
+            this.transfer = transfer;
+            this.priority = priority;
+            this.order = order;
+            this.start = start;
+            this.expire = expire;
+        }
+
+        public FileTransfer getTransfer() {
+            return transfer;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getOrder() {
+            return order;
+        }
+
+        public Runnable getStart() {
+            return start;
+        }
+
+        public Runnable getExpire() {
+            return expire;
+        }
+
+        public boolean isOffer() {
+            return expire != null;
+        }
+    }
+}
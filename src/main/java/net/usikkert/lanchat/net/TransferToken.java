@@ -0,0 +1,134 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Identifies a file transfer on the shared file transfer port. The file sender writes the token
+ * first on every connection, and the {@link FileTransferServer} uses it to give the connection
+ * to the file receiver waiting for it.
+ *
+ * <p>The token is made from what both users already know about the file transfer: the unique code
+ * of the user sending the file, and the file hash and file name from the file offer. So nothing
+ * more has to be sent in the messages. The file name is only included as its hash code, to keep
+ * the token a fixed size.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class TransferToken {
+
+    /** The number of bytes in a token. */
+    public static final int SIZE = 16;
+
+    /** The first bytes of a token, so other connections are not mistaken for file transfers. */
+    private static final int MAGIC = 0x4C434654;
+
+    /** The unique code of the user sending the file. */
+    private final int userCode;
+
+    /** The hash code of the file, as announced by the sender. */
+    private final int fileHash;
+
+    /** The hash code of the file name, as announced by the sender. */
+    private final int fileNameHash;
+
+    /**
+     * Constructor.
+     *
+     * @param userCode The unique code of the user sending the file.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param fileName The name of the file, as announced by the sender.
+     */
+    public TransferToken(final int userCode, final int fileHash, final String fileName) {
+        this(userCode, fileHash, fileName.hashCode());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param userCode The unique code of the user sending the file.
+     * @param fileHash The hash code of the file, as announced by the sender.
+     * @param fileNameHash The hash code of the file name, as announced by the sender.
+     */
+    private TransferToken(final int userCode, final int fileHash, final int fileNameHash) {
+        this.userCode = userCode;
+        this.fileHash = fileHash;
+        this.fileNameHash = fileNameHash;
+    }
+
+    /**
+     * Writes the token as bytes, to send first on a connection.
+     *
+     * @return The {@link #SIZE} bytes of the token.
+     */
+    public byte[] toBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC).putInt(userCode).putInt(fileHash).putInt(fileNameHash);
+
+        return buffer.array();
+    }
+
+    /**
+     * Reads a token from the first bytes of a connection.
+     *
+     * @param buffer The buffer with {@link #SIZE} bytes to read from.
+     * @return The token, or <code>null</code> if the bytes are not a token.
+     */
+    public static TransferToken fromBytes(final ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        return new TransferToken(buffer.getInt(), buffer.getInt(), buffer.getInt());
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final TransferToken token = (TransferToken) o;
+
+        return userCode == token.userCode && fileHash == token.fileHash && fileNameHash == token.fileNameHash;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = userCode;
+        result = 31 * result + fileHash;
+        result = 31 * result + fileNameHash;
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferToken[user=" + userCode + ", fileHash=" + fileHash + ", fileNameHash=" + fileNameHash + "]";
+    }
+}
@@ -41,7 +41,7 @@ import net.usikkert.lanchat.util.Validate;
  *
  * @author Shouvik Goswami
  */
-public class UDPReceiver implements Runnable {
+public class UDPReceiver implements PrivateMessageReceiver, Runnable {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(UDPReceiver.class.getName());
@@ -77,16 +77,23 @@ public class UDPReceiver implements Runnable {
      * The run() method of this thread. Checks for new packets,
      * extracts the message and IP address, and notifies the listener.
      */
+    @Override
     public void run() {
+        final DatagramPacket packet = new DatagramPacket(
+                new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
+
         while (connected) {
             try {
-                final DatagramPacket packet = new DatagramPacket(
-                        new byte[Constants.NETWORK_PACKET_SIZE], Constants.NETWORK_PACKET_SIZE);
+                // The packet is reused, so the length of the last message must be reset
+                packet.setLength(Constants.NETWORK_PACKET_SIZE);
 
                 udpSocket.receive(packet);
                 final String ip = packet.getAddress().getHostAddress();
-                final String message = new String(packet.getData(), Constants.MESSAGE_CHARSET).trim();
-                LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                final String message = BinaryProtocol.fromBytes(packet.getData(), packet.getLength());
+
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Message arrived from " + ip + ": " + message);
+                }
 
                 if (listener != null) {
                     listener.messageArrived(message, ip);
@@ -111,6 +118,7 @@ public class UDPReceiver implements Runnable {
      * on the UDP port. If the UDP port is in use, a new port will be
      * tried instead.
      */
+    @Override
     public void startReceiver() {
         LOG.log(Level.FINE, "Connecting...");
 
@@ -159,6 +167,7 @@ public class UDPReceiver implements Runnable {
     /**
      * Closes the UDP socket, and stops the thread.
      */
+    @Override
     public void stopReceiver() {
         LOG.log(Level.FINE, "Disconnecting...");
 
@@ -183,6 +192,7 @@ public class UDPReceiver implements Runnable {
      *
      * @param listener The object to register as a listener.
      */
+    @Override
     public void registerReceiverListener(final ReceiverListener listener) {
         this.listener = listener;
     }
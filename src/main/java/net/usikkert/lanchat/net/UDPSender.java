@@ -71,7 +71,7 @@ public class UDPSender {
         if (connected) {
             try {
                 final InetAddress address = InetAddress.getByName(ip);
-                final byte[] encodedMsg = message.getBytes(Constants.MESSAGE_CHARSET);
+                final byte[] encodedMsg = BinaryProtocol.toBytes(message);
                 final int size = encodedMsg.length;
 
                 if (size > Constants.NETWORK_PACKET_SIZE) {
@@ -105,6 +105,14 @@ public class TransferHandler implements FileTransferListener {
 
     }
 
+    /**
+     * Not implemented.
+     */
+    @Override
+    public void statusQueued() {
+
+    }
+
     /**
      * Not implemented.
      */
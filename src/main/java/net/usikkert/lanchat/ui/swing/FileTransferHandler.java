@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,7 +42,8 @@ import javax.swing.text.JTextComponent;
 
 /**
  * This takes care of drag and drop of files to send.
- * When a file is dropped the mediator opens the file.
+ * When a file is dropped the mediator opens the file. Several files,
+ * or folders, are sent right away as a batch.
  *
  * @author Shouvik Goswami
  */
@@ -101,7 +103,7 @@ public class FileTransferHandler extends TransferHandler {
 
     /**
      * Double checks to see if the data is of the correct type,
-     * and then tries to create a file object to send to the mediator.
+     * and then tries to create file objects to send to the mediator.
      * Supports both Linux and Windows file lists.
      *
      * {@inheritDoc}
@@ -110,15 +112,12 @@ public class FileTransferHandler extends TransferHandler {
     public boolean importData(final TransferSupport support) {
         if (canImport(support)) {
             try {
-                File file = null;
+                final List<File> files = new ArrayList<File>();
 
                 if (support.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
                     @SuppressWarnings("unchecked")
                     final List<File> fileList = (List<File>) support.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
-
-                    if (fileList.size() > 0) {
-                        file = fileList.get(0);
-                    }
+                    files.addAll(fileList);
                 }
 
                 else if (support.isDataFlavorSupported(uriListFlavor)) {
@@ -126,26 +125,18 @@ public class FileTransferHandler extends TransferHandler {
 
                     if (data != null) {
                         final String[] uriList = data.toString().split("\r\n");
-                        String fileURI = "";
 
                         for (int i = 0; i < uriList.length; i++) {
                             if (uriList[i].startsWith("file:/")) {
-                                fileURI = uriList[i];
-                                break;
-                            }
-                        }
-
-                        try {
-                            final URI uri = new URI(fileURI);
+                                try {
+                                    files.add(new File(new URI(uriList[i])));
+                                }
 
-                            if (uri != null) {
-                                file = new File(uri);
+                                catch (final URISyntaxException e) {
+                                    LOG.log(Level.WARNING, e.toString());
+                                }
                             }
                         }
-
-                        catch (final URISyntaxException e) {
-                            LOG.log(Level.WARNING, e.toString());
-                        }
                     }
                 }
 
@@ -153,8 +144,13 @@ public class FileTransferHandler extends TransferHandler {
                     LOG.log(Level.WARNING, "Data flavor not supported.");
                 }
 
-                if (file != null) {
-                    mediator.sendFile(fileDropSource.getUser(), file);
+                if (files.size() == 1 && !files.get(0).isDirectory()) {
+                    mediator.sendFile(fileDropSource.getUser(), files.get(0));
+                    return true;
+                }
+
+                else if (!files.isEmpty()) {
+                    mediator.sendFiles(fileDropSource.getUser(), files);
                     return true;
                 }
 
@@ -23,6 +23,7 @@
 package net.usikkert.lanchat.ui.swing;
 
 import java.io.File;
+import java.util.List;
 
 import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.ui.PrivateChatWindow;
@@ -108,6 +109,14 @@ public interface Mediator {
      */
     void sendFile(User user, File selectedFile);
 
+    /**
+     * Sends files and folders to another user, like files dropped on the user.
+     *
+     * @param user The user to send the files to.
+     * @param files The files and folders to send.
+     */
+    void sendFiles(User user, List<File> files);
+
     /**
      * Gets the text written in the input field and either sends it to
      * the command parser or sends it as a message.
@@ -150,7 +150,7 @@ public class PrivateChatFrame extends JFrame implements ActionListener, KeyListe
         msgTF.addKeyListener(this);
 
         final AbstractDocument msgDoc = (AbstractDocument) msgTF.getDocument();
-        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.MESSAGE_MAX_BYTES));
+        msgDoc.setDocumentFilter(new SizeDocumentFilter(Constants.MESSAGE_MAX_FRAGMENTED_BYTES));
 
         final JPanel backP = new JPanel();
         backP.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
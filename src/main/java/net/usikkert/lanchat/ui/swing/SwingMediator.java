@@ -23,6 +23,8 @@
 package net.usikkert.lanchat.ui.swing;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -303,7 +305,7 @@ public class SwingMediator implements Mediator, UserInterface {
     }
 
     /**
-     * Opens a file chooser, where the user can select a file to send to
+     * Opens a file chooser, where the user can select files and folders to send to
      * another user.
      *
      * @param user The user to send the file to.
@@ -313,8 +315,65 @@ public class SwingMediator implements Mediator, UserInterface {
      */
     @Override
     public void sendFile(final User user, final File selectedFile) {
+        if (canSendFiles(user)) {
+            final JFileChooser chooser = UITools.createFileChooser("Open");
+            chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+            chooser.setMultiSelectionEnabled(true);
+
+            if (selectedFile != null && selectedFile.exists()) {
+                chooser.setSelectedFile(selectedFile);
+            }
+
+            final int returnVal = chooser.showOpenDialog(null);
+
+            if (returnVal == JFileChooser.APPROVE_OPTION) {
+                final List<File> files = new ArrayList<File>();
+
+                for (final File file : chooser.getSelectedFiles()) {
+                    if (file.exists()) {
+                        files.add(file.getAbsoluteFile());
+                    }
+                }
+
+                if (!files.isEmpty()) {
+                    sendFilesInternal(user, files);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the files and folders to another user, without asking first.
+     *
+     * @param user The user to send the files to.
+     * @param files The files and folders to send.
+     */
+    @Override
+    public void sendFiles(final User user, final List<File> files) {
+        if (canSendFiles(user)) {
+            sendFilesInternal(user, files);
+        }
+    }
+
+    private void sendFilesInternal(final User user, final List<File> files) {
+        try {
+            cmdParser.sendFiles(user, files);
+        }
+
+        catch (final CommandException e) {
+            UITools.showWarningMessage(e.getMessage(), "Send file");
+        }
+    }
+
+    /**
+     * Checks if files can be sent to the user, and shows a warning if not.
+     *
+     * @param user The user to send files to.
+     * @return If files can be sent to the user.
+     */
+    private boolean canSendFiles(final User user) {
         if (user == null) {
-            return;
+            return false;
         } else if (user.isMe()) {
             final String message = "You cannot send files to yourself.";
             UITools.showWarningMessage(message, "Warning");
@@ -336,28 +395,10 @@ public class SwingMediator implements Mediator, UserInterface {
         }
 
         else {
-            final JFileChooser chooser = UITools.createFileChooser("Open");
-
-            if (selectedFile != null && selectedFile.exists()) {
-                chooser.setSelectedFile(selectedFile);
-            }
-
-            final int returnVal = chooser.showOpenDialog(null);
-
-            if (returnVal == JFileChooser.APPROVE_OPTION) {
-                final File file = chooser.getSelectedFile().getAbsoluteFile();
-
-                if (file.exists() && file.isFile()) {
-                    try {
-                        cmdParser.sendFile(user, file);
-                    }
-
-                    catch (final CommandException e) {
-                        UITools.showWarningMessage(e.getMessage(), "Send file");
-                    }
-                }
-            }
+            return true;
         }
+
+        return false;
     }
 
     /**
@@ -629,7 +670,7 @@ public class SwingMediator implements Mediator, UserInterface {
     /**
      * Opens a file chooser so the user can choose where to save a file
      * another user is trying to send. Warns if the file name chosen
-     * already exists.
+     * already exists. A batch of files is saved into a folder.
      *
      * @param fileReceiver Information about the file to save.
      */
@@ -655,7 +696,33 @@ public class SwingMediator implements Mediator, UserInterface {
             if (returnVal == JFileChooser.APPROVE_OPTION) {
                 final File file = chooser.getSelectedFile().getAbsoluteFile();
 
-                if (file.exists()) {
+                if (file.equals(fileReceiver.getPartialFile())) {
+                    final String message = file.getName() + " is partially received.\nResume the file transfer?";
+                    final int resume = UITools.showOptionDialog(message, "Partial file");
+
+                    if (resume != JOptionPane.YES_OPTION) {
+                        fileReceiver.setPartialFile(null);
+                    }
+                }
+
+                if (fileReceiver.isBatch()) {
+                    if (file.isFile()) {
+                        final String message = file.getName() + " is a file.\nChoose a folder to save the files into.";
+                        UITools.showWarningMessage(message, "File exists");
+                        done = false;
+                    }
+
+                    else if (file.exists()) {
+                        final String message = file.getName() + " already exists.\nSave the files into it?";
+                        final int overwrite = UITools.showOptionDialog(message, "Folder exists");
+
+                        if (overwrite != JOptionPane.YES_OPTION) {
+                            done = false;
+                        }
+                    }
+                }
+
+                else if (file.exists() && fileReceiver.getPartialFile() == null) {
                     final String message = file.getName() + " already exists.\nOverwrite?";
                     final int overwrite = UITools.showOptionDialog(message, "File exists");
 
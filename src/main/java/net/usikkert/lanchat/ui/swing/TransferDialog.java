@@ -28,6 +28,7 @@ import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
@@ -43,6 +44,7 @@ import javax.swing.WindowConstants;
 import net.usikkert.lanchat.event.FileTransferListener;
 import net.usikkert.lanchat.misc.Settings;
 import net.usikkert.lanchat.misc.User;
+import net.usikkert.lanchat.net.FileBatch;
 import net.usikkert.lanchat.net.FileTransfer;
 import net.usikkert.lanchat.util.Tools;
 import net.usikkert.lanchat.util.Validate;
@@ -87,6 +89,9 @@ public class TransferDialog extends JDialog implements FileTransferListener, Act
     /** The mediator. */
     private final Mediator mediator;
 
+    /** If an update of the progress is waiting to run on the event dispatch thread. */
+    private final AtomicBoolean updatePending = new AtomicBoolean();
+
     private final Settings settings;
 
     /**
@@ -393,26 +398,67 @@ public class TransferDialog extends JDialog implements FileTransferListener, Act
         });
     }
 
+    /**
+     * Shows the position of the file transfer in the queue, while it waits
+     * for other file transfers to finish.
+     */
+    @Override
+    public void statusQueued() {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                final int position = fileTransfer.getQueuePosition();
+
+                if (position > 0) {
+                    statusL.setText("Queued, number " + position + " in line");
+                }
+            }
+        });
+    }
+
     /**
      * This method is called from the file transfer object when
      * it's time to update the status of the file transfer.
      * This happens several times while the file transfer is
      * in progress.
+     *
+     * <p>Only one update is queued on the event dispatch thread at a time,
+     * since it reads the latest progress when it runs anyway.</p>
      */
     @Override
     public void transferUpdate() {
+        if (!updatePending.compareAndSet(false, true)) {
+            return;
+        }
+
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
+                updatePending.set(false);
                 transferredL.setText(Tools.byteToString(fileTransfer.getTransferred()) + " of " +
                         Tools.byteToString(fileTransfer.getFileSize()) + " at " +
                         Tools.byteToString(fileTransfer.getSpeed()) + "/s");
                 transferProgressPB.setValue(fileTransfer.getPercent());
                 updateTitle(fileTransfer.getPercent());
+                updateCurrentEntry();
             }
         });
     }
 
+    /**
+     * Shows the progress of the file currently being transferred, when transferring a batch of files.
+     */
+    private void updateCurrentEntry() {
+        final FileBatch.Entry entry = fileTransfer.getCurrentEntry();
+
+        if (entry != null) {
+            final String action = fileTransfer.getDirection() == FileTransfer.Direction.RECEIVE ? "Receiving " : "Sending ";
+            statusL.setText(action + entry.getPath() + " (" +
+                    Tools.byteToString(fileTransfer.getCurrentEntryTransferred()) + " of " +
+                    Tools.byteToString(entry.getSize()) + ")");
+        }
+    }
+
     /**
      * Updates the window title with percentage transferred.
      *
@@ -49,7 +49,7 @@ public class ByteCounter {
     private long timeCounted;
 
     /** The current number of bytes per second. */
-    private long bytesPerSec;
+    private volatile long bytesPerSec;
 
     /** The number of bytes counted since the last second was calculated. */
     private long bytesCounted;
@@ -37,7 +37,7 @@ public class ArgumentTest {
     public void getValidArgumentsShouldReturnAllArgumentsExceptUnknown() {
         final Argument[] validArguments = Argument.getValidArguments();
 
-        assertEquals(7, validArguments.length);
+        assertEquals(9, validArguments.length);
 
         assertEquals(Argument.CONSOLE, validArguments[0]);
         assertEquals(Argument.DEBUG, validArguments[1]);
@@ -46,6 +46,8 @@ public class ArgumentTest {
         assertEquals(Argument.NO_PRIVATE_CHAT, validArguments[4]);
         assertEquals(Argument.ALWAYS_LOG, validArguments[5]);
         assertEquals(Argument.LOG_LOCATION, validArguments[6]);
+        assertEquals(Argument.NIO_RECEIVER, validArguments[7]);
+        assertEquals(Argument.STREAM_FILE_TRANSFER, validArguments[8]);
     }
 
     @Test
@@ -59,7 +61,9 @@ public class ArgumentTest {
                 " --version (-v)          Shows version information\n" +
                 " --no-private-chat       Disables private chat\n" +
                 " --always-log            Enables logging, without option to disable\n" +
-                " --log-location=<value>  Location to store log files";
+                " --log-location=<value>  Location to store log files\n" +
+                " --nio-receiver          Uses non-blocking channels on a single network thread\n" +
+                " --stream-file-transfer  Copies file transfers through streams instead of channels";
 
         assertEquals(expected, argumentsAsString);
     }
@@ -30,6 +30,7 @@ import java.util.List;
 import net.usikkert.lanchat.misc.Controller;
 import net.usikkert.lanchat.misc.Settings;
 import net.usikkert.lanchat.net.ConnectionWorker;
+import net.usikkert.lanchat.net.NetworkService;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -50,7 +51,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Controller can not be null");
 
-        new JMXBeanLoader(null, mock(ConnectionWorker.class), mock(Settings.class));
+        new JMXBeanLoader(null, mock(ConnectionWorker.class), mock(Settings.class), mock(NetworkService.class));
     }
 
     @Test
@@ -58,7 +59,7 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("ConnectionWorker can not be null");
 
-        new JMXBeanLoader(mock(Controller.class), null, mock(Settings.class));
+        new JMXBeanLoader(mock(Controller.class), null, mock(Settings.class), mock(NetworkService.class));
     }
 
     @Test
@@ -66,21 +67,32 @@ public class JMXBeanLoaderTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("Settings can not be null");
 
-        new JMXBeanLoader(mock(Controller.class), mock(ConnectionWorker.class), null);
+        new JMXBeanLoader(mock(Controller.class), mock(ConnectionWorker.class), null, mock(NetworkService.class));
     }
 
     @Test
-    public void getJMXBeansShouldIncludeThreeBeans() {
+    public void constructorShouldThrowExceptionIfNetworkServiceIsNull() {
+        expectedException.expect(IllegalArgumentException.class);
+        expectedException.expectMessage("NetworkService can not be null");
+
+        new JMXBeanLoader(mock(Controller.class), mock(ConnectionWorker.class), mock(Settings.class), null);
+    }
+
+    @Test
+    public void getJMXBeansShouldIncludeFiveBeans() {
         final JMXBeanLoader beanLoader =
-                new JMXBeanLoader(mock(Controller.class), mock(ConnectionWorker.class), mock(Settings.class));
+                new JMXBeanLoader(mock(Controller.class), mock(ConnectionWorker.class), mock(Settings.class),
+                                  mock(NetworkService.class));
 
         final List<JMXBean> jmxBeans = beanLoader.getJMXBeans();
         assertNotNull(jmxBeans);
 
-        assertEquals(3, jmxBeans.size());
+        assertEquals(5, jmxBeans.size());
         assertTrue(containsBeanOfType(jmxBeans, NetworkInformation.class));
         assertTrue(containsBeanOfType(jmxBeans, ControllerInformation.class));
         assertTrue(containsBeanOfType(jmxBeans, GeneralInformation.class));
+        assertTrue(containsBeanOfType(jmxBeans, NetworkStatistics.class));
+        assertTrue(containsBeanOfType(jmxBeans, FileTransferInformation.class));
     }
 
     private boolean containsBeanOfType(final List<JMXBean> jmxBeans, final Class<?> theClass) {
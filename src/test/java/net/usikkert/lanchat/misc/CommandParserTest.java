@@ -26,15 +26,25 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
 
+import net.usikkert.lanchat.net.BandwidthLimiter;
+import net.usikkert.lanchat.net.FileBatch;
 import net.usikkert.lanchat.net.FileReceiver;
 import net.usikkert.lanchat.net.FileSender;
 import net.usikkert.lanchat.net.FileTransfer;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.net.TransferList;
+import net.usikkert.lanchat.net.TransferScheduler;
 import net.usikkert.lanchat.ui.UserInterface;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
 /**
@@ -44,10 +54,15 @@ import org.mockito.ArgumentCaptor;
  */
 public class CommandParserTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private CommandParser parser;
     private MessageController messageController;
     private Controller controller;
     private TransferList transferList;
+    private TransferScheduler transferScheduler;
+    private Settings settings;
     private User me;
 
     @Before
@@ -57,6 +72,11 @@ public class CommandParserTest {
         transferList = mock(TransferList.class);
         when(controller.getTransferList()).thenReturn(transferList);
 
+        transferScheduler = mock(TransferScheduler.class);
+        when(transferScheduler.schedule(any(FileTransfer.class), any(Runnable.class))).thenReturn(true);
+        when(transferScheduler.offer(any(FileSender.class), any(Runnable.class), any(Runnable.class))).thenReturn(true);
+        when(controller.getTransferScheduler()).thenReturn(transferScheduler);
+
         final UserInterface userInterface = mock(UserInterface.class);
 
         messageController = mock(MessageController.class);
@@ -64,7 +84,7 @@ public class CommandParserTest {
 
         me = new User("MySelf", 123);
 
-        final Settings settings = mock(Settings.class);
+        settings = mock(Settings.class);
         when(settings.getMe()).thenReturn(me);
 
         parser = new CommandParser(controller, userInterface, settings);
@@ -285,6 +305,21 @@ public class CommandParserTest {
         assertEquals("doc.pdf.1", newFileCaptor.getValue().getName());
     }
 
+    @Test
+    public void receiveShouldAcceptFileTransferIfArgumentsMatchAndResumePartialFile() {
+        final User someOne = setupSomeOne();
+        final FileReceiver fileReceiver = setupFileReceiver(someOne);
+        final File file = setupFile(fileReceiver);
+        when(file.exists()).thenReturn(true);
+        when(fileReceiver.getPartialFile()).thenReturn(file);
+
+        parser.parse("/receive SomeOne 1");
+
+        verify(messageController).showSystemMessage("/receive - file 'doc.pdf' is partially received - resuming");
+        verify(fileReceiver).accept();
+        verify(fileReceiver, never()).setFile(any(File.class));
+    }
+
     /*
     * cancel
     */
@@ -387,22 +422,281 @@ public class CommandParserTest {
         final User someOne = setupSomeOne();
         final FileSender fileSender = setupFileSender(someOne);
         when(fileSender.isWaiting()).thenReturn(true);
-        final File file = setupFile(fileSender);
+        setupFile(fileSender);
         when(fileSender.getUser()).thenReturn(someOne);
+        when(fileSender.getFileHash()).thenReturn(8578765);
 
         parser.parse("/cancel SomeOne 1");
 
         verify(transferList).getFileTransfer(someOne, 1);
         verify(transferList).removeFileSender(fileSender);
         verify(messageController).showSystemMessage("You cancelled sending of doc.pdf to SomeOne");
-        verify(controller).sendFileAbort(someOne, file.hashCode(), "doc.pdf");
+        verify(controller).sendFileAbort(someOne, 8578765, "doc.pdf");
+        verify(fileSender).cancel();
+    }
+
+    @Test
+    public void cancelShouldLetQueuedFileReceiverTellTheSender() {
+        final User someOne = setupSomeOne();
+        final FileReceiver fileReceiver = setupFileReceiver(someOne);
+        when(fileReceiver.isAccepted()).thenReturn(true);
+
+        parser.parse("/cancel SomeOne 1");
+
+        verify(fileReceiver).cancel();
+        verify(transferScheduler).cancel(fileReceiver);
+    }
+
+    /*
+     * send file queue
+     */
+
+    @Test
+    public void sendFileShouldQueueTheOfferIfTheSchedulerSaysSo() throws Exception {
+        final User someOne = setupSomeOne();
+        final File file = createFile("doc.txt");
+        final FileSender fileSender = mock(FileSender.class);
+        when(fileSender.getId()).thenReturn(3);
+        when(fileSender.getFileHash()).thenReturn(7);
+        when(fileSender.getQueuePosition()).thenReturn(2);
+        when(transferList.addFileSender(someOne, file)).thenReturn(fileSender);
+        when(transferScheduler.offer(eq(fileSender), any(Runnable.class), any(Runnable.class))).thenReturn(false);
+
+        parser.sendFile(someOne, file);
+
+        verify(controller, never()).sendFile(any(User.class), any(File.class), anyInt());
+        verify(messageController).showSystemMessage(startsWith("Queued sending of the file doc.txt (#3) ["));
+        verify(messageController).showSystemMessage(endsWith("] to SomeOne, number 2 in line"));
+
+        final ArgumentCaptor<Runnable> queuedOffer = ArgumentCaptor.forClass(Runnable.class);
+        verify(transferScheduler).offer(eq(fileSender), queuedOffer.capture(), any(Runnable.class));
+        queuedOffer.getValue().run();
+
+        verify(controller).sendFile(someOne, file, 7);
+        verify(messageController).showSystemMessage(startsWith("Trying to send the file doc.txt (#3) ["));
+    }
+
+    @Test
+    public void queuedOfferShouldRemoveFileSenderIfSendingFails() throws Exception {
+        final User someOne = setupSomeOne();
+        final File file = createFile("doc.txt");
+        final FileSender fileSender = mock(FileSender.class);
+        when(transferList.addFileSender(someOne, file)).thenReturn(fileSender);
+        when(transferScheduler.offer(eq(fileSender), any(Runnable.class), any(Runnable.class))).thenReturn(false);
+        doThrow(new CommandException("Failed")).when(controller).sendFile(eq(someOne), eq(file), anyInt());
+
+        parser.sendFile(someOne, file);
+
+        final ArgumentCaptor<Runnable> queuedOffer = ArgumentCaptor.forClass(Runnable.class);
+        verify(transferScheduler).offer(eq(fileSender), queuedOffer.capture(), any(Runnable.class));
+        queuedOffer.getValue().run();
+
+        verify(transferList).removeFileSender(fileSender);
+        verify(messageController).showSystemMessage("Failed");
+    }
+
+    @Test
+    public void expiredOfferShouldBeWithdrawn() throws Exception {
+        final User someOne = setupSomeOne();
+        final File file = createFile("doc.txt");
+        final FileSender fileSender = mock(FileSender.class);
+        when(fileSender.getFileHash()).thenReturn(7);
+        when(fileSender.getFile()).thenReturn(file);
+        when(transferList.addFileSender(someOne, file)).thenReturn(fileSender);
+
+        parser.sendFile(someOne, file);
+
+        final ArgumentCaptor<Runnable> expiredOffer = ArgumentCaptor.forClass(Runnable.class);
+        verify(transferScheduler).offer(eq(fileSender), any(Runnable.class), expiredOffer.capture());
+        expiredOffer.getValue().run();
+
         verify(fileSender).cancel();
+        verify(transferList).removeFileSender(fileSender);
+        verify(controller).sendFileAbort(someOne, 7, "doc.txt");
+        verify(messageController).showSystemMessage(startsWith("SomeOne did not answer the offer of the file doc.txt"));
+    }
+
+    /*
+     * send files
+     */
+
+    @Test
+    public void sendFilesShouldSendEachFileIfUserDoesNotSupportBatches() throws Exception {
+        final User someOne = setupSomeOne();
+        final File first = createFile("first.txt");
+        final File second = createFile("second.txt");
+        when(transferList.addFileSender(eq(someOne), any(File.class))).thenReturn(mock(FileSender.class));
+
+        parser.sendFiles(someOne, Arrays.asList(first, second));
+
+        verify(controller).sendFile(eq(someOne), eq(first), anyInt());
+        verify(controller).sendFile(eq(someOne), eq(second), anyInt());
+        verify(controller, never()).sendFileBatch(any(User.class), any(FileBatch.class), anyInt());
+    }
+
+    @Test
+    public void sendFilesShouldRefuseFolderIfUserDoesNotSupportBatches() throws Exception {
+        final User someOne = setupSomeOne();
+        final File first = createFile("first.txt");
+        final File photos = folder.newFolder("photos");
+
+        try {
+            parser.sendFiles(someOne, Arrays.asList(first, photos));
+            fail("Should not send folders");
+        }
+
+        catch (final CommandException e) {
+            assertEquals("You can not send folders to SomeOne", e.getMessage());
+        }
+
+        verify(transferList, never()).addFileSender(any(User.class), any(File.class));
+        verify(controller, never()).sendFile(any(User.class), any(File.class), anyInt());
+    }
+
+    @Test
+    public void sendFilesShouldSendFolderAsBatch() throws Exception {
+        final User someOne = setupSomeOne();
+        someOne.setFeatures(EnumSet.of(ProtocolFeature.BATCH));
+        final File photos = folder.newFolder("photos");
+        createFile("photos/a.jpg");
+
+        final FileSender fileSender = mock(FileSender.class);
+        when(fileSender.getFileHash()).thenReturn(5);
+        when(transferList.addBatchSender(eq(someOne), any(FileBatch.class))).thenReturn(fileSender);
+
+        parser.sendFiles(someOne, Arrays.asList(photos));
+
+        final ArgumentCaptor<FileBatch> batch = ArgumentCaptor.forClass(FileBatch.class);
+        verify(controller).sendFileBatch(eq(someOne), batch.capture(), eq(5));
+        assertEquals("photos", batch.getValue().getName());
+        assertEquals(1, batch.getValue().getFileCount());
+        verify(messageController).showSystemMessage(startsWith("Trying to send the folder photos with 1 files"));
+    }
+
+    @Test
+    public void sendFilesShouldRemoveBatchSenderIfSendingFails() throws Exception {
+        final User someOne = setupSomeOne();
+        someOne.setFeatures(EnumSet.of(ProtocolFeature.BATCH));
+        final File photos = folder.newFolder("photos");
+
+        final FileSender fileSender = mock(FileSender.class);
+        when(transferList.addBatchSender(eq(someOne), any(FileBatch.class))).thenReturn(fileSender);
+        doThrow(new CommandException("Failed")).when(controller).sendFileBatch(
+                eq(someOne), any(FileBatch.class), anyInt());
+
+        try {
+            parser.sendFiles(someOne, Arrays.asList(photos));
+            fail("Should fail");
+        }
+
+        catch (final CommandException e) {
+            assertEquals("Failed", e.getMessage());
+        }
+
+        verify(transferList).removeFileSender(fileSender);
+    }
+
+    /*
+     * limit
+     */
+
+    @Test
+    public void limitShouldShowTheLimitsIfNoArguments() {
+        when(settings.getBandwidthLimit()).thenReturn(500);
+
+        parser.parse("/limit");
+
+        verify(messageController).showSystemMessage(
+                "Bandwidth limit: 500 KB/s for all file transfers, unlimited for each file transfer");
+    }
+
+    @Test
+    public void limitShouldChangeTheLimitForAllFileTransfers() {
+        parser.parse("/limit 500");
+
+        verify(settings).setBandwidthLimit(500);
+        verify(settings).saveSettings();
+        verify(messageController).showSystemMessage("Bandwidth limit for all file transfers: 500 KB/s");
+    }
+
+    @Test
+    public void limitShouldRemoveTheLimitForAllFileTransfers() {
+        parser.parse("/limit 0");
+
+        verify(settings).setBandwidthLimit(0);
+        verify(messageController).showSystemMessage("Bandwidth limit for all file transfers: unlimited");
+    }
+
+    @Test
+    public void limitEachShouldChangeTheLimitForEachFileTransfer() {
+        parser.parse("/limit each 100");
+
+        verify(settings).setTransferBandwidthLimit(100);
+        verify(settings).saveSettings();
+        verify(messageController).showSystemMessage("Bandwidth limit for each file transfer: 100 KB/s");
+    }
+
+    @Test
+    public void limitShouldReturnIfLimitIsInvalid() {
+        parser.parse("/limit fast");
+        parser.parse("/limit -1");
+
+        verify(messageController).showSystemMessage("/limit - invalid limit argument: 'fast'");
+        verify(messageController).showSystemMessage("/limit - invalid limit argument: '-1'");
+        verify(settings, never()).setBandwidthLimit(anyInt());
+    }
+
+    @Test
+    public void limitShouldReturnIfWrongNumberOfArguments() {
+        parser.parse("/limit SomeOne 1 100 more");
+
+        verify(messageController).showSystemMessage(
+                "/limit - wrong number of arguments: <KB/s>, each <KB/s> or <nick> <id> <KB/s>");
+    }
+
+    @Test
+    public void limitShouldReturnIfNoFileTransferWithThatId() {
+        setupSomeOne();
+
+        parser.parse("/limit SomeOne 1 100");
+
+        verify(messageController).showSystemMessage("/limit - no file transfer with id 1 going on with SomeOne");
+    }
+
+    @Test
+    public void limitShouldChangeTheLimitForOneFileTransfer() {
+        final User someOne = setupSomeOne();
+        final FileSender fileSender = setupFileSender(someOne);
+        setupFile(fileSender);
+        final BandwidthLimiter limiter = new BandwidthLimiter();
+        when(fileSender.getBandwidthLimiter()).thenReturn(limiter);
+
+        parser.parse("/limit SomeOne 1 100");
+
+        assertEquals(100 * 1024, limiter.getRate());
+        verify(messageController).showSystemMessage("Bandwidth limit for 'doc.pdf' (#1) with SomeOne: 100 KB/s");
+        verify(settings, never()).setBandwidthLimit(anyInt());
     }
 
     /*
      * Rusable test methods.
      */
 
+    private File createFile(final String name) throws IOException {
+        final File file = new File(folder.getRoot(), name);
+        final FileOutputStream fos = new FileOutputStream(file);
+
+        try {
+            fos.write(name.getBytes("UTF-8"));
+        }
+
+        finally {
+            fos.close();
+        }
+
+        return file;
+    }
+
     private File setupFile(final FileTransfer fileTransfer) {
         final File file = mock(File.class);
         when(file.getName()).thenReturn("doc.pdf");
@@ -27,13 +27,17 @@ import static org.mockito.Mockito.*;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.EnumSet;
 
 import net.usikkert.lanchat.event.NetworkConnectionListener;
+import net.usikkert.lanchat.net.FileBatch;
 import net.usikkert.lanchat.net.FileReceiver;
 import net.usikkert.lanchat.net.FileSender;
 import net.usikkert.lanchat.net.Messages;
 import net.usikkert.lanchat.net.NetworkService;
+import net.usikkert.lanchat.net.ProtocolFeature;
 import net.usikkert.lanchat.net.TransferList;
+import net.usikkert.lanchat.net.TransferProgressPublisher;
 import net.usikkert.lanchat.ui.PrivateChatWindow;
 import net.usikkert.lanchat.ui.UserInterface;
 import net.usikkert.lanchat.util.TestUtils;
@@ -60,6 +64,7 @@ public class ControllerTest {
     private IdleThread idleThread;
     private DayTimer dayTimer;
     private TransferList transferList;
+    private TransferProgressPublisher progressPublisher;
     private MessageController messageController;
 
     private User me;
@@ -100,6 +105,13 @@ public class ControllerTest {
         transferList = mock(TransferList.class);
         TestUtils.setFieldValue(controller, "tList", transferList);
 
+        final TransferProgressPublisher realProgressPublisher =
+                TestUtils.getFieldValue(controller, TransferProgressPublisher.class, "progressPublisher");
+        realProgressPublisher.stop();
+
+        progressPublisher = mock(TransferProgressPublisher.class);
+        TestUtils.setFieldValue(controller, "progressPublisher", progressPublisher);
+
         // The shutdown hook makes tests fail randomly, because it sometimes runs in parallel...
         final Thread shutdownHook = TestUtils.getFieldValue(controller, Thread.class, "shutdownHook");
         Runtime.getRuntime().removeShutdownHook(shutdownHook);
@@ -140,7 +152,7 @@ public class ControllerTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("User can not be null");
 
-        controller.sendFile(null, mock(File.class));
+        controller.sendFile(null, mock(File.class), 1);
     }
 
     @Test
@@ -148,7 +160,7 @@ public class ControllerTest {
         expectedException.expect(IllegalArgumentException.class);
         expectedException.expectMessage("File can not be null");
 
-        controller.sendFile(mock(User.class), null);
+        controller.sendFile(mock(User.class), null, 1);
     }
 
     @Test
@@ -159,7 +171,7 @@ public class ControllerTest {
         final User user = mock(User.class);
         when(user.isMe()).thenReturn(true);
 
-        controller.sendFile(user, mock(File.class));
+        controller.sendFile(user, mock(File.class), 1);
     }
 
     @Test
@@ -167,7 +179,7 @@ public class ControllerTest {
         expectedException.expect(CommandException.class);
         expectedException.expectMessage("You can not send a file without being connected");
 
-        controller.sendFile(mock(User.class), mock(File.class));
+        controller.sendFile(mock(User.class), mock(File.class), 1);
     }
 
     @Test
@@ -180,7 +192,7 @@ public class ControllerTest {
 
         me.setAway(true);
 
-        controller.sendFile(mock(User.class), mock(File.class));
+        controller.sendFile(mock(User.class), mock(File.class), 1);
     }
 
     @Test
@@ -194,7 +206,7 @@ public class ControllerTest {
         final User user = new User("Test", 124);
         user.setAway(true);
 
-        controller.sendFile(user, mock(File.class));
+        controller.sendFile(user, mock(File.class), 1);
     }
 
     @Test
@@ -216,7 +228,7 @@ public class ControllerTest {
         final File file = mock(File.class);
         when(file.getName()).thenReturn(sb.toString());
 
-        controller.sendFile(mock(User.class), file);
+        controller.sendFile(mock(User.class), file, 1);
     }
 
     @Test
@@ -228,9 +240,39 @@ public class ControllerTest {
         when(file.getName()).thenReturn("file.txt");
         final User user = mock(User.class);
 
-        controller.sendFile(user, file);
+        controller.sendFile(user, file, 1);
+
+        verify(messages).sendFile(user, file, 1);
+    }
+
+    @Test
+    public void sendFileBatchShouldThrowExceptionIfUserDoesNotSupportBatches() throws CommandException {
+        when(networkService.isNetworkUp()).thenReturn(true);
+        controller.getChatState().setLoggedOn(true);
+
+        final FileBatch batch = mock(FileBatch.class);
+        when(batch.getName()).thenReturn("photos");
+        final User user = new User("Peer", 200);
+
+        expectedException.expect(CommandException.class);
+        expectedException.expectMessage("You can not send folders or many files at once to Peer");
+
+        controller.sendFileBatch(user, batch, 1);
+    }
+
+    @Test
+    public void sendFileBatchShouldSendBatchIfEverythingValidatedOK() throws CommandException {
+        when(networkService.isNetworkUp()).thenReturn(true);
+        controller.getChatState().setLoggedOn(true);
+
+        final FileBatch batch = mock(FileBatch.class);
+        when(batch.getName()).thenReturn("photos");
+        final User user = new User("Peer", 200);
+        user.setFeatures(EnumSet.of(ProtocolFeature.BATCH));
+
+        controller.sendFileBatch(user, batch, 1);
 
-        verify(messages).sendFile(user, file);
+        verify(messages).sendFileBatch(user, batch, 1);
     }
 
     @Test
@@ -256,6 +298,8 @@ public class ControllerTest {
         verify(idleThread).stopThread();
         verify(dayTimer).stopTimer();
         verify(messageController).shutdown();
+        verify(progressPublisher).stop();
+        verify(transferList).stopTransferServer();
     }
 
     @Test
@@ -0,0 +1,82 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link IdleInterval}.
+ *
+ * @author Christian Ihle
+ */
+public class IdleIntervalTest {
+
+    private IdleInterval idleInterval;
+
+    @Before
+    public void setUp() {
+        idleInterval = new IdleInterval(512);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateBandwidth() {
+        new IdleInterval(0);
+    }
+
+    @Test
+    public void calculateIntervalShouldUseMinIntervalForSmallChats() {
+        assertEquals(IdleInterval.MIN_INTERVAL, idleInterval.calculateInterval(1));
+        assertEquals(IdleInterval.MIN_INTERVAL, idleInterval.calculateInterval(100));
+    }
+
+    @Test
+    public void calculateIntervalShouldGrowWithNumberOfUsers() {
+        // 1000 users * 64 bytes / 512 bytes per second
+        assertEquals(125000, idleInterval.calculateInterval(1000));
+        assertEquals(250000, idleInterval.calculateInterval(2000));
+    }
+
+    @Test
+    public void calculateIntervalShouldStopAtMaxInterval() {
+        assertEquals(IdleInterval.MAX_INTERVAL, idleInterval.calculateInterval(100000));
+    }
+
+    @Test
+    public void calculateTimeoutShouldBeSeveralIntervals() {
+        assertEquals(120000, idleInterval.calculateTimeout(IdleInterval.MIN_INTERVAL));
+        assertEquals(1000000, idleInterval.calculateTimeout(125000));
+    }
+
+    @Test
+    public void randomizeShouldStayWithinHalfAnIntervalOfAverage() {
+        for (int i = 0; i < 1000; i++) {
+            final int interval = idleInterval.randomize(15000);
+
+            assertTrue(interval >= 7500);
+            assertTrue(interval <= 22500);
+        }
+    }
+}
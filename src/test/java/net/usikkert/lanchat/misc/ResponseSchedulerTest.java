@@ -0,0 +1,133 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.usikkert.lanchat.misc.ResponseScheduler.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ResponseScheduler}.
+ *
+ * @author Christian Ihle
+ */
+public class ResponseSchedulerTest {
+
+    private ResponseScheduler scheduler;
+    private AtomicInteger sent;
+
+    @Before
+    public void setUp() {
+        scheduler = new ResponseScheduler();
+        sent = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    @Test
+    public void scheduleWithoutDelayShouldSendRightAway() {
+        assertTrue(scheduler.schedule(Response.TOPIC, new CountingSender(), 0));
+
+        assertEquals(1, sent.get());
+        assertFalse(scheduler.isPending(Response.TOPIC));
+    }
+
+    @Test
+    public void scheduleShouldSendAfterDelay() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        scheduler.schedule(Response.EXPOSING, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 10);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void scheduleShouldCoalesceWithPendingResponse() {
+        assertTrue(scheduler.schedule(Response.TOPIC, new CountingSender(), 10000));
+        assertFalse(scheduler.schedule(Response.TOPIC, new CountingSender(), 10000));
+        assertFalse(scheduler.schedule(Response.TOPIC, new CountingSender(), 0));
+
+        assertEquals(0, sent.get());
+        assertEquals(2, scheduler.getCoalescedResponses());
+    }
+
+    @Test
+    public void scheduleShouldKeepResponsesApart() {
+        assertTrue(scheduler.schedule(Response.TOPIC, new CountingSender(), 10000));
+        assertTrue(scheduler.schedule(Response.EXPOSING, new CountingSender(), 10000));
+
+        assertTrue(scheduler.isPending(Response.TOPIC));
+        assertTrue(scheduler.isPending(Response.EXPOSING));
+    }
+
+    @Test
+    public void cancelShouldStopPendingResponse() throws InterruptedException {
+        scheduler.schedule(Response.TOPIC, new CountingSender(), 50);
+
+        assertTrue(scheduler.cancel(Response.TOPIC));
+        assertFalse(scheduler.isPending(Response.TOPIC));
+        assertEquals(1, scheduler.getCancelledResponses());
+
+        Thread.sleep(150);
+        assertEquals(0, sent.get());
+    }
+
+    @Test
+    public void cancelShouldDoNothingWithoutPendingResponse() {
+        assertFalse(scheduler.cancel(Response.TOPIC));
+        assertEquals(0, scheduler.getCancelledResponses());
+    }
+
+    @Test
+    public void scheduleShouldWorkAgainAfterResponseIsSent() {
+        scheduler.schedule(Response.TOPIC, new CountingSender(), 0);
+        scheduler.schedule(Response.TOPIC, new CountingSender(), 0);
+
+        assertEquals(2, sent.get());
+        assertEquals(0, scheduler.getCoalescedResponses());
+    }
+
+    private class CountingSender implements Runnable {
+
+        @Override
+        public void run() {
+            sent.incrementAndGet();
+        }
+    }
+}
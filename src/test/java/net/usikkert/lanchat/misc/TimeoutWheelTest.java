@@ -0,0 +1,150 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TimeoutWheel}.
+ *
+ * @author Christian Ihle
+ */
+public class TimeoutWheelTest {
+
+    private static final long TICK = 1000;
+    private static final long START = -5000;
+
+    private TimeoutWheel wheel;
+
+    @Before
+    public void setUp() {
+        wheel = new TimeoutWheel(TICK, START);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateTickTime() {
+        new TimeoutWheel(0, START);
+    }
+
+    @Test
+    public void advanceShouldExpireTimeoutsWhenDeadlineIsPassed() {
+        wheel.schedule(1, START + 10 * TICK);
+
+        assertEquals(Collections.emptyList(), wheel.advance(START + 9 * TICK));
+        assertTrue(wheel.isScheduled(1));
+
+        assertEquals(Arrays.asList(1), wheel.advance(START + 10 * TICK));
+        assertFalse(wheel.isScheduled(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void advanceShouldNotExpireEarlyWithinTick() {
+        wheel.schedule(1, START + 10 * TICK + 1);
+
+        assertEquals(Collections.emptyList(), wheel.advance(START + 10 * TICK));
+        assertEquals(Arrays.asList(1), wheel.advance(START + 11 * TICK));
+    }
+
+    @Test
+    public void advanceShouldExpireInDeadlineOrder() {
+        wheel.schedule(3, START + 30 * TICK);
+        wheel.schedule(1, START + 10 * TICK);
+        wheel.schedule(2, START + 20 * TICK);
+
+        assertEquals(Arrays.asList(1, 2, 3), wheel.advance(START + 100 * TICK));
+    }
+
+    @Test
+    public void scheduleShouldReplaceExistingTimeout() {
+        wheel.schedule(1, START + 10 * TICK);
+        wheel.schedule(1, START + 50 * TICK);
+
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.emptyList(), wheel.advance(START + 49 * TICK));
+        assertEquals(Arrays.asList(1), wheel.advance(START + 50 * TICK));
+    }
+
+    @Test
+    public void scheduleShouldWorkWhenRescheduledManyTimes() {
+        for (int i = 1; i <= 200; i++) {
+            wheel.schedule(1, START + (i + 120) * TICK);
+            assertEquals(Collections.emptyList(), wheel.advance(START + i * TICK));
+        }
+
+        assertEquals(Arrays.asList(1), wheel.advance(START + 320 * TICK));
+    }
+
+    @Test
+    public void cancelShouldRemoveTimeout() {
+        wheel.schedule(1, START + 10 * TICK);
+        wheel.schedule(2, START + 10 * TICK);
+
+        assertTrue(wheel.cancel(1));
+        assertFalse(wheel.cancel(1));
+
+        assertEquals(Arrays.asList(2), wheel.advance(START + 10 * TICK));
+    }
+
+    @Test
+    public void advanceShouldHandleTimeoutsInSecondLevel() {
+        wheel.schedule(1, START + 120 * TICK);
+        wheel.schedule(2, START + 1000 * TICK);
+
+        assertEquals(Collections.emptyList(), wheel.advance(START + 119 * TICK));
+        assertEquals(Arrays.asList(1), wheel.advance(START + 120 * TICK));
+        assertEquals(Collections.emptyList(), wheel.advance(START + 999 * TICK));
+        assertEquals(Arrays.asList(2), wheel.advance(START + 1000 * TICK));
+    }
+
+    @Test
+    public void advanceShouldHandleTimeoutsBeyondSecondLevel() {
+        wheel.schedule(1, START + 10000 * TICK);
+
+        assertEquals(Collections.emptyList(), wheel.advance(START + 9999 * TICK));
+        assertEquals(Arrays.asList(1), wheel.advance(START + 10000 * TICK));
+    }
+
+    @Test
+    public void scheduleInThePastShouldExpireOnNextAdvance() {
+        wheel.advance(START + 10 * TICK);
+        wheel.schedule(1, START + 5 * TICK);
+
+        assertEquals(Arrays.asList(1), wheel.advance(START + 11 * TICK));
+    }
+
+    @Test
+    public void advanceShouldIgnoreTimeGoingBackwards() {
+        wheel.schedule(1, START + 10 * TICK);
+        wheel.advance(START + 5 * TICK);
+
+        assertEquals(Collections.emptyList(), wheel.advance(START + 2 * TICK));
+        assertTrue(wheel.isScheduled(1));
+    }
+}
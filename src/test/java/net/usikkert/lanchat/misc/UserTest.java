@@ -24,6 +24,10 @@ package net.usikkert.lanchat.misc;
 
 import static org.junit.Assert.*;
 
+import java.util.EnumSet;
+
+import net.usikkert.lanchat.net.ProtocolFeature;
+
 import org.junit.Test;
 
 /**
@@ -63,4 +67,20 @@ public class UserTest {
         assertFalse(test1.equals(null));
         assertFalse(test1.equals("No user"));
     }
+
+    @Test
+    public void supportsFeatureShouldBeFalseByDefault() {
+        final User user = new User("Test", 123456789);
+
+        assertFalse(user.supportsFeature(ProtocolFeature.PACKING));
+        assertTrue(user.getFeatures().isEmpty());
+    }
+
+    @Test
+    public void supportsFeatureShouldBeTrueWhenFeatureIsSet() {
+        final User user = new User("Test", 123456789);
+        user.setFeatures(EnumSet.of(ProtocolFeature.PACKING));
+
+        assertTrue(user.supportsFeature(ProtocolFeature.PACKING));
+    }
 }
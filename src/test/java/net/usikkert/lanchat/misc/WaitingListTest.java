@@ -0,0 +1,99 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.misc;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link WaitingList}.
+ *
+ * @author Christian Ihle
+ */
+public class WaitingListTest {
+
+    private WaitingList waitingList;
+
+    @Before
+    public void setUp() {
+        waitingList = new WaitingList();
+    }
+
+    @Test
+    public void addWaitingUserShouldOnlyAddOnce() {
+        assertTrue(waitingList.addWaitingUser(100));
+        assertFalse(waitingList.addWaitingUser(100));
+        assertTrue(waitingList.isWaitingUser(100));
+        assertFalse(waitingList.isWaitingUser(200));
+    }
+
+    @Test
+    public void removeWaitingUserShouldReturnPendingMessagesInOrder() {
+        final Runnable first = new TestMessage();
+        final Runnable second = new TestMessage();
+
+        waitingList.addPendingMessage(100, first);
+        waitingList.addPendingMessage(200, new TestMessage());
+        waitingList.addPendingMessage(100, second);
+
+        final List<Runnable> messages = waitingList.removeWaitingUser(100);
+
+        assertEquals(2, messages.size());
+        assertSame(first, messages.get(0));
+        assertSame(second, messages.get(1));
+        assertFalse(waitingList.isWaitingUser(100));
+        assertTrue(waitingList.isWaitingUser(200));
+    }
+
+    @Test
+    public void removeWaitingUserShouldReturnEmptyListForUnknownUser() {
+        assertTrue(waitingList.removeWaitingUser(100).isEmpty());
+    }
+
+    @Test
+    public void addPendingMessageShouldDropOldestWhenFull() {
+        final Runnable first = new TestMessage();
+        waitingList.addPendingMessage(100, first);
+
+        for (int i = 0; i < WaitingList.MAX_PENDING_MESSAGES; i++) {
+            waitingList.addPendingMessage(100, new TestMessage());
+        }
+
+        final List<Runnable> messages = waitingList.removeWaitingUser(100);
+
+        assertEquals(WaitingList.MAX_PENDING_MESSAGES, messages.size());
+        assertFalse(messages.contains(first));
+    }
+
+    private static class TestMessage implements Runnable {
+
+        @Override
+        public void run() {
+
+        }
+    }
+}
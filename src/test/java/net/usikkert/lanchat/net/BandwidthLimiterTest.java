@@ -0,0 +1,210 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link BandwidthLimiter}.
+ *
+ * @author Christian Ihle
+ */
+public class BandwidthLimiterTest {
+
+    private Clock clock;
+    private BandwidthLimiter global;
+    private BandwidthLimiter transfer;
+
+    @Before
+    public void setUp() {
+        clock = new Clock();
+        global = new FakeClockLimiter(null, clock);
+        transfer = new FakeClockLimiter(global, clock);
+    }
+
+    @After
+    public void tearDown() {
+        // Clears the interrupt flag, if a test failed before the limiter did
+        Thread.interrupted();
+    }
+
+    @Test
+    public void acquireShouldNotWaitWithoutLimit() throws InterruptedIOException {
+        copy(transfer, 10 * 1024 * 1024, 64 * 1024);
+
+        assertEquals(0, clock.now);
+        assertEquals(0, clock.sleeps);
+        assertFalse(transfer.isLimited());
+    }
+
+    @Test
+    public void acquireShouldWaitForTheGlobalLimit() throws InterruptedIOException {
+        global.setRate(100 * 1024);
+
+        copy(transfer, 1000 * 1024, 4 * 1024);
+
+        assertTrue(transfer.isLimited());
+        assertSeconds(10, clock.now);
+    }
+
+    @Test
+    public void acquireShouldWaitForTheTransferLimit() throws InterruptedIOException {
+        global.setRate(1024 * 1024);
+        transfer.setRate(50 * 1024);
+
+        copy(transfer, 1000 * 1024, 4 * 1024);
+
+        assertSeconds(20, clock.now);
+    }
+
+    @Test
+    public void transfersShouldShareTheGlobalLimit() throws InterruptedIOException {
+        global.setRate(100 * 1024);
+        final BandwidthLimiter other = new FakeClockLimiter(global, clock);
+
+        for (int i = 0; i < 125; i++) {
+            transfer.acquire(4 * 1024);
+            other.acquire(4 * 1024);
+        }
+
+        assertSeconds(10, clock.now);
+    }
+
+    @Test
+    public void setRateShouldTakeEffectForOngoingTransfers() throws InterruptedIOException {
+        transfer.setRate(100 * 1024);
+        copy(transfer, 500 * 1024, 4 * 1024);
+        assertSeconds(5, clock.now);
+
+        transfer.setRate(200 * 1024);
+        copy(transfer, 1000 * 1024, 4 * 1024);
+        assertSeconds(10, clock.now);
+
+        transfer.setRate(0);
+        copy(transfer, 10 * 1024 * 1024, 4 * 1024);
+        assertSeconds(10, clock.now);
+    }
+
+    @Test
+    public void idleTransferShouldOnlySaveUpForAShortBurst() throws InterruptedIOException {
+        transfer.setRate(100 * 1024);
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        final long start = clock.now;
+
+        copy(transfer, 1000 * 1024, 4 * 1024);
+
+        // The burst of 100 milliseconds saves 10KB, and not the 6000KB earned while idle
+        assertSeconds(9.9, clock.now - start);
+    }
+
+    @Test
+    public void limitSliceShouldUseTheLowestRate() {
+        assertEquals(1024 * 1024, transfer.limitSlice(1024 * 1024));
+
+        global.setRate(1000 * 1024);
+        assertEquals(100 * 1024, transfer.limitSlice(1024 * 1024));
+        assertEquals(1000, transfer.limitSlice(1000));
+
+        transfer.setRate(200 * 1024);
+        assertEquals(20 * 1024, transfer.limitSlice(1024 * 1024));
+
+        transfer.setRate(1024);
+        assertEquals(BandwidthLimiter.MIN_SLICE_SIZE, transfer.limitSlice(1024 * 1024));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setRateShouldFailIfNegative() {
+        transfer.setRate(-1);
+    }
+
+    @Test
+    public void acquireShouldThrowExceptionIfInterrupted() {
+        final BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setRate(1024);
+        Thread.currentThread().interrupt();
+
+        try {
+            limiter.acquire(1024 * 1024);
+            fail("Should have been interrupted");
+        }
+
+        catch (final InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    private void copy(final BandwidthLimiter limiter, final int size, final int sliceSize)
+            throws InterruptedIOException {
+        int copied = 0;
+
+        while (copied < size) {
+            final int slice = (int) limiter.limitSlice(Math.min(sliceSize, size - copied));
+            limiter.acquire(slice);
+            copied += slice;
+        }
+    }
+
+    private void assertSeconds(final double expected, final long nanos) {
+        assertEquals(expected, nanos / (double) TimeUnit.SECONDS.toNanos(1), 0.05);
+    }
+
+    /**
+     * A clock that only moves when the limiters sleep.
+     */
+    private static class Clock {
+
+        private long now;
+        private int sleeps;
+    }
+
+    /**
+     * A limiter using the fake clock, to test without waiting.
+     */
+    private static class FakeClockLimiter extends BandwidthLimiter {
+
+        private final Clock clock;
+
+        FakeClockLimiter(final BandwidthLimiter parent, final Clock clock) {
+            super(parent);
+            this.clock = clock;
+        }
+
+        @Override
+        protected long nanoTime() {
+            return clock.now;
+        }
+
+        @Override
+        protected void sleep(final long nanos) {
+            clock.now += nanos;
+            clock.sleeps++;
+        }
+    }
+}
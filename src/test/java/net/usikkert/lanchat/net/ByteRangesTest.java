@@ -0,0 +1,108 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ByteRanges}.
+ *
+ * @author Christian Ihle
+ */
+public class ByteRangesTest {
+
+    private ByteRanges ranges;
+
+    @Before
+    public void setUp() {
+        ranges = new ByteRanges();
+    }
+
+    @Test
+    public void getContiguousEndShouldReturnFromWhenEmpty() {
+        assertEquals(10, ranges.getContiguousEnd(10));
+        assertEquals(0, ranges.size());
+    }
+
+    @Test
+    public void addShouldIgnoreEmptyRanges() {
+        ranges.add(5, 0);
+
+        assertEquals(0, ranges.size());
+    }
+
+    @Test
+    public void addShouldMergeAdjacentRanges() {
+        ranges.add(0, 10);
+        ranges.add(10, 5);
+
+        assertEquals(1, ranges.size());
+        assertEquals(15, ranges.getContiguousEnd(0));
+    }
+
+    @Test
+    public void addShouldMergeOverlappingRanges() {
+        ranges.add(10, 10);
+        ranges.add(5, 10);
+
+        assertEquals(1, ranges.size());
+        assertEquals(20, ranges.getContiguousEnd(5));
+    }
+
+    @Test
+    public void addShouldMergeRangeFillingHole() {
+        ranges.add(0, 10);
+        ranges.add(20, 10);
+        ranges.add(40, 10);
+        assertEquals(3, ranges.size());
+        assertEquals(10, ranges.getContiguousEnd(0));
+
+        ranges.add(10, 30);
+
+        assertEquals(1, ranges.size());
+        assertEquals(50, ranges.getContiguousEnd(0));
+    }
+
+    @Test
+    public void addShouldKeepRangeInsideExistingRange() {
+        ranges.add(0, 100);
+        ranges.add(10, 10);
+
+        assertEquals(1, ranges.size());
+        assertEquals(100, ranges.getContiguousEnd(0));
+    }
+
+    @Test
+    public void getContiguousEndShouldStopAtHole() {
+        ranges.add(0, 10);
+        ranges.add(11, 10);
+
+        assertEquals(2, ranges.size());
+        assertEquals(10, ranges.getContiguousEnd(0));
+        assertEquals(10, ranges.getContiguousEnd(10));
+        assertEquals(21, ranges.getContiguousEnd(15));
+    }
+}
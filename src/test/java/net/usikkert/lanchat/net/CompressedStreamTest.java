@@ -0,0 +1,245 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link CompressedOutputStream} and {@link CompressedInputStream} together.
+ *
+ * @author Christian Ihle
+ */
+public class CompressedStreamTest {
+
+    private CompressorPool pool;
+    private byte[] text;
+    private byte[] random;
+
+    @Before
+    public void setUp() throws IOException {
+        pool = new CompressorPool(2);
+
+        final StringBuilder builder = new StringBuilder();
+        int line = 0;
+
+        while (builder.length() < 2 * 1024 * 1024) {
+            builder.append(line++).append(";2013-05-17 12:00:00;INFO;Received file from user ").append(line % 17).append('\n');
+        }
+
+        text = Arrays.copyOf(builder.toString().getBytes("UTF-8"), 2 * 1024 * 1024);
+        random = new byte[2 * 1024 * 1024];
+        new Random(3).nextBytes(random);
+    }
+
+    @Test
+    public void shouldCompressTextOnSlowNetwork() throws IOException {
+        final SlowNetwork network = new SlowNetwork(1000);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+
+        out.write(text);
+        out.close();
+
+        assertEquals(text.length, out.getRawBytes());
+        assertEquals(network.size(), out.getWireBytes());
+        assertTrue(out.getWireBytes() < text.length / 3);
+        assertEquals(32, out.getDeflatedBlocks());
+        assertEquals(0, out.getStoredBlocks());
+        assertTrue(Arrays.equals(text, readAll(network.toByteArray())));
+        assertEquals(1, pool.getIdleDeflaters());
+        assertEquals(1, pool.getIdleInflaters());
+    }
+
+    @Test
+    public void shouldStoreRandomBytesWithoutCompressing() throws IOException {
+        final SlowNetwork network = new SlowNetwork(1000);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+
+        out.write(random);
+        out.close();
+
+        assertEquals(0, out.getDeflatedBlocks());
+        assertEquals(32, out.getStoredBlocks());
+        assertEquals(random.length + 32 * CompressedOutputStream.HEADER_SIZE, out.getWireBytes());
+        assertTrue(Arrays.equals(random, readAll(network.toByteArray())));
+        assertEquals(0, pool.getIdleDeflaters());
+    }
+
+    @Test
+    public void shouldStopCompressingWhenNetworkIsFasterThanCompression() throws IOException {
+        final SlowNetwork network = new SlowNetwork(0);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+
+        out.write(text);
+        out.close();
+
+        // The first block, and a block every 32 blocks to check if the network got slower
+        assertTrue("Compressed " + out.getDeflatedBlocks() + " blocks", out.getDeflatedBlocks() <= 2);
+        assertEquals(32, out.getDeflatedBlocks() + out.getStoredBlocks());
+        assertTrue(Arrays.equals(text, readAll(network.toByteArray())));
+    }
+
+    @Test
+    public void shouldMixCompressedAndStoredBlocks() throws IOException {
+        final SlowNetwork network = new SlowNetwork(1000);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+
+        out.write(text, 0, 100000);
+        out.write(random, 0, 200000);
+        out.write(text, 100000, 300000);
+        out.close();
+
+        assertTrue(out.getDeflatedBlocks() > 0);
+        assertTrue(out.getStoredBlocks() > 0);
+
+        final byte[] expected = new byte[600000];
+        System.arraycopy(text, 0, expected, 0, 100000);
+        System.arraycopy(random, 0, expected, 100000, 200000);
+        System.arraycopy(text, 100000, expected, 300000, 300000);
+        assertTrue(Arrays.equals(expected, readAll(network.toByteArray())));
+    }
+
+    @Test
+    public void flushShouldSendWaitingBytes() throws IOException {
+        final SlowNetwork network = new SlowNetwork(1000);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+
+        out.write(text, 0, 10);
+        assertEquals(0, network.size());
+
+        out.flush();
+        assertEquals(10 + CompressedOutputStream.HEADER_SIZE, network.size());
+        assertTrue(Arrays.equals(Arrays.copyOf(text, 10), readAll(network.toByteArray())));
+    }
+
+    @Test
+    public void readShouldReturnMinusOneWhenEmpty() throws IOException {
+        final CompressedInputStream in = new CompressedInputStream(new ByteArrayInputStream(new byte[0]), pool);
+
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(new byte[10], 0, 10));
+    }
+
+    @Test(expected = IOException.class)
+    public void readShouldFailWhenStreamEndsInsideBlock() throws IOException {
+        final SlowNetwork network = new SlowNetwork(1000);
+        final CompressedOutputStream out = new SlowCompressedOutputStream(network);
+        out.write(text, 0, 100000);
+        out.close();
+
+        readAll(Arrays.copyOf(network.toByteArray(), network.size() - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void readShouldFailWithCorruptCompressedBlock() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CompressedOutputStream.DEFLATED);
+        out.writeInt(1000);
+        out.writeInt(10);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+
+        readAll(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void readShouldFailWithTooLargeBlock() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(CompressedOutputStream.STORED);
+        out.writeInt(CompressedOutputStream.BLOCK_SIZE + 1);
+        out.writeInt(CompressedOutputStream.BLOCK_SIZE + 1);
+
+        readAll(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeShouldFailWhenClosed() throws IOException {
+        final CompressedOutputStream out = new CompressedOutputStream(new ByteArrayOutputStream(), pool);
+        out.close();
+
+        out.write(1);
+    }
+
+    private byte[] readAll(final byte[] bytes) throws IOException {
+        final CompressedInputStream in = new CompressedInputStream(new ByteArrayInputStream(bytes), pool);
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1000];
+        int read;
+
+        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            result.write(buffer, 0, read);
+        }
+
+        in.close();
+
+        return result.toByteArray();
+    }
+
+    /**
+     * Collects the written bytes, and pretends that each byte takes some time to send.
+     */
+    private static class SlowNetwork extends ByteArrayOutputStream {
+
+        private final long nanosPerByte;
+        private long delay;
+
+        SlowNetwork(final long nanosPerByte) {
+            this.nanosPerByte = nanosPerByte;
+        }
+
+        @Override
+        public synchronized void write(final byte[] b, final int off, final int len) {
+            super.write(b, off, len);
+            delay += len * nanosPerByte;
+        }
+    }
+
+    /**
+     * Adds the pretended time spent sending to the clock.
+     */
+    private class SlowCompressedOutputStream extends CompressedOutputStream {
+
+        private final SlowNetwork network;
+
+        SlowCompressedOutputStream(final SlowNetwork network) {
+            super(network, pool);
+            this.network = network;
+        }
+
+        @Override
+        protected long nanoTime() {
+            return System.nanoTime() + network.delay;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link FileBatch}.
+ *
+ * @author Christian Ihle
+ */
+public class FileBatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("photos");
+        writeFile(new File(dir, "b.jpg"), 300);
+        writeFile(new File(dir, "a.jpg"), 200);
+        new File(dir, "empty").mkdir();
+        new File(dir, "trip").mkdir();
+        writeFile(new File(dir, "trip/c.jpg"), 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void createShouldFailWithNoFiles() throws IOException {
+        FileBatch.create(Arrays.<File>asList());
+    }
+
+    @Test
+    public void createShouldAddEverythingInDirectorySortedByName() throws IOException {
+        final FileBatch batch = FileBatch.create(Arrays.asList(dir));
+
+        assertEquals("photos", batch.getName());
+        assertEquals(dir.getAbsoluteFile(), batch.getRoot());
+        assertEquals(600, batch.getTotalSize());
+        assertEquals(3, batch.getFileCount());
+
+        final List<FileBatch.Entry> entries = batch.getEntries();
+        assertEquals(5, entries.size());
+        checkEntry(entries.get(0), "a.jpg", 200);
+        checkEntry(entries.get(1), "b.jpg", 300);
+        checkEntry(entries.get(2), "empty", -1);
+        checkEntry(entries.get(3), "trip", -1);
+        checkEntry(entries.get(4), "trip/c.jpg", 100);
+        assertTrue(entries.get(2).isDirectory());
+        assertEquals(new File(dir, "trip/c.jpg").getAbsoluteFile(), entries.get(4).getFile());
+    }
+
+    @Test
+    public void createShouldUseParentDirectoryForSeveralFiles() throws IOException {
+        final FileBatch batch = FileBatch.create(Arrays.asList(new File(dir, "b.jpg"), new File(dir, "trip")));
+
+        assertEquals("photos", batch.getName());
+        assertEquals(dir.getAbsoluteFile(), batch.getRoot());
+        assertEquals(400, batch.getTotalSize());
+        assertEquals(2, batch.getFileCount());
+
+        final List<FileBatch.Entry> entries = batch.getEntries();
+        assertEquals(3, entries.size());
+        checkEntry(entries.get(0), "b.jpg", 300);
+        checkEntry(entries.get(1), "trip", -1);
+        checkEntry(entries.get(2), "trip/c.jpg", 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void createShouldFailWithTwoFilesWithSameName() throws IOException {
+        final File other = folder.newFolder("other");
+        writeFile(new File(other, "a.jpg"), 10);
+
+        FileBatch.create(Arrays.asList(new File(dir, "a.jpg"), new File(other, "a.jpg")));
+    }
+
+    @Test
+    public void readShouldGetSameEntriesAsWritten() throws IOException {
+        final FileBatch batch = FileBatch.create(Arrays.asList(dir));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        batch.write(new DataOutputStream(bytes));
+
+        final FileBatch read = FileBatch.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "received");
+
+        assertEquals("received", read.getName());
+        assertNull(read.getRoot());
+        assertEquals(600, read.getTotalSize());
+        assertEquals(3, read.getFileCount());
+        assertEquals(5, read.getEntries().size());
+
+        for (int i = 0; i < 5; i++) {
+            checkEntry(read.getEntries().get(i), batch.getEntries().get(i).getPath(),
+                    batch.getEntries().get(i).getSize());
+            assertNull(read.getEntries().get(i).getFile());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readShouldFailWithNegativeCount() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(-1);
+
+        FileBatch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "received");
+    }
+
+    @Test(expected = IOException.class)
+    public void readShouldFailWithInvalidSize() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeUTF("a.jpg");
+        out.writeLong(-2);
+
+        FileBatch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "received");
+    }
+
+    @Test
+    public void resolveShouldFindFileInsideDirectory() throws IOException {
+        assertEquals(new File(new File(dir, "trip"), "c.jpg"), FileBatch.resolve(dir, "trip/c.jpg"));
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveShouldFailWithParentDirectory() throws IOException {
+        FileBatch.resolve(dir, "trip/../../secret");
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveShouldFailWithAbsolutePath() throws IOException {
+        FileBatch.resolve(dir, "/etc/passwd");
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveShouldFailWithEmptyPart() throws IOException {
+        FileBatch.resolve(dir, "trip//c.jpg");
+    }
+
+    @Test(expected = IOException.class)
+    public void resolveShouldFailWithCurrentDirectory() throws IOException {
+        FileBatch.resolve(dir, ".");
+    }
+
+    private void checkEntry(final FileBatch.Entry entry, final String path, final long size) {
+        assertEquals(path, entry.getPath());
+        assertEquals(size, entry.getSize());
+    }
+
+    private void writeFile(final File file, final int size) throws IOException {
+        final FileOutputStream fos = new FileOutputStream(file);
+
+        try {
+            fos.write(new byte[size]);
+        }
+
+        finally {
+            fos.close();
+        }
+    }
+}
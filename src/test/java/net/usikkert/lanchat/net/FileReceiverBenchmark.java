@@ -0,0 +1,180 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import net.usikkert.lanchat.event.FileTransferListener;
+import net.usikkert.lanchat.misc.User;
+
+/**
+ * Compares receiving a file with streams and a small buffer, and with the pipeline of
+ * pooled buffers and a write-behind thread, in {@link FileReceiver}. The file is sent over
+ * loopback from memory, and written to a temporary file. The throughput and the cpu time
+ * used by the receiving thread are measured. The cpu time of the write-behind thread is not included.
+ *
+ * <p>Not a unit test. Run it manually, optionally with the file size in megabytes
+ * as the first argument (defaults to 512).</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class FileReceiverBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private FileReceiverBenchmark() {
+
+    }
+
+    /**
+     * Runs the benchmark for both ways of receiving.
+     *
+     * @param args Optional file size in megabytes.
+     * @throws Exception If the benchmark fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+
+        // Warmup
+        run("Warmup", megabytes, true);
+        run("Warmup", megabytes, false);
+
+        for (int i = 0; i < ROUNDS; i++) {
+            System.out.println("Streams:  " + run("Streams", megabytes, true));
+            System.out.println("Pipeline: " + run("Pipeline", megabytes, false));
+        }
+    }
+
+    private static String run(final String name, final int megabytes, final boolean streamTransfer) throws Exception {
+        final File file = File.createTempFile("filereceiver", ".bin");
+        final long size = megabytes * 1024L * 1024L;
+
+        try {
+            final FileReceiver receiver = new FileReceiver(new User("Sender", 1), file, size, 1, null, streamTransfer);
+            receiver.registerListener(new NoOpListener());
+            receiver.accept();
+
+            final MemorySender sender = new MemorySender(receiver.startServer(), megabytes);
+            sender.start();
+
+            final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            final long startCpu = threadBean.getCurrentThreadCpuTime();
+            final long startTime = System.nanoTime();
+
+            final boolean received = receiver.transfer();
+            sender.join();
+
+            final long time = System.nanoTime() - startTime;
+            final long cpu = threadBean.getCurrentThreadCpuTime() - startCpu;
+
+            if (!received || file.length() != size) {
+                throw new IOException(name + " failed: received " + received + ", file size " + file.length());
+            }
+
+            final double seconds = time / 1e9;
+
+            return String.format("%.0f MB/s, receiver cpu %.0f ms (%.0f%% of %.2f s)",
+                    size / 1048576.0 / seconds, cpu / 1e6, 100.0 * cpu / time, seconds);
+        }
+
+        finally {
+            if (!file.delete()) {
+                System.out.println("Could not delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Connects to the receiver, and sends the same megabyte of random data over and over.
+     */
+    private static class MemorySender extends Thread {
+
+        private final int port;
+        private final int megabytes;
+
+        MemorySender(final int port, final int megabytes) {
+            this.port = port;
+            this.megabytes = megabytes;
+        }
+
+        @Override
+        public void run() {
+            final byte[] block = new byte[1024 * 1024];
+            new Random(42).nextBytes(block);
+
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(block.length);
+            buffer.put(block);
+
+            try {
+                final SocketChannel channel = SocketChannel.open(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+                for (int i = 0; i < megabytes; i++) {
+                    buffer.clear();
+
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class NoOpListener implements FileTransferListener {
+
+        @Override
+        public void statusWaiting() { }
+
+        @Override
+        public void statusQueued() { }
+
+        @Override
+        public void statusConnecting() { }
+
+        @Override
+        public void statusTransferring() { }
+
+        @Override
+        public void statusCompleted() { }
+
+        @Override
+        public void statusFailed() { }
+
+        @Override
+        public void transferUpdate() { }
+    }
+}
@@ -0,0 +1,594 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.event.FileTransferListener;
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test of {@link FileReceiver}.
+ *
+ * @author Christian Ihle
+ */
+public class FileReceiverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private byte[] content;
+    private ExecutorService executor;
+    private User user;
+    private FileTransferListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(content);
+
+        file = File.createTempFile("filereceivertest", ".bin");
+        executor = Executors.newSingleThreadExecutor();
+        user = new User("Sender", 1);
+        listener = mock(FileTransferListener.class);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        file.delete();
+    }
+
+    @Test
+    public void transferShouldReceiveWholeFileWithChannels() throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, false);
+
+        assertTrue(receive(receiver, content.length));
+        assertTrue(Arrays.equals(content, readFile()));
+        assertEquals(content.length, receiver.getTransferred());
+        assertEquals(100, receiver.getPercent());
+        verify(listener).statusCompleted();
+        verify(listener, atLeastOnce()).transferUpdate();
+    }
+
+    @Test
+    public void transferShouldReceiveWholeFileWithStreams() throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, true);
+
+        assertTrue(receive(receiver, content.length));
+        assertTrue(Arrays.equals(content, readFile()));
+        assertEquals(content.length, receiver.getTransferred());
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldReceiveWholeFileWithReactor() throws Exception {
+        final NetworkReactor reactor = new NetworkReactor();
+        reactor.start();
+
+        try {
+            final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, reactor, false);
+
+            assertTrue(receive(receiver, content.length));
+            assertTrue(Arrays.equals(content, readFile()));
+        }
+
+        finally {
+            reactor.stop();
+        }
+    }
+
+    @Test
+    public void transferShouldFailAndTruncatePreallocatedFileWhenSenderStopsEarly() throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, false);
+        final int sent = 2 * 1024 * 1024 + 5;
+
+        assertFalse(receive(receiver, sent));
+        assertEquals(sent, file.length());
+        assertTrue(Arrays.equals(Arrays.copyOf(content, sent), readFile()));
+        verify(listener).statusFailed();
+        verify(listener, never()).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldResumePartialFileWithChannels() throws Exception {
+        checkResume(false);
+    }
+
+    @Test
+    public void transferShouldResumePartialFileWithStreams() throws Exception {
+        checkResume(true);
+    }
+
+    @Test
+    public void transferShouldReceiveWholeFileIfPartialFileDoesNotMatch() throws Exception {
+        final int offset = 2 * 1024 * 1024 + 3;
+        final byte[] partial = Arrays.copyOf(content, offset);
+        partial[offset - 10] ^= 1;
+        writeFile(file, partial);
+
+        assertTrue(resume(offset, false));
+        assertTrue(Arrays.equals(content, readFile()));
+    }
+
+    @Test
+    public void transferShouldReceiveSegmentedFile() throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, false);
+        receiver.setSegmented(true);
+
+        assertTrue(send(receiver, -1, false, 4, false));
+        assertTrue(Arrays.equals(content, readFile()));
+        assertEquals(100, receiver.getPercent());
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldBeLimitedByTheBandwidthLimitWithChannels() throws Exception {
+        checkLimitedTransfer(false, 0);
+    }
+
+    @Test
+    public void transferShouldBeLimitedByTheBandwidthLimitWithStreams() throws Exception {
+        checkLimitedTransfer(true, 0);
+    }
+
+    @Test
+    public void transferShouldBeLimitedByTheBandwidthLimitWithSegments() throws Exception {
+        checkLimitedTransfer(false, 4);
+    }
+
+    @Test
+    public void transferShouldReceiveSegmentedFileWithReactor() throws Exception {
+        final NetworkReactor reactor = new NetworkReactor();
+        reactor.start();
+
+        try {
+            final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, reactor, false);
+            receiver.setSegmented(true);
+
+            assertTrue(send(receiver, -1, false, 4, false));
+            assertTrue(Arrays.equals(content, readFile()));
+        }
+
+        finally {
+            reactor.stop();
+        }
+    }
+
+    @Test
+    public void transferShouldResumeSegmentedFile() throws Exception {
+        final int offset = 2 * 1024 * 1024 + 3;
+        final byte[] partial = Arrays.copyOf(content, offset);
+        partial[0] ^= 1;
+        writeFile(file, partial);
+
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, false);
+        receiver.setSegmented(true);
+
+        assertTrue(send(receiver, offset, false, 4, false));
+
+        final byte[] expected = content.clone();
+        expected[0] ^= 1;
+        assertTrue(Arrays.equals(expected, readFile()));
+    }
+
+    @Test
+    public void transferShouldVerifyChecksumWithChannels() throws Exception {
+        checkVerifiedTransfer(false, 0);
+    }
+
+    @Test
+    public void transferShouldVerifyChecksumWithStreams() throws Exception {
+        checkVerifiedTransfer(true, 0);
+    }
+
+    @Test
+    public void transferShouldVerifyChecksumOfSegments() throws Exception {
+        checkVerifiedTransfer(false, 4);
+    }
+
+    @Test
+    public void transferShouldFailAndDiscardFileWhenChecksumIsWrongWithChannels() throws Exception {
+        checkWrongChecksum(false);
+    }
+
+    @Test
+    public void transferShouldFailAndDiscardFileWhenChecksumIsWrongWithStreams() throws Exception {
+        checkWrongChecksum(true);
+    }
+
+    @Test
+    public void transferShouldReceiveBatch() throws Exception {
+        checkBatch(false, false);
+    }
+
+    @Test
+    public void transferShouldReceiveBatchWithChecksums() throws Exception {
+        checkBatch(true, false);
+    }
+
+    @Test
+    public void transferShouldReceiveCompressedBatch() throws Exception {
+        checkBatch(true, true);
+    }
+
+    @Test
+    public void transferShouldReceiveCompressedFileWithChannels() throws Exception {
+        checkCompressedTransfer(false, false);
+    }
+
+    @Test
+    public void transferShouldReceiveCompressedFileWithStreamsAndChecksum() throws Exception {
+        checkCompressedTransfer(true, true);
+    }
+
+    @Test
+    public void transferShouldResumeCompressedFile() throws Exception {
+        final int offset = 2 * 1024 * 1024 + 3;
+        writeFile(file, Arrays.copyOf(content, offset));
+
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, false);
+        receiver.setCompress(true);
+        receiver.setVerifyChecksum(true);
+
+        assertTrue(send(receiver, offset, false, 0, true, true));
+        assertTrue(Arrays.equals(content, readFile()));
+        verify(listener).statusCompleted();
+    }
+
+    @Test
+    public void transferShouldReceiveFileOnSharedPortWithChannels() throws Exception {
+        checkSharedPortTransfer(false, 0);
+    }
+
+    @Test
+    public void transferShouldReceiveFileOnSharedPortWithStreams() throws Exception {
+        checkSharedPortTransfer(true, 0);
+    }
+
+    @Test
+    public void transferShouldReceiveSegmentedFileOnSharedPort() throws Exception {
+        checkSharedPortTransfer(false, 4);
+    }
+
+    @Test
+    public void transferShouldFailBatchWithPathOutsideDirectory() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeUTF("../outside.txt");
+        out.writeLong(3);
+        out.write(new byte[] {1, 2, 3});
+
+        final File target = new File(folder.getRoot(), "received");
+        final FileReceiver receiver = new FileReceiver(user, target, 3, 1, null, false);
+        receiver.setBatch(true);
+
+        assertFalse(receive(receiver, bytes.toByteArray(), bytes.size()));
+        assertFalse(new File(folder.getRoot(), "outside.txt").exists());
+        verify(listener).statusFailed();
+    }
+
+    private void checkCompressedTransfer(final boolean streamTransfer, final boolean verifyChecksum) throws Exception {
+        // Half text that compresses well, and half random bytes that don't
+        final byte[] text = "Some text that is easy to compress. ".getBytes("UTF-8");
+
+        for (int i = 0; i < content.length / 2; i++) {
+            content[i] = text[i % text.length];
+        }
+
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+        receiver.setCompress(true);
+        receiver.setVerifyChecksum(verifyChecksum);
+
+        assertTrue(send(receiver, -1, streamTransfer, 0, verifyChecksum, true));
+        assertTrue(Arrays.equals(content, readFile()));
+        verify(listener).statusCompleted();
+    }
+
+    private void checkBatch(final boolean verifyChecksum, final boolean compress) throws Exception {
+        final File source = folder.newFolder("source");
+        writeFile(new File(source, "big.bin"), content);
+        new File(source, "empty").mkdir();
+        new File(source, "small").mkdir();
+
+        for (int i = 0; i < 100; i++) {
+            writeFile(new File(source, "small/" + i + ".txt"), ("file " + i).getBytes("UTF-8"));
+        }
+
+        final FileBatch batch = FileBatch.create(Arrays.asList(source));
+        final File target = new File(folder.getRoot(), "received");
+        final FileReceiver receiver = new FileReceiver(user, target, batch.getTotalSize(), 1, null, false);
+        receiver.setBatch(true);
+        receiver.setVerifyChecksum(verifyChecksum);
+        receiver.setCompress(compress);
+        receiver.registerListener(listener);
+        receiver.accept();
+        final int port = receiver.startServer();
+
+        final User receivingUser = new User("Receiver", 2);
+        receivingUser.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+        final FileSender sender = new FileSender(receivingUser, batch, 1, false);
+        sender.registerListener(mock(FileTransferListener.class));
+        sender.setVerifyChecksum(verifyChecksum);
+        sender.setCompress(compress);
+
+        final Future<Boolean> sent = executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return sender.transfer(port);
+            }
+        });
+
+        assertTrue(receiver.transfer());
+        assertTrue(sent.get(10, TimeUnit.SECONDS));
+        assertEquals(batch.getTotalSize(), receiver.getTransferred());
+        assertEquals(batch.getTotalSize(), sender.getTransferred());
+        assertEquals(100, receiver.getPercent());
+
+        assertTrue(Arrays.equals(content, readFile(new File(target, "big.bin"))));
+        assertTrue(new File(target, "empty").isDirectory());
+        assertEquals(100, new File(target, "small").list().length);
+        assertEquals("file 42", new String(readFile(new File(target, "small/42.txt")), "UTF-8"));
+        verify(listener).statusCompleted();
+    }
+
+    private void checkVerifiedTransfer(final boolean streamTransfer, final int maxStreams) throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+        receiver.setVerifyChecksum(true);
+        receiver.setSegmented(maxStreams > 0);
+
+        assertTrue(send(receiver, -1, streamTransfer, maxStreams, true));
+        assertTrue(Arrays.equals(content, readFile()));
+        verify(listener).statusCompleted();
+    }
+
+    private void checkWrongChecksum(final boolean streamTransfer) throws Exception {
+        final TransferChecksum checksum = new TransferChecksum();
+        checksum.update(content, 0, content.length);
+
+        final byte[] bytes = Arrays.copyOf(content, content.length + 8);
+        ByteBuffer.wrap(bytes, content.length, 8).putLong(checksum.getValue() + 1);
+
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+        receiver.setVerifyChecksum(true);
+
+        assertFalse(receive(receiver, bytes, bytes.length));
+        assertEquals(0, file.length());
+        assertEquals(0, receiver.getTransferred());
+        verify(listener).statusFailed();
+        verify(listener, never()).statusCompleted();
+    }
+
+    /**
+     * The first byte in the partial file is outside the checksum, and is different from the
+     * original file. It's only kept if the transfer is resumed instead of starting over.
+     */
+    private void checkResume(final boolean streamTransfer) throws Exception {
+        final int offset = 2 * 1024 * 1024 + 3;
+        final byte[] partial = Arrays.copyOf(content, offset + 1000);
+        partial[0] ^= 1;
+        writeFile(file, partial);
+
+        assertTrue(resume(offset, streamTransfer));
+
+        final byte[] expected = content.clone();
+        expected[0] ^= 1;
+        assertTrue(Arrays.equals(expected, readFile()));
+        verify(listener).statusCompleted();
+    }
+
+    private boolean resume(final long offset, final boolean streamTransfer) throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+
+        return send(receiver, offset, streamTransfer, 0, false);
+    }
+
+    private void checkLimitedTransfer(final boolean streamTransfer, final int maxStreams) throws Exception {
+        final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+        receiver.setSegmented(maxStreams > 0);
+
+        // The whole file should take 250 milliseconds at this rate
+        final BandwidthLimiter global = new BandwidthLimiter();
+        global.setRate(content.length * 4L);
+        receiver.setBandwidthLimiter(new BandwidthLimiter(global));
+
+        final long start = System.nanoTime();
+        assertTrue(send(receiver, -1, streamTransfer, maxStreams, false));
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Too fast: " + elapsed, elapsed >= 200);
+        assertTrue(Arrays.equals(content, readFile()));
+    }
+
+    private boolean send(final FileReceiver receiver, final long offset, final boolean streamTransfer,
+                         final int maxStreams, final boolean verifyChecksum) throws Exception {
+        return send(receiver, offset, streamTransfer, maxStreams, verifyChecksum, false);
+    }
+
+    private void checkSharedPortTransfer(final boolean streamTransfer, final int maxStreams) throws Exception {
+        final NetworkReactor reactor = new NetworkReactor();
+        final FileTransferServer server = new FileTransferServer(reactor);
+        final TransferToken token = new TransferToken(user.getCode(), 1234, file.getName());
+
+        try {
+            final FileReceiver receiver = new FileReceiver(user, file, content.length, 1, null, streamTransfer);
+            receiver.setSegmented(maxStreams > 0);
+            receiver.setVerifyChecksum(true);
+            receiver.setTransferServer(server);
+            receiver.setTransferToken(token);
+
+            assertTrue(send(receiver, -1, streamTransfer, maxStreams, true, false, token));
+            assertTrue(Arrays.equals(content, readFile()));
+            assertTrue(server.isStarted());
+            verify(listener).statusCompleted();
+        }
+
+        finally {
+            server.stop();
+            reactor.stop();
+        }
+    }
+
+    private boolean send(final FileReceiver receiver, final long offset, final boolean streamTransfer,
+                         final int maxStreams, final boolean verifyChecksum, final boolean compress)
+            throws Exception {
+        return send(receiver, offset, streamTransfer, maxStreams, verifyChecksum, compress, null);
+    }
+
+    private boolean send(final FileReceiver receiver, final long offset, final boolean streamTransfer,
+                         final int maxStreams, final boolean verifyChecksum, final boolean compress,
+                         final TransferToken token) throws Exception {
+        final File original = File.createTempFile("filereceivertest", ".orig");
+
+        try {
+            writeFile(original, content);
+
+            receiver.registerListener(listener);
+
+            if (offset >= 0) {
+                receiver.setResumeOffset(offset);
+            }
+
+            receiver.accept();
+            final int port = receiver.startServer();
+
+            final User receivingUser = new User("Receiver", 2);
+            receivingUser.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+            final FileSender sender = new FileSender(receivingUser, original, 1, streamTransfer);
+            sender.registerListener(mock(FileTransferListener.class));
+
+            if (offset >= 0) {
+                sender.setResumeRequest(offset, PartialTransfers.calculateChecksum(file, offset));
+            }
+
+            if (maxStreams > 0) {
+                sender.setSegmented(maxStreams);
+            }
+
+            sender.setVerifyChecksum(verifyChecksum);
+            sender.setCompress(compress);
+            sender.setTransferToken(token);
+
+            final Future<Boolean> sent = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return sender.transfer(port);
+                }
+            });
+
+            final boolean received = receiver.transfer();
+            assertTrue(sent.get(10, TimeUnit.SECONDS));
+            assertEquals(content.length, receiver.getTransferred());
+
+            return received;
+        }
+
+        finally {
+            original.delete();
+        }
+    }
+
+    private boolean receive(final FileReceiver receiver, final int bytesToSend) throws Exception {
+        return receive(receiver, content, bytesToSend);
+    }
+
+    private boolean receive(final FileReceiver receiver, final byte[] bytes, final int bytesToSend)
+            throws Exception {
+        receiver.registerListener(listener);
+        receiver.accept();
+        final int port = receiver.startServer();
+
+        final Future<Void> sender = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                final OutputStream out = socket.getOutputStream();
+                out.write(bytes, 0, bytesToSend);
+                socket.close();
+
+                return null;
+            }
+        });
+
+        final boolean received = receiver.transfer();
+        sender.get(10, TimeUnit.SECONDS);
+
+        return received;
+    }
+
+    private void writeFile(final File target, final byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(target);
+        out.write(bytes);
+        out.close();
+    }
+
+    private byte[] readFile() throws IOException {
+        return readFile(file);
+    }
+
+    private byte[] readFile(final File source) throws IOException {
+        final byte[] bytes = new byte[(int) source.length()];
+        final FileInputStream in = new FileInputStream(source);
+
+        try {
+            int offset = 0;
+
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        }
+
+        finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,198 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+import net.usikkert.lanchat.event.FileTransferListener;
+import net.usikkert.lanchat.misc.User;
+
+/**
+ * Compares sending a file with streams and a small buffer, and with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * in {@link FileSender}. The file is sent over loopback to a receiver that throws the data away,
+ * and the throughput and the cpu time used by the sending thread are measured.
+ *
+ * <p>Not a unit test. Run it manually, optionally with the file size in megabytes
+ * as the first argument (defaults to 512).</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class FileSenderBenchmark {
+
+    private static final int ROUNDS = 3;
+
+    private FileSenderBenchmark() {
+
+    }
+
+    /**
+     * Runs the benchmark for both ways of sending.
+     *
+     * @param args Optional file size in megabytes.
+     * @throws Exception If the benchmark fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        final int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        final File file = createFile(megabytes);
+
+        try {
+            // Warmup
+            run("Warmup", file, true);
+            run("Warmup", file, false);
+
+            for (int i = 0; i < ROUNDS; i++) {
+                System.out.println("Streams:  " + run("Streams", file, true));
+                System.out.println("Channels: " + run("Channels", file, false));
+            }
+        }
+
+        finally {
+            if (!file.delete()) {
+                System.out.println("Could not delete " + file);
+            }
+        }
+    }
+
+    private static String run(final String name, final File file, final boolean streamTransfer) throws Exception {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final DiscardingReceiver receiver = new DiscardingReceiver(server);
+        receiver.start();
+
+        final User user = new User("Receiver", 1);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+
+        final FileSender sender = new FileSender(user, file, 1, streamTransfer);
+        sender.registerListener(new NoOpListener());
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final long startCpu = threadBean.getCurrentThreadCpuTime();
+        final long startTime = System.nanoTime();
+
+        final boolean sent = sender.transfer(server.socket().getLocalPort());
+        receiver.join();
+
+        final long time = System.nanoTime() - startTime;
+        final long cpu = threadBean.getCurrentThreadCpuTime() - startCpu;
+        server.close();
+
+        if (!sent || receiver.received != file.length()) {
+            throw new IOException(name + " failed: sent " + sent + ", received " + receiver.received);
+        }
+
+        final double seconds = time / 1e9;
+
+        return String.format("%.0f MB/s, sender cpu %.0f ms (%.0f%% of %.2f s)",
+                file.length() / 1048576.0 / seconds, cpu / 1e6, 100.0 * cpu / time, seconds);
+    }
+
+    private static File createFile(final int megabytes) throws IOException {
+        final File file = File.createTempFile("filesender", ".bin");
+        final byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            for (int i = 0; i < megabytes; i++) {
+                out.write(block);
+            }
+        }
+
+        finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    /**
+     * Accepts one connection, and reads until the sender closes it.
+     */
+    private static class DiscardingReceiver extends Thread {
+
+        private final ServerSocketChannel server;
+        private volatile long received;
+
+        DiscardingReceiver(final ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void run() {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+            try {
+                final SocketChannel channel = server.accept();
+                int read;
+
+                while ((read = channel.read(buffer)) != -1) {
+                    received += read;
+                    buffer.clear();
+                }
+
+                channel.close();
+            }
+
+            catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class NoOpListener implements FileTransferListener {
+
+        @Override
+        public void statusWaiting() { }
+
+        @Override
+        public void statusQueued() { }
+
+        @Override
+        public void statusConnecting() { }
+
+        @Override
+        public void statusTransferring() { }
+
+        @Override
+        public void statusCompleted() { }
+
+        @Override
+        public void statusFailed() { }
+
+        @Override
+        public void transferUpdate() { }
+    }
+}
@@ -0,0 +1,188 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.event.FileTransferListener;
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileSender}.
+ *
+ * @author Christian Ihle
+ */
+public class FileSenderTest {
+
+    private File file;
+    private byte[] content;
+    private ServerSocket server;
+    private ExecutorService executor;
+    private User user;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(content);
+
+        file = File.createTempFile("filesendertest", ".bin");
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+
+        server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        executor = Executors.newSingleThreadExecutor();
+
+        user = new User("Receiver", 1);
+        user.setIpAddress(InetAddress.getLoopbackAddress().getHostAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        server.close();
+        file.delete();
+    }
+
+    @Test
+    public void transferShouldSendWholeFileWithChannels() throws Exception {
+        checkTransfer(new FileSender(user, file, 1, false));
+    }
+
+    @Test
+    public void transferShouldSendWholeFileWithStreams() throws Exception {
+        checkTransfer(new FileSender(user, file, 1, true));
+    }
+
+    @Test
+    public void transferShouldSendChecksumAfterFileWithChannels() throws Exception {
+        checkChecksum(new FileSender(user, file, 1, false));
+    }
+
+    @Test
+    public void transferShouldSendChecksumAfterFileWithStreams() throws Exception {
+        checkChecksum(new FileSender(user, file, 1, true));
+    }
+
+    @Test
+    public void publishProgressShouldDoNothingWhenNotTransferring() {
+        final FileSender sender = new FileSender(user, file, 1, false);
+        final FileTransferListener listener = mock(FileTransferListener.class);
+        sender.registerListener(listener);
+
+        sender.publishProgress();
+
+        verify(listener, never()).transferUpdate();
+    }
+
+    @Test
+    public void createFileHashShouldBeSameForSameFile() {
+        assertEquals(FileSender.createFileHash(file), FileSender.createFileHash(new File(file.getPath())));
+        assertEquals(FileSender.createFileHash(file), new FileSender(user, file, 1).getFileHash());
+    }
+
+    @Test
+    public void createFileHashShouldChangeWhenFileChanges() throws IOException {
+        final int fileHash = FileSender.createFileHash(file);
+
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write(1);
+        out.close();
+
+        assertNotEquals(fileHash, FileSender.createFileHash(file));
+    }
+
+    private void checkChecksum(final FileSender sender) throws Exception {
+        sender.setVerifyChecksum(true);
+
+        final byte[] received = transfer(sender);
+        assertEquals(content.length + 8, received.length);
+        assertTrue(Arrays.equals(content, Arrays.copyOf(received, content.length)));
+
+        final TransferChecksum checksum = new TransferChecksum();
+        checksum.update(content, 0, content.length);
+        assertEquals(checksum.getValue(), ByteBuffer.wrap(received, content.length, 8).getLong());
+    }
+
+    private void checkTransfer(final FileSender sender) throws Exception {
+        assertTrue(Arrays.equals(content, transfer(sender)));
+    }
+
+    private byte[] transfer(final FileSender sender) throws Exception {
+        final FileTransferListener listener = mock(FileTransferListener.class);
+        sender.registerListener(listener);
+
+        final Future<byte[]> received = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                final Socket socket = server.accept();
+                final InputStream in = socket.getInputStream();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+
+                socket.close();
+
+                return out.toByteArray();
+            }
+        });
+
+        assertTrue(sender.transfer(server.getLocalPort()));
+        final byte[] bytes = received.get(10, TimeUnit.SECONDS);
+
+        assertEquals(content.length, sender.getTransferred());
+        assertEquals(100, sender.getPercent());
+        verify(listener).statusCompleted();
+        verify(listener, atLeastOnce()).transferUpdate();
+
+        return bytes;
+    }
+}
@@ -0,0 +1,221 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileTransferServer}.
+ *
+ * @author Christian Ihle
+ */
+public class FileTransferServerTest {
+
+    private static final long ACCEPT_TIMEOUT = 5000;
+
+    private NetworkReactor reactor;
+    private FileTransferServer server;
+    private TransferToken token;
+    private BlockingQueue<SocketChannel> accepted;
+    private NetworkReactor.AcceptListener listener;
+
+    @Before
+    public void setUp() {
+        reactor = new NetworkReactor();
+        server = new FileTransferServer(reactor);
+        token = new TransferToken(1, 1234, "file.txt");
+        accepted = new LinkedBlockingQueue<SocketChannel>();
+
+        listener = new NetworkReactor.AcceptListener() {
+            @Override
+            public void connectionAccepted(final SocketChannel connection) {
+                accepted.add(connection);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        reactor.stop();
+
+        for (final SocketChannel connection : accepted) {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void shouldNotBeStartedBeforeFirstRegistration() {
+        assertFalse(server.isStarted());
+        assertEquals(0, server.getPort());
+    }
+
+    @Test
+    public void registerShouldStartServerOnce() throws Exception {
+        server.register(token, false, ACCEPT_TIMEOUT, listener);
+        final int port = server.getPort();
+
+        server.register(new TransferToken(2, 1234, "file.txt"), false, ACCEPT_TIMEOUT, listener);
+
+        assertTrue(server.isStarted());
+        assertTrue(port > 0);
+        assertEquals(port, server.getPort());
+        assertEquals(port, server.start());
+    }
+
+    @Test(expected = ServerException.class)
+    public void registerShouldFailWhenTokenIsAlreadyRegistered() throws Exception {
+        server.register(token, false, ACCEPT_TIMEOUT, listener);
+        server.register(new TransferToken(1, 1234, "file.txt"), false, ACCEPT_TIMEOUT, listener);
+    }
+
+    @Test
+    public void connectionWithTokenShouldBeGivenToRegisteredListenerAsBlockingChannel() throws Exception {
+        final FileTransferServer.Registration registration = server.register(token, false, ACCEPT_TIMEOUT, listener);
+        server.register(new TransferToken(2, 1234, "file.txt"), false, ACCEPT_TIMEOUT, failingListener());
+
+        final SocketChannel client = connect(token, new byte[] {7, 8, 9});
+        final SocketChannel connection = accepted.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(connection);
+        assertFalse(registration.isOpen());
+
+        // The bytes after the token are left for the file receiver
+        connection.configureBlocking(true);
+        final ByteBuffer bytes = ByteBuffer.allocate(3);
+
+        while (bytes.hasRemaining()) {
+            assertTrue(connection.read(bytes) > 0);
+        }
+
+        assertArrayEquals(new byte[] {7, 8, 9}, bytes.array());
+        client.close();
+    }
+
+    @Test
+    public void registrationShouldGetMoreConnectionsWhenExpected() throws Exception {
+        final FileTransferServer.Registration registration = server.register(token, true, ACCEPT_TIMEOUT, listener);
+
+        final SocketChannel first = connect(token, new byte[0]);
+        final SocketChannel second = connect(token, new byte[0]);
+
+        assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+        assertNotNull(accepted.poll(5, TimeUnit.SECONDS));
+        assertTrue(registration.isOpen());
+
+        registration.close();
+        assertFalse(registration.isOpen());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void connectionWithUnknownTokenShouldBeClosed() throws Exception {
+        server.register(token, false, ACCEPT_TIMEOUT, listener);
+
+        final SocketChannel client = connect(new TransferToken(2, 1234, "file.txt"), new byte[0]);
+
+        assertClosedByServer(client);
+        assertTrue(accepted.isEmpty());
+    }
+
+    @Test
+    public void connectionWithoutTokenShouldBeClosed() throws Exception {
+        server.register(token, false, ACCEPT_TIMEOUT, listener);
+
+        final SocketChannel client = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        client.write(ByteBuffer.wrap(new byte[TransferToken.SIZE]));
+
+        assertClosedByServer(client);
+        assertTrue(accepted.isEmpty());
+    }
+
+    @Test
+    public void registrationShouldBeClosedWhenNoConnectionArrivesInTime() throws Exception {
+        final FileTransferServer.Registration registration = server.register(token, false, 100, listener);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while (registration.isOpen() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(registration.isOpen());
+
+        // The token can be used again
+        server.register(token, false, ACCEPT_TIMEOUT, listener);
+    }
+
+    @Test
+    public void stopShouldCloseServerAndRegistrations() throws Exception {
+        final FileTransferServer.Registration registration = server.register(token, false, ACCEPT_TIMEOUT, listener);
+
+        server.stop();
+
+        assertFalse(server.isStarted());
+        assertFalse(registration.isOpen());
+    }
+
+    private SocketChannel connect(final TransferToken transferToken, final byte[] bytes) throws IOException {
+        final SocketChannel client = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        final ByteBuffer buffer = ByteBuffer.allocate(TransferToken.SIZE + bytes.length);
+        buffer.put(transferToken.toBytes()).put(bytes).flip();
+
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+
+        return client;
+    }
+
+    private void assertClosedByServer(final SocketChannel client) throws IOException {
+        client.socket().setSoTimeout(5000);
+        assertEquals(-1, client.socket().getInputStream().read());
+        client.close();
+    }
+
+    private NetworkReactor.AcceptListener failingListener() {
+        return new NetworkReactor.AcceptListener() {
+            @Override
+            public void connectionAccepted(final SocketChannel connection) {
+                fail("Connection given to the wrong listener");
+            }
+        };
+    }
+}
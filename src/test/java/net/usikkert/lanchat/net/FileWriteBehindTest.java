@@ -0,0 +1,128 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FileWriteBehind}.
+ *
+ * @author Christian Ihle
+ */
+public class FileWriteBehindTest {
+
+    private File file;
+    private RandomAccessFile raf;
+    private BufferPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("filewritebehindtest", ".bin");
+        raf = new RandomAccessFile(file, "rw");
+        pool = new BufferPool(4, 8);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        file.delete();
+    }
+
+    @Test
+    public void buffersShouldBeWrittenInOrderFromStartPosition() throws IOException {
+        final FileWriteBehind writer = new FileWriteBehind(raf.getChannel(), 2, pool, 2, "Test");
+        writer.start();
+
+        for (int i = 0; i < 10; i++) {
+            final ByteBuffer buffer = writer.takeBuffer();
+            buffer.put((byte) (i * 2)).put((byte) (i * 2 + 1));
+            writer.write(buffer);
+        }
+
+        writer.finish();
+        writer.close();
+
+        assertEquals(20, writer.getWritten());
+        assertEquals(22, raf.length());
+
+        final byte[] bytes = new byte[22];
+        raf.seek(0);
+        raf.readFully(bytes);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, bytes[i + 2]);
+        }
+    }
+
+    @Test
+    public void closeShouldReturnBuffersToPool() throws IOException {
+        final FileWriteBehind writer = new FileWriteBehind(raf.getChannel(), 0, pool, 3, "Test");
+        writer.start();
+
+        final ByteBuffer buffer = writer.takeBuffer();
+        buffer.put((byte) 1);
+        writer.write(buffer);
+        writer.finish();
+        writer.close();
+
+        assertEquals(1, pool.getIdleBuffers());
+    }
+
+    @Test
+    public void writeErrorShouldBeThrownFromFinish() throws IOException {
+        final FileWriteBehind writer = new FileWriteBehind(raf.getChannel(), 0, pool, 2, "Test");
+        writer.start();
+        raf.close();
+
+        final ByteBuffer buffer = writer.takeBuffer();
+        buffer.put((byte) 1);
+        writer.write(buffer);
+
+        try {
+            writer.finish();
+            fail("Should have failed");
+        }
+
+        catch (final IOException e) {
+            assertTrue(e.getMessage().startsWith("Could not write to file"));
+        }
+
+        finally {
+            writer.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateMaxBuffers() {
+        new FileWriteBehind(raf.getChannel(), 0, pool, 0, "Test");
+    }
+}
@@ -0,0 +1,309 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link FloodProtection}.
+ *
+ * @author Christian Ihle
+ */
+public class FloodProtectionTest {
+
+    private static final int ME = 100;
+
+    private User me;
+    private List<String> messages;
+    private FloodProtection floodProtection;
+
+    @Before
+    public void setUp() {
+        me = new User("Me", ME);
+        me.setIpAddress("10.0.0.1");
+        messages = new ArrayList<String>();
+        floodProtection = new FloodProtection(me, 1, 1, 1);
+        floodProtection.registerReceiverListener(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                messages.add(message);
+            }
+        });
+    }
+
+    @Test
+    public void messageArrivedShouldDeliverBurstAndDropTheRest() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertEquals(10 - FloodProtection.BURST_SECONDS, floodProtection.getDroppedMessages());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitEachClassSeparately() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("200!EXPOSING#Peer:", "10.0.0.2");
+
+        assertEquals("200!EXPOSING#Peer:", messages.get(messages.size() - 1));
+    }
+
+    @Test
+    public void messageArrivedShouldLimitEachSenderSeparately() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("300!MSG#Other:[0]hi", "10.0.0.3");
+        floodProtection.messageArrived("200!MSG#Peer:[0]hi", "10.0.0.3");
+
+        assertEquals(Arrays.asList("300!MSG#Other:[0]hi", "200!MSG#Peer:[0]hi"),
+                messages.subList(FloodProtection.BURST_SECONDS, messages.size()));
+    }
+
+    @Test
+    public void messageArrivedShouldNotLimitMessagesFromMe() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived(ME + "!MSG#Me:[" + i + "]hello", "10.0.0.1");
+        }
+
+        assertEquals(10, messages.size());
+        assertEquals(0, floodProtection.getDroppedMessages());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitMessagesWithMyCodeFromOtherAddresses() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived(ME + "!MSG#Me:[" + i + "]hello", "10.0.0.2");
+        }
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertArrayEquals(new String[] {ME + "@10.0.0.2: chat=6, presence=0, control=0"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitMalformedDatagramsByIpAddress() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("garbage" + i, "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("garbage", "10.0.0.3");
+
+        assertEquals(FloodProtection.BURST_SECONDS + 1, messages.size());
+        assertEquals("garbage", messages.get(messages.size() - 1));
+        assertArrayEquals(new String[] {"0@10.0.0.2: chat=0, presence=0, control=6"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitMalformedPackedDatagramsByIpAddress() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("~x" + i, "10.0.0.2");
+        }
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertArrayEquals(new String[] {"0@10.0.0.2: chat=0, presence=0, control=6"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageArrivedShouldNotLimitWhenRateIsZero() {
+        floodProtection = new FloodProtection(me, 0, 0, 0);
+        floodProtection.registerReceiverListener(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                messages.add(message);
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        assertEquals(10, messages.size());
+    }
+
+    @Test
+    public void messageArrivedShouldCollapseExcessPresenceMessages() {
+        for (int i = 0; i < FloodProtection.BURST_SECONDS; i++) {
+            floodProtection.messageArrived("200!IDLE#Peer:", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("200!WRITING#Peer:", "10.0.0.2");
+        floodProtection.messageArrived("200!STOPPEDWRITING#Peer:", "10.0.0.2");
+        floodProtection.messageArrived("200!WRITING#Peer:", "10.0.0.2");
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertEquals(2, floodProtection.getDroppedMessages());
+    }
+
+    @Test
+    public void collapsedPresenceMessageShouldBeDeliveredByTimerWhenSenderGoesQuiet() throws InterruptedException {
+        final List<String> delivered = new CopyOnWriteArrayList<String>();
+        floodProtection = new FloodProtection(me, 1, 10, 1);
+        floodProtection.registerReceiverListener(new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                delivered.add(message);
+            }
+        });
+
+        for (int i = 0; i < 10 * FloodProtection.BURST_SECONDS; i++) {
+            floodProtection.messageArrived("200!IDLE#Peer:", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("200!AWAY#Peer:[1]gone", "10.0.0.2");
+        assertFalse(delivered.contains("200!AWAY#Peer:[1]gone"));
+
+        for (int i = 0; i < 50 && !delivered.contains("200!AWAY#Peer:[1]gone"); i++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals("200!AWAY#Peer:[1]gone", delivered.get(delivered.size() - 1));
+    }
+
+    @Test
+    public void messageArrivedShouldLimitReliableFramesByTheMessageInside() {
+        for (int i = 0; i < FloodProtection.BURST_SECONDS; i++) {
+            floodProtection.messageArrived("&D200." + (i + 1) + ":200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("&D200.10:200!MSG#Peer:[9]hello", "10.0.0.2");
+        floodProtection.messageArrived("&D200.11:200!IDLE#Peer:", "10.0.0.2");
+
+        assertEquals(FloodProtection.BURST_SECONDS + 1, messages.size());
+        assertEquals("&D200.11:200!IDLE#Peer:", messages.get(messages.size() - 1));
+    }
+
+    @Test
+    public void messageArrivedShouldLimitFragmentsAsChat() {
+        for (int i = 0; i < FloodProtection.BURST_SECONDS + 1; i++) {
+            floodProtection.messageArrived("^200.1." + i + ".9:part", "10.0.0.2");
+        }
+
+        floodProtection.messageArrived("200!IDLE#Peer:", "10.0.0.2");
+
+        assertEquals(FloodProtection.BURST_SECONDS + 1, messages.size());
+        assertArrayEquals(new String[] {"200@10.0.0.2: chat=1, presence=0, control=0"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitEachMessageInPackedDatagrams() {
+        for (int i = 0; i < 5; i++) {
+            final List<String> packed = new ArrayList<String>();
+
+            for (int j = 0; j < 10; j++) {
+                packed.add("200!MSG#Peer:[" + (i * 10 + j) + "]hello");
+            }
+
+            floodProtection.messageArrived(MessagePacker.pack(packed), "10.0.0.2");
+        }
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertEquals("200!MSG#Peer:[0]hello", messages.get(0));
+        assertEquals(50 - FloodProtection.BURST_SECONDS, floodProtection.getDroppedMessages());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitPackedMessagesByTheirOwnSenderAndClass() {
+        for (int i = 0; i < FloodProtection.BURST_SECONDS; i++) {
+            floodProtection.messageArrived("300!MSG#Other:[" + i + "]hi", "10.0.0.2");
+            floodProtection.messageArrived("300!EXPOSING#Other:", "10.0.0.2");
+        }
+
+        messages.clear();
+        floodProtection.messageArrived(MessagePacker.pack(Arrays.asList(
+                "200!MSG#Peer:[0]hello", "300!MSG#Other:[9]hi", "300!EXPOSING#Other:", "200!EXPOSING#Peer:")),
+                "10.0.0.2");
+
+        assertEquals(Arrays.asList("200!MSG#Peer:[0]hello", "200!EXPOSING#Peer:"), messages);
+        assertArrayEquals(new String[] {"300@10.0.0.2: chat=1, presence=0, control=1"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageArrivedShouldLimitNacksAsControl() {
+        for (int i = 0; i < 10; i++) {
+            floodProtection.messageArrived("&N200.100." + i + "." + i, "10.0.0.2");
+        }
+
+        assertEquals(FloodProtection.BURST_SECONDS, messages.size());
+        assertArrayEquals(new String[] {"200@10.0.0.2: chat=0, presence=0, control=6"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void headerShouldBeReadFromBinaryMessages() {
+        final FloodProtection.Header header =
+                FloodProtection.Header.read(new ProtocolMessage(MessageType.WRITING, -200, "Peer").toBinary());
+
+        assertEquals(-200, header.getCode());
+        assertEquals(MessageType.WRITING, header.getType());
+        assertEquals(FloodProtection.MessageClass.PRESENCE, header.getMessageClass());
+    }
+
+    @Test
+    public void headerShouldBeMissingForUnknownSenders() {
+        assertNull(FloodProtection.Header.read(""));
+        assertNull(FloodProtection.Header.read("&D"));
+        assertNull(FloodProtection.Header.read("^x.1.1.1:part"));
+        assertNull(FloodProtection.Header.read("~5:hello"));
+        assertNull(FloodProtection.Header.read("200!UNKNOWN#Peer:"));
+    }
+
+    @Test
+    public void showDroppedMessagesPerSenderShouldOnlyShowSendersWithDrops() {
+        floodProtection.messageArrived("300!MSG#Other:[0]hi", "10.0.0.3");
+
+        for (int i = 0; i < FloodProtection.BURST_SECONDS + 2; i++) {
+            floodProtection.messageArrived("200!MSG#Peer:[" + i + "]hello", "10.0.0.2");
+        }
+
+        assertArrayEquals(new String[] {"200@10.0.0.2: chat=2, presence=0, control=0"},
+                floodProtection.showDroppedMessagesPerSender());
+    }
+
+    @Test
+    public void messageClassShouldBeFoundFromType() {
+        assertEquals(FloodProtection.MessageClass.CHAT, FloodProtection.MessageClass.fromType(MessageType.MSG));
+        assertEquals(FloodProtection.MessageClass.PRESENCE, FloodProtection.MessageClass.fromType(MessageType.IDLE));
+        assertEquals(FloodProtection.MessageClass.CONTROL, FloodProtection.MessageClass.fromType(MessageType.LOGON));
+    }
+}
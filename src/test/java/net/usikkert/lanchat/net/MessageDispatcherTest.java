@@ -0,0 +1,242 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageDispatcher}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageDispatcherTest {
+
+    private static final String BLOCKER = "1!MSG#Peer:[0]blocker";
+
+    private BlockingListener listener;
+    private MessageDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        listener = new BlockingListener();
+        dispatcher = new MessageDispatcher("TestDispatcher", 3);
+        dispatcher.registerReceiverListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        listener.release();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateCapacity() {
+        new MessageDispatcher("TestDispatcher", 0);
+    }
+
+    @Test
+    public void messageArrivedShouldGiveMessagesToListenerInOrder() throws InterruptedException {
+        listener.release();
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+
+        assertEquals(Arrays.asList("1!MSG#Peer:[0]one", "1!MSG#Peer:[0]two"), listener.awaitMessages(2));
+    }
+
+    @Test
+    public void messageArrivedShouldNotWaitForListener() throws InterruptedException {
+        blockDispatchThread();
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+
+        assertEquals(2, dispatcher.getQueueSize());
+        assertEquals(2, dispatcher.getMaxQueueSize());
+    }
+
+    @Test
+    public void fullBufferShouldDropOldestLowPriorityMessageFirst() throws InterruptedException {
+        blockDispatchThread();
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!IDLE#Peer:", "10.0.0.2");
+        dispatcher.messageArrived("1!WRITING#Peer:", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+
+        listener.release();
+
+        assertEquals(Arrays.asList(BLOCKER, "1!MSG#Peer:[0]one", "1!WRITING#Peer:", "1!MSG#Peer:[0]two"),
+                listener.awaitMessages(4));
+        assertEquals(1, dispatcher.getDroppedLowPriorityMessages());
+        assertEquals(0, dispatcher.getDroppedMessages());
+    }
+
+    @Test
+    public void fullBufferShouldKeepOrderWhenDroppingLowPriorityMessagesAgain() throws InterruptedException {
+        blockDispatchThread();
+
+        dispatcher.messageArrived("1!IDLE#Peer:", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!WRITING#Peer:", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+        dispatcher.messageArrived("1!IDLE#Peer:", "10.0.0.3");
+
+        listener.release();
+
+        assertEquals(Arrays.asList(BLOCKER, "1!MSG#Peer:[0]one", "1!MSG#Peer:[0]two", "1!IDLE#Peer:"),
+                listener.awaitMessages(4));
+        assertEquals(2, dispatcher.getDroppedLowPriorityMessages());
+        assertEquals(0, dispatcher.getDroppedMessages());
+    }
+
+    @Test
+    public void fullBufferShouldDropNewLowPriorityMessageWhenNoneQueued() throws InterruptedException {
+        blockDispatchThread();
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]three", "10.0.0.2");
+        dispatcher.messageArrived("1!IDLE#Peer:", "10.0.0.2");
+
+        listener.release();
+
+        assertEquals(Arrays.asList(BLOCKER, "1!MSG#Peer:[0]one", "1!MSG#Peer:[0]two", "1!MSG#Peer:[0]three"),
+                listener.awaitMessages(4));
+        assertEquals(1, dispatcher.getDroppedLowPriorityMessages());
+    }
+
+    @Test
+    public void fullBufferShouldDropOldestMessageWhenNoLowPriorityMessages() throws InterruptedException {
+        blockDispatchThread();
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]one", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]two", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]three", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]four", "10.0.0.2");
+
+        listener.release();
+
+        assertEquals(Arrays.asList(BLOCKER, "1!MSG#Peer:[0]two", "1!MSG#Peer:[0]three", "1!MSG#Peer:[0]four"),
+                listener.awaitMessages(4));
+        assertEquals(1, dispatcher.getDroppedMessages());
+    }
+
+    @Test
+    public void dispatchThreadShouldSurviveFailingListener() throws InterruptedException {
+        listener.release();
+        listener.failOn("1!MSG#Peer:[0]fail");
+
+        dispatcher.messageArrived("1!MSG#Peer:[0]fail", "10.0.0.2");
+        dispatcher.messageArrived("1!MSG#Peer:[0]after", "10.0.0.2");
+
+        assertEquals(Arrays.asList("1!MSG#Peer:[0]fail", "1!MSG#Peer:[0]after"), listener.awaitMessages(2));
+    }
+
+    @Test
+    public void isLowPriorityShouldOnlyIncludeIdleAndWriting() {
+        assertTrue(MessageDispatcher.isLowPriority("1!IDLE#Peer:"));
+        assertTrue(MessageDispatcher.isLowPriority("1!WRITING#Peer:"));
+        assertTrue(MessageDispatcher.isLowPriority(new ProtocolMessage(MessageType.IDLE, 1, "Peer").toBinary()));
+
+        assertFalse(MessageDispatcher.isLowPriority("1!STOPPEDWRITING#Peer:"));
+        assertFalse(MessageDispatcher.isLowPriority("1!MSG#Peer:[0]IDLE"));
+        assertFalse(MessageDispatcher.isLowPriority(new ProtocolMessage(MessageType.MSG, 1, "Peer").toBinary()));
+        assertFalse(MessageDispatcher.isLowPriority(MessagePacker.pack(Arrays.asList("1!IDLE#Peer:", "1!IDLE#Peer:"))));
+        assertFalse(MessageDispatcher.isLowPriority(""));
+        assertFalse(MessageDispatcher.isLowPriority("garbage"));
+    }
+
+    /**
+     * Sends a message that blocks the dispatch thread, so the next messages stay in the buffer.
+     */
+    private void blockDispatchThread() throws InterruptedException {
+        dispatcher.messageArrived(BLOCKER, "10.0.0.2");
+        assertTrue(listener.awaitBlocked());
+    }
+
+    /**
+     * Collects the messages, and blocks the dispatch thread until released.
+     */
+    private static class BlockingListener implements ReceiverListener {
+
+        private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile String failingMessage;
+
+        @Override
+        public void messageArrived(final String message, final String ipAddress) {
+            messages.add(message);
+            blocked.countDown();
+
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            }
+
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (message.equals(failingMessage)) {
+                throw new IllegalStateException("Failing on purpose");
+            }
+        }
+
+        boolean awaitBlocked() throws InterruptedException {
+            return blocked.await(5, TimeUnit.SECONDS);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        void failOn(final String message) {
+            failingMessage = message;
+        }
+
+        List<String> awaitMessages(final int count) throws InterruptedException {
+            final long end = System.currentTimeMillis() + 5000;
+
+            while (messages.size() < count && System.currentTimeMillis() < end) {
+                Thread.sleep(5);
+            }
+
+            synchronized (messages) {
+                return new ArrayList<String>(messages);
+            }
+        }
+    }
+}
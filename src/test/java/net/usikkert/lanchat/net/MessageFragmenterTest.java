@@ -0,0 +1,201 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.ReceiverListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageFragmenter} and {@link MessageReassembler}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageFragmenterTest {
+
+    private MessageFragmenter fragmenter;
+    private ReceiverListener listener;
+    private MessageReassembler reassembler;
+
+    @Before
+    public void setUp() {
+        fragmenter = new MessageFragmenter();
+        listener = mock(ReceiverListener.class);
+        reassembler = new MessageReassembler(listener);
+    }
+
+    @Test
+    public void isTooLargeShouldCheckEncodedSize() {
+        assertFalse(fragmenter.isTooLarge(createMessage('a', 400)));
+        assertTrue(fragmenter.isTooLarge(createMessage('a', 600)));
+        assertTrue(fragmenter.isTooLarge(createMessage('æ', 300)));
+    }
+
+    @Test
+    public void fragmentShouldFitEachFragmentInOnePacket() throws Exception {
+        final String message = createMessage('æ', 2000);
+        final List<String> fragments = fragmenter.fragment(message, 12345678);
+
+        assertTrue(fragments.size() > 1);
+
+        for (final String fragment : fragments) {
+            assertTrue(MessageFragmenter.isFragment(fragment));
+            assertTrue(BinaryProtocol.toBytes(fragment).length <= Constants.NETWORK_PACKET_SIZE);
+        }
+    }
+
+    @Test
+    public void fragmentShouldNotSplitSurrogatePairs() {
+        final String message = createMessage('a', 471) + "𝄞" + createMessage('a', 100);
+        final List<String> fragments = fragmenter.fragment(message, 1);
+
+        for (final String fragment : fragments) {
+            assertFalse(Character.isHighSurrogate(fragment.charAt(fragment.length() - 1)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fragmentShouldFailWhenTooManyFragments() {
+        fragmenter.fragment(createMessage('a', 500 * (MessageFragmenter.MAX_FRAGMENTS + 1)), 1);
+    }
+
+    @Test
+    public void reassemblerShouldGiveMessagesThatAreNotFragmentsDirectly() {
+        reassembler.messageArrived("123!IDLE#Nick:", "10.0.0.1");
+
+        verify(listener).messageArrived("123!IDLE#Nick:", "10.0.0.1");
+    }
+
+    @Test
+    public void reassemblerShouldPutFragmentsTogether() throws Exception {
+        final String message = "123!MSG#Nick:[1]" + createMessage('x', 1500) + " end";
+
+        for (final String fragment : fragmenter.fragment(message, 123)) {
+            reassembler.messageArrived(receive(fragment), "10.0.0.1");
+        }
+
+        verify(listener).messageArrived(message, "10.0.0.1");
+        assertEquals(0, reassembler.getIncompleteMessages());
+    }
+
+    @Test
+    public void reassemblerShouldPutFragmentsTogetherInAnyOrder() throws Exception {
+        final String message = "123!MSG#Nick:[1]" + createMessage('ø', 1000);
+        final List<String> fragments = fragmenter.fragment(message, 123);
+        Collections.reverse(fragments);
+
+        for (final String fragment : fragments) {
+            reassembler.messageArrived(receive(fragment), "10.0.0.1");
+        }
+
+        verify(listener).messageArrived(message, "10.0.0.1");
+    }
+
+    @Test
+    public void reassemblerShouldPutBinaryFragmentsTogether() throws Exception {
+        final String message = new ProtocolMessage(MessageType.MSG, 123, "Nick")
+                .addNumber('[', ']', -1)
+                .setText(createMessage('å', 800) + " ")
+                .toBinary();
+
+        for (final String fragment : fragmenter.fragment(message, 123)) {
+            reassembler.messageArrived(receive(fragment), "10.0.0.1");
+        }
+
+        verify(listener).messageArrived(message, "10.0.0.1");
+    }
+
+    @Test
+    public void reassemblerShouldNotTrimFramesWithBinaryMessages() throws Exception {
+        final String binary = new ProtocolMessage(MessageType.MSG, 123, "Nick")
+                .addNumber('[', ']', -1)
+                .setText(createMessage('å', 800) + " ")
+                .toBinary();
+        final String message = "&D123.1:" + binary;
+
+        for (final String fragment : fragmenter.fragment(message, 123)) {
+            reassembler.messageArrived(receive(fragment), "10.0.0.1");
+        }
+
+        verify(listener).messageArrived(message, "10.0.0.1");
+    }
+
+    @Test
+    public void reassemblerShouldWaitForMissingFragments() throws Exception {
+        final List<String> fragments = fragmenter.fragment(createMessage('x', 1500), 123);
+
+        for (int i = 1; i < fragments.size(); i++) {
+            reassembler.messageArrived(receive(fragments.get(i)), "10.0.0.1");
+        }
+
+        verifyZeroInteractions(listener);
+        assertEquals(1, reassembler.getIncompleteMessages());
+    }
+
+    @Test
+    public void reassemblerShouldDropOldestMessageWhenFull() throws Exception {
+        for (int i = 0; i < MessageReassembler.MAX_INCOMPLETE_MESSAGES + 5; i++) {
+            final List<String> fragments = fragmenter.fragment(createMessage('x', 1000), 123);
+            reassembler.messageArrived(receive(fragments.get(0)), "10.0.0.1");
+        }
+
+        assertEquals(MessageReassembler.MAX_INCOMPLETE_MESSAGES, reassembler.getIncompleteMessages());
+        assertEquals(5, reassembler.getDroppedMessages());
+    }
+
+    @Test
+    public void reassemblerShouldIgnoreInvalidFragments() {
+        reassembler.messageArrived("^123.1.5.2:invalid index", "10.0.0.1");
+        reassembler.messageArrived("^123.1.x.2:invalid number", "10.0.0.1");
+        reassembler.messageArrived("^garbage", "10.0.0.1");
+
+        verifyZeroInteractions(listener);
+        assertEquals(0, reassembler.getIncompleteMessages());
+    }
+
+    /**
+     * Sends the fragment through the same conversion as the network.
+     */
+    private String receive(final String fragment) throws Exception {
+        final byte[] bytes = BinaryProtocol.toBytes(fragment);
+        return BinaryProtocol.fromBytes(bytes, bytes.length);
+    }
+
+    private String createMessage(final char character, final int length) {
+        final StringBuilder message = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            message.append(character);
+        }
+
+        return message.toString();
+    }
+}
@@ -0,0 +1,184 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.usikkert.lanchat.Constants;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessagePacker}.
+ *
+ * @author Christian Ihle
+ */
+public class MessagePackerTest {
+
+    private MessageSender messageSender;
+    private PeerFeatures peerFeatures;
+    private MessagePacker messagePacker;
+
+    @Before
+    public void setUp() {
+        messageSender = mock(MessageSender.class);
+        when(messageSender.isConnected()).thenReturn(true);
+        when(messageSender.send(anyString())).thenReturn(true);
+
+        peerFeatures = mock(PeerFeatures.class);
+        when(peerFeatures.isSupportedByAllPeers(ProtocolFeature.PACKING)).thenReturn(true);
+
+        messagePacker = new MessagePacker(messageSender, 10000);
+        messagePacker.setPeerFeatures(peerFeatures);
+    }
+
+    @Test
+    public void packShouldPrefixEachMessageWithLength() {
+        final String packed = MessagePacker.pack(Arrays.asList("123!IDLE#Nick:", "123!WRITING#Nick:"));
+
+        assertEquals("~14:123!IDLE#Nick:17:123!WRITING#Nick:", packed);
+    }
+
+    @Test
+    public void unpackShouldReturnOriginalMessages() {
+        final List<String> messages = Arrays.asList("123!MSG#Nick:[1]a:b~c 12:", "123!IDLE#Nick:", "123!MSG#Nick:[1]æøå");
+
+        assertEquals(messages, MessagePacker.unpack(MessagePacker.pack(messages)));
+    }
+
+    @Test
+    public void unpackShouldStopAtTruncatedMessage() {
+        final List<String> messages = MessagePacker.unpack("~14:123!IDLE#Nick:17:123!WRIT");
+
+        assertEquals(Arrays.asList("123!IDLE#Nick:"), messages);
+    }
+
+    @Test
+    public void unpackShouldStopAtInvalidLength() {
+        assertTrue(MessagePacker.unpack("~xx:123!IDLE#Nick:").isEmpty());
+    }
+
+    @Test
+    public void isPackedShouldOnlyBeTrueForPackedDatagrams() {
+        assertTrue(MessagePacker.isPacked("~14:123!IDLE#Nick:"));
+        assertFalse(MessagePacker.isPacked("123!IDLE#Nick:"));
+        assertFalse(MessagePacker.isPacked(""));
+    }
+
+    @Test
+    public void sendShouldQueueUntilFlush() {
+        assertTrue(messagePacker.send("123!IDLE#Nick:"));
+        assertTrue(messagePacker.send("123!WRITING#Nick:"));
+        verify(messageSender, never()).send(anyString());
+
+        messagePacker.flush();
+
+        verify(messageSender).send("~14:123!IDLE#Nick:17:123!WRITING#Nick:");
+    }
+
+    @Test
+    public void flushShouldSendSingleMessageUnpacked() {
+        messagePacker.send("123!IDLE#Nick:");
+        messagePacker.flush();
+
+        verify(messageSender).send("123!IDLE#Nick:");
+    }
+
+    @Test
+    public void sendShouldFlushAfterLingerTime() {
+        messagePacker.setLingerTime(10);
+        messagePacker.send("123!IDLE#Nick:");
+
+        verify(messageSender, timeout(2000)).send("123!IDLE#Nick:");
+    }
+
+    @Test
+    public void sendShouldNotPackWhenPeersDoNotSupportIt() {
+        when(peerFeatures.isSupportedByAllPeers(ProtocolFeature.PACKING)).thenReturn(false);
+
+        messagePacker.send("123!IDLE#Nick:");
+
+        verify(messageSender).send("123!IDLE#Nick:");
+    }
+
+    @Test
+    public void sendShouldFlushQueueBeforeSendingDirectly() {
+        messagePacker.send("123!IDLE#Nick:");
+        when(peerFeatures.isSupportedByAllPeers(ProtocolFeature.PACKING)).thenReturn(false);
+        messagePacker.send("123!WRITING#Nick:");
+
+        verify(messageSender).send("123!IDLE#Nick:");
+        verify(messageSender).send("123!WRITING#Nick:");
+    }
+
+    @Test
+    public void sendShouldNotPackWhenLingerTimeIsZero() {
+        messagePacker.setLingerTime(0);
+        messagePacker.send("123!IDLE#Nick:");
+
+        verify(messageSender).send("123!IDLE#Nick:");
+    }
+
+    @Test
+    public void sendShouldFlushWhenDatagramIsFull() {
+        final StringBuilder payload = new StringBuilder();
+
+        for (int i = 0; i < 300; i++) {
+            payload.append('x');
+        }
+
+        final String message = "123!MSG#Nick:[1]" + payload;
+
+        messagePacker.send(message);
+        verify(messageSender, never()).send(anyString());
+
+        messagePacker.send(message);
+        verify(messageSender).send(message);
+    }
+
+    @Test
+    public void sendShouldSendLargeMessagesDirectly() {
+        final StringBuilder payload = new StringBuilder();
+
+        for (int i = 0; i < Constants.NETWORK_PACKET_SIZE; i++) {
+            payload.append('x');
+        }
+
+        final String message = "123!MSG#Nick:[1]" + payload;
+        messagePacker.send(message);
+
+        verify(messageSender).send(message);
+    }
+
+    @Test
+    public void sendShouldReturnFalseWhenNotConnected() {
+        when(messageSender.isConnected()).thenReturn(false);
+
+        assertFalse(messagePacker.send("123!IDLE#Nick:"));
+    }
+}
@@ -0,0 +1,189 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.misc.User;
+
+/**
+ * Measures the cost per message of the {@link MessageParser} and the {@link PrivateMessageParser},
+ * as the time and the number of bytes allocated by the parsing thread.
+ *
+ * <p>Each scenario parses the same message over and over, with a responder that does nothing,
+ * so only the parsing is measured. The scenarios cover chat messages in both protocols,
+ * the frequent small messages, and the messages that should be filtered away.</p>
+ *
+ * <p>Not a unit test. Run it manually, with the same JVM options as the application.</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class MessageParserBenchmark {
+
+    private static final int WARMUP_MESSAGES = 2000000;
+    private static final int MESSAGES = 5000000;
+    private static final int PEER_CODE = 12345678;
+    private static final int OTHER_CODE = 23456789;
+
+    private MessageParserBenchmark() {
+
+    }
+
+    /**
+     * Runs the benchmark for all the scenarios.
+     *
+     * @param args Not used.
+     */
+    public static void main(final String[] args) {
+        final Settings settings = new Settings();
+        final int myCode = settings.getMe().getCode();
+
+        final MessageParser parser = new MessageParser(new NullMessageResponder(), settings);
+        parser.messageArrived(myCode + "!LOGON#Me:", "127.0.0.1");
+
+        final PrivateMessageParser privateParser =
+                new PrivateMessageParser(new NullMessageResponder(), settings);
+
+        final String binaryChat = new ProtocolMessage(MessageType.MSG, PEER_CODE, "Peer")
+                .addNumber('[', ']', -15987646)
+                .setText("Hello, this is a typical chat message")
+                .toBinary();
+
+        for (int i = 0; i < 2; i++) {
+            run("Text chat", parser, PEER_CODE + "!MSG#Peer:[-15987646]Hello, this is a typical chat message");
+            run("Binary chat", parser, binaryChat);
+            run("Text idle", parser, PEER_CODE + "!IDLE#Peer:");
+            run("Text writing", parser, PEER_CODE + "!WRITING#Peer:");
+            run("Own echo", parser, myCode + "!MSG#Me:[-15987646]Hello, this is a typical chat message");
+            run("Sendfile to other", parser,
+                    PEER_CODE + "!SENDFILE#Peer:(" + OTHER_CODE + ")[123456789]{987654321}some file name.zip");
+            run("Text privmsg", privateParser, PEER_CODE + "!PRIVMSG#Peer:(" + myCode + ")[-15987646]Hello there");
+            run("Unknown type", parser, PEER_CODE + "!FUTURETYPE#Peer:something");
+            System.out.println();
+        }
+    }
+
+    private static void run(final String name, final ReceiverListener parser,
+                            final String message) {
+        final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_MESSAGES; i++) {
+            parser.messageArrived(message, "10.0.0.2");
+        }
+
+        final long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        final long startTime = System.nanoTime();
+
+        for (int i = 0; i < MESSAGES; i++) {
+            parser.messageArrived(message, "10.0.0.2");
+        }
+
+        final long time = System.nanoTime() - startTime;
+        final long bytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.printf("%-20s %8.1f ns/message %8d bytes/message%n",
+                name, (double) time / MESSAGES, bytes / MESSAGES);
+    }
+
+    /**
+     * A responder that does nothing, so only the parsing is measured.
+     */
+    private static class NullMessageResponder implements MessageResponder, PrivateMessageResponder {
+
+        @Override
+        public void messageArrived(final int userCode, final String msg, final int color) { }
+
+        @Override
+        public void topicChanged(final int userCode, final String newTopic, final String nick, final long time) { }
+
+        @Override
+        public void topicRequested() { }
+
+        @Override
+        public void awayChanged(final int userCode, final boolean away, final String awayMsg) { }
+
+        @Override
+        public void nickChanged(final int userCode, final String newNick) { }
+
+        @Override
+        public void nickCrash() { }
+
+        @Override
+        public void meLogOn(final String ipAddress) { }
+
+        @Override
+        public void userLogOn(final User newUser) { }
+
+        @Override
+        public void userLogOff(final int userCode) { }
+
+        @Override
+        public void userExposing(final User user) { }
+
+        @Override
+        public void exposeRequested(final int userCode) { }
+
+        @Override
+        public void writingChanged(final int userCode, final boolean writing) { }
+
+        @Override
+        public void meIdle(final String ipAddress) { }
+
+        @Override
+        public void userIdle(final int userCode, final String ipAddress) { }
+
+        @Override
+        public void fileSend(final int userCode, final long byteSize, final String fileName, final String user,
+                             final int fileHash) { }
+
+        @Override
+        public void fileSendAborted(final int userCode, final String fileName, final int fileHash) { }
+
+        @Override
+        public void fileSendAccepted(final int userCode, final String fileName, final int fileHash, final int port) { }
+
+        @Override
+        public void fileBatchSend(final int userCode, final long byteSize, final int fileCount,
+                                  final String batchName, final String user, final int fileHash) { }
+
+        @Override
+        public void fileSendResumed(final int userCode, final String fileName, final int fileHash, final int port,
+                                    final long offset, final long checksum) { }
+
+        @Override
+        public void clientInfo(final int userCode, final String client, final long timeSinceLogon,
+                               final String operatingSystem, final int privateChatPort,
+                               final Set<ProtocolFeature> features) { }
+
+        @Override
+        public void clientFeatures(final int userCode, final int privateChatPort, final Set<ProtocolFeature> features) { }
+
+        @Override
+        public void clientRequested() { }
+    }
+}
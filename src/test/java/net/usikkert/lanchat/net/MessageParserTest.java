@@ -0,0 +1,204 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.Before;
+import org.mockito.ArgumentMatcher;
+import org.junit.Test;
+
+/**
+ * Test of {@link MessageParser}.
+ *
+ * @author Christian Ihle
+ */
+public class MessageParserTest {
+
+    private MessageResponder responder;
+    private MessageParser parser;
+
+    @Before
+    public void setUp() {
+        final Settings settings = mock(Settings.class);
+        final User me = new User("Me", 100);
+        when(settings.getMe()).thenReturn(me);
+
+        responder = mock(MessageResponder.class);
+        parser = new MessageParser(responder, settings);
+        parser.messageArrived("100!LOGON#Me:", "10.0.0.1");
+    }
+
+    @Test
+    public void messageArrivedShouldParseEveryMessageInPackedDatagram() {
+        final String packed = MessagePacker.pack(Arrays.asList("200!IDLE#Peer:", "200!WRITING#Peer:", "200!MSG#Peer:[5]Hi"));
+
+        new MessageUnpacker(parser).messageArrived(packed, "10.0.0.2");
+
+        verify(responder).userIdle(200, "10.0.0.2");
+        verify(responder).writingChanged(200, true);
+        verify(responder).messageArrived(200, "Hi", 5);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientFeatures() {
+        parser.messageArrived("200!CLIENT#Peer:(LanChat)[1000]{Linux}<40656>|pack,unknown|", "10.0.0.2");
+
+        final Set<ProtocolFeature> expected = EnumSet.of(ProtocolFeature.PACKING);
+        verify(responder).clientInfo(200, "LanChat", 1000, "Linux", 40656, expected);
+    }
+
+    @Test
+    public void messageArrivedShouldParseClientWithoutFeatures() {
+        parser.messageArrived("200!CLIENT#Peer:(LanChat)[1000]{Linux}<40656>", "10.0.0.2");
+
+        final Set<ProtocolFeature> expected = EnumSet.noneOf(ProtocolFeature.class);
+        verify(responder).clientInfo(200, "LanChat", 1000, "Linux", 40656, expected);
+    }
+
+    @Test
+    public void messageArrivedShouldParseBinaryMessages() {
+        final String msg = new ProtocolMessage(MessageType.MSG, 200, "Peer").addNumber('[', ']', -5).setText("Hi").toBinary();
+        final String logon = new ProtocolMessage(MessageType.LOGON, 300, "Other").toBinary();
+
+        parser.messageArrived(msg, "10.0.0.2");
+        parser.messageArrived(logon, "10.0.0.3");
+
+        verify(responder).messageArrived(200, "Hi", -5);
+        verify(responder).userLogOn(argThat(new ArgumentMatcher<User>() {
+            @Override
+            public boolean matches(final Object argument) {
+                final User user = (User) argument;
+                return user.getCode() == 300 && user.getNick().equals("Other") && user.getIpAddress().equals("10.0.0.3");
+            }
+        }));
+    }
+
+    @Test
+    public void messageArrivedShouldParseBinaryMessagesInPackedDatagram() {
+        final String idle = new ProtocolMessage(MessageType.IDLE, 200, "Peer").toBinary();
+        final String topic = new ProtocolMessage(MessageType.TOPIC, 200, "Peer")
+                .addText('(', ')', "Peer").addNumber('[', ']', 1234L).setText("Topic").toBinary();
+
+        new MessageUnpacker(parser).messageArrived(MessagePacker.pack(Arrays.asList(idle, topic)), "10.0.0.2");
+
+        verify(responder).userIdle(200, "10.0.0.2");
+        verify(responder).topicChanged(200, "Topic", "Peer", 1234L);
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreUnknownTypes() {
+        parser.messageArrived("200!FUTURE#Peer:something", "10.0.0.2");
+
+        verify(responder).meLogOn("10.0.0.1");
+        verifyNoMoreInteractions(responder);
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreOwnMessagesExceptLogonAndIdle() {
+        parser.messageArrived("100!MSG#Me:[5]Hi", "10.0.0.1");
+        parser.messageArrived("100!IDLE#Me:", "10.0.0.1");
+
+        verify(responder).meLogOn("10.0.0.1");
+        verify(responder).meIdle("10.0.0.1");
+        verifyNoMoreInteractions(responder);
+    }
+
+    @Test
+    public void messageArrivedShouldParseFileMessagesForMe() {
+        parser.messageArrived("200!SENDFILE#Peer:(100)[1024]{42}file.txt", "10.0.0.2");
+        parser.messageArrived("200!SENDFILEACCEPT#Peer:(100)[5000]{42}file.txt", "10.0.0.2");
+        parser.messageArrived("200!SENDFILEABORT#Peer:(100){42}file.txt", "10.0.0.2");
+
+        verify(responder).fileSend(200, 1024, "file.txt", "Peer", 42);
+        verify(responder).fileSendAccepted(200, "file.txt", 42, 5000);
+        verify(responder).fileSendAborted(200, "file.txt", 42);
+    }
+
+    @Test
+    public void messageArrivedShouldParseFileResumeForMe() {
+        parser.messageArrived("200!SENDFILERESUME#Peer:(100)[5000]{42}<1048576>|3735928559|file.txt", "10.0.0.2");
+
+        verify(responder).fileSendResumed(200, "file.txt", 42, 5000, 1048576, 3735928559L);
+    }
+
+    @Test
+    public void messageArrivedShouldParseFileBatchForMe() {
+        parser.messageArrived("200!SENDFILEBATCH#Peer:(100)[80800]{42}<12>photos", "10.0.0.2");
+        parser.messageArrived("200!SENDFILEBATCH#Peer:(300)[80800]{42}<12>photos", "10.0.0.2");
+
+        verify(responder).fileBatchSend(200, 80800, 12, "photos", "Peer", 42);
+        verify(responder, times(1)).fileBatchSend(anyInt(), anyLong(), anyInt(), anyString(), anyString(), anyInt());
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreFileMessagesForOtherUsers() {
+        parser.messageArrived("200!SENDFILE#Peer:(300)[1024]{42}file.txt", "10.0.0.2");
+        parser.messageArrived("200!SENDFILEACCEPT#Peer:(300)[5000]{42}file.txt", "10.0.0.2");
+        parser.messageArrived("200!SENDFILEABORT#Peer:(300){42}file.txt", "10.0.0.2");
+
+        verify(responder).meLogOn("10.0.0.1");
+        verifyNoMoreInteractions(responder);
+    }
+
+    @Test
+    public void messageArrivedShouldParseFeatures() {
+        parser.messageArrived("200!FEATURES#Peer:<40656>|pack,lazy|", "10.0.0.2");
+
+        final Set<ProtocolFeature> expected = EnumSet.of(ProtocolFeature.PACKING, ProtocolFeature.LAZY_CLIENT);
+        verify(responder).clientFeatures(200, 40656, expected);
+    }
+
+    @Test
+    public void messageArrivedShouldGiveCodeOfUserAskingToExpose() {
+        parser.messageArrived("200!EXPOSE#Peer:", "10.0.0.2");
+
+        verify(responder).exposeRequested(200);
+    }
+
+    @Test
+    public void messageArrivedShouldOnlyAnswerGetClientForMe() {
+        parser.messageArrived("200!GETCLIENT#Peer:(300)", "10.0.0.2");
+        verify(responder, never()).clientRequested();
+
+        parser.messageArrived("200!GETCLIENT#Peer:(100)", "10.0.0.2");
+        verify(responder).clientRequested();
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreInvalidHeaders() {
+        parser.messageArrived("garbage", "10.0.0.2");
+        parser.messageArrived("200MSG#Peer:[5]Hi", "10.0.0.2");
+        parser.messageArrived("200!MSG#Peer[5]Hi", "10.0.0.2");
+
+        verify(responder).meLogOn("10.0.0.1");
+        verifyNoMoreInteractions(responder);
+    }
+}
@@ -25,6 +25,7 @@ package net.usikkert.lanchat.net;
 import static org.mockito.Mockito.*;
 
 import java.io.File;
+import java.util.EnumSet;
 
 import net.usikkert.lanchat.misc.CommandException;
 import net.usikkert.lanchat.misc.Settings;
@@ -62,6 +63,7 @@ public class MessagesTest {
 
         service = mock(NetworkService.class);
         when(service.sendMulticastMsg(anyString())).thenReturn(true);
+        when(service.sendReliableMulticastMsg(anyString())).thenReturn(true);
         when(service.sendUDPMsg(anyString(), anyString(), anyInt())).thenReturn(true);
         messages = new Messages(service, settings);
     }
@@ -100,19 +102,19 @@ public class MessagesTest {
     public void testSendChatMessage() throws CommandException {
         final String msg = "Some chat message";
         messages.sendChatMessage(msg);
-        verify(service).sendMulticastMsg(createMessage("MSG") + "[" + settings.getOwnColor() + "]" + msg);
+        verify(service).sendReliableMulticastMsg(createMessage("MSG") + "[" + settings.getOwnColor() + "]" + msg);
     }
 
     /**
      * Tests sendClient().
      *
-     * Expects: 13132531!CLIENT#Christian:(LanChat v0.9.9-dev null)[134]{Linux}<0>
+     * Expects: 13132531!CLIENT#Christian:(LanChat v0.9.9-dev null)[134]{Linux}<0>||
      */
     @Test
     public void testSendClientMessage() {
         final String startsWith = "(" + me.getClient() + ")[";
         final String middle = ".+\\)\\[\\d+\\]\\{.+"; // like:)[134[{
-        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() + ">";
+        final String endsWidth = "]{" + me.getOperatingSystem() + "}<" + me.getPrivateChatPort() + ">||";
 
         messages.sendClient();
 
@@ -121,6 +123,44 @@ public class MessagesTest {
         verify(service).sendMulticastMsg(endsWith(endsWidth));
     }
 
+    /**
+     * Tests that the binary protocol is used when all the other clients support it.
+     */
+    @Test
+    public void testSendChatMessageBinary() throws CommandException {
+        when(service.isSupportedByAllPeers(ProtocolFeature.BINARY)).thenReturn(true);
+        messages.sendChatMessage("Binary message");
+
+        final String expected = new ProtocolMessage(MessageType.MSG, me.getCode(), me.getNick())
+                .addNumber('[', ']', settings.getOwnColor())
+                .setText("Binary message")
+                .toBinary();
+
+        verify(service).sendReliableMulticastMsg(expected);
+    }
+
+    /**
+     * Tests that private messages use the binary protocol when the receiver supports it.
+     */
+    @Test
+    public void testSendPrivateMessageBinary() throws CommandException {
+        final User user = new User("Test", 1234);
+        user.setFeatures(EnumSet.of(ProtocolFeature.BINARY));
+        messages.sendPrivateMessage("Private", user);
+
+        verify(service).sendUDPMsg(startsWith(String.valueOf((char) BinaryProtocol.MAGIC)), anyString(), anyInt());
+    }
+
+    /**
+     * Tests that sendClient() includes the supported protocol features at the end.
+     */
+    @Test
+    public void testSendClientMessageWithFeatures() {
+        me.setFeatures(EnumSet.of(ProtocolFeature.PACKING));
+        messages.sendClient();
+        verify(service).sendMulticastMsg(endsWith(">|pack|"));
+    }
+
     /**
      * Tests sendExposeMessage().
      *
@@ -132,6 +172,28 @@ public class MessagesTest {
         verify(service).sendMulticastMsg(createMessage("EXPOSE"));
     }
 
+    /**
+     * Tests sendFeatures().
+     *
+     * Expects: 13132531!FEATURES#Christian:<0>||
+     */
+    @Test
+    public void testSendFeaturesMessage() {
+        messages.sendFeatures();
+        verify(service).sendMulticastMsg(createMessage("FEATURES") + "<" + me.getPrivateChatPort() + ">||");
+    }
+
+    /**
+     * Tests sendGetClientMessage().
+     *
+     * Expects: 13132531!GETCLIENT#Christian:(1234)
+     */
+    @Test
+    public void testSendGetClientMessage() {
+        messages.sendGetClientMessage(new User("Peer", 1234));
+        verify(service).sendMulticastMsg(createMessage("GETCLIENT") + "(1234)");
+    }
+
     /**
      * Tests sendExposingMessage().
      *
@@ -159,7 +221,7 @@ public class MessagesTest {
         final File file = mock(File.class);
         when(file.getName()).thenReturn(fileName);
         when(file.length()).thenReturn(fileLength);
-        final int fileHash = file.hashCode(); // Cannot be mocked it seems
+        final int fileHash = 37563645;
 
         final String info = "(" + userCode + ")" +
                 "[" + fileLength + "]" +
@@ -168,10 +230,31 @@ public class MessagesTest {
 
         final User user = new User("TestUser", userCode);
 
-        messages.sendFile(user, file);
+        messages.sendFile(user, file, fileHash);
         verify(service).sendMulticastMsg(createMessage("SENDFILE") + info);
     }
 
+    /**
+     * Tests sendFileBatch().
+     *
+     * Expects: 14394329!SENDFILEBATCH#Christian:(1234)[80800]{37563645}<12>photos
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileBatchMessage() throws CommandException {
+        final int userCode = 1234;
+        final FileBatch batch = mock(FileBatch.class);
+        when(batch.getName()).thenReturn("photos");
+        when(batch.getTotalSize()).thenReturn(80800L);
+        when(batch.getFileCount()).thenReturn(12);
+
+        final User user = new User("TestUser", userCode);
+
+        messages.sendFileBatch(user, batch, 37563645);
+        verify(service).sendMulticastMsg(createMessage("SENDFILEBATCH") + "(1234)[80800]{37563645}<12>photos");
+    }
+
     /**
      * Tests sendFileAbort().
      *
@@ -218,6 +301,35 @@ public class MessagesTest {
         verify(service).sendMulticastMsg(createMessage("SENDFILEACCEPT") + info);
     }
 
+    /**
+     * Tests sendFileResume().
+     *
+     * Expects: 17247198!SENDFILERESUME#Christian:(4321)[20103]{8578765}<1048576>|3735928559|some_file.txt
+     *
+     * @throws CommandException In case the message could not be sent.
+     */
+    @Test
+    public void testSendFileResumeMessage() throws CommandException {
+        final int userCode = 4321;
+        final int port = 20103;
+        final int fileHash = 8578765;
+        final long offset = 1048576;
+        final long checksum = 3735928559L;
+        final String fileName = "some_file.txt";
+
+        final String info = "(" + userCode + ")" +
+                "[" + port + "]" +
+                "{" + fileHash + "}" +
+                "<" + offset + ">" +
+                "|" + checksum + "|" +
+                fileName;
+
+        final User user = new User("TestUser", userCode);
+
+        messages.sendFileResume(user, port, fileHash, fileName, offset, checksum);
+        verify(service).sendMulticastMsg(createMessage("SENDFILERESUME") + info);
+    }
+
     /**
      * Tests sendGetTopicMessage().
      *
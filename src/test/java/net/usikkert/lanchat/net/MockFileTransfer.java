@@ -40,6 +40,7 @@ public class MockFileTransfer implements FileTransfer {
     private final Direction direction;
     private final File file;
     private final User user;
+    private final BandwidthLimiter limiter = new BandwidthLimiter();
 
     private FileTransferListener listener;
     private int percent;
@@ -97,6 +98,66 @@ public class MockFileTransfer implements FileTransfer {
         return 500000;
     }
 
+    /**
+     * Returns null.
+     *
+     * @return null.
+     */
+    @Override
+    public FileBatch.Entry getCurrentEntry() {
+        return null;
+    }
+
+    /**
+     * Returns 0.
+     *
+     * @return 0.
+     */
+    @Override
+    public long getCurrentEntryTransferred() {
+        return 0;
+    }
+
+    /**
+     * Gets a limiter without a limit.
+     *
+     * @return The bandwidth limiter.
+     */
+    @Override
+    public BandwidthLimiter getBandwidthLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Never queued.
+     *
+     * @return 0.
+     */
+    @Override
+    public int getQueuePosition() {
+        return 0;
+    }
+
+    /**
+     * Not implemented.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void setQueuePosition(final int queuePosition) {
+
+    }
+
+    /**
+     * Not implemented, as the simulation notifies the listener itself.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void publishProgress() {
+
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,169 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import java.lang.management.ManagementFactory;
+import java.net.NetworkInterface;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.Constants;
+import net.usikkert.lanchat.event.ReceiverListener;
+
+/**
+ * Compares the socket based {@link MessageReceiver} with the channel based
+ * {@link ChannelMessageReceiver}, by sending typical chat messages over multicast
+ * and measuring the throughput, and the number of bytes allocated and the
+ * cpu time used by the receiving thread per message.
+ *
+ * <p>Not a unit test. Run it manually, optionally with the name of the network
+ * interface to use as the first argument (defaults to the first usable one).</p>
+ *
+ * @author Shouvik Goswami
+ */
+public final class MulticastReceiverBenchmark {
+
+    private static final int WARMUP_MESSAGES = 20000;
+    private static final int MESSAGES = 100000;
+    private static final String MESSAGE = "12345678!IDLE#Christian:";
+
+    private MulticastReceiverBenchmark() {
+
+    }
+
+    /**
+     * Runs the benchmark for both receivers.
+     *
+     * @param args Optional name of the network interface to use.
+     * @throws Exception If the benchmark fails.
+     */
+    public static void main(final String[] args) throws Exception {
+        final NetworkInterface netif = args.length > 0 ?
+                NetworkInterface.getByName(args[0]) : NetworkUtils.findFirstUsableNetworkInterface();
+
+        System.out.println("Using " + netif);
+        final NetworkReactor reactor = new NetworkReactor();
+
+        for (int i = 0; i < 2; i++) {
+            run("MessageReceiver", new MessageReceiver(Constants.NETWORK_TEMP_IP, Constants.NETWORK_TEMP_PORT), netif);
+            run("ChannelMessageReceiver",
+                    new ChannelMessageReceiver(reactor, Constants.NETWORK_TEMP_IP, Constants.NETWORK_TEMP_PORT), netif);
+        }
+    }
+
+    private static void run(final String name, final MulticastReceiver receiver,
+                            final NetworkInterface netif) throws InterruptedException {
+        final MeasuringListener listener = new MeasuringListener(WARMUP_MESSAGES, MESSAGES);
+        receiver.registerReceiverListener(listener);
+        receiver.startReceiver(netif);
+
+        final MessageSender sender = new MessageSender(Constants.NETWORK_TEMP_IP, Constants.NETWORK_TEMP_PORT);
+        sender.startSender(netif);
+
+        for (int i = 0; i < WARMUP_MESSAGES + MESSAGES && !listener.isDone(); i++) {
+            sender.send(MESSAGE);
+
+            // Avoid overflowing the socket buffers, since that measures the kernel and not the receiver
+            if (i % 64 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        listener.await();
+        sender.stopSender();
+        receiver.stopReceiver();
+
+        System.out.println(name + ": " + listener.getResult());
+    }
+
+    /**
+     * Records the allocated bytes and time of the receiving thread, after the warmup messages.
+     */
+    private static class MeasuringListener implements ReceiverListener {
+
+        private final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        private final int warmup;
+        private final int messages;
+        private final CountDownLatch done;
+
+        private int count;
+        private long startBytes;
+        private long startCpu;
+        private long startTime;
+        private long endBytes;
+        private long endCpu;
+        private long endTime;
+
+        MeasuringListener(final int warmup, final int messages) {
+            this.warmup = warmup;
+            this.messages = messages;
+            done = new CountDownLatch(1);
+        }
+
+        @Override
+        public void messageArrived(final String message, final String ipAddress) {
+            count++;
+
+            if (count == warmup) {
+                startBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                startCpu = threadBean.getCurrentThreadCpuTime();
+                startTime = System.nanoTime();
+            }
+
+            else if (count > warmup) {
+                endBytes = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+                endCpu = threadBean.getCurrentThreadCpuTime();
+                endTime = System.nanoTime();
+
+                if (count == warmup + messages) {
+                    done.countDown();
+                }
+            }
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        void await() throws InterruptedException {
+            done.await(5, TimeUnit.SECONDS);
+        }
+
+        String getResult() {
+            final int measured = count - warmup;
+
+            if (measured <= 0) {
+                return "no messages measured";
+            }
+
+            final long bytesPerMessage = (endBytes - startBytes) / measured;
+            final long cpuPerMessage = (endCpu - startCpu) / measured;
+            final long messagesPerSecond = measured * 1000000000L / Math.max(1, endTime - startTime);
+
+            return measured + " messages, " + bytesPerMessage + " bytes allocated and " +
+                    cpuPerMessage + " ns cpu per message, " + messagesPerSecond + " messages/s";
+        }
+    }
+}
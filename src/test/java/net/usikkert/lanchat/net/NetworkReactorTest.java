@@ -0,0 +1,240 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link NetworkReactor}.
+ *
+ * @author Christian Ihle
+ */
+public class NetworkReactorTest {
+
+    private NetworkReactor reactor;
+
+    @Before
+    public void setUp() {
+        reactor = new NetworkReactor();
+    }
+
+    @After
+    public void tearDown() {
+        reactor.stop();
+    }
+
+    @Test
+    public void shouldNotBeRunningBeforeFirstRegistration() {
+        assertFalse(reactor.isRunning());
+    }
+
+    @Test
+    public void registerDatagramChannelShouldGiveDecodedMessagesToListener() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<String> lastMessage = new AtomicReference<String>();
+
+        reactor.registerDatagramChannel(channel, new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                lastMessage.set(message + "@" + ipAddress);
+                latch.countDown();
+            }
+        });
+
+        assertTrue(reactor.isRunning());
+
+        final DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap("a longer first message æøå".getBytes("UTF-8")), channel.getLocalAddress());
+        sender.send(ByteBuffer.wrap("2 second ".getBytes("UTF-8")), channel.getLocalAddress());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("2 second@127.0.0.1", lastMessage.get());
+
+        sender.close();
+        reactor.close(channel);
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void registerDatagramChannelShouldNotTrimPackedDatagrams() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<String> lastMessage = new AtomicReference<String>();
+
+        reactor.registerDatagramChannel(channel, new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                lastMessage.set(message);
+                latch.countDown();
+            }
+        });
+
+        final List<String> messages = Arrays.asList("123!MSG#Nick:hello", "123!AWAY#Nick:[1]gone \n");
+        final String packed = MessagePacker.pack(messages);
+
+        final DatagramChannel sender = DatagramChannel.open();
+        sender.send(ByteBuffer.wrap(packed.getBytes("UTF-8")), channel.getLocalAddress());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(packed, lastMessage.get());
+        assertEquals(messages, MessagePacker.unpack(lastMessage.get()));
+
+        sender.close();
+        reactor.close(channel);
+    }
+
+    @Test
+    public void registerDatagramChannelShouldReadDatagramsBeyondTheLimitAfterNextSelect() throws Exception {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final int count = NetworkReactor.MAX_DATAGRAMS_PER_SELECT * 3 + 1;
+        final DatagramChannel sender = DatagramChannel.open();
+
+        // Queued before registering, so they are all ready at the first select
+        for (int i = 0; i < count; i++) {
+            sender.send(ByteBuffer.wrap(("message " + i).getBytes("UTF-8")), channel.getLocalAddress());
+        }
+
+        final CountDownLatch latch = new CountDownLatch(count);
+
+        reactor.registerDatagramChannel(channel, new ReceiverListener() {
+            @Override
+            public void messageArrived(final String message, final String ipAddress) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        sender.close();
+        reactor.close(channel);
+    }
+
+    @Test
+    public void registerServerChannelShouldGiveAcceptedConnectionToListener() throws Exception {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        reactor.registerServerChannel(channel, new NetworkReactor.AcceptListener() {
+            @Override
+            public void connectionAccepted(final SocketChannel connection) {
+                reactor.close(connection);
+                latch.countDown();
+            }
+        });
+
+        final SocketChannel client = SocketChannel.open(channel.getLocalAddress());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        client.close();
+        reactor.close(channel);
+    }
+
+    @Test
+    public void releaseShouldGiveBackSocketChannelThatCanBeMadeBlocking() throws Exception {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<SocketChannel> released = new AtomicReference<SocketChannel>();
+        final ByteBuffer firstByte = ByteBuffer.allocate(1);
+
+        reactor.registerServerChannel(channel, new NetworkReactor.AcceptListener() {
+            @Override
+            public void connectionAccepted(final SocketChannel connection) {
+                try {
+                    reactor.registerSocketChannel(connection, new NetworkReactor.ReadListener() {
+                        @Override
+                        public void channelReadable(final SocketChannel readable) {
+                            try {
+                                readable.read(firstByte);
+                            }
+
+                            catch (final IOException e) {
+                                fail(e.toString());
+                            }
+
+                            reactor.release(readable, new Runnable() {
+                                @Override
+                                public void run() {
+                                    released.set(readable);
+                                    latch.countDown();
+                                }
+                            });
+                        }
+                    });
+                }
+
+                catch (final IOException e) {
+                    fail(e.toString());
+                }
+            }
+        });
+
+        final SocketChannel client = SocketChannel.open(channel.getLocalAddress());
+        client.write(ByteBuffer.wrap(new byte[] {1, 2}));
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, firstByte.get(0));
+
+        final SocketChannel connection = released.get();
+        assertFalse(connection.isRegistered());
+        connection.configureBlocking(true);
+
+        final ByteBuffer secondByte = ByteBuffer.allocate(1);
+        assertEquals(1, connection.read(secondByte));
+        assertEquals(2, secondByte.get(0));
+
+        connection.close();
+        client.close();
+        reactor.close(channel);
+    }
+}
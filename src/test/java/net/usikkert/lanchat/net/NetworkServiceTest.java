@@ -26,6 +26,7 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 
 import net.usikkert.lanchat.misc.Settings;
+import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.util.TestUtils;
 
 import org.junit.Before;
@@ -43,6 +44,7 @@ public class NetworkServiceTest {
     @Before
     public void setUp() {
         settings = mock(Settings.class);
+        when(settings.getMe()).thenReturn(new User("Test", 1234));
     }
 
     @Test
@@ -65,6 +67,42 @@ public class NetworkServiceTest {
         assertNull(TestUtils.getFieldValue(networkService, UDPSender.class, "udpSender"));
     }
 
+    @Test
+    public void networkServiceShouldUseSocketReceiverByDefault() {
+        final NetworkService networkService = new NetworkService(settings);
+
+        final MulticastReceiver messageReceiver = TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver");
+        assertTrue(messageReceiver instanceof MessageReceiver);
+    }
+
+    @Test
+    public void networkServiceShouldUseChannelReceiverWhenEnabled() {
+        when(settings.isNioReceiver()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(settings);
+
+        final MulticastReceiver messageReceiver = TestUtils.getFieldValue(networkService, MulticastReceiver.class, "messageReceiver");
+        assertTrue(messageReceiver instanceof ChannelMessageReceiver);
+        assertNotNull(networkService.getNetworkReactor());
+    }
+
+    @Test
+    public void networkServiceShouldUseChannelUDPReceiverWhenEnabled() {
+        when(settings.isNioReceiver()).thenReturn(true);
+
+        final NetworkService networkService = new NetworkService(settings);
+
+        final PrivateMessageReceiver udpReceiver = TestUtils.getFieldValue(networkService, PrivateMessageReceiver.class, "udpReceiver");
+        assertTrue(udpReceiver instanceof ChannelUDPReceiver);
+    }
+
+    @Test
+    public void networkServiceShouldNotCreateReactorByDefault() {
+        final NetworkService networkService = new NetworkService(settings);
+
+        assertNull(networkService.getNetworkReactor());
+    }
+
     @Test
     public void registerUDPReceiverListenerShouldNotFailWhenPrivateChatDisabled() {
         when(settings.isNoPrivateChat()).thenReturn(true);
@@ -0,0 +1,152 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link PartialTransfers}.
+ *
+ * @author Christian Ihle
+ */
+public class PartialTransfersTest {
+
+    private File storage;
+    private File partialFile;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = File.createTempFile("partialtransferstest", ".ini");
+        storage.delete();
+
+        partialFile = File.createTempFile("partialtransferstest", ".bin");
+        writeFile(partialFile, new byte[1000]);
+    }
+
+    @After
+    public void tearDown() {
+        storage.delete();
+        partialFile.delete();
+    }
+
+    @Test
+    public void getOffsetShouldReturnOffsetOfPartialFile() {
+        final PartialTransfers transfers = new PartialTransfers(null);
+        transfers.add("file.bin", 42, 5000, partialFile, 800);
+
+        assertEquals(partialFile.getAbsoluteFile(), transfers.getFile("file.bin", 42, 5000));
+        assertEquals(800, transfers.getOffset("file.bin", 42, 5000, partialFile));
+    }
+
+    @Test
+    public void getOffsetShouldReturnZeroIfAnythingIsDifferent() {
+        final PartialTransfers transfers = new PartialTransfers(null);
+        transfers.add("file.bin", 42, 5000, partialFile, 800);
+
+        assertEquals(0, transfers.getOffset("other.bin", 42, 5000, partialFile));
+        assertEquals(0, transfers.getOffset("file.bin", 43, 5000, partialFile));
+        assertEquals(0, transfers.getOffset("file.bin", 42, 5001, partialFile));
+        assertEquals(0, transfers.getOffset("file.bin", 42, 5000, new File(partialFile.getPath() + ".other")));
+        assertNull(transfers.getFile("file.bin", 42, 5001));
+    }
+
+    @Test
+    public void getOffsetShouldNotBeLargerThanFile() {
+        final PartialTransfers transfers = new PartialTransfers(null);
+        transfers.add("file.bin", 42, 5000, partialFile, 3000);
+
+        assertEquals(1000, transfers.getOffset("file.bin", 42, 5000, partialFile));
+    }
+
+    @Test
+    public void getOffsetShouldReturnZeroIfWholeFileIsThere() {
+        final PartialTransfers transfers = new PartialTransfers(null);
+        transfers.add("file.bin", 42, 1000, partialFile, 1000);
+
+        assertEquals(0, transfers.getOffset("file.bin", 42, 1000, partialFile));
+    }
+
+    @Test
+    public void removeShouldForgetPartialTransfer() {
+        final PartialTransfers transfers = new PartialTransfers(null);
+        transfers.add("file.bin", 42, 5000, partialFile, 800);
+        transfers.remove("file.bin", 42, 5000);
+
+        assertEquals(0, transfers.size());
+        assertNull(transfers.getFile("file.bin", 42, 5000));
+    }
+
+    @Test
+    public void partialTransfersShouldBeLoadedAfterRestart() {
+        new PartialTransfers(storage).add("file:with=odd/name.bin", 42, 5000, partialFile, 800);
+
+        final PartialTransfers transfers = new PartialTransfers(storage);
+
+        assertEquals(1, transfers.size());
+        assertEquals(800, transfers.getOffset("file:with=odd/name.bin", 42, 5000, partialFile));
+    }
+
+    @Test
+    public void partialTransfersWithMissingFilesShouldBeSkippedWhenLoading() {
+        new PartialTransfers(storage).add("file.bin", 42, 5000, partialFile, 800);
+        partialFile.delete();
+
+        assertEquals(0, new PartialTransfers(storage).size());
+    }
+
+    @Test
+    public void calculateChecksumShouldOnlyIncludeBytesBeforeOffset() throws IOException {
+        final byte[] content = new byte[PartialTransfers.CHECKSUM_SIZE + 5000];
+        new Random(1).nextBytes(content);
+        writeFile(partialFile, content);
+
+        final CRC32 crc = new CRC32();
+        crc.update(content, 4000, PartialTransfers.CHECKSUM_SIZE);
+        assertEquals(crc.getValue(), PartialTransfers.calculateChecksum(partialFile, PartialTransfers.CHECKSUM_SIZE + 4000));
+
+        crc.reset();
+        crc.update(content, 0, 100);
+        assertEquals(crc.getValue(), PartialTransfers.calculateChecksum(partialFile, 100));
+    }
+
+    @Test(expected = IOException.class)
+    public void calculateChecksumShouldFailIfFileIsShorterThanOffset() throws IOException {
+        PartialTransfers.calculateChecksum(partialFile, 1001);
+    }
+
+    private void writeFile(final File file, final byte[] content) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(content);
+        out.close();
+    }
+}
@@ -0,0 +1,198 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link ProtocolMessage} and the readers {@link TextMessageReader} and {@link BinaryMessageReader}.
+ *
+ * @author Christian Ihle
+ */
+public class ProtocolMessageTest {
+
+    @Test
+    public void toTextShouldUseDelimiters() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.SENDFILE, 12345678, "Nick")
+                .addNumber('(', ')', 87654321)
+                .addNumber('[', ']', 1024)
+                .addNumber('{', '}', -5)
+                .setText("file.txt");
+
+        assertEquals("12345678!SENDFILE#Nick:(87654321)[1024]{-5}file.txt", message.toText());
+    }
+
+    @Test
+    public void toTextShouldWorkWithoutFields() {
+        assertEquals("12345678!IDLE#Nick:", new ProtocolMessage(MessageType.IDLE, 12345678, "Nick").toText());
+    }
+
+    @Test
+    public void toBinaryShouldBeSmallerThanText() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.IDLE, 12345678, "SomeLongNick");
+
+        assertTrue(BinaryProtocol.isBinary(message.toBinary()));
+        assertEquals(7, message.toBinary().length());
+        assertTrue(message.toBinary().length() < message.toText().length());
+    }
+
+    @Test
+    public void toBinaryShouldOnlyIncludeNickWhenUsed() {
+        final ProtocolMessage idle = new ProtocolMessage(MessageType.IDLE, 1, "Nick");
+        final ProtocolMessage logon = new ProtocolMessage(MessageType.LOGON, 1, "Nick");
+
+        assertNull(new BinaryMessageReader(idle.toBinary()).getNick());
+        assertEquals("Nick", new BinaryMessageReader(logon.toBinary()).getNick());
+    }
+
+    @Test
+    public void binaryReaderShouldReadFieldsInOrder() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.SENDFILE, 12345678, "Nick")
+                .addNumber('(', ')', 87654321)
+                .addNumber('[', ']', 5000000000L)
+                .addNumber('{', '}', Integer.MIN_VALUE)
+                .setText("file æøå.txt");
+
+        assertFields(new BinaryMessageReader(message.toBinary()));
+    }
+
+    @Test
+    public void textReaderShouldReadFieldsInOrder() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.SENDFILE, 12345678, "Nick")
+                .addNumber('(', ')', 87654321)
+                .addNumber('[', ']', 5000000000L)
+                .addNumber('{', '}', Integer.MIN_VALUE)
+                .setText("file æøå.txt");
+
+        assertFields(new TextMessageReader(message.toText()));
+    }
+
+    @Test
+    public void readersShouldReturnEmptyTextWhenMissing() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.AWAY, 1, "Nick");
+
+        assertEquals("", new TextMessageReader(message.toText()).readText());
+        assertEquals("", new BinaryMessageReader(message.toBinary()).readText());
+    }
+
+    @Test
+    public void readersShouldFindOptionalField() {
+        final ProtocolMessage message = new ProtocolMessage(MessageType.CLIENT, 1, "Nick")
+                .addNumber('<', '>', 40656);
+
+        final MessageReader textReader = new TextMessageReader(message.toText());
+        assertEquals(40656, textReader.readNumber('<', '>'));
+        assertFalse(textReader.hasField('|'));
+
+        final MessageReader binaryReader = new BinaryMessageReader(message.toBinary());
+        assertEquals(40656, binaryReader.readNumber('<', '>'));
+        assertFalse(binaryReader.hasField('|'));
+    }
+
+    @Test
+    public void binaryReaderShouldReturnNullForUnknownType() {
+        final String message = new ProtocolMessage(MessageType.IDLE, 1, "Nick").toBinary();
+        final String unknownType = message.substring(0, 2) + (char) 31 + message.substring(3);
+
+        assertNull(new BinaryMessageReader(unknownType).getType());
+    }
+
+    @Test
+    public void binaryReaderShouldReturnNullTypeForUnknownVersion() {
+        final String message = new ProtocolMessage(MessageType.IDLE, 1, "Nick").toBinary();
+        assertNull(new BinaryMessageReader(message.charAt(0) + "\u0003" + message.substring(2)).getType());
+    }
+
+    @Test
+    public void textReaderShouldReadNumbersInPlace() {
+        final MessageReader reader = new TextMessageReader("-5!TOPIC#Nick:(-12)[9876543210]{0}");
+
+        assertEquals(-5, reader.getCode());
+        assertEquals(MessageType.TOPIC, reader.getType());
+        assertEquals(-12, reader.readNumber('(', ')'));
+        assertEquals(9876543210L, reader.readNumber('[', ']'));
+        assertEquals(0, reader.readNumber('{', '}'));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void textReaderShouldFailOnInvalidNumber() {
+        new TextMessageReader("1!MSG#Nick:[12a]Hi").readNumber('[', ']');
+    }
+
+    @Test
+    public void textReaderShouldReturnNullTypeForInvalidHeader() {
+        assertNull(new TextMessageReader("").getType());
+        assertNull(new TextMessageReader("garbage").getType());
+        assertNull(new TextMessageReader("12x!MSG#Nick:Hi").getType());
+        assertNull(new TextMessageReader("!MSG#Nick:Hi").getType());
+        assertNull(new TextMessageReader("99999999999!MSG#Nick:Hi").getType());
+        assertNull(new TextMessageReader("1!MSG#Nick").getType());
+        assertNull(new TextMessageReader("1!MESSAGE#Nick:Hi").getType());
+    }
+
+    @Test
+    public void messageTypeShouldBeFoundByNameInsideMessage() {
+        for (final MessageType type : MessageType.values()) {
+            final String message = "1!" + type.name() + "#Nick:";
+            assertSame(type, MessageType.fromName(message, 2, 2 + type.name().length()));
+            assertSame(type, MessageType.fromName(type.name()));
+        }
+
+        assertNull(MessageType.fromName("MSGX"));
+        assertNull(MessageType.fromName("msg"));
+    }
+
+    @Test(expected = StringIndexOutOfBoundsException.class)
+    public void binaryReaderShouldFailOnTruncatedText() {
+        final String message = new ProtocolMessage(MessageType.AWAY, 1, "Nick").setText("Away for lunch").toBinary();
+        new BinaryMessageReader(message.substring(0, message.length() - 3)).readText();
+    }
+
+    @Test
+    public void bytesShouldSurviveTheNetwork() throws Exception {
+        final String binary = new ProtocolMessage(MessageType.MSG, -1, "Nick")
+                .addNumber('[', ']', -16777216)
+                .setText("Hei på deg ")
+                .toBinary();
+
+        final byte[] bytes = BinaryProtocol.toBytes(binary);
+        assertEquals(binary.length(), bytes.length);
+        assertEquals(binary, BinaryProtocol.fromBytes(bytes, bytes.length));
+
+        final String text = "123!MSG#Nick:[1]Hei på deg ";
+        final byte[] textBytes = BinaryProtocol.toBytes(text);
+        assertEquals(text.trim(), BinaryProtocol.fromBytes(textBytes, textBytes.length));
+    }
+
+    private void assertFields(final MessageReader reader) {
+        assertEquals(12345678, reader.getCode());
+        assertEquals(MessageType.SENDFILE, reader.getType());
+        assertEquals("Nick", reader.getNick());
+        assertEquals(87654321, reader.readNumber('(', ')'));
+        assertEquals(5000000000L, reader.readNumber('[', ']'));
+        assertEquals(Integer.MIN_VALUE, reader.readNumber('{', '}'));
+        assertEquals("file æøå.txt", reader.readText());
+    }
+}
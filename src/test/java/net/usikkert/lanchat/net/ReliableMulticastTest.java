@@ -0,0 +1,300 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.event.ReceiverListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link ReliableMulticast}.
+ *
+ * @author Christian Ihle
+ */
+public class ReliableMulticastTest {
+
+    private static final int MY_CODE = 100;
+    private static final int PEER_CODE = 200;
+
+    private NetworkService networkService;
+    private ReceiverListener listener;
+    private Timer timer;
+    private ReliableMulticast reliableMulticast;
+
+    @Before
+    public void setUp() {
+        networkService = mock(NetworkService.class);
+        listener = mock(ReceiverListener.class);
+        timer = mock(Timer.class);
+
+        reliableMulticast = new ReliableMulticast(networkService, MY_CODE, timer);
+        reliableMulticast.registerReceiverListener(listener);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructorShouldValidateNetworkService() {
+        new ReliableMulticast(null, MY_CODE);
+    }
+
+    @Test
+    public void wrapShouldAddIncreasingSequenceNumbers() {
+        assertEquals("&D100.1:first", reliableMulticast.wrap("first"));
+        assertEquals("&D100.2:second", reliableMulticast.wrap("second"));
+    }
+
+    @Test
+    public void messageArrivedShouldDeliverPlainMessagesDirectly() {
+        reliableMulticast.messageArrived("200!IDLE#Peer:", "10.0.0.2");
+
+        verify(listener).messageArrived("200!IDLE#Peer:", "10.0.0.2");
+        verifyZeroInteractions(networkService);
+    }
+
+    @Test
+    public void messageArrivedShouldDeliverMessagesInSequence() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(2, "two"), "10.0.0.2");
+
+        verify(listener).messageArrived("one", "10.0.0.2");
+        verify(listener).messageArrived("two", "10.0.0.2");
+        verifyZeroInteractions(networkService);
+        assertEquals(0, reliableMulticast.getGaps());
+    }
+
+    @Test
+    public void messageArrivedShouldDropDuplicates() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+
+        verify(listener, times(1)).messageArrived("one", "10.0.0.2");
+        assertEquals(1, reliableMulticast.getDuplicates());
+    }
+
+    @Test
+    public void messageArrivedShouldSendNackForMissingMessages() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(4, "four"), "10.0.0.2");
+
+        verify(listener).messageArrived("four", "10.0.0.2");
+        verify(timer).schedule(any(TimerTask.class), anyLong());
+        verifyZeroInteractions(networkService);
+
+        reliableMulticast.sendDueNacks(afterNackDelay());
+
+        verify(networkService).sendMulticastMsg("&N100.200.2.3");
+        assertEquals(2, reliableMulticast.getGaps());
+        assertEquals(1, reliableMulticast.getNacksSent());
+    }
+
+    @Test
+    public void nackShouldBeSentAgainUntilTheMissingMessagesArrive() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(4, "four"), "10.0.0.2");
+
+        final long firstNack = afterNackDelay();
+        reliableMulticast.sendDueNacks(firstNack);
+        verify(networkService).sendMulticastMsg("&N100.200.2.3");
+
+        // Not waited long enough for the messages to be sent again
+        reliableMulticast.sendDueNacks(firstNack + millis(ReliableMulticast.NACK_RETRY_TIME - 1));
+        verify(networkService, times(1)).sendMulticastMsg(anyString());
+
+        reliableMulticast.messageArrived(peerFrame(2, "two"), "10.0.0.2");
+        reliableMulticast.sendDueNacks(firstNack + millis(ReliableMulticast.NACK_RETRY_TIME));
+        verify(networkService).sendMulticastMsg("&N100.200.3.3");
+
+        reliableMulticast.messageArrived(peerFrame(3, "three"), "10.0.0.2");
+        reliableMulticast.sendDueNacks(firstNack + TimeUnit.HOURS.toNanos(1));
+
+        verify(networkService, times(2)).sendMulticastMsg(anyString());
+        assertEquals(2, reliableMulticast.getNacksSent());
+    }
+
+    @Test
+    public void nackShouldGiveUpAfterMaxAttempts() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(3, "three"), "10.0.0.2");
+
+        long now = System.nanoTime();
+
+        for (int i = 0; i < ReliableMulticast.MAX_NACK_ATTEMPTS + 3; i++) {
+            now += TimeUnit.HOURS.toNanos(1);
+            reliableMulticast.sendDueNacks(now);
+        }
+
+        verify(networkService, times(ReliableMulticast.MAX_NACK_ATTEMPTS)).sendMulticastMsg("&N100.200.2.2");
+    }
+
+    @Test
+    public void nackFromAnotherReceiverShouldSuppressNackForTheSameMessages() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(4, "four"), "10.0.0.2");
+        reliableMulticast.messageArrived("&N300.200.2.3", "10.0.0.3");
+
+        final long due = afterNackDelay();
+        reliableMulticast.sendDueNacks(due);
+
+        verifyZeroInteractions(networkService);
+        assertEquals(1, reliableMulticast.getNacksSuppressed());
+
+        // The messages were not sent again after the other NACK, so this client asks too
+        reliableMulticast.sendDueNacks(due + millis(ReliableMulticast.NACK_RETRY_TIME));
+
+        verify(networkService).sendMulticastMsg("&N100.200.2.3");
+    }
+
+    @Test
+    public void nackFromAnotherReceiverShouldNotSuppressOtherMessages() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(4, "four"), "10.0.0.2");
+        reliableMulticast.messageArrived("&N300.200.5.6", "10.0.0.3");
+        reliableMulticast.messageArrived("&N300.400.2.3", "10.0.0.3");
+
+        reliableMulticast.sendDueNacks(afterNackDelay());
+
+        verify(networkService).sendMulticastMsg("&N100.200.2.3");
+        assertEquals(0, reliableMulticast.getNacksSuppressed());
+    }
+
+    @Test
+    public void messageArrivedShouldDeliverMissingMessageWhenSentAgain() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(3, "three"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(2, "two"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(2, "two"), "10.0.0.2");
+
+        reliableMulticast.sendDueNacks(afterNackDelay());
+
+        verify(listener, times(1)).messageArrived("two", "10.0.0.2");
+        verifyZeroInteractions(networkService);
+        assertEquals(1, reliableMulticast.getDuplicates());
+    }
+
+    @Test(timeout = 5000)
+    public void messageArrivedShouldHandleSequenceFarAhead() {
+        final long farAhead = 1L << 62;
+
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(farAhead, "far"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(farAhead, "far"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(farAhead + 1, "next"), "10.0.0.2");
+
+        verify(listener).messageArrived("far", "10.0.0.2");
+        verify(listener).messageArrived("next", "10.0.0.2");
+        assertEquals(1, reliableMulticast.getDuplicates());
+    }
+
+    @Test
+    public void messageArrivedShouldNotTrackOwnMessages() {
+        reliableMulticast.messageArrived(reliableMulticast.wrap("mine"), "10.0.0.1");
+        reliableMulticast.messageArrived("&D100.5:old", "10.0.0.1");
+
+        verify(listener).messageArrived("mine", "10.0.0.1");
+        verify(listener).messageArrived("old", "10.0.0.1");
+        verifyZeroInteractions(networkService);
+    }
+
+    @Test
+    public void messageArrivedShouldRetransmitOnNackForMe() {
+        final String first = reliableMulticast.wrap("first");
+        final String second = reliableMulticast.wrap("second");
+
+        reliableMulticast.messageArrived("&N200.100.1.2", "10.0.0.2");
+
+        verify(networkService).sendMulticastMsg(first);
+        verify(networkService).sendMulticastMsg(second);
+        assertEquals(1, reliableMulticast.getNacksReceived());
+        assertEquals(2, reliableMulticast.getRetransmits());
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void messageArrivedShouldNotRetransmitSameMessageTwiceRightAway() {
+        reliableMulticast.wrap("first");
+
+        reliableMulticast.messageArrived("&N200.100.1.1", "10.0.0.2");
+        reliableMulticast.messageArrived("&N300.100.1.1", "10.0.0.3");
+
+        verify(networkService, times(1)).sendMulticastMsg(anyString());
+        assertEquals(2, reliableMulticast.getNacksReceived());
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreNackForOthers() {
+        reliableMulticast.wrap("first");
+
+        reliableMulticast.messageArrived("&N200.300.1.1", "10.0.0.2");
+
+        verifyZeroInteractions(networkService);
+        assertEquals(0, reliableMulticast.getNacksReceived());
+    }
+
+    @Test
+    public void messageArrivedShouldNotRetransmitMessagesNotSent() {
+        reliableMulticast.wrap("first");
+
+        reliableMulticast.messageArrived("&N200.100.5.6", "10.0.0.2");
+
+        verifyZeroInteractions(networkService);
+    }
+
+    @Test
+    public void messageArrivedShouldLimitNackRange() {
+        reliableMulticast.messageArrived(peerFrame(1, "one"), "10.0.0.2");
+        reliableMulticast.messageArrived(peerFrame(1000, "far"), "10.0.0.2");
+        reliableMulticast.sendDueNacks(afterNackDelay());
+
+        verify(networkService).sendMulticastMsg("&N100.200." + (1000 - ReliableMulticast.MAX_NACK_RANGE) + ".999");
+        verify(listener).messageArrived("far", "10.0.0.2");
+    }
+
+    @Test
+    public void messageArrivedShouldIgnoreInvalidFrames() {
+        reliableMulticast.messageArrived("&Dabc.1:msg", "10.0.0.2");
+        reliableMulticast.messageArrived("&N200", "10.0.0.2");
+        reliableMulticast.messageArrived("&X", "10.0.0.2");
+
+        verifyZeroInteractions(listener);
+        verifyZeroInteractions(networkService);
+    }
+
+    private long afterNackDelay() {
+        return System.nanoTime() + millis(ReliableMulticast.NACK_DELAY + 1);
+    }
+
+    private long millis(final long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private String peerFrame(final long sequence, final String message) {
+        return "&D" + PEER_CODE + "." + sequence + ":" + message;
+    }
+}
@@ -0,0 +1,233 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link SegmentedSender} and {@link SegmentedReceiver} together.
+ *
+ * @author Christian Ihle
+ */
+public class SegmentedTransferTest {
+
+    private byte[] content;
+    private File source;
+    private File target;
+    private RandomAccessFile sourceFile;
+    private RandomAccessFile targetFile;
+    private ServerSocketChannel server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[13 * 1024 * 1024 + 5];
+        new Random(2).nextBytes(content);
+
+        source = File.createTempFile("segmentedtransfertest", ".orig");
+        final FileOutputStream out = new FileOutputStream(source);
+        out.write(content);
+        out.close();
+
+        target = File.createTempFile("segmentedtransfertest", ".bin");
+        sourceFile = new RandomAccessFile(source, "r");
+        targetFile = new RandomAccessFile(target, "rw");
+        targetFile.setLength(content.length);
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        sourceFile.close();
+        targetFile.close();
+        source.delete();
+        target.delete();
+    }
+
+    @Test
+    public void shouldReceiveWholeFileOverOneConnection() throws Exception {
+        final SegmentedReceiver receiver = transfer(0, 1, false);
+
+        assertEquals(1, receiver.getStreams());
+        assertTrue(Arrays.equals(content, readTarget(0)));
+    }
+
+    @Test
+    public void shouldReceiveWholeFileOverSeveralConnections() throws Exception {
+        final SegmentedReceiver receiver = transfer(0, 3, true);
+
+        assertEquals(3, receiver.getStreams());
+        assertEquals(content.length, receiver.getReceived());
+        assertTrue(Arrays.equals(content, readTarget(0)));
+    }
+
+    @Test
+    public void shouldReceiveRestOfFileWhenResuming() throws Exception {
+        final int offset = 5 * 1024 * 1024 + 1;
+        final SegmentedReceiver receiver = transfer(offset, 2, true);
+
+        assertEquals(offset, receiver.getStart());
+        assertEquals(content.length - offset, receiver.getReceived());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, offset, content.length), readTarget(offset)));
+    }
+
+    @Test
+    public void shouldKeepReceivedBytesWhenSenderStopsEarly() throws Exception {
+        final SegmentedReceiver receiver = receiveRaw(false, 1000, 500, -1);
+
+        assertEquals(500, receiver.getContiguousEnd());
+        assertTrue(Arrays.equals(Arrays.copyOf(content, 500), Arrays.copyOf(readTarget(0), 500)));
+    }
+
+    @Test
+    public void shouldNotKeepUnverifiedBytesWhenSenderStopsEarlyWithChecksums() throws Exception {
+        final SegmentedReceiver receiver = receiveRaw(true, 1000, 500, -1);
+
+        assertEquals(0, receiver.getContiguousEnd());
+    }
+
+    @Test
+    public void shouldFailAndNotKeepSegmentWithWrongChecksum() throws Exception {
+        final TransferChecksum checksum = new TransferChecksum();
+        checksum.update(content, 0, 1000);
+
+        final SegmentedReceiver receiver = receiveRaw(true, 1000, 1000, checksum.getValue() + 1);
+
+        assertEquals(0, receiver.getContiguousEnd());
+    }
+
+    /**
+     * Sends the first part of a segment from the start of the file, and closes the connection.
+     * The checksum is only sent if not negative.
+     */
+    private SegmentedReceiver receiveRaw(final boolean checksums, final int segmentLength, final int bytesToSend,
+                                         final long checksum) throws Exception {
+        final SegmentedReceiver receiver = new SegmentedReceiver(
+                targetFile.getChannel(), content.length, 0, new BufferPool(64 * 1024, 2), checksums, "Test receiver");
+
+        final SocketChannel out = SocketChannel.open(server.socket().getLocalSocketAddress());
+        receiver.addStream(server.accept().socket());
+
+        final ByteBuffer header = ByteBuffer.allocate(24);
+        header.putLong(0).putLong(0).putLong(segmentLength).flip();
+        out.write(header);
+        out.write(ByteBuffer.wrap(content, 0, bytesToSend));
+
+        if (checksum >= 0) {
+            final ByteBuffer trailer = ByteBuffer.allocate(8);
+            trailer.putLong(checksum).flip();
+            out.write(trailer);
+        }
+
+        out.close();
+
+        waitUntilFinished(receiver);
+        receiver.close();
+
+        assertFalse(receiver.isComplete());
+
+        try {
+            receiver.checkError();
+            fail("Should fail");
+        }
+
+        catch (final IOException e) {
+            // Expected
+        }
+
+        return receiver;
+    }
+
+    private SegmentedReceiver transfer(final long offset, final int streams, final boolean checksums)
+            throws Exception {
+        final SegmentedReceiver receiver = new SegmentedReceiver(
+                targetFile.getChannel(), content.length, offset, new BufferPool(64 * 1024, 4), checksums,
+                "Test receiver");
+        final SegmentedSender sender = new SegmentedSender(
+                sourceFile.getChannel(), offset, content.length, checksums, "Test sender");
+
+        try {
+            for (int i = 0; i < streams; i++) {
+                final SocketChannel out = SocketChannel.open(server.socket().getLocalSocketAddress());
+                receiver.addStream(server.accept().socket());
+                sender.addStream(out.socket());
+            }
+
+            while (!sender.isDone()) {
+                sender.await(1000);
+            }
+
+            sender.checkError();
+            waitUntilFinished(receiver);
+            receiver.checkError();
+
+            assertTrue(receiver.isComplete());
+            assertEquals(content.length, receiver.getContiguousEnd());
+            assertEquals(content.length - offset, sender.getSent());
+
+            return receiver;
+        }
+
+        finally {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    private void waitUntilFinished(final SegmentedReceiver receiver) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 10000;
+
+        while (!receiver.isFinished() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(receiver.isFinished());
+    }
+
+    private byte[] readTarget(final int offset) throws IOException {
+        final byte[] bytes = new byte[content.length - offset];
+        targetFile.seek(offset);
+        targetFile.readFully(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,145 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferChecksum}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferChecksumTest {
+
+    private byte[] content;
+    private long expected;
+
+    @Before
+    public void setUp() {
+        content = new byte[200 * 1024 + 3];
+        new Random(3).nextBytes(content);
+
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        expected = crc.getValue();
+    }
+
+    @Test
+    public void updateShouldUseBytesFromArray() {
+        final TransferChecksum checksum = new TransferChecksum();
+        checksum.update(content, 0, 1000);
+        checksum.update(content, 1000, content.length - 1000);
+
+        assertEquals(expected, checksum.getValue());
+        assertTrue(checksum.matches(expected));
+        assertFalse(checksum.matches(expected + 1));
+    }
+
+    @Test
+    public void updateShouldUseBytesBeforePositionOfHeapBuffer() {
+        checkBuffer(ByteBuffer.allocate(content.length + 10));
+    }
+
+    @Test
+    public void updateShouldUseBytesBeforePositionOfDirectBuffer() {
+        checkBuffer(ByteBuffer.allocateDirect(content.length + 10));
+    }
+
+    @Test
+    public void copyShouldUpdateWithBytesCopiedFromFile() throws IOException {
+        final File file = File.createTempFile("transferchecksumtest", ".bin");
+
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[10]);
+            out.write(content);
+            out.close();
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            final TransferChecksum checksum = new TransferChecksum();
+            final ByteBuffer buffer = ByteBuffer.allocate(4096);
+            final ByteArrayOutputStream copied = new ByteArrayOutputStream();
+            final WritableByteChannel target = Channels.newChannel(copied);
+
+            try {
+                long position = 10;
+
+                while (position < content.length + 10) {
+                    position += checksum.copy(raf.getChannel(), position, content.length + 10 - position,
+                            buffer, target);
+                }
+            }
+
+            finally {
+                raf.close();
+            }
+
+            assertEquals(expected, checksum.getValue());
+            assertArrayEquals(content, copied.toByteArray());
+        }
+
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void copyShouldFailIfFileIsTooShort() throws IOException {
+        final File file = File.createTempFile("transferchecksumtest", ".bin");
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+            new TransferChecksum().copy(raf.getChannel(), 0, 10, ByteBuffer.allocate(10),
+                    Channels.newChannel(new ByteArrayOutputStream()));
+        }
+
+        finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private void checkBuffer(final ByteBuffer buffer) {
+        buffer.put(content);
+        final TransferChecksum checksum = new TransferChecksum();
+        checksum.update(buffer);
+
+        assertEquals(expected, checksum.getValue());
+        assertEquals(content.length, buffer.position());
+        assertEquals(content.length + 10, buffer.limit());
+    }
+}
@@ -0,0 +1,242 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferList}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferListTest {
+
+    private TransferList transferList;
+    private File file;
+    private User user;
+
+    @Before
+    public void setUp() throws IOException {
+        transferList = new TransferList();
+        file = File.createTempFile("transferlisttest", ".bin");
+        user = new User("Receiver", 1);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void addFileSenderShouldUseHashOfFile() {
+        final FileSender fileSender = transferList.addFileSender(user, file);
+
+        assertEquals(FileSender.createFileHash(file), fileSender.getFileHash());
+        assertSame(fileSender, transferList.getFileSender(user, file.getName(), fileSender.getFileHash()));
+    }
+
+    @Test
+    public void addFileSenderShouldUseUniqueHashWhenSendingSameFileTwice() {
+        final FileSender first = transferList.addFileSender(user, file);
+        final FileSender second = transferList.addFileSender(user, file);
+
+        assertNotEquals(first.getFileHash(), second.getFileHash());
+        assertSame(first, transferList.getFileSender(user, file.getName(), first.getFileHash()));
+        assertSame(second, transferList.getFileSender(user, file.getName(), second.getFileHash()));
+    }
+
+    @Test
+    public void addFileSenderShouldUseSameHashForDifferentUsers() {
+        final FileSender first = transferList.addFileSender(user, file);
+        final FileSender second = transferList.addFileSender(new User("Other", 2), file);
+
+        assertEquals(first.getFileHash(), second.getFileHash());
+    }
+
+    @Test
+    public void getFileSenderShouldNotFindFileSenderWithOtherHash() {
+        final FileSender fileSender = transferList.addFileSender(user, file);
+
+        assertNull(transferList.getFileSender(user, file.getName(), fileSender.getFileHash() + 1));
+    }
+
+    @Test
+    public void newFileTransfersShouldBeLimitedByTheBandwidthLimits() {
+        transferList.setBandwidthLimit(500 * 1024);
+        transferList.setTransferBandwidthLimit(100 * 1024);
+
+        final FileSender fileSender = transferList.addFileSender(user, file);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user, file, 10);
+
+        assertEquals(500 * 1024, transferList.getBandwidthLimiter().getRate());
+        assertSame(transferList.getBandwidthLimiter(), fileSender.getBandwidthLimiter().getParent());
+        assertSame(transferList.getBandwidthLimiter(), fileReceiver.getBandwidthLimiter().getParent());
+        assertEquals(100 * 1024, fileSender.getBandwidthLimiter().getRate());
+        assertEquals(100 * 1024, fileReceiver.getBandwidthLimiter().getRate());
+    }
+
+    @Test
+    public void setTransferBandwidthLimitShouldChangeOngoingFileTransfers() {
+        final FileSender fileSender = transferList.addFileSender(user, file);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user, file, 10);
+
+        transferList.setTransferBandwidthLimit(200 * 1024);
+
+        assertEquals(200 * 1024, fileSender.getBandwidthLimiter().getRate());
+        assertEquals(200 * 1024, fileReceiver.getBandwidthLimiter().getRate());
+    }
+
+    @Test
+    public void getFileTransferShouldFindFileTransfersById() {
+        final FileSender fileSender = transferList.addFileSender(user, file);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user, file, 10);
+
+        assertNotEquals(fileSender.getId(), fileReceiver.getId());
+        assertSame(fileSender, transferList.getFileSender(user, fileSender.getId()));
+        assertSame(fileReceiver, transferList.getFileReceiver(user, fileReceiver.getId()));
+        assertSame(fileSender, transferList.getFileTransfer(user, fileSender.getId()));
+        assertSame(fileReceiver, transferList.getFileTransfer(user, fileReceiver.getId()));
+        assertNull(transferList.getFileSender(user, fileReceiver.getId()));
+        assertNull(transferList.getFileReceiver(user, fileSender.getId()));
+    }
+
+    @Test
+    public void getFileTransferShouldNotFindFileTransfersOfOtherUsers() {
+        final User other = new User("Other", 2);
+        final FileSender fileSender = transferList.addFileSender(user, file);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user, file, 10);
+
+        assertNull(transferList.getFileSender(other, fileSender.getId()));
+        assertNull(transferList.getFileReceiver(other, fileReceiver.getId()));
+        assertNull(transferList.getFileSender(other, file.getName(), fileSender.getFileHash()));
+        assertNull(transferList.getFileTransfer(other, file.getName()));
+        assertTrue(transferList.getFileSenders(other).isEmpty());
+        assertTrue(transferList.getFileReceivers(other).isEmpty());
+    }
+
+    @Test
+    public void removeShouldRemoveFileTransfersFromAllLookups() {
+        final FileSender fileSender = transferList.addFileSender(user, file);
+        final FileReceiver fileReceiver = transferList.addFileReceiver(user, file, 10);
+
+        transferList.removeFileSender(fileSender);
+        transferList.removeFileReceiver(fileReceiver);
+
+        assertNull(transferList.getFileSender(user, fileSender.getId()));
+        assertNull(transferList.getFileSender(user, file.getName()));
+        assertNull(transferList.getFileSender(user, file.getName(), fileSender.getFileHash()));
+        assertNull(transferList.getFileReceiver(user, fileReceiver.getId()));
+        assertNull(transferList.getFileReceiver(user, file.getName()));
+        assertTrue(transferList.getFileSenders().isEmpty());
+        assertTrue(transferList.getFileSenders(user).isEmpty());
+        assertTrue(transferList.getFileReceivers().isEmpty());
+        assertTrue(transferList.getFileReceivers(user).isEmpty());
+
+        // The hash is free to use again
+        assertEquals(fileSender.getFileHash(), transferList.addFileSender(user, file).getFileHash());
+    }
+
+    @Test
+    public void getFileSendersShouldReturnSnapshotInTheOrderTheyWereAdded() {
+        final FileSender first = transferList.addFileSender(user, file);
+        final FileSender second = transferList.addFileSender(new User("Other", 2), file);
+        final FileSender third = transferList.addFileSender(user, file);
+
+        final List<FileSender> fileSenders = transferList.getFileSenders();
+
+        for (final FileSender fileSender : fileSenders) {
+            transferList.removeFileSender(fileSender);
+        }
+
+        assertEquals(3, fileSenders.size());
+        assertSame(first, fileSenders.get(0));
+        assertSame(second, fileSenders.get(1));
+        assertSame(third, fileSenders.get(2));
+        assertTrue(transferList.getFileSenders().isEmpty());
+    }
+
+    @Test
+    public void addFileSenderShouldUseUniqueIdAndHashWhenAddingFromManyThreads() throws InterruptedException {
+        final int threads = 8;
+        final int sendersPerThread = 100;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+
+                        for (int j = 0; j < sendersPerThread; j++) {
+                            transferList.addFileSender(user, file);
+                            transferList.addFileReceiver(user, file, 10);
+                        }
+                    }
+
+                    catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        final List<FileSender> fileSenders = transferList.getFileSenders(user);
+        final Set<Integer> ids = new HashSet<Integer>();
+        final Set<Integer> hashes = new HashSet<Integer>();
+
+        assertEquals(threads * sendersPerThread, fileSenders.size());
+        assertEquals(threads * sendersPerThread, transferList.getFileReceivers(user).size());
+
+        for (final FileSender fileSender : fileSenders) {
+            assertTrue(ids.add(fileSender.getId()));
+            assertTrue(hashes.add(fileSender.getFileHash()));
+            assertSame(fileSender, transferList.getFileSender(user, file.getName(), fileSender.getFileHash()));
+        }
+
+        for (final FileReceiver fileReceiver : transferList.getFileReceivers(user)) {
+            assertTrue(ids.add(fileReceiver.getId()));
+        }
+    }
+}
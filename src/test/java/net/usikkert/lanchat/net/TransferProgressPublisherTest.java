@@ -0,0 +1,110 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferProgressPublisher}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferProgressPublisherTest {
+
+    private TransferList transferList;
+    private FileSender sender;
+    private FileReceiver receiver;
+    private TransferProgressPublisher publisher;
+
+    @Before
+    public void setUp() {
+        transferList = mock(TransferList.class);
+        sender = mock(FileSender.class);
+        receiver = mock(FileReceiver.class);
+
+        when(transferList.getFileSenders()).thenReturn(Arrays.asList(sender));
+        when(transferList.getFileReceivers()).thenReturn(Arrays.asList(receiver));
+
+        publisher = new TransferProgressPublisher(transferList);
+    }
+
+    @After
+    public void tearDown() {
+        publisher.stop();
+    }
+
+    @Test
+    public void publishShouldPublishProgressOfAllSendersAndReceivers() {
+        publisher.publish();
+
+        verify(sender).publishProgress();
+        verify(receiver).publishProgress();
+    }
+
+    @Test
+    public void publishShouldContinueWhenOneTransferFails() {
+        doThrow(new IllegalStateException("Test")).when(sender).publishProgress();
+
+        publisher.publish();
+
+        verify(receiver).publishProgress();
+    }
+
+    @Test
+    public void startShouldPublishProgressAtFixedRateUntilStopped() throws InterruptedException {
+        assertFalse(publisher.isStarted());
+
+        publisher.start();
+        assertTrue(publisher.isStarted());
+
+        Thread.sleep(TransferProgressPublisher.UPDATE_INTERVAL * 5);
+        publisher.stop();
+        assertFalse(publisher.isStarted());
+
+        verify(sender, atLeast(2)).publishProgress();
+        verify(sender, atMost(6)).publishProgress();
+        verify(receiver, atLeast(2)).publishProgress();
+
+        reset(sender);
+        Thread.sleep(TransferProgressPublisher.UPDATE_INTERVAL * 2);
+        verifyZeroInteractions(sender);
+    }
+
+    @Test
+    public void startShouldOnlyStartOnce() throws InterruptedException {
+        publisher.start();
+        publisher.start();
+
+        Thread.sleep(TransferProgressPublisher.UPDATE_INTERVAL * 5);
+        publisher.stop();
+
+        verify(sender, atMost(6)).publishProgress();
+    }
+}
@@ -0,0 +1,356 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.usikkert.lanchat.event.FileTransferListener;
+import net.usikkert.lanchat.misc.User;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferScheduler}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferSchedulerTest {
+
+    private static final long LARGE = 100 * 1024 * 1024;
+
+    private TransferList transferList;
+    private TransferScheduler scheduler;
+    private List<Runnable> started;
+    private boolean rejecting;
+    private User user;
+    private User other;
+
+    @Before
+    public void setUp() {
+        transferList = new TransferList();
+        started = Collections.synchronizedList(new ArrayList<Runnable>());
+        scheduler = new TransferScheduler(transferList, new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (rejecting) {
+                    throw new RejectedExecutionException("Full");
+                }
+
+                started.add(command);
+            }
+        });
+
+        user = new User("User", 1);
+        other = new User("Other", 2);
+    }
+
+    @Test
+    public void scheduleShouldStartRightAwayWithoutLimits() {
+        for (int i = 0; i < 20; i++) {
+            assertTrue(scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class)));
+        }
+
+        assertEquals(20, scheduler.getActiveTransfers());
+        assertTrue(scheduler.getQueuedTransfers().isEmpty());
+    }
+
+    @Test
+    public void scheduleShouldQueueWhenAllPlacesAreTaken() {
+        scheduler.setLimits(2, 0, 0, 0);
+        final FileReceiver first = addReceiver(user, LARGE);
+        final FileReceiver second = addReceiver(other, LARGE);
+        final FileReceiver third = addReceiver(user, LARGE);
+        final Runnable startThird = mock(Runnable.class);
+
+        assertTrue(scheduler.schedule(first, mock(Runnable.class)));
+        assertTrue(scheduler.schedule(second, mock(Runnable.class)));
+        assertFalse(scheduler.schedule(third, startThird));
+
+        assertTrue(scheduler.isQueued(third));
+        assertEquals(1, third.getQueuePosition());
+        assertTrue(started.isEmpty());
+
+        transferList.removeFileReceiver(first);
+
+        assertFalse(scheduler.isQueued(third));
+        assertEquals(0, third.getQueuePosition());
+        assertEquals(Arrays.asList(startThird), started);
+        assertEquals(2, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void userLimitShouldNotStopFileTransfersWithOtherUsers() {
+        scheduler.setLimits(0, 1, 0, 0);
+
+        assertTrue(scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class)));
+        assertFalse(scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class)));
+        assertTrue(scheduler.schedule(addReceiver(other, LARGE), mock(Runnable.class)));
+    }
+
+    @Test
+    public void directionLimitShouldNotStopTheOtherDirection() {
+        scheduler.setLimits(0, 0, 0, 1);
+
+        assertTrue(scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class)));
+        assertFalse(scheduler.schedule(addReceiver(other, LARGE), mock(Runnable.class)));
+        assertTrue(scheduler.schedule(transferList.addFileSender(other, new File("file.txt")), mock(Runnable.class)));
+    }
+
+    @Test
+    public void waitingFileSendersShouldNotStopFileReceivers() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileSender sender = transferList.addFileSender(user, new File("file.txt"));
+
+        assertTrue(scheduler.offer(sender, mock(Runnable.class), mock(Runnable.class)));
+        assertTrue(sender.isWaiting());
+
+        assertTrue(scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class)));
+        assertFalse(scheduler.offer(transferList.addFileSender(user, new File("other.txt")), mock(Runnable.class),
+                mock(Runnable.class)));
+    }
+
+    @Test
+    public void offersShouldCountAgainstTheLimits() {
+        scheduler.setLimits(0, 0, 1, 0);
+        final FileSender first = transferList.addFileSender(user, new File("file.txt"));
+        final FileSender second = transferList.addFileSender(other, new File("other.txt"));
+
+        assertTrue(scheduler.offer(first, mock(Runnable.class), mock(Runnable.class)));
+        assertFalse(scheduler.offer(second, mock(Runnable.class), mock(Runnable.class)));
+
+        assertEquals(1, scheduler.getOfferedTransfers());
+        assertEquals(Arrays.<FileTransfer>asList(second), scheduler.getQueuedTransfers());
+    }
+
+    @Test
+    public void acceptedFileSenderShouldStartRightAwayWhenTheLimitsAreFull() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileSender sender = transferList.addFileSender(user, new File("file.txt"));
+        final Runnable expire = mock(Runnable.class);
+
+        assertTrue(scheduler.offer(sender, mock(Runnable.class), expire));
+        assertTrue(scheduler.schedule(addReceiver(other, LARGE), mock(Runnable.class)));
+        assertFalse(scheduler.schedule(addReceiver(other, LARGE), mock(Runnable.class)));
+
+        assertTrue(scheduler.schedule(sender, mock(Runnable.class)));
+
+        assertFalse(scheduler.isQueued(sender));
+        assertEquals(2, scheduler.getActiveTransfers());
+        assertEquals(0, scheduler.getOfferedTransfers());
+        verify(expire, never()).run();
+    }
+
+    @Test
+    public void expiredOfferShouldFreeThePlaceForTheNextOffer() throws InterruptedException {
+        scheduler.setOfferTimeout(50);
+        scheduler.setLimits(0, 0, 1, 0);
+        final FileSender unanswered = transferList.addFileSender(user, new File("file.txt"));
+        final FileSender queued = transferList.addFileSender(other, new File("other.txt"));
+        final Runnable expire = mock(Runnable.class);
+        final Runnable offerQueued = mock(Runnable.class);
+
+        assertTrue(scheduler.offer(unanswered, mock(Runnable.class), expire));
+        assertFalse(scheduler.offer(queued, offerQueued, mock(Runnable.class)));
+
+        verify(expire, timeout(2000)).run();
+        waitForStarted(1);
+
+        assertEquals(Arrays.asList(offerQueued), started);
+        assertFalse(scheduler.isQueued(queued));
+        assertEquals(1, scheduler.getOfferedTransfers());
+        assertEquals(0, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void answeredOfferShouldNotExpire() throws InterruptedException {
+        scheduler.setOfferTimeout(50);
+        final FileSender sender = transferList.addFileSender(user, new File("file.txt"));
+        final Runnable expire = mock(Runnable.class);
+
+        assertTrue(scheduler.offer(sender, mock(Runnable.class), expire));
+        assertTrue(scheduler.schedule(sender, mock(Runnable.class)));
+
+        Thread.sleep(200);
+
+        verify(expire, never()).run();
+        assertEquals(1, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void removedOfferShouldNotExpire() throws InterruptedException {
+        scheduler.setOfferTimeout(50);
+        final FileSender sender = transferList.addFileSender(user, new File("file.txt"));
+        final Runnable expire = mock(Runnable.class);
+
+        assertTrue(scheduler.offer(sender, mock(Runnable.class), expire));
+        transferList.removeFileSender(sender);
+
+        Thread.sleep(200);
+
+        verify(expire, never()).run();
+        assertEquals(0, scheduler.getOfferedTransfers());
+    }
+
+    @Test
+    public void queueShouldStartSmallFileTransfersFirstAndOtherwiseInOrder() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileReceiver active = addReceiver(user, LARGE);
+        final FileReceiver large1 = addReceiver(user, LARGE);
+        final FileReceiver small = addReceiver(user, TransferScheduler.SMALL_TRANSFER_SIZE);
+        final FileReceiver large2 = addReceiver(other, LARGE);
+
+        scheduler.schedule(active, mock(Runnable.class));
+        scheduler.schedule(large1, mock(Runnable.class));
+        scheduler.schedule(small, mock(Runnable.class));
+        scheduler.schedule(large2, mock(Runnable.class));
+
+        assertEquals(Arrays.<FileTransfer>asList(small, large1, large2), scheduler.getQueuedTransfers());
+        assertEquals(1, small.getQueuePosition());
+        assertEquals(2, large1.getQueuePosition());
+        assertEquals(3, large2.getQueuePosition());
+
+        transferList.removeFileReceiver(active);
+
+        assertEquals(Arrays.<FileTransfer>asList(large1, large2), scheduler.getQueuedTransfers());
+        assertEquals(0, small.getQueuePosition());
+        assertEquals(1, large1.getQueuePosition());
+        assertEquals(2, large2.getQueuePosition());
+    }
+
+    @Test
+    public void removingQueuedFileTransferShouldUpdateQueue() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileReceiver active = addReceiver(user, LARGE);
+        final FileReceiver first = addReceiver(user, LARGE);
+        final FileReceiver second = addReceiver(user, LARGE);
+        scheduler.schedule(active, mock(Runnable.class));
+        scheduler.schedule(first, mock(Runnable.class));
+        scheduler.schedule(second, mock(Runnable.class));
+
+        transferList.removeFileReceiver(first);
+
+        assertEquals(Arrays.<FileTransfer>asList(second), scheduler.getQueuedTransfers());
+        assertEquals(1, second.getQueuePosition());
+        assertTrue(started.isEmpty());
+    }
+
+    @Test
+    public void setLimitsShouldStartQueuedFileTransfers() {
+        scheduler.setLimits(1, 0, 0, 0);
+        scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class));
+        scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class));
+        scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class));
+
+        scheduler.setLimits(2, 0, 0, 0);
+        assertEquals(1, started.size());
+        assertEquals(1, scheduler.getQueuedTransfers().size());
+
+        scheduler.setLimits(0, 0, 0, 0);
+        assertEquals(2, started.size());
+        assertEquals(3, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void cancelShouldRunTheTaskOfQueuedFileTransferWithoutTakingAPlace() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileReceiver queued = addReceiver(user, LARGE);
+        final Runnable start = mock(Runnable.class);
+        scheduler.schedule(addReceiver(user, LARGE), mock(Runnable.class));
+        scheduler.schedule(queued, start);
+
+        scheduler.cancel(queued);
+
+        assertEquals(Arrays.asList(start), started);
+        assertFalse(scheduler.isQueued(queued));
+        assertEquals(1, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void cancelShouldDoNothingIfNotQueued() {
+        final FileReceiver receiver = addReceiver(user, LARGE);
+        scheduler.schedule(receiver, mock(Runnable.class));
+
+        scheduler.cancel(receiver);
+
+        assertTrue(started.isEmpty());
+        assertEquals(1, scheduler.getActiveTransfers());
+    }
+
+    @Test
+    public void fileTransferShouldStayQueuedIfTheExecutorIsFull() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileReceiver active = addReceiver(user, LARGE);
+        final FileReceiver queued = addReceiver(user, LARGE);
+        scheduler.schedule(active, mock(Runnable.class));
+        scheduler.schedule(queued, mock(Runnable.class));
+
+        rejecting = true;
+        transferList.removeFileReceiver(active);
+
+        assertTrue(scheduler.isQueued(queued));
+        assertEquals(0, scheduler.getActiveTransfers());
+
+        rejecting = false;
+        scheduler.setLimits(1, 0, 0, 0);
+
+        assertFalse(scheduler.isQueued(queued));
+        assertEquals(1, started.size());
+    }
+
+    @Test
+    public void listenerShouldBeToldWhenQueuedAndWhenLeavingTheQueue() {
+        scheduler.setLimits(1, 0, 0, 0);
+        final FileReceiver active = addReceiver(user, LARGE);
+        final FileReceiver queued = addReceiver(user, LARGE);
+        final FileTransferListener listener = mock(FileTransferListener.class);
+        queued.registerListener(listener);
+        verify(listener).statusWaiting();
+
+        scheduler.schedule(active, mock(Runnable.class));
+        scheduler.schedule(queued, mock(Runnable.class));
+        verify(listener).statusQueued();
+
+        transferList.removeFileReceiver(active);
+        verify(listener, times(2)).statusWaiting();
+    }
+
+    private void waitForStarted(final int count) throws InterruptedException {
+        for (int i = 0; i < 200 && started.size() < count; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private FileReceiver addReceiver(final User from, final long size) {
+        return transferList.addFileReceiver(from, new File("file.bin"), size);
+    }
+}
@@ -0,0 +1,65 @@
+
+/***************************************************************************
+ *   Copyright 2006-2013 by Shouvik Goswwami                               *
+ *   shouvik.goswami@gmail.com                                             *
+ *                                                                         *
+ *   This file is part of LanChat.                                         *
+ *                                                                         *
+ *   LanChat is free software; you can redistribute it and/or modify       *
+ *   it under the terms of the GNU Lesser General Public License as        *
+ *   published by the Free Software Foundation, either version 3 of        *
+ *   the License, or (at your option) any later version.                   *
+ *                                                                         *
+ *   LanChat is distributed in the hope that it will be useful,            *
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU      *
+ *   Lesser General Public License for more details.                       *
+ *                                                                         *
+ *   You should have received a copy of the GNU Lesser General Public      *
+ *   License along with LanChat.                                           *
+ *   If not, see <http://www.gnu.org/licenses/>.                           *
+ ***************************************************************************/
+
+package net.usikkert.lanchat.net;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Test of {@link TransferToken}.
+ *
+ * @author Christian Ihle
+ */
+public class TransferTokenTest {
+
+    @Test
+    public void fromBytesShouldReadTokenWrittenByToBytes() {
+        final TransferToken token = new TransferToken(100, -5, "file.txt");
+        final byte[] bytes = token.toBytes();
+
+        assertEquals(TransferToken.SIZE, bytes.length);
+        assertEquals(token, TransferToken.fromBytes(ByteBuffer.wrap(bytes)));
+        assertEquals(token.hashCode(), TransferToken.fromBytes(ByteBuffer.wrap(bytes)).hashCode());
+    }
+
+    @Test
+    public void fromBytesShouldReturnNullForOtherBytes() {
+        final byte[] bytes = new TransferToken(100, -5, "file.txt").toBytes();
+        bytes[0] ^= 1;
+
+        assertNull(TransferToken.fromBytes(ByteBuffer.wrap(bytes)));
+        assertNull(TransferToken.fromBytes(ByteBuffer.wrap(new byte[TransferToken.SIZE - 1])));
+    }
+
+    @Test
+    public void tokensShouldBeDifferentForDifferentFileTransfers() {
+        final TransferToken token = new TransferToken(100, -5, "file.txt");
+
+        assertNotEquals(token, new TransferToken(101, -5, "file.txt"));
+        assertNotEquals(token, new TransferToken(100, -4, "file.txt"));
+        assertNotEquals(token, new TransferToken(100, -5, "other.txt"));
+    }
+}
@@ -23,6 +23,7 @@
 package net.usikkert.lanchat.ui.swing;
 
 import java.io.File;
+import java.util.List;
 
 import net.usikkert.lanchat.misc.User;
 import net.usikkert.lanchat.net.FileTransfer;
@@ -98,6 +99,16 @@ public class MockMediator implements Mediator {
 
     }
 
+    /**
+     * Not implemented.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void sendFiles(final User user, final List<File> files) {
+
+    }
+
     /**
      * Not implemented.
      *